@@ -0,0 +1,84 @@
+package net.rptools.maptool.vision;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * {@link VisibilityEventSink} that sends each visibility calculation to Java Flight Recorder.
+ *
+ * This is loaded by {@link VisibilityMetrics} if it is available, JFR is only in JDK 11 onwards. The events are only
+ * begun and committed while a recording has them enabled, which they are by default, and only committed if they took
+ * longer than the recording's threshold.
+ */
+class JfrVisibilityEventSink implements VisibilityEventSink {
+
+    @Override
+    public CalculationEvent begin() {
+        final VisibilityEvent event = new VisibilityEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * The JFR event for a visibility calculation. It is begun before the calculation and committed once it has
+     * finished, so its duration is the time the calculation took.
+     */
+    @Name("net.rptools.maptool.vision.Visibility")
+    @Label("Visibility Calculation")
+    @Category({"MapTool", "Vision"})
+    @Description("The area visible from a viewer (or lit by a light source) was calculated")
+    @StackTrace(false)
+    static class VisibilityEvent extends Event implements CalculationEvent {
+        /** The name of the calculator used. */
+        @Label("Calculator")
+        String calculator;
+
+        /** The X co-ordinate of the viewer. */
+        @Label("Viewer X")
+        double viewerX;
+
+        /** The Y co-ordinate of the viewer. */
+        @Label("Viewer Y")
+        double viewerY;
+
+        /** The number of line segments blocking vision/light. */
+        @Label("Segments")
+        int segments;
+
+        /** The number of rays cast. */
+        @Label("Rays Cast")
+        long rays;
+
+        /** The number of times a ray was tested against a line segment. */
+        @Label("Intersection Tests")
+        long intersectionTests;
+
+        /** The number of intersections in the visible area. */
+        @Label("Hits")
+        int hits;
+
+        @Override
+        public void commit(String iCalculator, double iViewerX, double iViewerY, int iSegments, long iRays,
+                           long iIntersectionTests, int iHits) {
+            end();
+            if (!shouldCommit()) {
+                return;
+            }
+            calculator = iCalculator;
+            viewerX = iViewerX;
+            viewerY = iViewerY;
+            segments = iSegments;
+            rays = iRays;
+            intersectionTests = iIntersectionTests;
+            hits = iHits;
+            commit();
+        }
+    }
+}
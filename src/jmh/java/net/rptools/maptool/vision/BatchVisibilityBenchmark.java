@@ -0,0 +1,95 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks calculating the visible area for many lights at once with {@link ParallelVisibility}, with a varying
+ * number of threads to show how it scales with cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchVisibilityBenchmark {
+
+    /** The number of line segments in the scene. */
+    @Param({"1000", "100000"})
+    public int segments;
+
+    /** The number of lights in each batch. */
+    @Param({"64"})
+    public int lights;
+
+    /** The number of threads in the pool. */
+    @Param({"1", "4", "16"})
+    public int threads;
+
+    /** The scene. */
+    private VisionBlockingPolygonList scene;
+    /** The lights. */
+    private List<Point2D> viewers;
+    /** The pool the batch runs on. */
+    private ForkJoinPool pool;
+    /** The batch calculator. */
+    private ParallelVisibility parallelVisibility;
+
+    /**
+     * Creates the scene, lights and pool.
+     */
+    @Setup
+    public void setup() {
+        scene = BenchmarkScenes.createScene(segments, 42);
+        scene.getSegmentGrid();
+
+        // Lights are placed where the lines between cells cross so they are never inside a polygon.
+        final int cellsPerSide = BenchmarkScenes.getCellsPerSide(segments);
+        final Random random = new Random(42);
+        viewers = new ArrayList<>();
+        for (int i = 0; i < lights; i++) {
+            viewers.add(new Point2D(
+                    (1 + random.nextInt(Math.max(1, cellsPerSide - 1))) * BenchmarkScenes.CELL_SIZE,
+                    (1 + random.nextInt(Math.max(1, cellsPerSide - 1))) * BenchmarkScenes.CELL_SIZE
+            ));
+        }
+
+        pool = new ForkJoinPool(threads);
+        parallelVisibility = new ParallelVisibility(new RayCastVisibility(true), pool);
+    }
+
+    /**
+     * Shuts down the pool.
+     */
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Calculates the visible area for all the lights.
+     * @return the visible areas, returned so they aren't optimised away.
+     */
+    @Benchmark
+    public List<List<LineIntersection>> calculateVisibility() {
+        return parallelVisibility.calculateVisibility(scene, viewers);
+    }
+}
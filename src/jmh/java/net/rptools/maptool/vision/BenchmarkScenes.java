@@ -0,0 +1,64 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.Random;
+
+/**
+ * Generates scenes of vision/light blocking polygons for the benchmarks, using the same generator as the tests
+ * ({@link TestScenes}).
+ *
+ * The scene is a square room split into a grid of cells with a randomly shaped four sided polygon inside each cell.
+ * The polygons never touch the lines between the cells, so they never cross each other and any point on those lines
+ * (including where they meet) can be used as a viewer position.
+ */
+public class BenchmarkScenes {
+    /** The width and height of each cell in the scene. */
+    public static final double CELL_SIZE = TestScenes.CELL_SIZE;
+    /** The gap between the polygons and the edges of their cell. */
+    private static final double MARGIN = TestScenes.MARGIN;
+
+    /**
+     * Creates a scene with approximately the number of line segments requested.
+     * @param numSegments The number of line segments wanted.
+     * @param seed The seed for the random shapes of the polygons, so the same scene can be created again.
+     * @return the scene.
+     */
+    public static VisionBlockingPolygonList createScene(int numSegments, long seed) {
+        // Four segments for the room and four for each polygon.
+        return TestScenes.createScene(getCellsPerSide(numSegments), Math.max(0, (numSegments - 4) / 4),
+                new Random(seed));
+    }
+
+    /**
+     * Returns the number of cells along each side of a scene.
+     * @param numSegments The number of line segments in the scene.
+     * @return the number of cells along each side.
+     */
+    public static int getCellsPerSide(int numSegments) {
+        return Math.max(1, (int) Math.ceil(Math.sqrt(Math.max(0, (numSegments - 4) / 4))));
+    }
+
+    /**
+     * Returns a viewer position for a scene.
+     * @param numSegments The number of line segments in the scene.
+     * @param position The name of the position, one of <code>CENTER</code>, <code>CORNER</code> or <code>EDGE</code>.
+     * @return the viewer position.
+     */
+    public static Point2D getViewer(int numSegments, String position) {
+        final int cellsPerSide = getCellsPerSide(numSegments);
+        final double size = cellsPerSide * CELL_SIZE;
+        // Viewers are kept on the lines between cells so they are never inside a polygon.
+        final double center = (cellsPerSide / 2) * CELL_SIZE + (cellsPerSide == 1 ? CELL_SIZE / 2 : 0);
+        switch (position) {
+            case "CENTER":
+                return new Point2D(center, center);
+            case "CORNER":
+                return new Point2D(MARGIN / 2, MARGIN / 2);
+            case "EDGE":
+                return new Point2D(center, size - MARGIN / 2);
+            default:
+                throw new IllegalArgumentException("Unknown viewer position " + position);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks testing a single ray against every line segment of a scene, comparing
+ * {@link LineSegment#getIntersectionWith(LineSegment, double)} with the primitive {@link SegmentStore} routines.
+ *
+ * The SIMD routine is only used when the benchmarks are run on a JDK with the Vector API, otherwise it falls back to
+ * the scalar routine. SegmentStoreTest checks that the two routines find the same hits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IntersectionBenchmark {
+    /** The line segments to test the ray against. */
+    private LineSegment[] lineSegments;
+    /** The same line segments as primitive co-ordinates. */
+    private SegmentStore segmentStore;
+    /** The ray as a {@link LineSegment}. */
+    private LineSegment ray;
+    /** Scratch space for the closest hit. */
+    private final RayHit hit = new RayHit();
+
+    /**
+     * Creates the line segments and ray.
+     */
+    @Setup
+    public void setup() {
+        VisionBlockingPolygonList scene = BenchmarkScenes.createScene(1000, 42);
+        lineSegments = scene.getLineSegments().toArray(new LineSegment[0]);
+        segmentStore = scene.getSegmentStore();
+        Point2D viewer = BenchmarkScenes.getViewer(1000, "CENTER");
+        ray = new LineSegment(viewer, new Point2D(viewer.getX() + Math.cos(0.3), viewer.getY() + Math.sin(0.3)));
+    }
+
+    /**
+     * Finds the closest intersection using {@link LineSegment#getIntersectionWith(LineSegment, double)}.
+     * @return the closest intersection.
+     */
+    @Benchmark
+    public LineIntersection lineSegment() {
+        LineIntersection closest = null;
+        for (LineSegment lineSegment : lineSegments) {
+            LineIntersection inter = lineSegment.getIntersectionWith(ray, 0.3);
+            if (inter != null && (closest == null || closest.getDistance() > inter.getDistance())) {
+                closest = inter;
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * Finds the closest intersection using {@link SegmentStore#castRay(double, double, double, double, RayHit)}.
+     * @return the distance to the closest intersection.
+     */
+    @Benchmark
+    public double segmentStore() {
+        hit.reset();
+        segmentStore.castRay(ray.getPoint1().getX(), ray.getPoint1().getY(), Math.cos(0.3), Math.sin(0.3), hit);
+        return hit.getDistance();
+    }
+
+    /**
+     * Finds the closest intersection using
+     * {@link SegmentStore#castRayVectorized(double, double, double, double, RayHit)}.
+     * @return the distance to the closest intersection.
+     */
+    @Benchmark
+    public double segmentStoreVectorized() {
+        hit.reset();
+        segmentStore.castRayVectorized(ray.getPoint1().getX(), ray.getPoint1().getY(), Math.cos(0.3), Math.sin(0.3),
+                hit);
+        return hit.getDistance();
+    }
+}
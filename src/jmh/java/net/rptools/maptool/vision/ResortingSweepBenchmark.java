@@ -0,0 +1,72 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks a viewer that keeps moving a small distance back and forth, comparing {@link ResortingSweepVisibility}
+ * with calculating from scratch using {@link AngularSweepVisibility}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResortingSweepBenchmark {
+
+    /** The number of line segments in the scene. */
+    @Param({"1000", "100000"})
+    public int segments;
+
+    /** How far the viewer moves each time. */
+    @Param({"0.1", "1"})
+    public double step;
+
+    /** The {@link VisibilityCalculator} to benchmark. */
+    @Param({"resorting", "sweep"})
+    public String calculator;
+
+    /** The scene. */
+    private VisionBlockingPolygonList scene;
+    /** The viewer positions that are moved between. */
+    private Point2D[] viewers;
+    /** The calculator being benchmarked. */
+    private VisibilityCalculator visibilityCalculator;
+    /** The number of calculations done, used to pick the next viewer position. */
+    private int count;
+
+    /**
+     * Creates the scene and the viewer positions.
+     */
+    @Setup
+    public void setup() {
+        scene = BenchmarkScenes.createScene(segments, 42);
+        Point2D center = BenchmarkScenes.getViewer(segments, "CENTER");
+        viewers = new Point2D[] {center, new Point2D(center.getX() + step, center.getY())};
+        visibilityCalculator = "resorting".equals(calculator)
+                ? new ResortingSweepVisibility() : new AngularSweepVisibility();
+    }
+
+    /**
+     * Calculates the visible area for the next viewer position.
+     * @return the visible area, returned so it isn't optimised away.
+     */
+    @Benchmark
+    public List<LineIntersection> calculateVisibility() {
+        return visibilityCalculator.calculateVisibility(scene, viewers[count++ & 1]);
+    }
+}
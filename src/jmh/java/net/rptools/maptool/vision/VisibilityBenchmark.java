@@ -0,0 +1,79 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks calculating the visible area for scenes of different sizes and viewer positions.
+ *
+ * Throughput mode gives visibility polygons per second and sample time mode gives the latency percentiles, run with
+ * the GC profiler (the <code>jmh</code> gradle task does this) for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VisibilityBenchmark {
+
+    /** The number of line segments in the scene. */
+    @Param({"10", "1000", "100000"})
+    public int segments;
+
+    /** Where the viewer is in the scene. */
+    @Param({"CENTER", "CORNER", "EDGE"})
+    public String viewerPosition;
+
+    /**
+     * The {@link VisibilityCalculator} to benchmark, <code>raycastAll</code> is the ray cast without the
+     * {@link VertexClassifier} culling rays.
+     */
+    @Param({"sweep", "raycast", "raycastAll"})
+    public String calculator;
+
+    /** The scene. */
+    private VisionBlockingPolygonList scene;
+    /** The viewer. */
+    private Point2D viewer;
+    /** The calculator being benchmarked. */
+    private VisibilityCalculator visibilityCalculator;
+
+    /**
+     * Creates the scene, spatial index and calculator outside of the measurements.
+     */
+    @Setup
+    public void setup() {
+        scene = BenchmarkScenes.createScene(segments, 42);
+        scene.getSegmentGrid();
+        scene.getVertexClassifier();
+        viewer = BenchmarkScenes.getViewer(segments, viewerPosition);
+        if ("sweep".equals(calculator)) {
+            visibilityCalculator = new AngularSweepVisibility();
+        } else {
+            visibilityCalculator = new RayCastVisibility(!"raycastAll".equals(calculator));
+        }
+    }
+
+    /**
+     * Calculates the visible area for the viewer.
+     * @return the visible area, returned so it isn't optimised away.
+     */
+    @Benchmark
+    public List<LineIntersection> calculateVisibility() {
+        return visibilityCalculator.calculateVisibility(scene, viewer);
+    }
+}
@@ -0,0 +1,347 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * {@link VisibilityCalculator} that sweeps a ray around the viewer in order of angle, keeping track of the line
+ * segments the ray currently crosses in a structure ordered by their distance from the viewer.
+ *
+ * Instead of testing every ray against every line segment the closest line segment is always at the front of the
+ * ordered structure, so the cost is dominated by sorting the vertices by angle, i.e. O(n log n) rather than the
+ * O(V * E) of {@link RayCastVisibility}. The rays are the same as the ones {@link RayCastVisibility} casts (directly at
+ * each vertex and a very small angle either side of it) so the output of the two can be compared.
+ *
+ * The vertices are sorted by {@link LineIntersection#pseudoAngle(double, double)} rather than their actual angle and
+ * the rays are built from direction vectors, so there is no trigonometry for each vertex.
+ *
+ * Like the classic algorithm this relies on line segments only meeting at their end points, if two line segments
+ * cross each other the order of the segments may be wrong close to where they cross.
+ */
+public class AngularSweepVisibility implements VisibilityCalculator {
+
+    @Override
+    public List<LineIntersection> calculateVisibility(VisionBlockingPolygonList visionBlockingPolygonList,
+                                                      Point2D viewer) {
+        return new Sweep(visionBlockingPolygonList, viewer).run();
+    }
+
+
+    /**
+     * Class used to represent a line segment entering or leaving the sweep.
+     */
+    private static class Event {
+        /** The pseudo angle that the event occurs at. */
+        private final double angle;
+        /** The index of the line segment that the event is for. */
+        private final int segment;
+        /** <code>true</code> if the line segment enters the sweep, <code>false</code> if it leaves it. */
+        private final boolean start;
+
+        /**
+         * Creates a new <code>Event</code>.
+         * @param iAngle The pseudo angle that the event occurs at.
+         * @param iSegment The index of the line segment that the event is for.
+         * @param iStart <code>true</code> if the line segment enters the sweep, <code>false</code> if it leaves it.
+         */
+        private Event(double iAngle, int iSegment, boolean iStart) {
+            angle = iAngle;
+            segment = iSegment;
+            start = iStart;
+        }
+    }
+
+
+    /**
+     * The state of a single sweep. A new one is created for each calculation so that the calculator itself has no
+     * state and can be shared between threads.
+     */
+    private static class Sweep {
+        /** The viewer (or light source). */
+        private final Point2D viewer;
+        /** The X co-ordinates of the start of the line segments, relative to the viewer. */
+        private final double[] x1;
+        /** The Y co-ordinates of the start of the line segments, relative to the viewer. */
+        private final double[] y1;
+        /** The X co-ordinates of the end of the line segments, relative to the viewer. */
+        private final double[] x2;
+        /** The Y co-ordinates of the end of the line segments, relative to the viewer. */
+        private final double[] y2;
+        /** The pseudo angles of all the vertices from the viewer, sorted. */
+        private final double[] vertexAngles;
+        /** The line segments entering and leaving the sweep, sorted by angle. */
+        private final List<Event> events = new ArrayList<>();
+        /** The line segments that the sweep currently crosses, ordered by distance from the viewer. */
+        private final TreeSet<Integer> active = new TreeSet<>(Comparator
+                .<Integer>comparingDouble(seg -> distanceAlong(seg, this.probeX, this.probeY))
+                .thenComparingInt(seg -> seg));
+
+        /** The X component of the direction that the active line segments are currently ordered along. */
+        private double probeX;
+        /** The Y component of the direction that the active line segments are currently ordered along. */
+        private double probeY;
+        /** The number of times a ray (or the probe) was tested against a line segment, for the metrics. */
+        private long tests;
+
+        /**
+         * Creates a new <code>Sweep</code>.
+         * @param visionBlockingPolygonList The polygons that block vision/light.
+         * @param iViewer The viewer (or light source).
+         */
+        private Sweep(VisionBlockingPolygonList visionBlockingPolygonList, Point2D iViewer) {
+            viewer = iViewer;
+            final double vx = viewer.getX();
+            final double vy = viewer.getY();
+
+            vertexAngles = new double[visionBlockingPolygonList.getNumberVertices()];
+            int ind = 0;
+            for (Point2D vert : visionBlockingPolygonList.getVertices()) {
+                vertexAngles[ind++] = LineIntersection.pseudoAngle(vert.getX() - vx, vert.getY() - vy);
+            }
+            Arrays.sort(vertexAngles);
+
+            // Disabled line segments (open doors) are left out.
+            SegmentStore segmentStore = visionBlockingPolygonList.getEnabledSegmentStore();
+            int numSegments = segmentStore.size();
+            x1 = new double[numSegments];
+            y1 = new double[numSegments];
+            x2 = new double[numSegments];
+            y2 = new double[numSegments];
+
+            for (int seg = 0; seg < numSegments; seg++) {
+                x1[seg] = segmentStore.getX1(seg) - vx;
+                y1[seg] = segmentStore.getY1(seg) - vy;
+                x2[seg] = segmentStore.getX2(seg) - vx;
+                y2[seg] = segmentStore.getY2(seg) - vy;
+            }
+        }
+
+        /**
+         * Performs the sweep.
+         * @return the intersections that make up the visible area sorted by angle.
+         */
+        private List<LineIntersection> run() {
+            List<LineIntersection> lineIntersections = new ArrayList<>(vertexAngles.length * 3);
+            if (vertexAngles.length == 0) {
+                return lineIntersections;
+            }
+
+            // Line segments that cross the boundary behind the viewer are crossed by the sweep from the start.
+            List<Integer> wrapping = createEvents();
+            setProbe((-2 + vertexAngles[0]) / 2);
+            active.addAll(wrapping);
+
+            // First pass sweeps through the distinct vertex angles recording the closest line segment between each
+            // of them, fronts[i + 1] is the closest line segment between groupAngles[i] and groupAngles[i + 1].
+            final double[] groupAngles = new double[vertexAngles.length];
+            final int[] groupCounts = new int[vertexAngles.length];
+            final int[] fronts = new int[vertexAngles.length + 1];
+            int numGroups = 0;
+            fronts[0] = getFront();
+
+            double prev = -2;
+            int eventInd = 0;
+            int ind = 0;
+            while (ind < vertexAngles.length) {
+                final double angle = vertexAngles[ind];
+                int count = 0;
+                while (ind < vertexAngles.length && vertexAngles[ind] == angle) {
+                    count++;
+                    ind++;
+                }
+                final double next = ind < vertexAngles.length ? vertexAngles[ind] : 2;
+
+                // The segments are ordered along a ray half way between the events as that is the only place where
+                // all the segments being compared are guaranteed to be crossed by the ray.
+                setProbe((prev + angle) / 2);
+                int firstEvent = eventInd;
+                while (eventInd < events.size() && events.get(eventInd).angle <= angle) {
+                    Event event = events.get(eventInd++);
+                    if (!event.start && !active.remove(event.segment)) {
+                        // Should only happen when line segments cross, so fall back to searching for it.
+                        active.removeIf(seg -> seg == event.segment);
+                    }
+                }
+
+                setProbe((angle + next) / 2);
+                for (int i = firstEvent; i < eventInd; i++) {
+                    Event event = events.get(i);
+                    if (event.start) {
+                        active.add(event.segment);
+                    }
+                }
+
+                groupAngles[numGroups] = angle;
+                groupCounts[numGroups] = count;
+                fronts[++numGroups] = getFront();
+                prev = angle;
+            }
+
+            // Second pass casts the rays. The rays either side of a vertex are intersected with the closest line
+            // segment of the interval that they fall in, which is not always the one next to the vertex when
+            // vertices are closer together than VERY_SMALL_ANGLE.
+            for (int group = 0; group < numGroups; group++) {
+                final double x = LineIntersection.pseudoAngleX(groupAngles[group]);
+                final double y = LineIntersection.pseudoAngleY(groupAngles[group]);
+                final double length = Math.sqrt(x * x + y * y);
+                final double ux = x / length;
+                final double uy = y / length;
+                // Rotating (x, y) by an angle a gives (x cos(a) - y sin(a), x sin(a) + y cos(a)).
+                final double beforeX = ux * RayCastVisibility.COS_SMALL_ANGLE + uy * RayCastVisibility.SIN_SMALL_ANGLE;
+                final double beforeY = uy * RayCastVisibility.COS_SMALL_ANGLE - ux * RayCastVisibility.SIN_SMALL_ANGLE;
+                final double afterX = ux * RayCastVisibility.COS_SMALL_ANGLE - uy * RayCastVisibility.SIN_SMALL_ANGLE;
+                final double afterY = uy * RayCastVisibility.COS_SMALL_ANGLE + ux * RayCastVisibility.SIN_SMALL_ANGLE;
+                final int before = findInterval(groupAngles, numGroups, LineIntersection.pseudoAngle(beforeX, beforeY));
+                final int after = findInterval(groupAngles, numGroups, LineIntersection.pseudoAngle(afterX, afterY));
+                for (int i = 0; i < groupCounts[group]; i++) {
+                    addIntersection(lineIntersections, fronts[before], beforeX, beforeY);
+
+                    LineIntersection beforeInter = getIntersection(fronts[group], ux, uy);
+                    LineIntersection afterInter = getIntersection(fronts[group + 1], ux, uy);
+                    if (beforeInter == null || (afterInter != null
+                            && afterInter.getDistance() < beforeInter.getDistance())) {
+                        beforeInter = afterInter;
+                    }
+                    if (beforeInter != null) {
+                        lineIntersections.add(beforeInter);
+                    }
+
+                    addIntersection(lineIntersections, fronts[after], afterX, afterY);
+                }
+            }
+            if (VisibilityMetrics.isEnabled()) {
+                // Three rays per vertex. The tests include ordering the line segments along the probe.
+                VisibilityMetrics.countWork(vertexAngles.length * 3L, tests);
+            }
+
+            // Vertices closer together than VERY_SMALL_ANGLE result in rays slightly out of order, the list is almost
+            // sorted so this is cheap.
+            lineIntersections.sort(LineIntersection.ANGULAR_ORDER);
+
+            return lineIntersections;
+        }
+
+        /**
+         * Returns the index into the recorded closest line segments for the interval that a pseudo angle falls in.
+         *
+         * Rays slightly past the boundary behind the viewer have pseudo angles on the other side of it, so they end
+         * up in the interval that wraps around.
+         *
+         * @param groupAngles The distinct vertex pseudo angles, sorted.
+         * @param numGroups The number of distinct vertex pseudo angles.
+         * @param angle The pseudo angle to find the interval for.
+         * @return the index of the interval.
+         */
+        private int findInterval(double[] groupAngles, int numGroups, double angle) {
+            int ind = Arrays.binarySearch(groupAngles, 0, numGroups, angle);
+            return ind >= 0 ? ind + 1 : -ind - 1;
+        }
+
+        /**
+         * Returns the closest of the line segments that the sweep currently crosses.
+         * @return the index of the closest line segment or -1 if there is none.
+         */
+        private int getFront() {
+            return active.isEmpty() ? -1 : active.first();
+        }
+
+        /**
+         * Creates the events for the line segments entering and leaving the sweep and sorts them by angle.
+         * @return the line segments that cross the sweep at the start.
+         */
+        private List<Integer> createEvents() {
+            List<Integer> wrapping = new ArrayList<>();
+            for (int seg = 0; seg < x1.length; seg++) {
+                final double orientation = x1[seg] * y2[seg] - y1[seg] * x2[seg];
+                if (orientation == 0) {
+                    // The line segment points directly at the viewer so it can't block anything.
+                    continue;
+                }
+                final double angle1 = LineIntersection.pseudoAngle(x1[seg], y1[seg]);
+                final double angle2 = LineIntersection.pseudoAngle(x2[seg], y2[seg]);
+                final double startAngle = orientation > 0 ? angle1 : angle2;
+                final double endAngle = orientation > 0 ? angle2 : angle1;
+                events.add(new Event(startAngle, seg, true));
+                events.add(new Event(endAngle, seg, false));
+                if (startAngle > endAngle) {
+                    wrapping.add(seg);
+                }
+            }
+            events.sort(Comparator.comparingDouble(e -> e.angle));
+
+            return wrapping;
+        }
+
+        /**
+         * Sets the direction that the active line segments are ordered along.
+         * @param angle The pseudo angle of the direction, values past the boundary behind the viewer wrap around.
+         */
+        private void setProbe(double angle) {
+            probeX = LineIntersection.pseudoAngleX(angle);
+            probeY = LineIntersection.pseudoAngleY(angle);
+        }
+
+        /**
+         * Returns the distance from the viewer along a ray to the line that the line segment lies on.
+         * @param seg The index of the line segment.
+         * @param dx The X component of the direction of the ray.
+         * @param dy The Y component of the direction of the ray.
+         * @return the distance along the ray, in lengths of the direction, or {@link Double#POSITIVE_INFINITY} if the
+         *         ray is parallel to the line.
+         */
+        private double distanceAlong(int seg, double dx, double dy) {
+            // Solving viewer + d * t = p1 + (p2 - p1) * s for t (with the viewer at the origin) gives
+            // t = (p1 x (p2 - p1)) / (d x (p2 - p1))
+            tests++;
+            final double line_dx = x2[seg] - x1[seg];
+            final double line_dy = y2[seg] - y1[seg];
+            final double denom = dx * line_dy - dy * line_dx;
+            if (denom == 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return (x1[seg] * line_dy - y1[seg] * line_dx) / denom;
+        }
+
+        /**
+         * Returns the intersection of a ray from the viewer with a line segment.
+         * @param seg The index of the line segment, or -1 if there is no line segment.
+         * @param dx The X component of the unit direction vector of the ray.
+         * @param dy The Y component of the unit direction vector of the ray.
+         * @return the intersection, or <code>null</code> if there is none.
+         */
+        private LineIntersection getIntersection(int seg, double dx, double dy) {
+            if (seg < 0) {
+                return null;
+            }
+            final double distance = distanceAlong(seg, dx, dy);
+            if (distance < 0 || Double.isInfinite(distance) || Double.isNaN(distance)) {
+                return null;
+            }
+            return new LineIntersection(
+                    new Point2D(viewer.getX() + dx * distance, viewer.getY() + dy * distance),
+                    distance,
+                    dx,
+                    dy
+            );
+        }
+
+        /**
+         * Adds the intersection of a ray from the viewer with a line segment to a list if there is one.
+         * @param lineIntersections The list to add the intersection to.
+         * @param seg The index of the line segment, or -1 if there is no line segment.
+         * @param dx The X component of the unit direction vector of the ray.
+         * @param dy The Y component of the unit direction vector of the ray.
+         */
+        private void addIntersection(List<LineIntersection> lineIntersections, int seg, double dx, double dy) {
+            LineIntersection inter = getIntersection(seg, dx, dy);
+            if (inter != null) {
+                lineIntersections.add(inter);
+            }
+        }
+    }
+}
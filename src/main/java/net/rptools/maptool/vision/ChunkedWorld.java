@@ -0,0 +1,403 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A world too large to keep all of its vision/light blocking polygons in memory, split into square tiles that are
+ * stored on disk and only loaded when a query needs them.
+ *
+ * The world is a directory written by {@link #write(List, double, Path)} holding a header file, which records the size
+ * of the tiles and which of them have any polygons, and a {@link MappedScene} file for each of those tiles. A polygon
+ * is stored in every tile its bounding box overlaps, so a query only has to load the tiles that its area overlaps.
+ *
+ * Loaded tiles are kept in least recently used order, and once the total number of vertices loaded goes over the
+ * limit the tiles that have been used least recently are dropped, except for those needed by the current query. This
+ * keeps the heap used bounded however large the world is, as long as the limit is larger than what a single query
+ * needs.
+ *
+ * The polygons of the tiles a query needs are put in a list of their own, which is kept for the next queries that
+ * need the same tiles. A few of these lists are kept, the least recently used of them are dropped, as are those with
+ * a tile that has been dropped.
+ *
+ * The loaded tiles are only used while holding the world's lock, so a world can be shared by viewers on several
+ * threads. The lists are built without holding it, so one viewer's list being built doesn't hold up the others.
+ */
+public class ChunkedWorld {
+    /** Written at the start of the header file to identify it. */
+    private static final int MAGIC = 0x43574c44;
+    /** The version of the header file format. */
+    private static final int FORMAT_VERSION = 1;
+    /** The name of the header file in the world directory. */
+    private static final String HEADER_FILE = "world.bin";
+    /** The most lists of the polygons in a set of tiles that are kept. */
+    private static final int MAX_POLYGON_LISTS = 16;
+
+    /** The directory the world is stored in. */
+    private final Path directory;
+    /** The width and height of each tile. */
+    private final double tileSize;
+    /** The keys of the tiles that have any polygons, see {@link #tileKey(int, int)}. */
+    private final Set<Long> storedTiles;
+    /** The most vertices kept loaded, unless a single query needs more. */
+    private final long maxVertices;
+    /** The polygons of the loaded tiles, the least recently used first. */
+    private final LinkedHashMap<Long, List<VisionBlockingPolygon>> loadedTiles =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /** The number of vertices in the loaded tiles. */
+    private long loadedVertices;
+    /** The number of times a tile has been loaded from disk. */
+    private long tileLoads;
+    /** The number of times a loaded tile has been dropped. */
+    private long evictions;
+    /**
+     * The polygons of the sets of tiles recent queries needed, the least recently used first, which are frozen as they
+     * are shared.
+     */
+    private final LinkedHashMap<TileSet, VisionBlockingPolygonList> polygonLists =
+            new LinkedHashMap<TileSet, VisionBlockingPolygonList>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<TileSet, VisionBlockingPolygonList> eldest) {
+                    return size() > MAX_POLYGON_LISTS;
+                }
+            };
+
+    /**
+     * Creates a new <code>ChunkedWorld</code>.
+     * @param iDirectory The directory the world is stored in.
+     * @param iTileSize The width and height of each tile.
+     * @param iStoredTiles The keys of the tiles that have any polygons.
+     * @param iMaxVertices The most vertices kept loaded.
+     */
+    private ChunkedWorld(Path iDirectory, double iTileSize, Set<Long> iStoredTiles, long iMaxVertices) {
+        directory = iDirectory;
+        tileSize = iTileSize;
+        storedTiles = iStoredTiles;
+        maxVertices = iMaxVertices;
+    }
+
+    /**
+     * Splits vision/light blocking polygons into tiles and writes them to a world directory.
+     * @param polygons The polygons to write.
+     * @param tileSize The width and height of each tile.
+     * @param directory The directory to write the world to, it is created if it does not exist and files already in
+     *                  it with the same names are replaced.
+     * @throws IOException if there is an error writing the files.
+     */
+    public static void write(List<VisionBlockingPolygon> polygons, double tileSize, Path directory)
+            throws IOException {
+        if (!(tileSize > 0)) {
+            throw new IllegalArgumentException("Tile size must be greater than 0");
+        }
+        final Map<Long, List<VisionBlockingPolygon>> tiles = new HashMap<>();
+        for (VisionBlockingPolygon vbp : polygons) {
+            final int minCol = tileIndex(vbp.getMinX(), tileSize);
+            final int maxCol = tileIndex(vbp.getMaxX(), tileSize);
+            final int minRow = tileIndex(vbp.getMinY(), tileSize);
+            final int maxRow = tileIndex(vbp.getMaxY(), tileSize);
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int col = minCol; col <= maxCol; col++) {
+                    tiles.computeIfAbsent(tileKey(col, row), k -> new ArrayList<>()).add(vbp);
+                }
+            }
+        }
+
+        Files.createDirectories(directory);
+        for (Map.Entry<Long, List<VisionBlockingPolygon>> tile : tiles.entrySet()) {
+            MappedScene.write(tile.getValue(), directory.resolve(tileFileName(tile.getKey())));
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(directory.resolve(HEADER_FILE))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeDouble(tileSize);
+            out.writeInt(tiles.size());
+            for (long key : tiles.keySet()) {
+                out.writeLong(key);
+            }
+        }
+    }
+
+    /**
+     * Opens a world directory written by {@link #write(List, double, Path)}. No tiles are loaded until they are
+     * needed.
+     * @param directory The directory the world is stored in.
+     * @param maxVertices The most vertices to keep loaded, unless a single query needs more.
+     * @return the world.
+     * @throws IOException if there is an error reading the header file or it is not a world header file.
+     */
+    public static ChunkedWorld open(Path directory, long maxVertices) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(directory.resolve(HEADER_FILE))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a world header file");
+            }
+            final int formatVersion = in.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported world header file version " + formatVersion);
+            }
+            final double tileSize = in.readDouble();
+            final int numTiles = in.readInt();
+            if (!(tileSize > 0) || numTiles < 0) {
+                throw new IOException("World header file is corrupt");
+            }
+            final Set<Long> storedTiles = new HashSet<>();
+            for (int i = 0; i < numTiles; i++) {
+                storedTiles.add(in.readLong());
+            }
+            return new ChunkedWorld(directory, tileSize, storedTiles, maxVertices);
+        }
+    }
+
+    /**
+     * Calculates the area that can be seen by a viewer with a limited vision radius, loading the tiles it needs.
+     * @param calculator The calculator for the viewer's vision radius. The same one should be used for each query so
+     *                   that the polygons it culled for the viewer are reused while it stays close.
+     * @param viewer The viewer (or light source).
+     * @return the intersections that make up the visible area sorted by angle.
+     * @throws UncheckedIOException if there is an error loading a tile.
+     */
+    public List<LineIntersection> calculateVisibility(RangeLimitedVisibility calculator, Point2D viewer) {
+        final double radius = calculator.getRadius();
+        final VisionBlockingPolygonList polygons = getPolygons(viewer.getX() - radius, viewer.getY() - radius,
+                viewer.getX() + radius, viewer.getY() + radius);
+        return calculator.calculateVisibility(polygons, viewer);
+    }
+
+    /**
+     * Returns the polygons in the tiles that overlap an area, loading any tiles that aren't already loaded. This
+     * includes polygons outside of the area that share a tile with it.
+     * @param minX The X co-ordinate of the left edge of the area.
+     * @param minY The Y co-ordinate of the top edge of the area.
+     * @param maxX The X co-ordinate of the right edge of the area.
+     * @param maxY The Y co-ordinate of the bottom edge of the area.
+     * @return the polygons, which are {@link VisionBlockingPolygonList#freezeLazily() frozen} as the same list is
+     *         returned to every thread while the tiles are the same.
+     * @throws UncheckedIOException if there is an error loading a tile.
+     */
+    public VisionBlockingPolygonList getPolygons(double minX, double minY, double maxX, double maxY) {
+        final int minCol = tileIndex(minX, tileSize);
+        final int maxCol = tileIndex(maxX, tileSize);
+        final int minRow = tileIndex(minY, tileSize);
+        final int maxRow = tileIndex(maxY, tileSize);
+        final List<Long> keyList = new ArrayList<>();
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int col = minCol; col <= maxCol; col++) {
+                final long key = tileKey(col, row);
+                if (storedTiles.contains(key)) {
+                    keyList.add(key);
+                }
+            }
+        }
+        final TileSet tileSet = new TileSet(keyList.stream().mapToLong(Long::longValue).sorted().toArray());
+
+        final List<List<VisionBlockingPolygon>> tilePolygons = new ArrayList<>(tileSet.keys.length);
+        synchronized (this) {
+            // The tiles are loaded (or marked as used) even if the list is kept, so they are dropped least recently
+            // used first.
+            for (long key : tileSet.keys) {
+                tilePolygons.add(getTile(key));
+            }
+            evict(tileSet.keys.length);
+            final VisionBlockingPolygonList kept = polygonLists.get(tileSet);
+            if (kept != null) {
+                return kept;
+            }
+        }
+
+        // Polygons that overlap several tiles are stored in each of them. The tiles never change once loaded, so this
+        // can be done without the lock. Nothing derived from the polygons is built here, the calculator only builds
+        // what it needs.
+        final Set<List<Point2D>> seen = new HashSet<>();
+        final VisionBlockingPolygonList polygons = new VisionBlockingPolygonList();
+        for (List<VisionBlockingPolygon> tile : tilePolygons) {
+            for (VisionBlockingPolygon vbp : tile) {
+                if (seen.add(vbp.getVertices())) {
+                    polygons.addVisionBlockingPolygon(vbp);
+                }
+            }
+        }
+        polygons.freezeLazily();
+
+        synchronized (this) {
+            // Another thread's query may have dropped one of the tiles meanwhile, keeping the list would keep that
+            // tile's polygons in memory after it was dropped.
+            for (long key : tileSet.keys) {
+                if (!loadedTiles.containsKey(key)) {
+                    return polygons;
+                }
+            }
+            // Another thread may have built the same list meanwhile, the one that is kept is used by everyone.
+            final VisionBlockingPolygonList kept = polygonLists.putIfAbsent(tileSet, polygons);
+            return kept != null ? kept : polygons;
+        }
+    }
+
+    /**
+     * Returns the width and height of each tile.
+     * @return the size of each tile.
+     */
+    public double getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Returns the number of tiles that are loaded.
+     * @return the number of tiles.
+     */
+    public synchronized int getNumberLoadedTiles() {
+        return loadedTiles.size();
+    }
+
+    /**
+     * Returns the number of vertices in the tiles that are loaded.
+     * @return the number of vertices.
+     */
+    public synchronized long getLoadedVertices() {
+        return loadedVertices;
+    }
+
+    /**
+     * Returns the number of times a tile has been loaded from disk.
+     * @return the number of loads.
+     */
+    public synchronized long getTileLoads() {
+        return tileLoads;
+    }
+
+    /**
+     * Returns the number of times a loaded tile has been dropped to keep within the limit.
+     * @return the number of evictions.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the polygons of a tile, loading it if it isn't already loaded.
+     * @param key The key of the tile.
+     * @return the polygons of the tile.
+     * @throws UncheckedIOException if there is an error loading the tile.
+     */
+    private List<VisionBlockingPolygon> getTile(long key) {
+        List<VisionBlockingPolygon> tile = loadedTiles.get(key);
+        if (tile == null) {
+            try {
+                final MappedScene scene = MappedScene.open(directory.resolve(tileFileName(key)));
+                tile = new ArrayList<>(scene.getNumberPolygons());
+                for (int poly = 0; poly < scene.getNumberPolygons(); poly++) {
+                    tile.add(scene.getPolygon(poly));
+                }
+                loadedVertices += scene.size();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to load tile " + tileFileName(key), e);
+            }
+            loadedTiles.put(key, tile);
+            tileLoads++;
+        }
+        return tile;
+    }
+
+    /**
+     * Drops the least recently used tiles until the vertices loaded are within the limit.
+     * @param numNeeded The number of tiles needed by the current query, which were used most recently and are never
+     *                  dropped.
+     */
+    private void evict(int numNeeded) {
+        final Iterator<Map.Entry<Long, List<VisionBlockingPolygon>>> it = loadedTiles.entrySet().iterator();
+        while (loadedVertices > maxVertices && loadedTiles.size() > numNeeded) {
+            final Map.Entry<Long, List<VisionBlockingPolygon>> tile = it.next();
+            for (VisionBlockingPolygon vbp : tile.getValue()) {
+                loadedVertices -= vbp.getNumberVerticies();
+            }
+            it.remove();
+            evictions++;
+            // The lists with the tile's polygons would keep them in memory.
+            final long key = tile.getKey();
+            polygonLists.keySet().removeIf(tileSet -> tileSet.contains(key));
+        }
+    }
+
+    /**
+     * Returns the column or row of the tile that a co-ordinate is in.
+     * @param coordinate The X or Y co-ordinate.
+     * @param tileSize The width and height of each tile.
+     * @return the column or row.
+     */
+    private static int tileIndex(double coordinate, double tileSize) {
+        return (int) Math.floor(coordinate / tileSize);
+    }
+
+    /**
+     * Returns the key for a tile, which packs the column and row into one <code>long</code>.
+     * @param col The column of the tile.
+     * @param row The row of the tile.
+     * @return the key.
+     */
+    private static long tileKey(int col, int row) {
+        return ((long) col << 32) | (row & 0xffffffffL);
+    }
+
+    /**
+     * Returns the name of the file a tile is stored in.
+     * @param key The key of the tile.
+     * @return the file name.
+     */
+    private static String tileFileName(long key) {
+        return "tile_" + (int) (key >> 32) + "_" + (int) key + ".scene";
+    }
+
+    /**
+     * The sorted keys of the tiles a query needs, which are compared by their contents.
+     */
+    private static final class TileSet {
+        /** The keys of the tiles, sorted. */
+        private final long[] keys;
+
+        /**
+         * Creates a new <code>TileSet</code>.
+         * @param iKeys The keys of the tiles, sorted.
+         */
+        private TileSet(long[] iKeys) {
+            keys = iKeys;
+        }
+
+        /**
+         * Returns if a tile is in the set.
+         * @param key The key of the tile.
+         * @return <code>true</code> if the tile is in the set.
+         */
+        private boolean contains(long key) {
+            return Arrays.binarySearch(keys, key) >= 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TileSet && Arrays.equals(keys, ((TileSet) o).keys);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(keys);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package net.rptools.maptool.vision;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Keeps track of every part of the map that has ever been seen (the fog of war), as the union of all the visible
+ * areas added to it.
+ *
+ * The map is divided into square cells, with one bit per cell packed into a <code>long[]</code> one row after
+ * another. Visible areas are filled with a scanline rasterizer that only touches the rows the area covers, and a cell
+ * counts as seen when its centre is inside the area. Nothing here needs JavaFX to be running so it can be used on a
+ * server.
+ *
+ * This is not thread safe, each viewer (or group of viewers sharing what they have seen) should have its own mask.
+ */
+public class ExploredAreaMask {
+    /** Written at the start of a saved mask to identify it. */
+    private static final int MAGIC = 0x464f4721;
+    /** The version of the saved format. */
+    private static final int FORMAT_VERSION = 1;
+    /** The message of the exception thrown when a saved mask is corrupt. */
+    private static final String CORRUPT = "Explored area mask is corrupt";
+    /** The number of <code>long</code>s read from a saved mask before the buffer they are read into grows. */
+    private static final int READ_CHUNK_WORDS = 4096;
+
+    /** The X co-ordinate of the left edge of the mask. */
+    private final double originX;
+    /** The Y co-ordinate of the top edge of the mask. */
+    private final double originY;
+    /** The width and height of each cell. */
+    private final double cellSize;
+    /** The number of columns of cells. */
+    private final int columns;
+    /** The number of rows of cells. */
+    private final int rows;
+    /** The number of <code>long</code>s used for each row. */
+    private final int wordsPerRow;
+    /** One bit for each cell, set if the cell has been seen. */
+    private final long[] bits;
+
+    /** The index of the first edge that starts in each row, used while filling. */
+    private int[] rowEdges = new int[0];
+    /** The next edge that starts in the same row, used while filling. */
+    private int[] nextEdge = new int[0];
+    /** The edges that cross the row being filled. */
+    private int[] activeEdges = new int[0];
+    /** Where the active edges cross the row being filled. */
+    private double[] crossings = new double[0];
+
+    /**
+     * Creates a new <code>ExploredAreaMask</code> with nothing seen.
+     * @param iOriginX The X co-ordinate of the left edge of the mask.
+     * @param iOriginY The Y co-ordinate of the top edge of the mask.
+     * @param width The width of the area covered by the mask.
+     * @param height The height of the area covered by the mask.
+     * @param iCellSize The width and height of each cell, smaller cells are more accurate but use more memory.
+     */
+    public ExploredAreaMask(double iOriginX, double iOriginY, double width, double height, double iCellSize) {
+        this(iOriginX, iOriginY, iCellSize, (int) Math.ceil(width / iCellSize), (int) Math.ceil(height / iCellSize));
+    }
+
+    /**
+     * Creates a new <code>ExploredAreaMask</code> with nothing seen.
+     * @param iOriginX The X co-ordinate of the left edge of the mask.
+     * @param iOriginY The Y co-ordinate of the top edge of the mask.
+     * @param iCellSize The width and height of each cell.
+     * @param iColumns The number of columns of cells.
+     * @param iRows The number of rows of cells.
+     */
+    private ExploredAreaMask(double iOriginX, double iOriginY, double iCellSize, int iColumns, int iRows) {
+        if (!(iCellSize > 0) || Double.isInfinite(iCellSize) || iColumns <= 0 || iRows <= 0) {
+            throw new IllegalArgumentException("Explored area mask must have a positive size");
+        }
+        if (getNumberWords(iColumns, iRows) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Explored area mask is too large");
+        }
+        originX = iOriginX;
+        originY = iOriginY;
+        cellSize = iCellSize;
+        columns = iColumns;
+        rows = iRows;
+        wordsPerRow = (columns + 63) >>> 6;
+        bits = new long[wordsPerRow * rows];
+    }
+
+    /**
+     * Adds the area seen by a viewer to the explored area.
+     * @param lineIntersections The intersections that make up the visible area sorted by angle, as returned by a
+     *                          {@link VisibilityCalculator}.
+     * @return the number of cells that had not been seen before.
+     */
+    public int addVisibility(List<LineIntersection> lineIntersections) {
+        final int num = lineIntersections.size();
+        final double[] xs = new double[num];
+        final double[] ys = new double[num];
+        for (int i = 0; i < num; i++) {
+            xs[i] = lineIntersections.get(i).getPoint().getX();
+            ys[i] = lineIntersections.get(i).getPoint().getY();
+        }
+        return addPolygon(xs, ys, num);
+    }
+
+    /**
+     * Adds the area inside a simple polygon to the explored area.
+     * @param xs The X co-ordinates of the vertices of the polygon.
+     * @param ys The Y co-ordinates of the vertices of the polygon.
+     * @param numVertices The number of vertices of the polygon.
+     * @return the number of cells that had not been seen before.
+     */
+    public int addPolygon(double[] xs, double[] ys, int numVertices) {
+        if (numVertices < 3) {
+            return 0;
+        }
+        ensureCapacity(numVertices);
+
+        // Bucket the edges by the first row whose centre they cross, so each row only looks at the edges crossing it.
+        int minRow = rows;
+        int maxRow = -1;
+        for (int i = 0; i < numVertices; i++) {
+            final int j = i + 1 == numVertices ? 0 : i + 1;
+            final int first = Math.max(0, firstRow(Math.min(ys[i], ys[j])));
+            final int last = Math.min(rows - 1, firstRow(Math.max(ys[i], ys[j])) - 1);
+            if (first > last) {
+                // Horizontal, or doesn't cross the centre of any row in the mask.
+                continue;
+            }
+            nextEdge[i] = rowEdges[first];
+            rowEdges[first] = i;
+            minRow = Math.min(minRow, first);
+            maxRow = Math.max(maxRow, last);
+        }
+
+        int newCells = 0;
+        int numActive = 0;
+        for (int row = minRow; row <= maxRow; row++) {
+            final double y = originY + (row + 0.5) * cellSize;
+            for (int edge = rowEdges[row]; edge >= 0; edge = nextEdge[edge]) {
+                activeEdges[numActive++] = edge;
+            }
+            rowEdges[row] = -1;
+
+            // Drop the edges that have ended and work out where the rest cross the row.
+            int numCrossings = 0;
+            for (int i = 0; i < numActive; i++) {
+                final int edge = activeEdges[i];
+                final int next = edge + 1 == numVertices ? 0 : edge + 1;
+                final double y1 = ys[edge];
+                final double y2 = ys[next];
+                if (y >= Math.max(y1, y2)) {
+                    activeEdges[i--] = activeEdges[--numActive];
+                    continue;
+                }
+                crossings[numCrossings++] = xs[edge] + (y - y1) * (xs[next] - xs[edge]) / (y2 - y1);
+            }
+            Arrays.sort(crossings, 0, numCrossings);
+
+            // Fill between pairs of crossings (even-odd rule).
+            for (int i = 0; i + 1 < numCrossings; i += 2) {
+                final int firstColumn = Math.max(0, firstColumn(crossings[i]));
+                final int lastColumn = Math.min(columns - 1, firstColumn(crossings[i + 1]) - 1);
+                if (firstColumn <= lastColumn) {
+                    newCells += setRange(row, firstColumn, lastColumn);
+                }
+            }
+        }
+
+        return newCells;
+    }
+
+    /**
+     * Returns if the cell containing a point has been seen.
+     * @param x The X co-ordinate of the point.
+     * @param y The Y co-ordinate of the point.
+     * @return <code>true</code> if the point has been seen, <code>false</code> if not or it is outside the mask.
+     */
+    public boolean isExplored(double x, double y) {
+        final int column = (int) Math.floor((x - originX) / cellSize);
+        final int row = (int) Math.floor((y - originY) / cellSize);
+        if (column < 0 || column >= columns || row < 0 || row >= rows) {
+            return false;
+        }
+        return isExplored(column, row);
+    }
+
+    /**
+     * Returns if a cell has been seen.
+     * @param column The column of the cell.
+     * @param row The row of the cell.
+     * @return <code>true</code> if the cell has been seen.
+     */
+    public boolean isExplored(int column, int row) {
+        return (bits[row * wordsPerRow + (column >>> 6)] & (1L << column)) != 0;
+    }
+
+    /**
+     * Returns the number of cells that have been seen.
+     * @return the number of cells seen.
+     */
+    public int getExploredCount() {
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Forgets everything that has been seen.
+     */
+    public void clear() {
+        Arrays.fill(bits, 0);
+    }
+
+    /**
+     * Returns the number of columns of cells.
+     * @return the number of columns.
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Returns the number of rows of cells.
+     * @return the number of rows.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the width and height of each cell.
+     * @return the size of each cell.
+     */
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Saves the mask. The cells are compressed, which works well as seen areas are mostly large solid blocks.
+     * @param out Where to save the mask, this is not closed.
+     * @throws IOException if there is an error writing the mask.
+     */
+    public void save(OutputStream out) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(FORMAT_VERSION);
+        header.writeDouble(originX);
+        header.writeDouble(originY);
+        header.writeDouble(cellSize);
+        header.writeInt(columns);
+        header.writeInt(rows);
+        header.flush();
+
+        DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+        DataOutputStream data = new DataOutputStream(deflater);
+        for (long word : bits) {
+            data.writeLong(word);
+        }
+        data.flush();
+        deflater.finish();
+    }
+
+    /**
+     * Loads a mask saved with {@link #save(OutputStream)}.
+     * @param in Where to load the mask from, this is not closed.
+     * @return the mask.
+     * @throws IOException if there is an error reading the mask, it is not a saved mask, is from another version or
+     *                     is corrupt.
+     */
+    public static ExploredAreaMask load(InputStream in) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("Not an explored area mask");
+        }
+        final int formatVersion = header.readInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported explored area mask version " + formatVersion);
+        }
+        final double originX = header.readDouble();
+        final double originY = header.readDouble();
+        final double cellSize = header.readDouble();
+        final int columns = header.readInt();
+        final int rows = header.readInt();
+        if (!Double.isFinite(originX) || !Double.isFinite(originY) || !(cellSize > 0) || Double.isInfinite(cellSize)
+                || columns <= 0 || rows <= 0 || getNumberWords(columns, rows) > Integer.MAX_VALUE) {
+            throw new IOException(CORRUPT);
+        }
+
+        // The cells are read before the mask is created, growing the buffer as they are read, so a corrupt size runs
+        // out of data rather than allocating a huge mask up front.
+        final int numWords = (int) getNumberWords(columns, rows);
+        long[] words = new long[Math.min(numWords, READ_CHUNK_WORDS)];
+        DataInputStream data = new DataInputStream(new InflaterInputStream(in));
+        try {
+            for (int i = 0; i < numWords; i++) {
+                if (i == words.length) {
+                    words = Arrays.copyOf(words, (int) Math.min(numWords, 2L * words.length));
+                }
+                words[i] = data.readLong();
+            }
+        } catch (EOFException e) {
+            throw new IOException(CORRUPT, e);
+        }
+
+        ExploredAreaMask mask = new ExploredAreaMask(originX, originY, cellSize, columns, rows);
+        System.arraycopy(words, 0, mask.bits, 0, numWords);
+        return mask;
+    }
+
+    /**
+     * Returns the number of <code>long</code>s needed for the cells of a mask.
+     * @param columns The number of columns of cells.
+     * @param rows The number of rows of cells.
+     * @return the number of <code>long</code>s.
+     */
+    private static long getNumberWords(int columns, int rows) {
+        return ((columns + 63L) >>> 6) * rows;
+    }
+
+    /**
+     * Returns the first row whose centre is at or below a Y co-ordinate, which may be outside of the mask.
+     * @param y The Y co-ordinate.
+     * @return the row.
+     */
+    private int firstRow(double y) {
+        return (int) Math.max(-1, Math.min(rows, Math.ceil((y - originY) / cellSize - 0.5)));
+    }
+
+    /**
+     * Returns the first column whose centre is at or to the right of a X co-ordinate, which may be outside of the
+     * mask.
+     * @param x The X co-ordinate.
+     * @return the column.
+     */
+    private int firstColumn(double x) {
+        return (int) Math.max(-1, Math.min(columns, Math.ceil((x - originX) / cellSize - 0.5)));
+    }
+
+    /**
+     * Marks a range of cells in a row as seen.
+     * @param row The row.
+     * @param firstColumn The first column in the range.
+     * @param lastColumn The last column in the range.
+     * @return the number of cells that had not been seen before.
+     */
+    private int setRange(int row, int firstColumn, int lastColumn) {
+        final int rowStart = row * wordsPerRow;
+        final int firstWord = firstColumn >>> 6;
+        final int lastWord = lastColumn >>> 6;
+        int newCells = 0;
+        for (int word = firstWord; word <= lastWord; word++) {
+            long mask = -1L;
+            if (word == firstWord) {
+                mask &= -1L << firstColumn;
+            }
+            if (word == lastWord) {
+                mask &= -1L >>> (63 - (lastColumn & 63));
+            }
+            final long old = bits[rowStart + word];
+            newCells += Long.bitCount(mask & ~old);
+            bits[rowStart + word] = old | mask;
+        }
+        return newCells;
+    }
+
+    /**
+     * Makes sure the scratch space used while filling is big enough.
+     * @param numVertices The number of vertices of the polygon being filled.
+     */
+    private void ensureCapacity(int numVertices) {
+        if (rowEdges.length < rows) {
+            // Buckets are emptied again as the rows are filled, so this only needs to be done once.
+            rowEdges = new int[rows];
+            Arrays.fill(rowEdges, -1);
+        }
+        if (nextEdge.length < numVertices) {
+            nextEdge = new int[numVertices];
+            activeEdges = new int[numVertices];
+            crossings = new double[numVertices];
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cleans up vision/light blocking polygons before they are used, so every query has fewer vertices to cast rays at and
+ * fewer line segments to test them against.
+ *
+ * The polygons go through these steps in order
+ * <ol>
+ *     <li>Vertices closer together than the weld tolerance are moved onto the first of them that was seen, so near
+ *     duplicates from imported maps become exact duplicates and walls shared by neighbouring polygons become exactly
+ *     the same line segment.</li>
+ *     <li>Repeated vertices next to each other in a polygon are removed, and polygons left with fewer than 2 vertices
+ *     are dropped.</li>
+ *     <li>Runs of vertices are simplified with the Douglas-Peucker algorithm, so no vertex removed is further than the
+ *     tolerance from the new outline. With the weld tolerance this just merges collinear line segments, a larger
+ *     simplify tolerance also smooths out curves.</li>
+ * </ol>
+ *
+ * Vertices shared with another polygon are never removed when simplifying, otherwise shared walls would stop matching.
+ * Duplicate line segments, including the same line segment in the opposite direction, are removed when the polygons
+ * are added to the {@link VisionBlockingPolygonList}. Disabled polygons and line segments are cleaned up along with the
+ * rest and are disabled again in the result.
+ */
+public class GeometryPreprocessor {
+    /** Vertices closer together than this are welded together. */
+    private final double weldTolerance;
+    /** How far vertices removed when simplifying can be from the new outline. */
+    private final double simplifyTolerance;
+
+    /**
+     * Creates a new <code>GeometryPreprocessor</code>.
+     * @param iWeldTolerance Vertices closer together than this are welded together and vertices closer than this to
+     *                       the line between their neighbours are removed.
+     * @param iSimplifyTolerance How far vertices removed when simplifying can be from the new outline, 0 to only merge
+     *                           collinear line segments.
+     */
+    public GeometryPreprocessor(double iWeldTolerance, double iSimplifyTolerance) {
+        if (iWeldTolerance < 0 || iSimplifyTolerance < 0) {
+            throw new IllegalArgumentException("Tolerances can not be negative");
+        }
+        weldTolerance = iWeldTolerance;
+        simplifyTolerance = iSimplifyTolerance;
+    }
+
+    /**
+     * Cleans up the vision/light blocking polygons. Disabled polygons are cleaned up too and stay disabled, and
+     * disabled line segments (open doors) are disabled again once their ends have been welded. The ends of disabled
+     * line segments are kept when simplifying so the doors are still there.
+     * @param visionBlockingPolygonList The polygons to clean up, these are not changed.
+     * @return the cleaned up polygons and how much was removed.
+     */
+    public Result process(VisionBlockingPolygonList visionBlockingPolygonList) {
+        final List<VisionBlockingPolygon> polygons = visionBlockingPolygonList.getPolygonList();
+        final List<VisionBlockingPolygon> disabledPolygons = visionBlockingPolygonList.getDisabledPolygons();
+
+        // Weld the vertices, dropping repeats and polygons that collapse to a point.
+        final PointWelder welder = new PointWelder(weldTolerance);
+        final List<List<Point2D>> welded = weld(polygons, welder);
+        final List<List<Point2D>> weldedDisabled = weld(disabledPolygons, welder);
+        final List<LineSegment> doors = new ArrayList<>(visionBlockingPolygonList.getDisabledLineSegments().size());
+        for (LineSegment lineSegment : visionBlockingPolygonList.getDisabledLineSegments()) {
+            final Point2D p1 = welder.weld(lineSegment.getPoint1());
+            final Point2D p2 = welder.weld(lineSegment.getPoint2());
+            if (!p1.equals(p2)) {
+                doors.add(new LineSegment(p1, p2));
+            }
+        }
+
+        // Count how many polygons each vertex is in so shared vertices can be kept, the ends of doors count as shared
+        // so the doors aren't merged into the walls either side of them.
+        final Map<Point2D, Integer> polygonCount = new HashMap<>();
+        for (List<Point2D> ring : welded) {
+            for (Point2D point : ring) {
+                polygonCount.merge(point, 1, Integer::sum);
+            }
+        }
+        for (List<Point2D> ring : weldedDisabled) {
+            for (Point2D point : ring) {
+                polygonCount.merge(point, 1, Integer::sum);
+            }
+        }
+        for (LineSegment door : doors) {
+            polygonCount.merge(door.getPoint1(), 1, Integer::sum);
+            polygonCount.merge(door.getPoint2(), 1, Integer::sum);
+        }
+
+        final double tolerance = Math.max(weldTolerance, simplifyTolerance);
+        final VisionBlockingPolygonList processed = new VisionBlockingPolygonList();
+        for (List<Point2D> ring : welded) {
+            processed.addVisionBlockingPolygon(new VisionBlockingPolygon(simplify(ring, polygonCount, tolerance)));
+        }
+        for (List<Point2D> ring : weldedDisabled) {
+            final VisionBlockingPolygon vbp = new VisionBlockingPolygon(simplify(ring, polygonCount, tolerance));
+            processed.addVisionBlockingPolygon(vbp);
+            processed.setPolygonEnabled(vbp, false);
+        }
+        for (LineSegment door : doors) {
+            processed.setLineSegmentEnabled(door, false);
+        }
+
+        return new Result(processed, polygons.size() + disabledPolygons.size(),
+                visionBlockingPolygonList.getNumberVertices(), countSegments(visionBlockingPolygonList));
+    }
+
+    /**
+     * Returns the number of line segments in the enabled polygons, including the disabled ones (open doors). Lines
+     * left in the store by polygons that were removed or disabled are not counted, even if it hasn't been compacted.
+     * @param visionBlockingPolygonList The polygons.
+     * @return the number of line segments.
+     */
+    private static int countSegments(VisionBlockingPolygonList visionBlockingPolygonList) {
+        return visionBlockingPolygonList.getLineSegments().size()
+                + visionBlockingPolygonList.getDisabledLineSegments().size();
+    }
+
+    /**
+     * Welds the vertices of some polygons, dropping repeated vertices and polygons that collapse to a point.
+     * @param polygons The polygons.
+     * @param welder Welds the vertices onto those seen before.
+     * @return the welded vertices of each polygon that is left.
+     */
+    private static List<List<Point2D>> weld(List<VisionBlockingPolygon> polygons, PointWelder welder) {
+        final List<List<Point2D>> welded = new ArrayList<>(polygons.size());
+        for (VisionBlockingPolygon vbp : polygons) {
+            List<Point2D> ring = new ArrayList<>(vbp.getNumberVerticies());
+            for (Point2D vert : vbp.getVertices()) {
+                Point2D point = welder.weld(vert);
+                if (ring.isEmpty() || !ring.get(ring.size() - 1).equals(point)) {
+                    ring.add(point);
+                }
+            }
+            while (ring.size() > 1 && ring.get(ring.size() - 1).equals(ring.get(0))) {
+                ring.remove(ring.size() - 1);
+            }
+            if (ring.size() > 1) {
+                welded.add(ring);
+            }
+        }
+        return welded;
+    }
+
+    /**
+     * Simplifies a closed ring of vertices with the Douglas-Peucker algorithm, keeping any vertices shared with other
+     * polygons.
+     * @param ring The vertices of the polygon.
+     * @param polygonCount The number of polygons each vertex is in.
+     * @param tolerance How far vertices removed can be from the new outline.
+     * @return the vertices that are kept.
+     */
+    private Point2D[] simplify(List<Point2D> ring, Map<Point2D, Integer> polygonCount, double tolerance) {
+        final int n = ring.size();
+        if (n < 3) {
+            return ring.toArray(new Point2D[0]);
+        }
+
+        // The ring is split into runs between anchor vertices that are always kept, which are the shared vertices or
+        // if there are less than 2 of those the first vertex and the one furthest from it.
+        final boolean[] keep = new boolean[n];
+        int numAnchors = 0;
+        for (int i = 0; i < n; i++) {
+            if (polygonCount.get(ring.get(i)) > 1) {
+                keep[i] = true;
+                numAnchors++;
+            }
+        }
+        if (numAnchors < 2) {
+            final int first = numAnchors == 1 ? indexOfKept(keep) : 0;
+            int furthest = first;
+            double furthestDistance = -1;
+            for (int i = 0; i < n; i++) {
+                final double distance = ring.get(first).distance(ring.get(i));
+                if (distance > furthestDistance) {
+                    furthest = i;
+                    furthestDistance = distance;
+                }
+            }
+            keep[first] = true;
+            keep[furthest] = true;
+        }
+
+        // Simplify each run between consecutive anchors, going round the ring.
+        final int start = indexOfKept(keep);
+        int from = start;
+        do {
+            int to = (from + 1) % n;
+            while (!keep[to]) {
+                to = (to + 1) % n;
+            }
+            simplifyRun(ring, keep, from, to, tolerance);
+            from = to;
+        } while (from != start);
+
+        List<Point2D> kept = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                kept.add(ring.get(i));
+            }
+        }
+        return kept.toArray(new Point2D[0]);
+    }
+
+    /**
+     * Simplifies the vertices between two anchors with the Douglas-Peucker algorithm, marking the vertices to keep.
+     *
+     * The run is split at the vertex furthest from the line segment between its ends until every vertex left is within
+     * the tolerance. An explicit stack is used rather than recursion as long curves can be split many times.
+     *
+     * @param ring The vertices of the polygon.
+     * @param keep The vertices that are kept, updated with the vertices in the run that are kept.
+     * @param from The index of the anchor the run starts at.
+     * @param to The index of the anchor the run ends at, which may have wrapped round past the end of the ring.
+     * @param tolerance How far vertices removed can be from the new outline.
+     */
+    private static void simplifyRun(List<Point2D> ring, boolean[] keep, int from, int to, double tolerance) {
+        final int n = ring.size();
+        // Work with indexes that don't wrap, so the run is from..end.
+        final int end = to > from ? to : to + n;
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top++] = from;
+        stack[top++] = end;
+        while (top > 0) {
+            final int last = stack[--top];
+            final int first = stack[--top];
+            final Point2D p1 = ring.get(first % n);
+            final Point2D p2 = ring.get(last % n);
+            int furthest = -1;
+            double furthestDistance = tolerance;
+            for (int i = first + 1; i < last; i++) {
+                final double distance = distanceToSegment(ring.get(i % n), p1, p2);
+                if (distance > furthestDistance) {
+                    furthest = i;
+                    furthestDistance = distance;
+                }
+            }
+            if (furthest >= 0) {
+                keep[furthest % n] = true;
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = first;
+                stack[top++] = furthest;
+                stack[top++] = furthest;
+                stack[top++] = last;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the first vertex that is kept.
+     * @param keep The vertices that are kept.
+     * @return the index of the first vertex that is kept.
+     */
+    private static int indexOfKept(boolean[] keep) {
+        int i = 0;
+        while (!keep[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the distance from a point to the closest point on a line segment.
+     * @param point The point.
+     * @param p1 The starting point of the line segment.
+     * @param p2 The ending point of the line segment.
+     * @return the distance to the line segment.
+     */
+    private static double distanceToSegment(Point2D point, Point2D p1, Point2D p2) {
+        final double dx = p2.getX() - p1.getX();
+        final double dy = p2.getY() - p1.getY();
+        final double lengthSquared = dx * dx + dy * dy;
+        double t = 0;
+        if (lengthSquared > 0) {
+            t = ((point.getX() - p1.getX()) * dx + (point.getY() - p1.getY()) * dy) / lengthSquared;
+            t = Math.max(0, Math.min(1, t));
+        }
+        return point.distance(p1.getX() + dx * t, p1.getY() + dy * t);
+    }
+
+    /**
+     * The cleaned up polygons and how much was removed.
+     */
+    public static class Result {
+        /** The cleaned up polygons. */
+        private final VisionBlockingPolygonList visionBlockingPolygonList;
+        /** The number of polygons before, including those that are disabled. */
+        private final int polygonsBefore;
+        /** The number of distinct vertices before. */
+        private final int verticesBefore;
+        /** The number of distinct line segments in the enabled polygons before. */
+        private final int segmentsBefore;
+
+        /**
+         * Creates a new <code>Result</code>.
+         * @param iVisionBlockingPolygonList The cleaned up polygons.
+         * @param iPolygonsBefore The number of polygons before, including those that are disabled.
+         * @param iVerticesBefore The number of distinct vertices before.
+         * @param iSegmentsBefore The number of distinct line segments in the enabled polygons before.
+         */
+        private Result(VisionBlockingPolygonList iVisionBlockingPolygonList, int iPolygonsBefore, int iVerticesBefore,
+                       int iSegmentsBefore) {
+            visionBlockingPolygonList = iVisionBlockingPolygonList;
+            polygonsBefore = iPolygonsBefore;
+            verticesBefore = iVerticesBefore;
+            segmentsBefore = iSegmentsBefore;
+        }
+
+        /**
+         * Returns the cleaned up polygons.
+         * @return the cleaned up polygons.
+         */
+        public VisionBlockingPolygonList getVisionBlockingPolygonList() {
+            return visionBlockingPolygonList;
+        }
+
+        /**
+         * Returns the number of polygons removed because they collapsed to a point, counting disabled polygons.
+         * @return the number of polygons removed.
+         */
+        public int getPolygonsRemoved() {
+            return polygonsBefore - visionBlockingPolygonList.getPolygonList().size()
+                    - visionBlockingPolygonList.getDisabledPolygons().size();
+        }
+
+        /**
+         * Returns the number of vertices removed. Vertices shared by polygons are counted once, before and after, as
+         * rays only need to be cast at them once.
+         * @return the number of vertices removed.
+         */
+        public int getVerticesRemoved() {
+            return verticesBefore - visionBlockingPolygonList.getNumberVertices();
+        }
+
+        /**
+         * Returns the number of line segments removed. Line segments shared by polygons are counted once, before and
+         * after, so this is the drop in line segments every ray is tested against.
+         * @return the number of line segments removed.
+         */
+        public int getSegmentsRemoved() {
+            return segmentsBefore - countSegments(visionBlockingPolygonList);
+        }
+
+        @Override
+        public String toString() {
+            return "Removed " + getPolygonsRemoved() + " of " + polygonsBefore + " polygons, "
+                    + getVerticesRemoved() + " of " + verticesBefore + " vertices and "
+                    + getSegmentsRemoved() + " of " + segmentsBefore + " line segments";
+        }
+    }
+}
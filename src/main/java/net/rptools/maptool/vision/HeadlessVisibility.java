@@ -0,0 +1,492 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Calculates visibility from the command line without a window, for running in CI, on servers or over recorded token
+ * paths.
+ *
+ * Viewer positions are read one per line as an X and Y co-ordinate separated by spaces or a comma, blank lines and
+ * lines starting with <code>#</code> are skipped. For each position one line is written, either the vertices of the
+ * visible area as <code>x,y</code> pairs separated by spaces, or with <code>--targets</code> the indexes of the targets
+ * the viewer can see.
+ *
+ * Reading, calculating and writing are pipelined. A reader thread reads the lines in batches and submits each batch
+ * to a {@link ForkJoinPool} of workers, which parse the positions, calculate the results and format them. The futures
+ * are queued in a bounded queue that the main thread takes them from in order and writes them, so the output is in
+ * the same order as the input, and the reader blocks when it gets too far ahead so memory use doesn't grow with the
+ * length of the input.
+ *
+ * This can be run with <code>gradle headless -PheadlessArgs="..."</code>, or with this class as the main class. It
+ * only needs the JavaFX jars on the class path, not the JavaFX runtime that {@link Main} needs.
+ */
+public class HeadlessVisibility {
+    /** The number of positions in each batch handed to a worker. */
+    private static final int BATCH_SIZE = 256;
+    /** The number of batches that can be queued for each worker thread. */
+    private static final int BATCHES_PER_THREAD = 4;
+    /** What co-ordinates are multiplied by before they are rounded, they are written to 3 decimal places. */
+    private static final long DECIMAL_SCALE = 1000;
+    /** The width of the demo scene used if no scene file is given. */
+    private static final int DEMO_WIDTH = 800;
+    /** The height of the demo scene used if no scene file is given. */
+    private static final int DEMO_HEIGHT = 600;
+    /** Queued after the last batch to tell the writer there are no more. */
+    private static final Future<String> END = CompletableFuture.completedFuture(null);
+
+    /** The command line usage. */
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: HeadlessVisibility [options]",
+            "  --scene=<file>     scene file written by MappedScene, the demo polygons if not given",
+            "  --prepared=<file>  prepared scene file to load the scene from, or to save it to if it is stale",
+            "  --input=<file>     viewer positions, standard input if not given or -",
+            "  --output=<file>    where the results are written, standard output if not given or -",
+            "  --targets=<file>   target positions, write which of them each viewer can see, not its visible area",
+            "  --radius=<r>       how far viewers can see, unlimited if not given",
+            "  --threads=<n>      the number of worker threads, the number of processors if not given",
+            "  --help             show this usage and exit");
+    /** The names of the options in {@link #USAGE}, any others are rejected so a misspelt one isn't ignored. */
+    private static final Set<String> OPTIONS =
+            Set.of("scene", "prepared", "input", "output", "targets", "radius", "threads", "help");
+
+    /** The polygons that block vision/light, which are frozen so the workers can share them. */
+    private final VisionBlockingPolygonList visionBlockingPolygonList;
+    /** Used to calculate the visible areas, this is safe to share between threads. */
+    private final VisibilityCalculator visibilityCalculator;
+    /** The targets, or <code>null</code> to write visible areas. */
+    private final List<Point2D> targets;
+    /** The pool the workers run on. */
+    private final ForkJoinPool pool;
+    /** Answers the line of sight questions on the workers. */
+    private final LineOfSight lineOfSight;
+
+    /**
+     * Creates a new <code>HeadlessVisibility</code>.
+     * @param iVisionBlockingPolygonList The polygons that block vision/light, these are frozen.
+     * @param iVisibilityCalculator Used to calculate the visible areas, this must be safe to share between threads.
+     * @param iTargets The targets, or <code>null</code> to write visible areas.
+     * @param threads The number of worker threads.
+     */
+    public HeadlessVisibility(VisionBlockingPolygonList iVisionBlockingPolygonList,
+                              VisibilityCalculator iVisibilityCalculator, List<Point2D> iTargets, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("There must be at least 1 thread");
+        }
+        // Builds the spatial index and vertex classifier here rather than on several workers at once.
+        visionBlockingPolygonList = iVisionBlockingPolygonList.isFrozen() ? iVisionBlockingPolygonList
+                : iVisionBlockingPolygonList.freeze();
+        visibilityCalculator = iVisibilityCalculator;
+        targets = iTargets;
+        pool = new ForkJoinPool(threads);
+        lineOfSight = new LineOfSight(pool);
+    }
+
+    /**
+     * Runs from the command line, see {@link #USAGE}.
+     * @param args The command line arguments.
+     */
+    public static void main(String[] args) {
+        try {
+            final Map<String, String> options = parseOptions(args);
+            if (options.containsKey("help")) {
+                System.out.println(USAGE);
+                return;
+            }
+
+            final VisionBlockingPolygonList scene = loadScene(options.get("scene"), options.get("prepared"));
+            VisibilityCalculator calculator = new RayCastVisibility(true);
+            if (options.containsKey("radius")) {
+                calculator = new RangeLimitedVisibility(new AngularSweepVisibility(),
+                        parseNumber(options.get("radius"), "radius"));
+            }
+            List<Point2D> targets = null;
+            if (options.containsKey("targets")) {
+                try (BufferedReader in = Files.newBufferedReader(Paths.get(options.get("targets")))) {
+                    targets = readPositions(in, "Targets");
+                }
+            }
+            final int threads = options.containsKey("threads")
+                    ? (int) parseNumber(options.get("threads"), "threads")
+                    : Runtime.getRuntime().availableProcessors();
+
+            final HeadlessVisibility headless = new HeadlessVisibility(scene, calculator, targets, threads);
+            try (BufferedReader in = openInput(options.get("input"));
+                 Writer out = openOutput(options.get("output"))) {
+                headless.run(in, out);
+            } finally {
+                headless.shutdown();
+            }
+        } catch (IOException e) {
+            // The message of some of these is just the file name, so say what went wrong too.
+            System.err.println(e);
+            System.exit(1);
+        } catch (PositionFormatException e) {
+            // The arguments were fine, so the usage doesn't help.
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads viewer positions and writes the result for each of them, in the same order.
+     * @param in Where the positions are read from, this is not closed.
+     * @param out Where the results are written, this is flushed but not closed.
+     * @throws IOException if there is an error reading or writing.
+     * @throws PositionFormatException if a position can't be parsed, the results for the lines in the same batch
+     *         before it are not written.
+     * @throws InterruptedException if the thread is interrupted while waiting for a result.
+     */
+    public void run(BufferedReader in, Writer out) throws IOException, InterruptedException {
+        final BlockingQueue<Future<String>> results = new ArrayBlockingQueue<>(
+                pool.getParallelism() * BATCHES_PER_THREAD);
+        final Thread reader = new Thread(() -> readBatches(in, results), "visibility-reader");
+        // If writing fails the reader may be left waiting for room in the queue.
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            for (Future<String> result = results.take(); result != END; result = results.take()) {
+                out.write(result.get());
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            reader.interrupt();
+            out.flush();
+        }
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Reads the input in batches of lines and submits each to the workers, queueing its result. Runs on the reader
+     * thread.
+     * @param in Where the positions are read from.
+     * @param results Where the results of the batches are queued, in order.
+     */
+    private void readBatches(BufferedReader in, BlockingQueue<Future<String>> results) {
+        try {
+            try {
+                int lineNumber = 1;
+                List<String> lines = new ArrayList<>(BATCH_SIZE);
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    lines.add(line);
+                    if (lines.size() == BATCH_SIZE) {
+                        results.put(submit(lines, lineNumber));
+                        lineNumber += lines.size();
+                        lines = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                if (!lines.isEmpty()) {
+                    results.put(submit(lines, lineNumber));
+                }
+            } catch (IOException e) {
+                final CompletableFuture<String> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                results.put(failed);
+            }
+            results.put(END);
+        } catch (InterruptedException e) {
+            // The writer has stopped.
+        }
+    }
+
+    /**
+     * Submits a batch of lines to the workers.
+     * @param lines The lines.
+     * @param firstLine The line number of the first line, for error messages.
+     * @return the result of the batch.
+     */
+    private Future<String> submit(List<String> lines, int firstLine) {
+        // A CompletableFuture rather than a ForkJoinTask, as it reports the exception a worker threw as it is.
+        return CompletableFuture.supplyAsync(() -> targets == null ? visibleAreas(lines, firstLine)
+                : visibleTargets(lines, firstLine), pool);
+    }
+
+    /**
+     * Calculates the visible area for each position in a batch. Runs on a worker.
+     * @param lines The lines of the batch.
+     * @param firstLine The line number of the first line.
+     * @return a line for each position with the vertices of its visible area.
+     */
+    private String visibleAreas(List<String> lines, int firstLine) {
+        final List<Point2D> viewers = parsePositions(lines, firstLine, "Input");
+        final StringBuilder sb = new StringBuilder(viewers.size() * 64);
+        for (Point2D viewer : viewers) {
+            final List<LineIntersection> lineIntersections =
+                    visibilityCalculator.calculateVisibility(visionBlockingPolygonList, viewer);
+            for (int i = 0; i < lineIntersections.size(); i++) {
+                final Point2D point = lineIntersections.get(i).getPoint();
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                appendCoordinate(sb, point.getX());
+                sb.append(',');
+                appendCoordinate(sb, point.getY());
+            }
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Works out which targets each position in a batch can see. Runs on a worker.
+     * @param lines The lines of the batch.
+     * @param firstLine The line number of the first line.
+     * @return a line for each position with the indexes of the targets it can see.
+     */
+    private String visibleTargets(List<String> lines, int firstLine) {
+        final List<Point2D> viewers = parsePositions(lines, firstLine, "Input");
+        final LineOfSight.Result result = lineOfSight.canSee(visionBlockingPolygonList, viewers, targets);
+        final StringBuilder sb = new StringBuilder(viewers.size() * 16);
+        for (int viewer = 0; viewer < viewers.size(); viewer++) {
+            boolean first = true;
+            for (int target = 0; target < targets.size(); target++) {
+                if (result.canSee(viewer, target)) {
+                    if (!first) {
+                        sb.append(' ');
+                    }
+                    sb.append(target);
+                    first = false;
+                }
+            }
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends a co-ordinate rounded to the decimal places of {@link #DECIMAL_SCALE}, without trailing zeros.
+     * @param sb Where the co-ordinate is appended.
+     * @param v The co-ordinate.
+     */
+    private static void appendCoordinate(StringBuilder sb, double v) {
+        long scaled = Math.round(v * DECIMAL_SCALE);
+        if (scaled < 0) {
+            sb.append('-');
+            scaled = -scaled;
+        }
+        sb.append(scaled / DECIMAL_SCALE);
+        long fraction = scaled % DECIMAL_SCALE;
+        if (fraction != 0) {
+            sb.append('.');
+            for (long digit = DECIMAL_SCALE / 10; digit > 0 && fraction != 0; digit /= 10) {
+                sb.append((char) ('0' + fraction / digit));
+                fraction %= digit;
+            }
+        }
+    }
+
+    /**
+     * Reads all of the positions from a file, such as the targets.
+     * @param in Where the positions are read from.
+     * @param source What the positions are, for error messages.
+     * @return the positions.
+     * @throws IOException if there is an error reading.
+     * @throws PositionFormatException if a position can't be parsed.
+     */
+    private static List<Point2D> readPositions(BufferedReader in, String source) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            lines.add(line);
+        }
+        return parsePositions(lines, 1, source);
+    }
+
+    /**
+     * Parses positions, skipping blank lines and comments.
+     * @param lines The lines.
+     * @param firstLine The line number of the first line, for error messages.
+     * @param source What the positions are, for error messages.
+     * @return the positions.
+     * @throws PositionFormatException if a position can't be parsed.
+     */
+    private static List<Point2D> parsePositions(List<String> lines, int firstLine, String source) {
+        final List<Point2D> positions = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            final String line = lines.get(i).trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            int split = 0;
+            while (split < line.length() && line.charAt(split) != ',' && !Character.isWhitespace(line.charAt(split))) {
+                split++;
+            }
+            int second = split;
+            while (second < line.length()
+                    && (line.charAt(second) == ',' || Character.isWhitespace(line.charAt(second)))) {
+                second++;
+            }
+            try {
+                positions.add(new Point2D(Double.parseDouble(line.substring(0, split)),
+                        Double.parseDouble(line.substring(second))));
+            } catch (NumberFormatException e) {
+                throw new PositionFormatException(source, firstLine + i, line);
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Loads the scene, either the demo polygons or from a scene file, going through a prepared scene file if one is
+     * given.
+     * @param sceneFile The scene file, or <code>null</code> for the demo polygons.
+     * @param preparedFile The prepared scene file, or <code>null</code> to prepare the scene each time.
+     * @return the polygons, which are frozen.
+     * @throws IOException if there is an error loading the scene.
+     */
+    private static VisionBlockingPolygonList loadScene(String sceneFile, String preparedFile) throws IOException {
+        if (sceneFile == null) {
+            final VisionBlockingPolygonList demo = new VisionBlockingPolygonList();
+            demo.addDemoPoly(DEMO_WIDTH, DEMO_HEIGHT);
+            if (preparedFile == null) {
+                return demo.freeze();
+            }
+            return PreparedScene.loadOrBuild(Paths.get(preparedFile), demo.getPolygonList(), polygons -> demo)
+                    .freeze();
+        }
+
+        final MappedScene scene = MappedScene.open(Paths.get(sceneFile));
+        if (preparedFile == null) {
+            return scene.toVisionBlockingPolygonList().freeze();
+        }
+        // The scene is only copied onto the heap and prepared if the prepared scene file is stale.
+        return PreparedScene.loadOrBuild(Paths.get(preparedFile), PreparedScene.checksum(scene),
+                scene::toVisionBlockingPolygonList).freeze();
+    }
+
+    /**
+     * Opens the input, standard input if no file is given.
+     * @param file The file, <code>null</code> or <code>-</code> for standard input.
+     * @return the input.
+     * @throws IOException if the file can't be opened.
+     */
+    private static BufferedReader openInput(String file) throws IOException {
+        if (file == null || file.equals("-")) {
+            return new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        }
+        return Files.newBufferedReader(Paths.get(file));
+    }
+
+    /**
+     * Opens the output, standard output if no file is given.
+     * @param file The file, <code>null</code> or <code>-</code> for standard output.
+     * @return the output.
+     * @throws IOException if the file can't be opened.
+     */
+    private static Writer openOutput(String file) throws IOException {
+        if (file == null || file.equals("-")) {
+            return new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        }
+        return Files.newBufferedWriter(Paths.get(file));
+    }
+
+    /**
+     * Parses the options, which are given as <code>--name=value</code> (or just <code>--name</code>) like the named
+     * parameters of {@link Main}.
+     * @param args The command line arguments.
+     * @return the value of each option, empty for those without one.
+     * @throws IllegalArgumentException if an argument isn't an option, or is one that isn't in {@link #USAGE}.
+     */
+    static Map<String, String> parseOptions(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + arg);
+            }
+            final int equals = arg.indexOf('=');
+            final String name = equals < 0 ? arg.substring(2) : arg.substring(2, equals);
+            if (!OPTIONS.contains(name)) {
+                throw new IllegalArgumentException("Unknown option --" + name);
+            }
+            options.put(name, equals < 0 ? "" : arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    /**
+     * Parses the number given for an option.
+     * @param value The value of the option.
+     * @param name The name of the option, for the error message.
+     * @return the number.
+     * @throws IllegalArgumentException if it isn't a number.
+     */
+    private static double parseNumber(String value, String name) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be a number");
+        }
+    }
+
+
+    /**
+     * Thrown when a line of the viewer or target positions can't be parsed. This is a problem with the input rather
+     * than the command line, so it is kept apart from the {@link IllegalArgumentException}s for the options.
+     */
+    public static class PositionFormatException extends RuntimeException {
+        /** The version of the serialized form. */
+        private static final long serialVersionUID = 1L;
+
+        /** The line number of the line that couldn't be parsed, starting at 1. */
+        private final int lineNumber;
+
+        /**
+         * Creates a new <code>PositionFormatException</code>.
+         * @param source What the positions are, such as <code>Input</code> or <code>Targets</code>.
+         * @param iLineNumber The line number of the line that couldn't be parsed, starting at 1.
+         * @param line The line that couldn't be parsed.
+         */
+        public PositionFormatException(String source, int iLineNumber, String line) {
+            super(source + " line " + iLineNumber + ": expected x and y but found \"" + line + "\"");
+            lineNumber = iLineNumber;
+        }
+
+        /**
+         * Returns the line number of the line that couldn't be parsed.
+         * @return the line number, starting at 1.
+         */
+        public int getLineNumber() {
+            return lineNumber;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.List;
+
+/**
+ * {@link VisibilityCalculator} that times another calculator and records each calculation in
+ * {@link VisibilityMetrics} while they are enabled. When they are disabled the calculation is passed straight
+ * through.
+ */
+public class InstrumentedVisibility implements VisibilityCalculator {
+    /** The calculator that is timed. */
+    private final VisibilityCalculator visibilityCalculator;
+    /** The name the calculations are recorded under. */
+    private final String name;
+
+    /**
+     * Creates a new <code>InstrumentedVisibility</code> that records the calculations under the class name of the
+     * calculator.
+     * @param calculator The calculator that is timed.
+     */
+    public InstrumentedVisibility(VisibilityCalculator calculator) {
+        this(calculator, calculator.getClass().getSimpleName());
+    }
+
+    /**
+     * Creates a new <code>InstrumentedVisibility</code>.
+     * @param calculator The calculator that is timed.
+     * @param iName The name the calculations are recorded under.
+     */
+    public InstrumentedVisibility(VisibilityCalculator calculator, String iName) {
+        visibilityCalculator = calculator;
+        name = iName;
+    }
+
+    @Override
+    public List<LineIntersection> calculateVisibility(VisionBlockingPolygonList visionBlockingPolygonList,
+                                                      Point2D viewer) {
+        if (!VisibilityMetrics.isEnabled()) {
+            return visibilityCalculator.calculateVisibility(visionBlockingPolygonList, viewer);
+        }
+
+        VisibilityMetrics.clearWork();
+        final VisibilityEventSink.CalculationEvent event = VisibilityMetrics.beginEvent();
+        final long start = System.nanoTime();
+        final List<LineIntersection> lineIntersections =
+                visibilityCalculator.calculateVisibility(visionBlockingPolygonList, viewer);
+        final long nanos = System.nanoTime() - start;
+        VisibilityMetrics.record(event, name, viewer.getX(), viewer.getY(),
+                visionBlockingPolygonList.getEnabledSegmentStore().size(), lineIntersections.size(), nanos);
+        return lineIntersections;
+    }
+}
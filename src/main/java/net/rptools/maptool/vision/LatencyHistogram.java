@@ -0,0 +1,124 @@
+package net.rptools.maptool.vision;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of how long something took, with a bucket for each power of 2 nanoseconds.
+ *
+ * Bucket 0 counts times of 0ns and bucket <code>b</code> counts times from <code>2^(b - 1)</code> up to (but not
+ * including) <code>2^b</code> nanoseconds, so the buckets are only accurate to a factor of 2 but recording a time is
+ * just an increment of a {@link LongAdder}, which is cheap even when many threads are recording at once.
+ */
+public class LatencyHistogram {
+    /** The number of buckets, enough for any non-negative <code>long</code>. */
+    private static final int NUMBER_BUCKETS = Long.SIZE;
+
+    /** The number of times recorded in each bucket. */
+    private final LongAdder[] buckets = new LongAdder[NUMBER_BUCKETS];
+
+    /**
+     * Creates a new empty <code>LatencyHistogram</code>.
+     */
+    public LatencyHistogram() {
+        for (int b = 0; b < NUMBER_BUCKETS; b++) {
+            buckets[b] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a time.
+     * @param nanos The time in nanoseconds, negative times are recorded as 0.
+     */
+    public void record(long nanos) {
+        buckets[getBucket(Math.max(0, nanos))].increment();
+    }
+
+    /**
+     * Returns the number of buckets.
+     * @return the number of buckets.
+     */
+    public int getNumberBuckets() {
+        return NUMBER_BUCKETS;
+    }
+
+    /**
+     * Returns the number of times recorded in a bucket.
+     * @param bucket The index of the bucket.
+     * @return the number of times.
+     */
+    public long getCount(int bucket) {
+        return buckets[bucket].sum();
+    }
+
+    /**
+     * Returns the number of times recorded in all of the buckets.
+     * @return the number of times.
+     */
+    public long getTotalCount() {
+        long total = 0;
+        for (LongAdder bucket : buckets) {
+            total += bucket.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the time that every time in a bucket is less than.
+     * @param bucket The index of the bucket.
+     * @return the upper bound in nanoseconds, {@link Long#MAX_VALUE} for the last bucket.
+     */
+    public long getUpperBound(int bucket) {
+        return bucket >= NUMBER_BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * Returns an upper bound for a percentile of the recorded times, e.g. 0.99 for the time that 99% of them are less
+     * than.
+     * @param fraction The fraction of the times, from 0 to 1.
+     * @return the upper bound of the bucket the percentile falls in, or 0 if nothing has been recorded.
+     * @throws IllegalArgumentException if the fraction isn't from 0 to 1.
+     */
+    public long getPercentile(double fraction) {
+        // Written so that NaN is rejected too.
+        if (!(fraction >= 0 && fraction <= 1)) {
+            throw new IllegalArgumentException("Fraction must be between 0 and 1");
+        }
+        final long[] counts = new long[NUMBER_BUCKETS];
+        long total = 0;
+        for (int b = 0; b < NUMBER_BUCKETS; b++) {
+            counts[b] = buckets[b].sum();
+            total += counts[b];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        // The rank of the time wanted, at least 1 so that 0 gives the smallest bucket used.
+        final long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int b = 0; b < NUMBER_BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                return getUpperBound(b);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Clears all of the recorded times.
+     */
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+    }
+
+    /**
+     * Returns the bucket a time goes in.
+     * @param nanos The time in nanoseconds.
+     * @return the index of the bucket.
+     */
+    private static int getBucket(long nanos) {
+        return Long.SIZE - Long.numberOfLeadingZeros(nanos);
+    }
+}
@@ -0,0 +1,507 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Software light map for scenes with many lights. The visible area of each light is filled with its colour, fading
+ * with distance from the light, and the light from all of them is added together one pixel at a time.
+ *
+ * The buffer is split into square tiles that are filled in parallel on a {@link ForkJoinPool}. Each light's edges are
+ * bucketed by the row of tiles they cross before the tiles are filled, so a tile only looks at the lights whose
+ * bounds touch it and only at the edges of those lights that cross it. Tiles never share pixels so no locking is
+ * needed.
+ *
+ * The result is a packed ARGB <code>int</code> per pixel that can be uploaded to JavaFX with one
+ * <code>PixelWriter.setPixels()</code> call, or used without JavaFX running at all. Drawn over black it gives the
+ * added up light, clamped to white.
+ *
+ * This is not thread safe, only one {@link #render(List)} may run at a time.
+ */
+public class LightBuffer {
+    /** The width and height of the tiles used if none is given. */
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    /** The width of the buffer in pixels. */
+    private final int width;
+    /** The height of the buffer in pixels. */
+    private final int height;
+    /** The width and height of each tile in pixels. */
+    private final int tileSize;
+    /** The number of columns of tiles. */
+    private final int tileColumns;
+    /** The number of rows of tiles. */
+    private final int tileRows;
+    /** The pool that the tiles are filled on. */
+    private final ForkJoinPool pool;
+    /** The red, green and blue light added up at each pixel, one row after another. */
+    private final float[] light;
+    /** The light at each pixel packed into ARGB, one row after another. */
+    private final int[] pixels;
+
+    /**
+     * Creates a new <code>LightBuffer</code> with the default tile size that fills the tiles on the common
+     * {@link ForkJoinPool}.
+     * @param iWidth The width of the buffer in pixels.
+     * @param iHeight The height of the buffer in pixels.
+     */
+    public LightBuffer(int iWidth, int iHeight) {
+        this(iWidth, iHeight, DEFAULT_TILE_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a new <code>LightBuffer</code>.
+     * @param iWidth The width of the buffer in pixels.
+     * @param iHeight The height of the buffer in pixels.
+     * @param iTileSize The width and height of each tile in pixels.
+     * @param iPool The pool that the tiles are filled on.
+     */
+    public LightBuffer(int iWidth, int iHeight, int iTileSize, ForkJoinPool iPool) {
+        if (iWidth <= 0 || iHeight <= 0 || iTileSize <= 0) {
+            throw new IllegalArgumentException("Light buffer must have a positive size");
+        }
+        width = iWidth;
+        height = iHeight;
+        tileSize = iTileSize;
+        tileColumns = (width + tileSize - 1) / tileSize;
+        tileRows = (height + tileSize - 1) / tileSize;
+        pool = iPool;
+        light = new float[width * height * 3];
+        pixels = new int[width * height];
+    }
+
+    /**
+     * Fills the buffer with the light from the lights given, replacing whatever was there before.
+     * @param lights The lights.
+     */
+    public void render(List<Light> lights) {
+        final List<PreparedLight> prepared = new ArrayList<>(lights.size());
+        for (Light l : lights) {
+            PreparedLight preparedLight = new PreparedLight(l);
+            if (preparedLight.touchesBuffer()) {
+                prepared.add(preparedLight);
+            }
+        }
+
+        pool.invoke(new TileRange(prepared.toArray(new PreparedLight[0]), 0, tileColumns * tileRows));
+    }
+
+    /**
+     * Returns the light at each pixel as non-premultiplied ARGB, one row after another. Where there is no light the
+     * pixel is transparent, elsewhere the colour is the brightest it can be for its hue and the alpha is how bright
+     * it is, so it gives the light when drawn over black.
+     * @return the pixels, which are overwritten by the next {@link #render(List)}.
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Returns the red, green and blue light added up at each pixel, one row after another. Unlike
+     * {@link #getPixels()} this is not clamped, so it can be more than 1 where lights overlap.
+     * @return the light, which is overwritten by the next {@link #render(List)}.
+     */
+    public float[] getLight() {
+        return light;
+    }
+
+    /**
+     * Returns the width of the buffer.
+     * @return the width in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the buffer.
+     * @return the height in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the width and height of each tile.
+     * @return the tile size in pixels.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Returns the first pixel row or column whose centre is at or after a co-ordinate.
+     * @param v The co-ordinate.
+     * @return the row or column, which may be outside of the buffer.
+     */
+    private static int firstPixel(double v) {
+        return (int) Math.max(Integer.MIN_VALUE / 2, Math.min(Integer.MAX_VALUE / 2, Math.ceil(v - 0.5)));
+    }
+
+    /**
+     * Fills one tile with the light from the lights that touch it, and packs it into {@link #pixels}.
+     * @param tile The index of the tile.
+     * @param lights The lights.
+     */
+    private void renderTile(int tile, PreparedLight[] lights) {
+        final int tileRow = tile / tileColumns;
+        final int x0 = (tile % tileColumns) * tileSize;
+        final int y0 = tileRow * tileSize;
+        final int x1 = Math.min(width, x0 + tileSize);
+        final int y1 = Math.min(height, y0 + tileSize);
+
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(light, (y * width + x0) * 3, (y * width + x1) * 3, 0f);
+        }
+
+        double[] crossings = new double[0];
+        for (PreparedLight l : lights) {
+            if (l.maxX < x0 || l.minX > x1 || l.maxY < y0 || l.minY > y1) {
+                continue;
+            }
+            final int bandStart = l.bandStart[tileRow];
+            final int bandEnd = l.bandStart[tileRow + 1];
+            if (crossings.length < bandEnd - bandStart) {
+                crossings = new double[bandEnd - bandStart];
+            }
+            final int firstRow = Math.max(y0, firstPixel(l.minY));
+            final int lastRow = Math.min(y1 - 1, firstPixel(l.maxY) - 1);
+            for (int y = firstRow; y <= lastRow; y++) {
+                final double centreY = y + 0.5;
+                int numCrossings = 0;
+                for (int i = bandStart; i < bandEnd; i++) {
+                    final int edge = l.bandEdges[i];
+                    final int next = edge + 1 == l.numVertices ? 0 : edge + 1;
+                    final double ya = l.ys[edge];
+                    final double yb = l.ys[next];
+                    // Half open so a row through a vertex crosses only one of the edges meeting there.
+                    if ((ya <= centreY) != (yb <= centreY)) {
+                        crossings[numCrossings++] = l.xs[edge] + (centreY - ya) * (l.xs[next] - l.xs[edge]) / (yb - ya);
+                    }
+                }
+                Arrays.sort(crossings, 0, numCrossings);
+
+                // Fill between pairs of crossings (even-odd rule).
+                for (int i = 0; i + 1 < numCrossings; i += 2) {
+                    final int firstColumn = Math.max(Math.max(x0, firstPixel(l.minX)), firstPixel(crossings[i]));
+                    final int lastColumn = Math.min(Math.min(x1, firstPixel(l.maxX)), firstPixel(crossings[i + 1])) - 1;
+                    if (firstColumn <= lastColumn) {
+                        l.addSpan(light, y * width, firstColumn, lastColumn, centreY);
+                    }
+                }
+            }
+        }
+
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                final int i = y * width + x;
+                pixels[i] = pack(light[i * 3], light[i * 3 + 1], light[i * 3 + 2]);
+            }
+        }
+    }
+
+    /**
+     * Packs an amount of light into a non-premultiplied ARGB pixel that gives that light when drawn over black.
+     * @param red The red light.
+     * @param green The green light.
+     * @param blue The blue light.
+     * @return the pixel.
+     */
+    private static int pack(float red, float green, float blue) {
+        final float r = Math.min(1f, red);
+        final float g = Math.min(1f, green);
+        final float b = Math.min(1f, blue);
+        final float alpha = Math.max(r, Math.max(g, b));
+        if (alpha <= 0) {
+            return 0;
+        }
+        final float scale = 255 / alpha;
+        return Math.round(alpha * 255) << 24 | Math.round(r * scale) << 16 | Math.round(g * scale) << 8
+                | Math.round(b * scale);
+    }
+
+    /**
+     * A light, its colour, how far it reaches and the area it can light.
+     */
+    public static class Light {
+        /** Where the light is. */
+        private final Point2D position;
+        /** The area the light can reach sorted by angle, as returned by a {@link VisibilityCalculator}. */
+        private final List<LineIntersection> visibleArea;
+        /** The distance at which the light has faded to nothing. */
+        private final double radius;
+        /** The red light right next to the light source. */
+        private final float red;
+        /** The green light right next to the light source. */
+        private final float green;
+        /** The blue light right next to the light source. */
+        private final float blue;
+
+        /**
+         * Creates a new <code>Light</code>.
+         * @param iPosition Where the light is.
+         * @param iVisibleArea The area the light can reach sorted by angle, as returned by a
+         *                     {@link VisibilityCalculator}.
+         * @param iRadius The distance at which the light has faded to nothing, or
+         *                {@link Double#POSITIVE_INFINITY} for a light that doesn't fade.
+         * @param iRed The red light right next to the light source, from 0 to 1 (or more for a bright light).
+         * @param iGreen The green light right next to the light source.
+         * @param iBlue The blue light right next to the light source.
+         */
+        public Light(Point2D iPosition, List<LineIntersection> iVisibleArea, double iRadius, float iRed, float iGreen,
+                     float iBlue) {
+            if (!(iRadius > 0)) {
+                throw new IllegalArgumentException("Light radius must be positive");
+            }
+            position = iPosition;
+            visibleArea = iVisibleArea;
+            radius = iRadius;
+            red = iRed;
+            green = iGreen;
+            blue = iBlue;
+        }
+
+        /**
+         * Returns where the light is.
+         * @return the position of the light.
+         */
+        public Point2D getPosition() {
+            return position;
+        }
+
+        /**
+         * Returns the area the light can reach.
+         * @return the intersections that make up the area, sorted by angle.
+         */
+        public List<LineIntersection> getVisibleArea() {
+            return visibleArea;
+        }
+
+        /**
+         * Returns the distance at which the light has faded to nothing.
+         * @return the radius of the light.
+         */
+        public double getRadius() {
+            return radius;
+        }
+
+        /**
+         * Returns the red light right next to the light source.
+         * @return the red light.
+         */
+        public float getRed() {
+            return red;
+        }
+
+        /**
+         * Returns the green light right next to the light source.
+         * @return the green light.
+         */
+        public float getGreen() {
+            return green;
+        }
+
+        /**
+         * Returns the blue light right next to the light source.
+         * @return the blue light.
+         */
+        public float getBlue() {
+            return blue;
+        }
+    }
+
+    /**
+     * A light with its area copied into arrays, its bounds, and its edges bucketed by the row of tiles they cross
+     * (compressed sparse row) so the tiles can be filled without looking at every edge.
+     */
+    private class PreparedLight {
+        /** The X co-ordinate of the light. */
+        private final double lightX;
+        /** The Y co-ordinate of the light. */
+        private final double lightY;
+        /** The distance at which the light has faded to nothing. */
+        private final double radius;
+        /** The red light right next to the light source. */
+        private final float red;
+        /** The green light right next to the light source. */
+        private final float green;
+        /** The blue light right next to the light source. */
+        private final float blue;
+        /** The X co-ordinates of the vertices of the lit area. */
+        private final double[] xs;
+        /** The Y co-ordinates of the vertices of the lit area. */
+        private final double[] ys;
+        /** The number of vertices of the lit area. */
+        private final int numVertices;
+        /** The X co-ordinate of the left edge of the lit area. */
+        private double minX = Double.POSITIVE_INFINITY;
+        /** The Y co-ordinate of the top edge of the lit area. */
+        private double minY = Double.POSITIVE_INFINITY;
+        /** The X co-ordinate of the right edge of the lit area. */
+        private double maxX = Double.NEGATIVE_INFINITY;
+        /** The Y co-ordinate of the bottom edge of the lit area. */
+        private double maxY = Double.NEGATIVE_INFINITY;
+        /** Where the edges crossing each row of tiles start in {@link #bandEdges}, with one extra at the end. */
+        private final int[] bandStart = new int[tileRows + 1];
+        /** The edges crossing each row of tiles, by the index of their first vertex. */
+        private int[] bandEdges = new int[0];
+
+        /**
+         * Creates a new <code>PreparedLight</code>.
+         * @param l The light.
+         */
+        private PreparedLight(Light l) {
+            lightX = l.getPosition().getX();
+            lightY = l.getPosition().getY();
+            radius = l.getRadius();
+            red = l.getRed();
+            green = l.getGreen();
+            blue = l.getBlue();
+
+            final List<LineIntersection> area = l.getVisibleArea();
+            numVertices = area.size();
+            xs = new double[numVertices];
+            ys = new double[numVertices];
+            for (int i = 0; i < numVertices; i++) {
+                final Point2D p = area.get(i).getPoint();
+                xs[i] = p.getX();
+                ys[i] = p.getY();
+                minX = Math.min(minX, xs[i]);
+                minY = Math.min(minY, ys[i]);
+                maxX = Math.max(maxX, xs[i]);
+                maxY = Math.max(maxY, ys[i]);
+            }
+            // Nothing beyond the radius is lit, whatever the shape of the area.
+            minX = Math.max(minX, lightX - radius);
+            minY = Math.max(minY, lightY - radius);
+            maxX = Math.min(maxX, lightX + radius);
+            maxY = Math.min(maxY, lightY + radius);
+
+            if (touchesBuffer()) {
+                bucketEdges();
+            }
+        }
+
+        /**
+         * Returns if the light reaches any pixel in the buffer.
+         * @return <code>true</code> if it needs to be drawn.
+         */
+        private boolean touchesBuffer() {
+            return numVertices >= 3 && maxX >= 0 && minX <= width && maxY >= 0 && minY <= height;
+        }
+
+        /**
+         * Bucket the edges by the rows of tiles that the pixel rows whose centres they cross are in.
+         */
+        private void bucketEdges() {
+            final int[] firstBand = new int[numVertices];
+            final int[] lastBand = new int[numVertices];
+            for (int i = 0; i < numVertices; i++) {
+                final int j = i + 1 == numVertices ? 0 : i + 1;
+                final int first = Math.max(0, firstPixel(Math.min(ys[i], ys[j])));
+                final int last = Math.min(height - 1, firstPixel(Math.max(ys[i], ys[j])) - 1);
+                if (first > last) {
+                    // Horizontal, or doesn't cross the centre of any row in the buffer.
+                    firstBand[i] = 0;
+                    lastBand[i] = -1;
+                    continue;
+                }
+                firstBand[i] = first / tileSize;
+                lastBand[i] = last / tileSize;
+                for (int band = firstBand[i]; band <= lastBand[i]; band++) {
+                    bandStart[band + 1]++;
+                }
+            }
+            for (int band = 0; band < tileRows; band++) {
+                bandStart[band + 1] += bandStart[band];
+            }
+
+            bandEdges = new int[bandStart[tileRows]];
+            final int[] fill = Arrays.copyOf(bandStart, tileRows);
+            for (int i = 0; i < numVertices; i++) {
+                for (int band = firstBand[i]; band <= lastBand[i]; band++) {
+                    bandEdges[fill[band]++] = i;
+                }
+            }
+        }
+
+        /**
+         * Adds this light to a span of pixels in a row, fading with distance from the light.
+         * @param buffer The red, green and blue light at each pixel.
+         * @param rowStart The index of the first pixel in the row.
+         * @param firstColumn The first column in the span.
+         * @param lastColumn The last column in the span.
+         * @param centreY The Y co-ordinate of the centre of the row.
+         */
+        private void addSpan(float[] buffer, int rowStart, int firstColumn, int lastColumn, double centreY) {
+            final double dy = centreY - lightY;
+            final double dy2 = dy * dy;
+            if (radius == Double.POSITIVE_INFINITY) {
+                for (int x = firstColumn; x <= lastColumn; x++) {
+                    final int i = (rowStart + x) * 3;
+                    buffer[i] += red;
+                    buffer[i + 1] += green;
+                    buffer[i + 2] += blue;
+                }
+                return;
+            }
+
+            for (int x = firstColumn; x <= lastColumn; x++) {
+                final double dx = x + 0.5 - lightX;
+                final double fade = 1 - Math.sqrt(dx * dx + dy2) / radius;
+                if (fade <= 0) {
+                    continue;
+                }
+                // Squared so the light fades off smoothly at the edge of its radius.
+                final float f = (float) (fade * fade);
+                final int i = (rowStart + x) * 3;
+                buffer[i] += red * f;
+                buffer[i + 1] += green * f;
+                buffer[i + 2] += blue * f;
+            }
+        }
+    }
+
+    /**
+     * Task that fills a range of the tiles, splitting itself in half until there is only one tile.
+     */
+    private class TileRange extends RecursiveAction {
+        /** The version of the serialized form, which {@link RecursiveAction} needs though it is never used. */
+        private static final long serialVersionUID = 1L;
+
+        /** The lights. */
+        private final PreparedLight[] lights;
+        /** The index of the first tile in the range. */
+        private final int start;
+        /** The index after the last tile in the range. */
+        private final int end;
+
+        /**
+         * Creates a new <code>TileRange</code>.
+         * @param iLights The lights.
+         * @param iStart The index of the first tile in the range.
+         * @param iEnd The index after the last tile in the range.
+         */
+        private TileRange(PreparedLight[] iLights, int iStart, int iEnd) {
+            lights = iLights;
+            start = iStart;
+            end = iEnd;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                renderTile(start, lights);
+                return;
+            }
+
+            final int mid = (start + end) >>> 1;
+            invokeAll(new TileRange(lights, start, mid), new TileRange(lights, mid, end));
+        }
+    }
+}
@@ -3,16 +3,31 @@ package net.rptools.maptool.vision;
 
 import javafx.geometry.Point2D;
 
+import java.util.Comparator;
+
 /**
  * Class used to represent the intersection of a ray and {@link LineSegment}.
  */
 public class LineIntersection {
+    /**
+     * Orders intersections by the angle of their rays without any trigonometry, using
+     * {@link #getPseudoAngle()}. This gives the same order as sorting by {@link #getAngle()}.
+     */
+    public static final Comparator<LineIntersection> ANGULAR_ORDER =
+            Comparator.comparingDouble(LineIntersection::getPseudoAngle);
+
     /** The point where the intersection occurs. */
     private final Point2D point;
     /** The distance along the ray that the intersection occurs. */
     private final double distance;
-    /** The angle of the ray. */
+    /** The angle of the ray, or NaN if the ray was given as a direction. */
     private final double angle;
+    /** The X component of the direction of the ray, or NaN if the ray was given as an angle. */
+    private final double directionX;
+    /** The Y component of the direction of the ray, or NaN if the ray was given as an angle. */
+    private final double directionY;
+    /** The pseudo angle of the ray, or NaN if the ray was given as an angle. */
+    private final double pseudoAngle;
 
 
     /**
@@ -25,6 +40,27 @@ public class LineIntersection {
         point = iPoint;
         distance = iDistance;
         angle = iAngle;
+        directionX = Double.NaN;
+        directionY = Double.NaN;
+        pseudoAngle = Double.NaN;
+    }
+
+    /**
+     * Creates a new <code>LineIntersection</code> object for a ray given as a direction, the angle is only worked out
+     * if it is asked for.
+     * @param iPoint The point where the intersection occurs.
+     * @param iDistance The distance along the ray that the intersection occurs.
+     * @param iDirectionX The X component of the direction of the ray.
+     * @param iDirectionY The Y component of the direction of the ray.
+     */
+    public LineIntersection(Point2D iPoint, double iDistance, double iDirectionX, double iDirectionY) {
+        point = iPoint;
+        distance = iDistance;
+        angle = Double.NaN;
+        directionX = iDirectionX;
+        directionY = iDirectionY;
+        // Worked out up front as it is what these are sorted by.
+        pseudoAngle = pseudoAngle(iDirectionX, iDirectionY);
     }
 
     /**
@@ -48,6 +84,83 @@ public class LineIntersection {
      * @return the angle of the ray.
      */
     public double getAngle() {
-        return angle;
+        return Double.isNaN(angle) ? Math.atan2(directionY, directionX) : angle;
+    }
+
+    /**
+     * Returns a number that increases with the angle of the ray but is much cheaper to work out, see
+     * {@link #pseudoAngle(double, double)}.
+     * @return the pseudo angle of the ray.
+     */
+    public double getPseudoAngle() {
+        if (Double.isNaN(angle)) {
+            return pseudoAngle;
+        }
+        return pseudoAngle(Math.cos(angle), Math.sin(angle));
+    }
+
+    /**
+     * Returns the "diamond angle" of a direction, a number from -2 to 2 that increases with the angle of the direction
+     * in the same way as {@link Math#atan2(double, double)} does from -PI to PI, but only needs a division.
+     *
+     * It is the distance around a diamond (the unit circle in the taxicab metric) to where the direction crosses it.
+     *
+     * @param dx The X component of the direction.
+     * @param dy The Y component of the direction.
+     * @return the pseudo angle of the direction, or 0 if it has no length (as {@link Math#atan2(double, double)}
+     *         gives).
+     */
+    public static double pseudoAngle(double dx, double dy) {
+        final double taxicabLength = Math.abs(dx) + Math.abs(dy);
+        if (taxicabLength == 0) {
+            return 0;
+        }
+        final double p = dy / taxicabLength;
+        if (dx >= 0) {
+            // -PI/2 to PI/2 map to -1 to 1.
+            return p;
+        }
+        // PI/2 to PI map to 1 to 2, -PI to -PI/2 map to -2 to -1.
+        return dy >= 0 ? 2 - p : -2 - p;
+    }
+
+    /**
+     * Returns the X component of the direction with a pseudo angle, the reverse of
+     * {@link #pseudoAngle(double, double)}. Together with {@link #pseudoAngleY(double)} this gives the point where
+     * the direction crosses the diamond, so it is not a unit vector.
+     * @param pseudoAngle The pseudo angle, values outside of -2 to 2 wrap around.
+     * @return the X component of the direction.
+     */
+    public static double pseudoAngleX(double pseudoAngle) {
+        return 1 - Math.abs(wrapPseudoAngle(pseudoAngle));
+    }
+
+    /**
+     * Returns the Y component of the direction with a pseudo angle, see {@link #pseudoAngleX(double)}.
+     * @param pseudoAngle The pseudo angle, values outside of -2 to 2 wrap around.
+     * @return the Y component of the direction.
+     */
+    public static double pseudoAngleY(double pseudoAngle) {
+        final double p = wrapPseudoAngle(pseudoAngle);
+        if (p > 1) {
+            return 2 - p;
+        } else if (p < -1) {
+            return -2 - p;
+        }
+        return p;
+    }
+
+    /**
+     * Returns a pseudo angle moved into the range -2 to 2, a whole turn being 4.
+     * @param pseudoAngle The pseudo angle.
+     * @return the pseudo angle between -2 and 2.
+     */
+    private static double wrapPseudoAngle(double pseudoAngle) {
+        if (pseudoAngle > 2) {
+            return pseudoAngle - 4;
+        } else if (pseudoAngle < -2) {
+            return pseudoAngle + 4;
+        }
+        return pseudoAngle;
     }
 }
@@ -0,0 +1,251 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Answers "can A see B" questions without building the visible area of A.
+ *
+ * A single query walks the cells of the {@link SegmentGrid} between the two points and stops at the first line
+ * segment in the way, so it only looks at the walls near the line between them. The batch form answers every
+ * viewer/target pair at once, with the viewers split into chunks that run on a {@link ForkJoinPool} like
+ * {@link ParallelVisibility}. Each viewer first tries the wall that blocked its last target, as targets next to each
+ * other are often behind the same wall.
+ *
+ * The {@link VisionBlockingPolygonList} must not be changed while a batch is being calculated.
+ */
+public class LineOfSight {
+    /** The number of chunks to try to give each worker thread so that uneven chunks are balanced out. */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /** The pool that the batches are run on. */
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a new <code>LineOfSight</code> that runs batches on the common {@link ForkJoinPool}.
+     */
+    public LineOfSight() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a new <code>LineOfSight</code>.
+     * @param iPool The pool that the batches are run on.
+     */
+    public LineOfSight(ForkJoinPool iPool) {
+        pool = iPool;
+    }
+
+    /**
+     * Returns if there is nothing blocking vision/light on the line between a viewer and a target.
+     *
+     * @param visionBlockingPolygonList The polygons that block vision/light.
+     * @param viewer The viewer.
+     * @param target The target.
+     * @return <code>true</code> if the viewer can see the target.
+     */
+    public static boolean canSee(VisionBlockingPolygonList visionBlockingPolygonList, Point2D viewer, Point2D target) {
+        return visionBlockingPolygonList.getSegmentGrid().findBlockingSegment(viewer.getX(), viewer.getY(),
+                target.getX(), target.getY()) < 0;
+    }
+
+    /**
+     * Works out which of the targets each of the viewers can see.
+     *
+     * @param visionBlockingPolygonList The polygons that block vision/light.
+     * @param viewers The viewers.
+     * @param targets The targets.
+     * @return which targets each viewer can see.
+     */
+    public Result canSee(VisionBlockingPolygonList visionBlockingPolygonList, List<Point2D> viewers,
+                         List<Point2D> targets) {
+        // Make sure the lazily built spatial index is built here rather than by several workers at once.
+        final SegmentGrid grid = visionBlockingPolygonList.getSegmentGrid();
+        final SegmentStore store = visionBlockingPolygonList.getSegmentStore();
+
+        final Result result = new Result(viewers.size(), targets.size());
+        final double[] targetXs = new double[targets.size()];
+        final double[] targetYs = new double[targets.size()];
+        for (int i = 0; i < targets.size(); i++) {
+            targetXs[i] = targets.get(i).getX();
+            targetYs[i] = targets.get(i).getY();
+        }
+        final Point2D[] viewerArray = viewers.toArray(new Point2D[0]);
+        final int chunkSize = Math.max(1, viewerArray.length / (pool.getParallelism() * CHUNKS_PER_THREAD));
+
+        pool.invoke(new Chunk(grid, store, viewerArray, targetXs, targetYs, result, 0, viewerArray.length,
+                chunkSize));
+
+        return result;
+    }
+
+    /**
+     * Which targets each viewer can see, packed one bit per viewer/target pair.
+     */
+    public static class Result {
+        /** The number of viewers. */
+        private final int numViewers;
+        /** The number of targets. */
+        private final int numTargets;
+        /** The number of <code>long</code>s used for each viewer. */
+        private final int wordsPerViewer;
+        /** One bit for each viewer/target pair, set if the viewer can see the target. */
+        private final long[] bits;
+
+        /**
+         * Creates a new <code>Result</code> where no viewer can see any target.
+         * @param iNumViewers The number of viewers.
+         * @param iNumTargets The number of targets.
+         */
+        private Result(int iNumViewers, int iNumTargets) {
+            numViewers = iNumViewers;
+            numTargets = iNumTargets;
+            wordsPerViewer = (numTargets + 63) >>> 6;
+            bits = new long[wordsPerViewer * numViewers];
+        }
+
+        /**
+         * Returns if a viewer can see a target.
+         * @param viewer The index of the viewer.
+         * @param target The index of the target.
+         * @return <code>true</code> if the viewer can see the target.
+         */
+        public boolean canSee(int viewer, int target) {
+            return (bits[viewer * wordsPerViewer + (target >>> 6)] & (1L << target)) != 0;
+        }
+
+        /**
+         * Returns the number of targets a viewer can see.
+         * @param viewer The index of the viewer.
+         * @return the number of targets.
+         */
+        public int getVisibleCount(int viewer) {
+            int count = 0;
+            for (int i = viewer * wordsPerViewer; i < (viewer + 1) * wordsPerViewer; i++) {
+                count += Long.bitCount(bits[i]);
+            }
+            return count;
+        }
+
+        /**
+         * Returns the number of viewers.
+         * @return the number of viewers.
+         */
+        public int getNumberViewers() {
+            return numViewers;
+        }
+
+        /**
+         * Returns the number of targets.
+         * @return the number of targets.
+         */
+        public int getNumberTargets() {
+            return numTargets;
+        }
+
+        /**
+         * Records that a viewer can see a target. Each viewer is only written by one thread, and its bits don't share
+         * a <code>long</code> with any other viewer.
+         * @param viewer The index of the viewer.
+         * @param target The index of the target.
+         */
+        private void setVisible(int viewer, int target) {
+            bits[viewer * wordsPerViewer + (target >>> 6)] |= 1L << target;
+        }
+    }
+
+    /**
+     * Task that works out what a range of the viewers can see, splitting itself in half until the range is small
+     * enough.
+     */
+    private static class Chunk extends RecursiveAction {
+        /** The version of the serialized form, the task is never serialized but {@link RecursiveAction} can be. */
+        private static final long serialVersionUID = 1L;
+
+        /** The spatial index of the line segments that block vision/light. */
+        private final SegmentGrid grid;
+        /** The line segments that block vision/light. */
+        private final SegmentStore store;
+        /** All of the viewers. */
+        private final Point2D[] viewers;
+        /** The X co-ordinates of the targets. */
+        private final double[] targetXs;
+        /** The Y co-ordinates of the targets. */
+        private final double[] targetYs;
+        /** Where what each viewer can see is written. */
+        private final Result result;
+        /** The index of the first viewer in the range. */
+        private final int start;
+        /** The index after the last viewer in the range. */
+        private final int end;
+        /** The largest range that is calculated without splitting. */
+        private final int chunkSize;
+
+        /**
+         * Creates a new <code>Chunk</code>.
+         * @param iGrid The spatial index of the line segments that block vision/light.
+         * @param iStore The line segments that block vision/light.
+         * @param iViewers All of the viewers.
+         * @param iTargetXs The X co-ordinates of the targets.
+         * @param iTargetYs The Y co-ordinates of the targets.
+         * @param iResult Where what each viewer can see is written.
+         * @param iStart The index of the first viewer in the range.
+         * @param iEnd The index after the last viewer in the range.
+         * @param iChunkSize The largest range that is calculated without splitting.
+         */
+        private Chunk(SegmentGrid iGrid, SegmentStore iStore, Point2D[] iViewers, double[] iTargetXs,
+                      double[] iTargetYs, Result iResult, int iStart, int iEnd, int iChunkSize) {
+            grid = iGrid;
+            store = iStore;
+            viewers = iViewers;
+            targetXs = iTargetXs;
+            targetYs = iTargetYs;
+            result = iResult;
+            start = iStart;
+            end = iEnd;
+            chunkSize = iChunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= chunkSize) {
+                for (int i = start; i < end; i++) {
+                    calculateViewer(i);
+                }
+                return;
+            }
+
+            final int mid = (start + end) >>> 1;
+            invokeAll(
+                    new Chunk(grid, store, viewers, targetXs, targetYs, result, start, mid, chunkSize),
+                    new Chunk(grid, store, viewers, targetXs, targetYs, result, mid, end, chunkSize)
+            );
+        }
+
+        /**
+         * Works out which targets a viewer can see.
+         * @param viewer The index of the viewer.
+         */
+        private void calculateViewer(int viewer) {
+            final double ox = viewers[viewer].getX();
+            final double oy = viewers[viewer].getY();
+            int lastBlocker = -1;
+            for (int target = 0; target < targetXs.length; target++) {
+                final double tx = targetXs[target];
+                final double ty = targetYs[target];
+                if (lastBlocker >= 0 && store.crossesLine(lastBlocker, ox, oy, tx - ox, ty - oy)) {
+                    continue;
+                }
+                final int blocker = grid.findBlockingSegment(ox, oy, tx, ty);
+                if (blocker >= 0) {
+                    lastBlocker = blocker;
+                } else {
+                    result.setVisible(viewer, target);
+                }
+            }
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package net.rptools.maptool.vision;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.geometry.Point2D;
 import javafx.scene.Group;
 import javafx.scene.Scene;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.paint.Color;
 import javafx.scene.paint.Paint;
 import javafx.stage.Stage;
@@ -22,18 +24,36 @@ public class Main extends Application {
     private static final int CANVAS_WIDTH = 800;
     /** The height of the canvas. */
     private static final int CANVAS_HEIGHT = 600;
-    /** Small delta angle used for a ray either side of vertex so that vision/light will extend past the vertex. */
-    private static final double VERY_SMALL_ANGLE = 0.00001;
+    /** How far the light from the viewer reaches if the vision radius isn't limited. */
+    private static final double LIGHT_RADIUS = 500;
 
     /** Vision/light blocking polygons in the scene. */
     private final VisionBlockingPolygonList visionBlockingPolygonList = new VisionBlockingPolygonList();
 
-    /** Canvas where all rendering occurs. */
+    /**
+     * Used to calculate the area that can be seen by the viewer, re-sorting from the last position as the viewer
+     * follows the mouse unless the viewer has a vision radius.
+     */
+    private VisibilityCalculator visibilityCalculator = new ResortingSweepVisibility();
+
+    /** Canvas for the background and vision/light blocking polygons, which only needs to be drawn once. */
+    private final Canvas staticCanvas = new Canvas(CANVAS_WIDTH, CANVAS_HEIGHT);
+
+    /** Canvas layered over the static one where the lit area and viewer are drawn each frame. */
     private final Canvas canvas = new Canvas(CANVAS_WIDTH, CANVAS_HEIGHT);
 
+    /** The light map that the lit area is drawn into before it is copied to the canvas in one go. */
+    private final LightBuffer lightBuffer = new LightBuffer(CANVAS_WIDTH, CANVAS_HEIGHT);
+
+    /** How far the light from the viewer reaches before it has faded to nothing. */
+    private double lightRadius = LIGHT_RADIUS;
+
     /** Our viewer (or light source) for calculations. */
     private Point2D viewer = new Point2D(CANVAS_WIDTH/2, CANVAS_HEIGHT/2);
 
+    /** <code>true</code> if something has changed since the last frame was rendered. */
+    private boolean dirty = true;
+
 
     public static void main(String[] args) {
         launch(args);
@@ -44,76 +64,63 @@ public class Main extends Application {
         primaryStage.setTitle("Simple Vision Mockup");
         Group root = new Group();
 
+        // How far the viewer can see can be limited with --radius=<distance>.
+        String radius = getParameters().getNamed().get("radius");
+        if (radius != null) {
+            visibilityCalculator = new RangeLimitedVisibility(new AngularSweepVisibility(), Double.parseDouble(radius));
+            lightRadius = Double.parseDouble(radius);
+        }
+        // Timings and ray counts are recorded in VisibilityMetrics when started with -Dvision.metrics=true.
+        visibilityCalculator = new InstrumentedVisibility(visibilityCalculator);
+
         visionBlockingPolygonList.addDemoPoly(CANVAS_WIDTH, CANVAS_HEIGHT);
 
+        root.getChildren().add(staticCanvas);
         root.getChildren().add(canvas);
         primaryStage.setScene(new Scene(root));
         primaryStage.show();
 
-        render();
+        renderStatic();
 
+        // Mouse events can arrive many times a frame so they only record the new position, the timer renders at most
+        // once a frame and only when something has changed.
         canvas.setOnMouseMoved(event -> {
             viewer = new Point2D(event.getX(), event.getY());
-            render();
+            dirty = true;
         });
+
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                if (dirty) {
+                    dirty = false;
+                    render();
+                }
+            }
+        }.start();
     }
 
     /**
-     * Render the scene.
+     * Render the parts of the scene that don't change, the background and vision/light blocking polygons.
      */
-    public void render() {
-        GraphicsContext gc = canvas.getGraphicsContext2D();
+    public void renderStatic() {
+        GraphicsContext gc = staticCanvas.getGraphicsContext2D();
         gc.setFill(Color.BLACK);
         gc.fillRect(0, 0, CANVAS_WIDTH, CANVAS_HEIGHT);
-        drawVisionBlocking(canvas.getGraphicsContext2D(), Color.LAWNGREEN);
-
-
-        // Allocate an array large enough for angles to all vertices + small delta either side.
-        double[] angles = new double[visionBlockingPolygonList.getNumberVertices() * 3];
-
-        // Loop through all the vertices and determine the angle from our viewer.
-        int ind = 0;
-        for (Point2D vert : visionBlockingPolygonList.getVertices()) {
-            double angle = Math.atan2(vert.getY() - viewer.getY(), vert.getX() - viewer.getX());
-            angles[ind++] = angle - VERY_SMALL_ANGLE;
-            angles[ind++] = angle;
-            angles[ind++] = angle + VERY_SMALL_ANGLE;
-        }
+        drawVisionBlocking(gc, Color.LAWNGREEN);
+    }
 
-        // Get a list of the closest intersection along a ray for each of the angles we derived above.
-        List<LineIntersection> lineIntersections = new ArrayList<>();
-        for (double angle : angles) {
-            // Use some easy trig to determine a vector for angle.
-            Point2D direction = new Point2D(
-                Math.cos(angle),
-                Math.sin(angle)
-            );
-
-            // create a new ray from the view to the viewer + vector above. Really this is only a vector as
-            // the ray actually extends to infinity (and the intersection calculations take care of this fact).
-            LineSegment ray = new LineSegment(
-                    viewer,
-                    new Point2D( viewer.getX() + direction.getX(), viewer.getY() + direction.getY())
-            );
-
-            LineIntersection closest = null;
-            for (LineSegment lineSegment : visionBlockingPolygonList.getLineSegments()) {
-                LineIntersection inter = lineSegment.getIntersectionWith(ray, angle);
-                if (inter != null) {
-                    if (closest == null || closest.getDistance() > inter.getDistance()) {
-                        closest = inter;
-                    }
-                }
-            }
-            if (closest != null) {
-                lineIntersections.add(closest);
-            }
-        }
+    /**
+     * Render the parts of the scene that change as the viewer moves.
+     */
+    public void render() {
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.clearRect(0, 0, CANVAS_WIDTH, CANVAS_HEIGHT);
 
-        // Sort our intersections by the angle, this is so we can easily turn them into triangles.
-        Collections.sort(lineIntersections, (o1, o2) -> (int)((o1.getAngle() - o2.getAngle()) * 1000));
+        List<LineIntersection> lineIntersections =
+                visibilityCalculator.calculateVisibility(visionBlockingPolygonList, viewer);
 
-        // Draw the outline and fill in different colour to make it easier to see what is going on.
+        // Draw the outline in a different colour to the light to make it easier to see what is going on.
         drawLitArea(gc, lineIntersections, Color.ROYALBLUE,  Color.LIGHTBLUE);
         drawViewer(gc, Color.TOMATO);
 
@@ -130,31 +137,35 @@ public class Main extends Application {
     }
 
     /**
-     * Draws the area that are intersections represent.
+     * Draws the area that are intersections represent, lit by the viewer, with the outline as a single path.
+     *
+     * The light is drawn into the {@link LightBuffer} and copied to the canvas with one
+     * <code>PixelWriter.setPixels()</code> call, rather than with many fill calls.
      *
      * @param gc The graphics context used to draw.
      * @param lineIntersections The intersections to draw.
-     * @param outline The {@link Paint} used for the outline of the triangles.
-     * @param fill The {@link Paint} used for the fill of the triangles.
+     * @param outline The {@link Paint} used for the outline of the area.
+     * @param fill The {@link Color} of the light in the area.
      */
-    private void drawLitArea(GraphicsContext gc, List<LineIntersection> lineIntersections, Paint outline, Paint fill) {
-        gc.setStroke(outline);
-        gc.setFill(fill);
-        for (int i = 0; i < lineIntersections.size() - 1; i++) {
-            Point2D p1 = lineIntersections.get(i).getPoint();
-            Point2D p2 = lineIntersections.get(i+1).getPoint();
-            double[] x = new double[] {viewer.getX(), p1.getX(), p2.getX()};
-            double[] y = new double[] {viewer.getY(), p1.getY(), p2.getY()};
-            gc.fillPolygon(x, y, 3 );
-            gc.strokePolygon(x, y, 3 );
+    private void drawLitArea(GraphicsContext gc, List<LineIntersection> lineIntersections, Paint outline, Color fill) {
+        if (lineIntersections.isEmpty()) {
+            return;
         }
-        Point2D p1 = lineIntersections.get(lineIntersections.size()-1).getPoint();
-        Point2D p2 = lineIntersections.get(0).getPoint();
+        lightBuffer.render(Collections.singletonList(new LightBuffer.Light(viewer, lineIntersections, lightRadius,
+                (float) fill.getRed(), (float) fill.getGreen(), (float) fill.getBlue())));
+        gc.getPixelWriter().setPixels(0, 0, CANVAS_WIDTH, CANVAS_HEIGHT, PixelFormat.getIntArgbInstance(),
+                lightBuffer.getPixels(), 0, CANVAS_WIDTH);
 
-        double[] x = new double[] {viewer.getX(), p1.getX(), p2.getX()};
-        double[] y = new double[] {viewer.getY(), p1.getY(), p2.getY()};
-        gc.fillPolygon(x, y, 3 );
-        gc.strokePolygon(x, y, 3 );
+        gc.setStroke(outline);
+        gc.beginPath();
+        Point2D first = lineIntersections.get(0).getPoint();
+        gc.moveTo(first.getX(), first.getY());
+        for (int i = 1; i < lineIntersections.size(); i++) {
+            Point2D p = lineIntersections.get(i).getPoint();
+            gc.lineTo(p.getX(), p.getY());
+        }
+        gc.closePath();
+        gc.stroke();
     }
 
 
@@ -0,0 +1,297 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * The vision/light blocking polygons of a scene read from a compact binary file that is memory mapped, so the
+ * co-ordinates are never copied onto the heap and only the parts of the file that are used are read from disk.
+ *
+ * The file is little endian and laid out as
+ * <ul>
+ *     <li>a header of 4 <code>int</code>s: {@link #MAGIC}, {@link #FORMAT_VERSION}, the number of polygons and the
+ *     total number of vertices,</li>
+ *     <li>the index of the first vertex of each polygon (one <code>int</code> per polygon plus one for the end),</li>
+ *     <li>the index of the vertex each vertex is joined to (one <code>int</code> per vertex),</li>
+ *     <li>padding to a multiple of 8 bytes,</li>
+ *     <li>the X and Y co-ordinates of each vertex (two <code>double</code>s per vertex).</li>
+ * </ul>
+ *
+ * The line segments are numbered the same as the vertices, segment <code>i</code> runs from vertex <code>i</code> to
+ * the vertex it is joined to, so every vertex is also the start of a line segment. Unlike
+ * {@link VisionBlockingPolygonList} line segments shared by polygons are not removed, which makes no difference to
+ * the visible area.
+ */
+public class MappedScene implements SegmentSource {
+    /** Written at the start of a scene file to identify it. */
+    private static final int MAGIC = 0x5653434e;
+    /** The version of the file format. */
+    private static final int FORMAT_VERSION = 1;
+    /** The size of the header in bytes. */
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+    /** The message of the exception thrown when a file is corrupt. */
+    private static final String CORRUPT = "Scene file is corrupt";
+
+    /** The index of the first vertex of each polygon. */
+    private final IntBuffer polygonStart;
+    /** The index of the vertex each vertex is joined to. */
+    private final IntBuffer nextVertex;
+    /** The X and Y co-ordinates of each vertex, one after the other. */
+    private final DoubleBuffer coordinates;
+    /** The number of polygons. */
+    private final int numPolygons;
+    /** The number of vertices, which is also the number of line segments. */
+    private final int numVertices;
+    /**
+     * Spatial index over the line segments, <code>null</code> until it is first needed. This is volatile so a scene
+     * can be shared between threads, whichever needs it first building it.
+     */
+    private volatile SegmentGrid segmentGrid;
+
+    /**
+     * Creates a new <code>MappedScene</code> over a mapped file.
+     * @param buffer The mapped file.
+     * @throws IOException if the file is not a scene file, is from another version or is corrupt.
+     */
+    private MappedScene(MappedByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a scene file");
+        }
+        final int formatVersion = buffer.getInt(4);
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported scene file version " + formatVersion);
+        }
+        numPolygons = buffer.getInt(8);
+        numVertices = buffer.getInt(12);
+        if (numPolygons < 0 || numVertices < 0 || buffer.limit() != fileSize(numPolygons, numVertices)) {
+            throw new IOException(CORRUPT);
+        }
+
+        polygonStart = slice(buffer, HEADER_SIZE).asIntBuffer();
+        nextVertex = slice(buffer, HEADER_SIZE + (numPolygons + 1) * Integer.BYTES).asIntBuffer();
+        coordinates = slice(buffer, coordinatesOffset(numPolygons, numVertices)).asDoubleBuffer();
+        checkIndexes();
+    }
+
+    /**
+     * Checks that the polygons cover the vertices in order and that every vertex is joined to a vertex in the file,
+     * so a corrupt file fails to open rather than part way through a query. This reads the indexes but not the
+     * co-ordinates, which are most of the file.
+     * @throws IOException if an index is out of range.
+     */
+    private void checkIndexes() throws IOException {
+        if (polygonStart.get(0) != 0 || polygonStart.get(numPolygons) != numVertices) {
+            throw new IOException(CORRUPT);
+        }
+        for (int p = 0; p < numPolygons; p++) {
+            if (polygonStart.get(p + 1) < polygonStart.get(p)) {
+                throw new IOException(CORRUPT);
+            }
+        }
+        for (int v = 0; v < numVertices; v++) {
+            final int next = nextVertex.get(v);
+            if (next < 0 || next >= numVertices) {
+                throw new IOException(CORRUPT);
+            }
+        }
+    }
+
+    /**
+     * Memory maps a scene file.
+     * @param path The file to map.
+     * @return the scene.
+     * @throws IOException if there is an error mapping the file or it is not a scene file.
+     */
+    public static MappedScene open(Path path) throws IOException {
+        // The mapping stays valid after the channel is closed.
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Scene file is too large");
+            }
+            return new MappedScene(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes vision/light blocking polygons to a scene file.
+     * @param polygons The polygons to write.
+     * @param path The file to write to, it is replaced if it already exists.
+     * @throws IOException if there is an error writing the file.
+     */
+    public static void write(List<VisionBlockingPolygon> polygons, Path path) throws IOException {
+        long totalVertices = 0;
+        for (VisionBlockingPolygon vbp : polygons) {
+            totalVertices += vbp.getNumberVerticies();
+        }
+        final long size = fileSize(polygons.size(), totalVertices);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Too many vertices for a scene file");
+        }
+        final int numVertices = (int) totalVertices;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(FORMAT_VERSION);
+            buffer.putInt(polygons.size());
+            buffer.putInt(numVertices);
+
+            IntBuffer starts = slice(buffer, HEADER_SIZE).asIntBuffer();
+            IntBuffer next = slice(buffer, HEADER_SIZE + (polygons.size() + 1) * Integer.BYTES).asIntBuffer();
+            DoubleBuffer coords = slice(buffer, coordinatesOffset(polygons.size(), numVertices)).asDoubleBuffer();
+            int vertex = 0;
+            for (VisionBlockingPolygon vbp : polygons) {
+                starts.put(vertex);
+                final int first = vertex;
+                final double[] xs = vbp.getVerticesX();
+                final double[] ys = vbp.getVerticesY();
+                for (int i = 0; i < xs.length; i++) {
+                    coords.put(xs[i]);
+                    coords.put(ys[i]);
+                    // The last vertex is joined back to the first to close the polygon.
+                    next.put(i + 1 < xs.length ? vertex + 1 : first);
+                    vertex++;
+                }
+            }
+            starts.put(vertex);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Returns the number of polygons in the scene.
+     * @return the number of polygons.
+     */
+    public int getNumberPolygons() {
+        return numPolygons;
+    }
+
+    /**
+     * Returns the index of the first vertex (and line segment) of a polygon, its vertices are from this up to the
+     * start of the next polygon.
+     * @param poly The index of the polygon, or the number of polygons for the end of the last one.
+     * @return the index of the first vertex.
+     */
+    int getPolygonStart(int poly) {
+        return polygonStart.get(poly);
+    }
+
+    /**
+     * Returns one of the polygons in the scene. This creates the polygon on the heap, so it is best used for small
+     * numbers of polygons, e.g. those being drawn.
+     * @param poly The index of the polygon.
+     * @return the polygon.
+     */
+    public VisionBlockingPolygon getPolygon(int poly) {
+        final int start = polygonStart.get(poly);
+        final int end = polygonStart.get(poly + 1);
+        Point2D[] points = new Point2D[end - start];
+        for (int i = start; i < end; i++) {
+            points[i - start] = new Point2D(getX1(i), getY1(i));
+        }
+        return new VisionBlockingPolygon(points);
+    }
+
+    /**
+     * Copies all of the polygons in the scene onto the heap, for code that needs a
+     * {@link VisionBlockingPolygonList}.
+     * @return the polygons.
+     */
+    public VisionBlockingPolygonList toVisionBlockingPolygonList() {
+        VisionBlockingPolygonList visionBlockingPolygonList = new VisionBlockingPolygonList();
+        for (int poly = 0; poly < numPolygons; poly++) {
+            visionBlockingPolygonList.addVisionBlockingPolygon(getPolygon(poly));
+        }
+        return visionBlockingPolygonList;
+    }
+
+    /**
+     * Returns the spatial index over the line segments of the scene, which is built the first time it is requested.
+     * The scene never changes, so it can be shared between threads and requesting it from several at once only
+     * builds it once.
+     * @return the spatial index of the line segments.
+     */
+    public SegmentGrid getSegmentGrid() {
+        SegmentGrid grid = segmentGrid;
+        if (grid == null) {
+            synchronized (this) {
+                grid = segmentGrid;
+                if (grid == null) {
+                    grid = new SegmentGrid(this);
+                    segmentGrid = grid;
+                }
+            }
+        }
+        return grid;
+    }
+
+    @Override
+    public int size() {
+        return numVertices;
+    }
+
+    @Override
+    public double getX1(int seg) {
+        return coordinates.get(seg * 2);
+    }
+
+    @Override
+    public double getY1(int seg) {
+        return coordinates.get(seg * 2 + 1);
+    }
+
+    @Override
+    public double getX2(int seg) {
+        return coordinates.get(nextVertex.get(seg) * 2);
+    }
+
+    @Override
+    public double getY2(int seg) {
+        return coordinates.get(nextVertex.get(seg) * 2 + 1);
+    }
+
+    /**
+     * Returns the offset in bytes of the co-ordinates in a scene file.
+     * @param numPolygons The number of polygons.
+     * @param numVertices The number of vertices.
+     * @return the offset of the co-ordinates.
+     */
+    private static long coordinatesOffset(long numPolygons, long numVertices) {
+        final long intsEnd = HEADER_SIZE + (numPolygons + 1 + numVertices) * Integer.BYTES;
+        // Keep the doubles aligned.
+        return (intsEnd + Double.BYTES - 1) & -Double.BYTES;
+    }
+
+    /**
+     * Returns the size in bytes of a scene file.
+     * @param numPolygons The number of polygons.
+     * @param numVertices The number of vertices.
+     * @return the size of the file.
+     */
+    private static long fileSize(long numPolygons, long numVertices) {
+        return coordinatesOffset(numPolygons, numVertices) + numVertices * 2 * Double.BYTES;
+    }
+
+    /**
+     * Returns a little endian view of a mapped file starting at an offset.
+     * @param buffer The mapped file.
+     * @param offset The offset to start at.
+     * @return the view.
+     */
+    private static ByteBuffer slice(MappedByteBuffer buffer, long offset) {
+        return buffer.duplicate().position((int) offset).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
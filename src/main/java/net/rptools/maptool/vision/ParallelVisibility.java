@@ -0,0 +1,126 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Calculates the visible area for many viewers (or light sources) at once, in parallel, using a {@link ForkJoinPool}.
+ *
+ * The viewers are split into chunks that are calculated on the pool's worker threads. The results are returned in the
+ * same order as the viewers no matter which thread calculated them or when they finished.
+ *
+ * The {@link VisionBlockingPolygonList} must not be changed while a batch is being calculated.
+ */
+public class ParallelVisibility {
+    /** The number of chunks to try to give each worker thread so that uneven chunks are balanced out. */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /** The calculator used for each viewer, this must be safe to share between threads. */
+    private final VisibilityCalculator visibilityCalculator;
+    /** The pool that the calculations are run on. */
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a new <code>ParallelVisibility</code> that runs on the common {@link ForkJoinPool}.
+     * @param calculator The calculator used for each viewer, this must be safe to share between threads.
+     */
+    public ParallelVisibility(VisibilityCalculator calculator) {
+        this(calculator, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a new <code>ParallelVisibility</code>.
+     * @param calculator The calculator used for each viewer, this must be safe to share between threads.
+     * @param iPool The pool that the calculations are run on.
+     */
+    public ParallelVisibility(VisibilityCalculator calculator, ForkJoinPool iPool) {
+        visibilityCalculator = calculator;
+        pool = iPool;
+    }
+
+    /**
+     * Calculates the visible area for each of the viewers.
+     *
+     * @param visionBlockingPolygonList The polygons that block vision/light.
+     * @param viewers The viewers (or light sources).
+     * @return the visible area for each viewer, in the same order as the viewers.
+     */
+    public List<List<LineIntersection>> calculateVisibility(VisionBlockingPolygonList visionBlockingPolygonList,
+                                                            List<Point2D> viewers) {
+        // Make sure the lazily built spatial index, vertex classifier and store of enabled lines are built here rather
+        // than by several workers at once, which would race to build and publish them unless the list is frozen.
+        visionBlockingPolygonList.getSegmentGrid();
+        visionBlockingPolygonList.getVertexClassifier();
+        visionBlockingPolygonList.getEnabledSegmentStore();
+
+        final Point2D[] viewerArray = viewers.toArray(new Point2D[0]);
+        @SuppressWarnings("unchecked")
+        final List<LineIntersection>[] results = (List<LineIntersection>[]) new List<?>[viewerArray.length];
+        final int chunkSize = Math.max(1, viewerArray.length / (pool.getParallelism() * CHUNKS_PER_THREAD));
+
+        pool.invoke(new Chunk(visionBlockingPolygonList, viewerArray, results, 0, viewerArray.length, chunkSize));
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Task that calculates the visible area for a range of the viewers, splitting itself in half until the range is
+     * small enough.
+     */
+    private class Chunk extends RecursiveAction {
+        /** Tasks are serializable, though this one is never serialized. */
+        private static final long serialVersionUID = 1L;
+
+        /** The polygons that block vision/light. */
+        private final VisionBlockingPolygonList visionBlockingPolygonList;
+        /** All of the viewers. */
+        private final Point2D[] viewers;
+        /** Where the result for each viewer is written. */
+        private final List<LineIntersection>[] results;
+        /** The index of the first viewer in the range. */
+        private final int start;
+        /** The index after the last viewer in the range. */
+        private final int end;
+        /** The largest range that is calculated without splitting. */
+        private final int chunkSize;
+
+        /**
+         * Creates a new <code>Chunk</code>.
+         * @param iVisionBlockingPolygonList The polygons that block vision/light.
+         * @param iViewers All of the viewers.
+         * @param iResults Where the result for each viewer is written.
+         * @param iStart The index of the first viewer in the range.
+         * @param iEnd The index after the last viewer in the range.
+         * @param iChunkSize The largest range that is calculated without splitting.
+         */
+        private Chunk(VisionBlockingPolygonList iVisionBlockingPolygonList, Point2D[] iViewers,
+                      List<LineIntersection>[] iResults, int iStart, int iEnd, int iChunkSize) {
+            visionBlockingPolygonList = iVisionBlockingPolygonList;
+            viewers = iViewers;
+            results = iResults;
+            start = iStart;
+            end = iEnd;
+            chunkSize = iChunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= chunkSize) {
+                for (int i = start; i < end; i++) {
+                    results[i] = visibilityCalculator.calculateVisibility(visionBlockingPolygonList, viewers[i]);
+                }
+                return;
+            }
+
+            final int mid = (start + end) >>> 1;
+            invokeAll(
+                    new Chunk(visionBlockingPolygonList, viewers, results, start, mid, chunkSize),
+                    new Chunk(visionBlockingPolygonList, viewers, results, mid, end, chunkSize)
+            );
+        }
+    }
+}
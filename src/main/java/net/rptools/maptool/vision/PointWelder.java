@@ -0,0 +1,65 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Welds points that are within a tolerance of each other onto the first of them that was seen, using a hash of grid
+ * cells the size of the tolerance so each point is only compared with the points near it.
+ */
+class PointWelder {
+    /** Points closer together than this are welded together. */
+    private final double tolerance;
+    /** The points that others are welded onto, by grid cell. */
+    private final Map<Long, List<Point2D>> cells = new HashMap<>();
+
+    /**
+     * Creates a new <code>PointWelder</code>.
+     * @param iTolerance Points closer together than this are welded together.
+     */
+    PointWelder(double iTolerance) {
+        tolerance = iTolerance;
+    }
+
+    /**
+     * Returns the point a point is welded onto, which is the point itself if there are none close to it.
+     * @param point The point to weld.
+     * @return the point it is welded onto.
+     */
+    Point2D weld(Point2D point) {
+        if (tolerance == 0) {
+            return point;
+        }
+        final long cellX = (long) Math.floor(point.getX() / tolerance);
+        final long cellY = (long) Math.floor(point.getY() / tolerance);
+        // Anything within the tolerance must be in this cell or one of its neighbours.
+        for (long y = cellY - 1; y <= cellY + 1; y++) {
+            for (long x = cellX - 1; x <= cellX + 1; x++) {
+                List<Point2D> cell = cells.get(key(x, y));
+                if (cell != null) {
+                    for (Point2D other : cell) {
+                        if (other.distance(point) <= tolerance) {
+                            return other;
+                        }
+                    }
+                }
+            }
+        }
+        cells.computeIfAbsent(key(cellX, cellY), k -> new ArrayList<>()).add(point);
+        return point;
+    }
+
+    /**
+     * Returns the key for a grid cell.
+     * @param x The column of the cell.
+     * @param y The row of the cell.
+     * @return the key.
+     */
+    private static long key(long x, long y) {
+        return (x << 32) ^ (y & 0xffffffffL);
+    }
+}
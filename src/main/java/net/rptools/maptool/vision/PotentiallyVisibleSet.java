@@ -0,0 +1,1015 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * {@link VisibilityCalculator} for static maps that divides the map into square cells and precomputes, for each cell,
+ * the line segments that can be seen from somewhere in it (its potentially visible set). At runtime rays are only
+ * cast at and tested against the line segments in the viewer's cell.
+ *
+ * The sets are conservative, a line segment is only left out of a cell's set if it is proved to be hidden from every
+ * point in the cell. A grid of points in each cell is sampled first, and every line segment that any ray cast from
+ * them hits is in the set. Each of the other line segments is then either proved hidden by an {@link OcclusionTest} or
+ * put in the set as well. More samples find more of the visible line segments quickly, leaving fewer to prove. Building
+ * the sets is slow and meant to be done offline, they can then be saved with {@link #save(OutputStream)} and loaded
+ * with {@link #load(InputStream)}.
+ *
+ * The sets refer to line segments by their index in the {@link SegmentStore} of the polygons they were built from,
+ * and are only right for those polygons as they were, including which line segments were disabled. They can only be
+ * used with polygons whose store has the same line segments in the same order and with the same ones disabled, such as
+ * the same list or one restored by {@link PreparedScene}, which is checked with a checksum of the store. Viewers
+ * outside of the cells fall back to {@link RayCastVisibility}.
+ */
+public class PotentiallyVisibleSet implements VisibilityCalculator {
+    /** Written at the start of saved sets to identify them. */
+    private static final int MAGIC = 0x50565321;
+    /** The version of the saved format. */
+    private static final int FORMAT_VERSION = 3;
+    /** The message of the exception thrown when saved sets are corrupt. */
+    private static final String CORRUPT = "Potentially visible set file is corrupt";
+    /** The number of <code>int</code>s read from saved sets before the arrays they are read into grow. */
+    private static final int READ_CHUNK_INTS = 4096;
+    /**
+     * The most times a cell and line segment are split in half while trying to prove the line segment is hidden from
+     * the cell, before giving up and putting it in the cell's set.
+     */
+    private static final int MAX_SPLITS = 12;
+    /**
+     * Polygons with more vertices than this are not used as solid occluders, as the number of chords across them grows
+     * with the square of the number of vertices.
+     */
+    private static final int MAX_SOLID_VERTICES = 8;
+    /** How close to touching an occluder counts as touching it, relative to the size of the scene. */
+    private static final double RELATIVE_TOLERANCE = 1e-9;
+
+    /** The X co-ordinate of the left edge of the cells. */
+    private final double minX;
+    /** The Y co-ordinate of the top edge of the cells. */
+    private final double minY;
+    /** The width and height of each cell. */
+    private final double cellSize;
+    /** The number of columns of cells. */
+    private final int columns;
+    /** The number of rows of cells. */
+    private final int rows;
+    /** The number of line segments in the polygons the sets were built from. */
+    private final int numSegments;
+    /** The {@link PreparedScene#segmentChecksum(SegmentSource)} of the line segments the sets were built from. */
+    private final long sceneChecksum;
+    /**
+     * The index into {@link #cellSegments} where the set for each cell starts, the set for cell <code>c</code> is
+     * from <code>cellStart[c]</code> up to (but not including) <code>cellStart[c + 1]</code>.
+     */
+    private final int[] cellStart;
+    /** The indexes of the line segments in each cell's set, stored one cell after another. */
+    private final int[] cellSegments;
+    /** The spatial index and vertices of each cell's set, built the first time the cell is used. */
+    private final AtomicReferenceArray<CellData> cellData;
+    /**
+     * The polygons last checked against {@link #sceneChecksum}, and the version they were at, so the checksum is only
+     * worked out again when the polygons change.
+     */
+    private volatile CheckedPolygons checkedPolygons;
+    /** Used for viewers outside of the cells. */
+    private final RayCastVisibility rayCastVisibility = new RayCastVisibility(true);
+
+    /**
+     * Creates a new <code>PotentiallyVisibleSet</code>.
+     * @param iMinX The X co-ordinate of the left edge of the cells.
+     * @param iMinY The Y co-ordinate of the top edge of the cells.
+     * @param iCellSize The width and height of each cell.
+     * @param iColumns The number of columns of cells.
+     * @param iRows The number of rows of cells.
+     * @param iNumSegments The number of line segments in the polygons the sets were built from.
+     * @param iSceneChecksum The checksum of the line segments the sets were built from.
+     * @param iCellStart Where the set for each cell starts in <code>iCellSegments</code>.
+     * @param iCellSegments The indexes of the line segments in each cell's set.
+     */
+    private PotentiallyVisibleSet(double iMinX, double iMinY, double iCellSize, int iColumns, int iRows,
+                                  int iNumSegments, long iSceneChecksum, int[] iCellStart, int[] iCellSegments) {
+        minX = iMinX;
+        minY = iMinY;
+        cellSize = iCellSize;
+        columns = iColumns;
+        rows = iRows;
+        numSegments = iNumSegments;
+        sceneChecksum = iSceneChecksum;
+        cellStart = iCellStart;
+        cellSegments = iCellSegments;
+        cellData = new AtomicReferenceArray<>(columns * rows);
+    }
+
+    /**
+     * Builds the potentially visible sets for polygons, using all of the available processors.
+     * @param visionBlockingPolygonList The polygons that block vision/light, these must not change afterwards.
+     * @param cellSize The width and height of each cell.
+     * @param samplesPerSide The number of points sampled along each side of a cell, the corners of the cell are always
+     *                       sampled so this must be at least 2. The sets are conservative however many there are.
+     * @return the potentially visible sets.
+     */
+    public static PotentiallyVisibleSet build(VisionBlockingPolygonList visionBlockingPolygonList, double cellSize,
+                                              int samplesPerSide) {
+        if (cellSize <= 0 || samplesPerSide < 2) {
+            throw new IllegalArgumentException("Cell size must be positive and there must be at least 2 samples");
+        }
+        final SegmentStore segmentStore = visionBlockingPolygonList.getSegmentStore();
+        final SegmentGrid segmentGrid = visionBlockingPolygonList.getSegmentGrid();
+        final int numSegments = segmentStore.size();
+
+        double x1 = Double.POSITIVE_INFINITY;
+        double y1 = Double.POSITIVE_INFINITY;
+        double x2 = Double.NEGATIVE_INFINITY;
+        double y2 = Double.NEGATIVE_INFINITY;
+        for (int seg = 0; seg < numSegments; seg++) {
+            x1 = Math.min(x1, Math.min(segmentStore.getX1(seg), segmentStore.getX2(seg)));
+            y1 = Math.min(y1, Math.min(segmentStore.getY1(seg), segmentStore.getY2(seg)));
+            x2 = Math.max(x2, Math.max(segmentStore.getX1(seg), segmentStore.getX2(seg)));
+            y2 = Math.max(y2, Math.max(segmentStore.getY1(seg), segmentStore.getY2(seg)));
+        }
+        if (numSegments == 0) {
+            x1 = y1 = x2 = y2 = 0;
+        }
+        final double minX = x1;
+        final double minY = y1;
+        final int columns = Math.max(1, (int) Math.ceil((x2 - x1) / cellSize));
+        final int rows = Math.max(1, (int) Math.ceil((y2 - y1) / cellSize));
+
+        // The directions of the rays depend on the sample, but the vertices they are cast at don't.
+        final double[] vertexX = new double[visionBlockingPolygonList.getNumberVertices()];
+        final double[] vertexY = new double[vertexX.length];
+        int ind = 0;
+        for (Point2D vert : visionBlockingPolygonList.getVertices()) {
+            vertexX[ind] = vert.getX();
+            vertexY[ind] = vert.getY();
+            ind++;
+        }
+
+        final OcclusionTest occlusionTest = new OcclusionTest(visionBlockingPolygonList, x2 - x1, y2 - y1);
+        final int[][] sets = IntStream.range(0, columns * rows).parallel()
+                .mapToObj(cell -> findCellSet(occlusionTest, vertexX, vertexY,
+                        minX + (cell % columns) * cellSize, minY + (cell / columns) * cellSize, cellSize,
+                        samplesPerSide))
+                .toArray(int[][]::new);
+
+        final int[] cellStart = new int[sets.length + 1];
+        for (int cell = 0; cell < sets.length; cell++) {
+            cellStart[cell + 1] = cellStart[cell] + sets[cell].length;
+        }
+        final int[] cellSegments = new int[cellStart[sets.length]];
+        for (int cell = 0; cell < sets.length; cell++) {
+            System.arraycopy(sets[cell], 0, cellSegments, cellStart[cell], sets[cell].length);
+        }
+
+        return new PotentiallyVisibleSet(minX, minY, cellSize, columns, rows, numSegments,
+                PreparedScene.segmentChecksum(segmentStore), cellStart, cellSegments);
+    }
+
+    /**
+     * Finds the line segments that can be seen from somewhere in a cell: those hit by rays from a grid of sample
+     * points in the cell, and those that can't be proved to be hidden from the whole cell.
+     * @param occlusionTest Proves line segments hidden.
+     * @param vertexX The X co-ordinates of all the vertices.
+     * @param vertexY The Y co-ordinates of all the vertices.
+     * @param cellX The X co-ordinate of the left edge of the cell.
+     * @param cellY The Y co-ordinate of the top edge of the cell.
+     * @param cellSize The width and height of the cell.
+     * @param samplesPerSide The number of points sampled along each side of the cell.
+     * @return the indexes of the line segments, sorted.
+     */
+    private static int[] findCellSet(OcclusionTest occlusionTest, double[] vertexX, double[] vertexY, double cellX,
+                                     double cellY, double cellSize, int samplesPerSide) {
+        final SegmentStore segmentStore = occlusionTest.segmentStore;
+        final SegmentGrid segmentGrid = occlusionTest.segmentGrid;
+        final int numSegments = segmentStore.size();
+        final boolean[] visible = new boolean[numSegments];
+        final RayHit hit = new RayHit();
+        final double[] directions = new double[6];
+        int numVisible = 0;
+        for (int sy = 0; sy < samplesPerSide; sy++) {
+            final double oy = cellY + cellSize * sy / (samplesPerSide - 1);
+            for (int sx = 0; sx < samplesPerSide; sx++) {
+                final double ox = cellX + cellSize * sx / (samplesPerSide - 1);
+                for (int v = 0; v < vertexX.length; v++) {
+                    final int numRays = RayCastVisibility.addRays(directions, 0, vertexX[v] - ox, vertexY[v] - oy);
+                    for (int ray = 0; ray < numRays; ray++) {
+                        hit.reset();
+                        if (segmentGrid.castRay(ox, oy, directions[ray * 2], directions[ray * 2 + 1], hit)
+                                && !visible[hit.getSegment()]) {
+                            visible[hit.getSegment()] = true;
+                            numVisible++;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Disabled line segments don't block anything so they are never needed.
+        final OcclusionTest.CellTest cellTest = occlusionTest.forCell(cellX, cellY, cellSize);
+        for (int seg = 0; seg < numSegments; seg++) {
+            if (!visible[seg] && segmentStore.isEnabled(seg) && !cellTest.isHidden(seg)) {
+                visible[seg] = true;
+                numVisible++;
+            }
+        }
+
+        final int[] set = new int[numVisible];
+        int ind = 0;
+        for (int seg = 0; seg < numSegments; seg++) {
+            if (visible[seg]) {
+                set[ind++] = seg;
+            }
+        }
+        return set;
+    }
+
+    @Override
+    public List<LineIntersection> calculateVisibility(VisionBlockingPolygonList visionBlockingPolygonList,
+                                                      Point2D viewer) {
+        checkPolygons(visionBlockingPolygonList);
+        final int column = (int) Math.floor((viewer.getX() - minX) / cellSize);
+        final int row = (int) Math.floor((viewer.getY() - minY) / cellSize);
+        if (column < 0 || column >= columns || row < 0 || row >= rows) {
+            return rayCastVisibility.calculateVisibility(visionBlockingPolygonList, viewer);
+        }
+
+        final int cell = row * columns + column;
+        CellData data = cellData.get(cell);
+        if (data == null) {
+            // If two threads get here at once they both build the same thing, only one of them is kept.
+            cellData.compareAndSet(cell, null, new CellData(visionBlockingPolygonList.getSegmentStore(), cell));
+            data = cellData.get(cell);
+        }
+
+        return rayCastVisibility.calculateVisibility(data.segmentGrid, data.vertexX, data.vertexY,
+                data.vertexX.length, viewer);
+    }
+
+    /**
+     * Checks that polygons have the line segments the sets were built from.
+     * @param visionBlockingPolygonList The polygons.
+     * @throws IllegalStateException if the sets were built from other line segments.
+     */
+    private void checkPolygons(VisionBlockingPolygonList visionBlockingPolygonList) {
+        final CheckedPolygons checked = checkedPolygons;
+        final long version = visionBlockingPolygonList.getVersion();
+        if (checked != null && checked.visionBlockingPolygonList == visionBlockingPolygonList
+                && checked.version == version) {
+            return;
+        }
+        final SegmentStore segmentStore = visionBlockingPolygonList.getSegmentStore();
+        if (segmentStore.size() != numSegments || PreparedScene.segmentChecksum(segmentStore) != sceneChecksum) {
+            throw new IllegalStateException("Potentially visible sets were built for different polygons");
+        }
+        checkedPolygons = new CheckedPolygons(visionBlockingPolygonList, version);
+    }
+
+    /**
+     * Returns the number of line segments in the potentially visible set of the cell containing a point.
+     * @param x The X co-ordinate of the point.
+     * @param y The Y co-ordinate of the point.
+     * @return the number of line segments, or -1 if the point is outside of the cells.
+     */
+    public int getSetSize(double x, double y) {
+        final int column = (int) Math.floor((x - minX) / cellSize);
+        final int row = (int) Math.floor((y - minY) / cellSize);
+        if (column < 0 || column >= columns || row < 0 || row >= rows) {
+            return -1;
+        }
+        final int cell = row * columns + column;
+        return cellStart[cell + 1] - cellStart[cell];
+    }
+
+    /**
+     * Returns the number of cells.
+     * @return the number of cells.
+     */
+    public int getNumberCells() {
+        return columns * rows;
+    }
+
+    /**
+     * Saves the potentially visible sets. The sets are compressed, which works well as neighbouring line segments
+     * tend to be visible together.
+     * @param out Where to save the sets, this is not closed.
+     * @throws IOException if there is an error writing the sets.
+     */
+    public void save(OutputStream out) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(FORMAT_VERSION);
+        header.writeDouble(minX);
+        header.writeDouble(minY);
+        header.writeDouble(cellSize);
+        header.writeInt(columns);
+        header.writeInt(rows);
+        header.writeInt(numSegments);
+        header.writeLong(sceneChecksum);
+        header.writeInt(cellSegments.length);
+        header.flush();
+
+        DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+        DataOutputStream data = new DataOutputStream(deflater);
+        for (int cell = 0; cell < columns * rows; cell++) {
+            data.writeInt(cellStart[cell + 1] - cellStart[cell]);
+            // The sets are sorted so store the gap to the previous line segment, which is small and compresses well.
+            int prev = 0;
+            for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                data.writeInt(cellSegments[i] - prev);
+                prev = cellSegments[i];
+            }
+        }
+        data.flush();
+        deflater.finish();
+    }
+
+    /**
+     * Loads potentially visible sets saved with {@link #save(OutputStream)}.
+     * @param in Where to load the sets from, this is not closed.
+     * @return the potentially visible sets.
+     * @throws IOException if there is an error reading the sets or they are not saved sets.
+     */
+    public static PotentiallyVisibleSet load(InputStream in) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("Not a potentially visible set file");
+        }
+        final int formatVersion = header.readInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported potentially visible set version " + formatVersion);
+        }
+        final double minX = header.readDouble();
+        final double minY = header.readDouble();
+        final double cellSize = header.readDouble();
+        final int columns = header.readInt();
+        final int rows = header.readInt();
+        final int numSegments = header.readInt();
+        final long sceneChecksum = header.readLong();
+        final int totalSegments = header.readInt();
+        if (!Double.isFinite(minX) || !Double.isFinite(minY) || !(cellSize > 0) || Double.isInfinite(cellSize)
+                || columns <= 0 || rows <= 0 || (long) columns * rows >= Integer.MAX_VALUE || numSegments < 0
+                || totalSegments < 0) {
+            throw new IOException(CORRUPT);
+        }
+
+        // The sets are read into arrays that grow as they are read, so a corrupt size runs out of data rather than
+        // allocating huge arrays up front.
+        final int numCells = columns * rows;
+        int[] cellStart = new int[Math.min(numCells + 1, READ_CHUNK_INTS)];
+        int[] cellSegments = new int[Math.min(totalSegments, READ_CHUNK_INTS)];
+        DataInputStream data = new DataInputStream(new InflaterInputStream(in));
+        try {
+            for (int cell = 0; cell < numCells; cell++) {
+                final int count = data.readInt();
+                if (count < 0 || count > totalSegments - cellStart[cell]) {
+                    throw new IOException(CORRUPT);
+                }
+                if (cell + 1 == cellStart.length) {
+                    cellStart = Arrays.copyOf(cellStart, (int) Math.min(numCells + 1L, 2L * cellStart.length));
+                }
+                cellStart[cell + 1] = cellStart[cell] + count;
+                int prev = 0;
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    prev += data.readInt();
+                    if (prev < 0 || prev >= numSegments) {
+                        throw new IOException(CORRUPT);
+                    }
+                    if (i == cellSegments.length) {
+                        cellSegments = Arrays.copyOf(cellSegments,
+                                (int) Math.min(totalSegments, 2L * cellSegments.length));
+                    }
+                    cellSegments[i] = prev;
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException(CORRUPT, e);
+        }
+        if (cellStart[numCells] != totalSegments) {
+            throw new IOException(CORRUPT);
+        }
+
+        return new PotentiallyVisibleSet(minX, minY, cellSize, columns, rows, numSegments, sceneChecksum, cellStart,
+                cellSegments);
+    }
+
+    /**
+     * Polygons that have been checked against the line segments the sets were built from, at a version.
+     */
+    private static final class CheckedPolygons {
+        /** The polygons. */
+        private final VisionBlockingPolygonList visionBlockingPolygonList;
+        /** The version they were at when they were checked. */
+        private final long version;
+
+        /**
+         * Creates a new <code>CheckedPolygons</code>.
+         * @param iVisionBlockingPolygonList The polygons.
+         * @param iVersion The version they were at when they were checked.
+         */
+        private CheckedPolygons(VisionBlockingPolygonList iVisionBlockingPolygonList, long iVersion) {
+            visionBlockingPolygonList = iVisionBlockingPolygonList;
+            version = iVersion;
+        }
+    }
+
+    /**
+     * The line segments of a cell's potentially visible set, as a view over the {@link SegmentStore} of all of them.
+     */
+    private static class CellSegments implements SegmentSource {
+        /** All of the line segments. */
+        private final SegmentStore segmentStore;
+        /** The indexes of the line segments in the set. */
+        private final int[] segments;
+
+        /**
+         * Creates a new <code>CellSegments</code>.
+         * @param iSegmentStore All of the line segments.
+         * @param iSegments The indexes of the line segments in the set.
+         */
+        private CellSegments(SegmentStore iSegmentStore, int[] iSegments) {
+            segmentStore = iSegmentStore;
+            segments = iSegments;
+        }
+
+        @Override
+        public int size() {
+            return segments.length;
+        }
+
+        @Override
+        public double getX1(int seg) {
+            return segmentStore.getX1(segments[seg]);
+        }
+
+        @Override
+        public double getY1(int seg) {
+            return segmentStore.getY1(segments[seg]);
+        }
+
+        @Override
+        public double getX2(int seg) {
+            return segmentStore.getX2(segments[seg]);
+        }
+
+        @Override
+        public double getY2(int seg) {
+            return segmentStore.getY2(segments[seg]);
+        }
+
+        @Override
+        public boolean isEnabled(int seg) {
+            return segmentStore.isEnabled(segments[seg]);
+        }
+    }
+
+    /**
+     * What is needed at runtime for a cell: a spatial index over its line segments and their vertices.
+     */
+    private class CellData {
+        /** The spatial index over the line segments in the cell's set. */
+        private final SegmentGrid segmentGrid;
+        /** The X co-ordinates of the vertices of the line segments in the cell's set. */
+        private final double[] vertexX;
+        /** The Y co-ordinates of the vertices of the line segments in the cell's set. */
+        private final double[] vertexY;
+
+        /**
+         * Creates a new <code>CellData</code>.
+         * @param segmentStore All of the line segments.
+         * @param cell The index of the cell.
+         */
+        private CellData(SegmentStore segmentStore, int cell) {
+            CellSegments segments = new CellSegments(segmentStore,
+                    Arrays.copyOfRange(cellSegments, cellStart[cell], cellStart[cell + 1]));
+            segmentGrid = new SegmentGrid(segments);
+
+            Set<Point2D> vertices = new HashSet<>();
+            for (int seg = 0; seg < segments.size(); seg++) {
+                vertices.add(new Point2D(segments.getX1(seg), segments.getY1(seg)));
+                vertices.add(new Point2D(segments.getX2(seg), segments.getY2(seg)));
+            }
+            vertexX = new double[vertices.size()];
+            vertexY = new double[vertices.size()];
+            int ind = 0;
+            for (Point2D vert : vertices) {
+                vertexX[ind] = vert.getX();
+                vertexY[ind] = vert.getY();
+                ind++;
+            }
+        }
+    }
+
+    /**
+     * Proves line segments hidden from the whole of a cell.
+     *
+     * A line segment is hidden from a rectangle if a single occluder crosses every line from the rectangle to the line
+     * segment. That is the case if the line through the occluder has the corners of the rectangle on one side and the
+     * ends of the line segment on the other, and the occluder crosses each of the 8 lines from a corner to an end: the
+     * lines from the rectangle to the line segment cross the line through the occluder between those 8. The occluders
+     * are the enabled line segments, and the chords across the inside of small polygons whose line segments are all
+     * enabled, if the cell is outside of the polygon: a line can only reach the inside of such a polygon by crossing
+     * one of its line segments.
+     *
+     * The occluders tried are those crossing the line between the middle of the rectangle and the middle of the line
+     * segment. If none cross it the line segment is visible, otherwise if none of them are enough the rectangle or line
+     * segment is split in half and both halves are tried, up to {@link #MAX_SPLITS} times.
+     */
+    private static class OcclusionTest {
+        /** All of the line segments. */
+        private final SegmentStore segmentStore;
+        /** The spatial index over all of the line segments. */
+        private final SegmentGrid segmentGrid;
+        /** How close to touching an occluder counts as touching it. */
+        private final double tolerance;
+        /** The X co-ordinates of the vertices of each polygon used as a solid occluder. */
+        private final double[][] solidX;
+        /** The Y co-ordinates of the vertices of each polygon used as a solid occluder. */
+        private final double[][] solidY;
+        /** The chords across the inside of each solid polygon, as 4 co-ordinates (x1, y1, x2, y2) per chord. */
+        private final double[][] solidChords;
+        /**
+         * The index into {@link #segmentSolids} where the solid polygons each line segment is part of start, those of
+         * line segment <code>s</code> are from <code>segmentSolidStart[s]</code> up to (but not including)
+         * <code>segmentSolidStart[s + 1]</code>.
+         */
+        private final int[] segmentSolidStart;
+        /** The indexes of the solid polygons each line segment is part of, stored one line segment after another. */
+        private final int[] segmentSolids;
+
+        /**
+         * Creates a new <code>OcclusionTest</code>.
+         * @param iVisionBlockingPolygonList The polygons that block vision/light.
+         * @param iWidth The width of the polygons' bounds.
+         * @param iHeight The height of the polygons' bounds.
+         */
+        private OcclusionTest(VisionBlockingPolygonList iVisionBlockingPolygonList, double iWidth, double iHeight) {
+            segmentStore = iVisionBlockingPolygonList.getSegmentStore();
+            segmentGrid = iVisionBlockingPolygonList.getSegmentGrid();
+            tolerance = RELATIVE_TOLERANCE * Math.max(1, Math.hypot(iWidth, iHeight));
+
+            // Polygons are only solid if each of their edges is an enabled line segment, both ways round are looked up.
+            final Map<LineSegment, Integer> segmentIndexes = new HashMap<>();
+            for (int seg = 0; seg < segmentStore.size(); seg++) {
+                if (segmentStore.isEnabled(seg)) {
+                    final Point2D p1 = new Point2D(segmentStore.getX1(seg), segmentStore.getY1(seg));
+                    final Point2D p2 = new Point2D(segmentStore.getX2(seg), segmentStore.getY2(seg));
+                    segmentIndexes.put(new LineSegment(p1, p2), seg);
+                    segmentIndexes.put(new LineSegment(p2, p1), seg);
+                }
+            }
+
+            final List<double[]> xs = new ArrayList<>();
+            final List<double[]> ys = new ArrayList<>();
+            final List<double[]> chords = new ArrayList<>();
+            final List<int[]> edges = new ArrayList<>();
+            final int[] numSolids = new int[segmentStore.size() + 1];
+            for (VisionBlockingPolygon poly : iVisionBlockingPolygonList.getPolygonList()) {
+                final int numVertices = poly.getNumberVerticies();
+                if (numVertices < 3 || numVertices > MAX_SOLID_VERTICES) {
+                    continue;
+                }
+                final double[] x = poly.getVerticesX();
+                final double[] y = poly.getVerticesY();
+                final int[] polyEdges = new int[numVertices];
+                for (int i = 0; i < numVertices; i++) {
+                    final int next = (i + 1) % numVertices;
+                    final Integer seg = segmentIndexes.get(new LineSegment(new Point2D(x[i], y[i]),
+                            new Point2D(x[next], y[next])));
+                    if (seg == null) {
+                        break;
+                    }
+                    polyEdges[i] = seg;
+                    if (i == numVertices - 1) {
+                        final double[] polyChords = findChords(x, y);
+                        if (polyChords.length > 0) {
+                            xs.add(x);
+                            ys.add(y);
+                            chords.add(polyChords);
+                            edges.add(polyEdges);
+                            for (int edge : polyEdges) {
+                                numSolids[edge + 1]++;
+                            }
+                        }
+                    }
+                }
+            }
+            solidX = xs.toArray(new double[0][]);
+            solidY = ys.toArray(new double[0][]);
+            solidChords = chords.toArray(new double[0][]);
+
+            segmentSolidStart = new int[segmentStore.size() + 1];
+            for (int seg = 0; seg < segmentStore.size(); seg++) {
+                segmentSolidStart[seg + 1] = segmentSolidStart[seg] + numSolids[seg + 1];
+            }
+            segmentSolids = new int[segmentSolidStart[segmentStore.size()]];
+            final int[] filled = Arrays.copyOf(segmentSolidStart, segmentStore.size());
+            for (int solid = 0; solid < edges.size(); solid++) {
+                for (int edge : edges.get(solid)) {
+                    // A line segment used twice by the same polygon only needs to refer to it once.
+                    if (filled[edge] == segmentSolidStart[edge] || segmentSolids[filled[edge] - 1] != solid) {
+                        segmentSolids[filled[edge]++] = solid;
+                    }
+                }
+            }
+            for (int seg = 0; seg < segmentStore.size(); seg++) {
+                Arrays.fill(segmentSolids, filled[seg], segmentSolidStart[seg + 1], -1);
+            }
+        }
+
+        /**
+         * Creates the test for one cell, which is not thread safe.
+         * @param cellX The X co-ordinate of the left edge of the cell.
+         * @param cellY The Y co-ordinate of the top edge of the cell.
+         * @param cellSize The width and height of the cell.
+         * @return the test.
+         */
+        private CellTest forCell(double cellX, double cellY, double cellSize) {
+            return new CellTest(cellX, cellY, cellSize);
+        }
+
+        /**
+         * Finds the chords across the inside of a polygon: the lines between two of its vertices that aren't next to
+         * each other, which only touch its edges at their ends.
+         * @param x The X co-ordinates of the polygon's vertices.
+         * @param y The Y co-ordinates of the polygon's vertices.
+         * @return the chords, as 4 co-ordinates (x1, y1, x2, y2) per chord.
+         */
+        private static double[] findChords(double[] x, double[] y) {
+            final int numVertices = x.length;
+            final double[] chords = new double[numVertices * numVertices * 2];
+            int numChords = 0;
+            for (int i = 0; i < numVertices; i++) {
+                for (int j = i + 2; j < numVertices; j++) {
+                    if ((i != 0 || j != numVertices - 1) && isChord(x, y, i, j)) {
+                        chords[numChords * 4] = x[i];
+                        chords[numChords * 4 + 1] = y[i];
+                        chords[numChords * 4 + 2] = x[j];
+                        chords[numChords * 4 + 3] = y[j];
+                        numChords++;
+                    }
+                }
+            }
+            return Arrays.copyOf(chords, numChords * 4);
+        }
+
+        /**
+         * Returns if the line between two vertices of a polygon is a chord across its inside.
+         * @param x The X co-ordinates of the polygon's vertices.
+         * @param y The Y co-ordinates of the polygon's vertices.
+         * @param i The index of the first vertex.
+         * @param j The index of the second vertex.
+         * @return <code>true</code> if the line only touches the polygon's edges at its ends, and is inside it.
+         */
+        private static boolean isChord(double[] x, double[] y, int i, int j) {
+            final int numVertices = x.length;
+            final double dx = x[j] - x[i];
+            final double dy = y[j] - y[i];
+            for (int k = 0; k < numVertices; k++) {
+                final int next = (k + 1) % numVertices;
+                if (k != i && k != j && isOnLine(x[k], y[k], x[i], y[i], x[j], y[j])) {
+                    return false;
+                }
+                if (k == i || k == j || next == i || next == j) {
+                    // An edge from an end of the chord only touches it there, unless it runs along the chord.
+                    final int end = k == i || k == j ? k : next;
+                    final int other = end == k ? next : k;
+                    final double ex = x[other] - x[end];
+                    final double ey = y[other] - y[end];
+                    final double sign = end == i ? 1 : -1;
+                    if (dx * ey - dy * ex == 0 && sign * (dx * ex + dy * ey) > 0) {
+                        return false;
+                    }
+                } else if (linesIntersect(x[i], y[i], x[j], y[j], x[k], y[k], x[next], y[next])) {
+                    return false;
+                }
+            }
+            return contains(x, y, (x[i] + x[j]) / 2, (y[i] + y[j]) / 2);
+        }
+
+        /**
+         * Returns if a point is on the line between two others, including at its ends.
+         * @param px The X co-ordinate of the point.
+         * @param py The Y co-ordinate of the point.
+         * @param x1 The X co-ordinate of the start of the line.
+         * @param y1 The Y co-ordinate of the start of the line.
+         * @param x2 The X co-ordinate of the end of the line.
+         * @param y2 The Y co-ordinate of the end of the line.
+         * @return <code>true</code> if the point is on the line.
+         */
+        private static boolean isOnLine(double px, double py, double x1, double y1, double x2, double y2) {
+            return (x2 - x1) * (py - y1) - (y2 - y1) * (px - x1) == 0
+                    && Math.min(x1, x2) <= px && px <= Math.max(x1, x2)
+                    && Math.min(y1, y2) <= py && py <= Math.max(y1, y2);
+        }
+
+        /**
+         * Returns if two lines intersect, including touching at their ends.
+         * @param ax1 The X co-ordinate of the start of the first line.
+         * @param ay1 The Y co-ordinate of the start of the first line.
+         * @param ax2 The X co-ordinate of the end of the first line.
+         * @param ay2 The Y co-ordinate of the end of the first line.
+         * @param bx1 The X co-ordinate of the start of the second line.
+         * @param by1 The Y co-ordinate of the start of the second line.
+         * @param bx2 The X co-ordinate of the end of the second line.
+         * @param by2 The Y co-ordinate of the end of the second line.
+         * @return <code>true</code> if the lines intersect.
+         */
+        private static boolean linesIntersect(double ax1, double ay1, double ax2, double ay2,
+                                              double bx1, double by1, double bx2, double by2) {
+            final double b1 = Math.signum((ax2 - ax1) * (by1 - ay1) - (ay2 - ay1) * (bx1 - ax1));
+            final double b2 = Math.signum((ax2 - ax1) * (by2 - ay1) - (ay2 - ay1) * (bx2 - ax1));
+            final double a1 = Math.signum((bx2 - bx1) * (ay1 - by1) - (by2 - by1) * (ax1 - bx1));
+            final double a2 = Math.signum((bx2 - bx1) * (ay2 - by1) - (by2 - by1) * (ax2 - bx1));
+            if (b1 == 0 && b2 == 0) {
+                return isOnLine(bx1, by1, ax1, ay1, ax2, ay2) || isOnLine(bx2, by2, ax1, ay1, ax2, ay2)
+                        || isOnLine(ax1, ay1, bx1, by1, bx2, by2);
+            }
+            return b1 * b2 <= 0 && a1 * a2 <= 0;
+        }
+
+        /**
+         * Returns if a point is inside a polygon, using the even-odd rule.
+         * @param x The X co-ordinates of the polygon's vertices.
+         * @param y The Y co-ordinates of the polygon's vertices.
+         * @param px The X co-ordinate of the point.
+         * @param py The Y co-ordinate of the point.
+         * @return <code>true</code> if the point is inside.
+         */
+        private static boolean contains(double[] x, double[] y, double px, double py) {
+            boolean inside = false;
+            for (int i = 0, j = x.length - 1; i < x.length; j = i++) {
+                if ((y[i] > py) != (y[j] > py) && px < (x[j] - x[i]) * (py - y[i]) / (y[j] - y[i]) + x[i]) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+
+        /**
+         * Returns if a line intersects a rectangle, including touching its edges.
+         * @param x1 The X co-ordinate of the start of the line.
+         * @param y1 The Y co-ordinate of the start of the line.
+         * @param x2 The X co-ordinate of the end of the line.
+         * @param y2 The Y co-ordinate of the end of the line.
+         * @param left The X co-ordinate of the left edge of the rectangle.
+         * @param top The Y co-ordinate of the top edge of the rectangle.
+         * @param right The X co-ordinate of the right edge of the rectangle.
+         * @param bottom The Y co-ordinate of the bottom edge of the rectangle.
+         * @return <code>true</code> if the line intersects the rectangle.
+         */
+        private static boolean lineIntersectsRectangle(double x1, double y1, double x2, double y2,
+                                                       double left, double top, double right, double bottom) {
+            // Clip the line to each edge in turn, keeping the fraction of the way along it that is left.
+            final double[] p = {x1 - x2, x2 - x1, y1 - y2, y2 - y1};
+            final double[] q = {x1 - left, right - x1, y1 - top, bottom - y1};
+            double tMin = 0;
+            double tMax = 1;
+            for (int i = 0; i < 4; i++) {
+                if (p[i] == 0) {
+                    if (q[i] < 0) {
+                        return false;
+                    }
+                } else if (p[i] < 0) {
+                    tMin = Math.max(tMin, q[i] / p[i]);
+                } else {
+                    tMax = Math.min(tMax, q[i] / p[i]);
+                }
+            }
+            return tMin <= tMax;
+        }
+
+        /**
+         * Proves line segments hidden from one cell, remembering which solid polygons the cell is outside of.
+         */
+        private class CellTest implements IntPredicate {
+            /** The X co-ordinate of the left edge of the cell. */
+            private final double cellLeft;
+            /** The Y co-ordinate of the top edge of the cell. */
+            private final double cellTop;
+            /** The X co-ordinate of the right edge of the cell. */
+            private final double cellRight;
+            /** The Y co-ordinate of the bottom edge of the cell. */
+            private final double cellBottom;
+            /** For each solid polygon, 0 if not yet known, 1 if the cell is outside of it and -1 if not. */
+            private final byte[] outside;
+            /** For each line segment, the shaft it was last tried as an occluder for. */
+            private final int[] segmentShaft;
+            /** For each solid polygon, the shaft it was last tried as an occluder for. */
+            private final int[] solidShaft;
+            /** Counts the shafts tried, so each has a different number. */
+            private int shaft;
+            /** The index of the line segment being proved hidden. */
+            private int target;
+            /** The corners of the rectangle of the current shaft, as 4 X and then 4 Y co-ordinates. */
+            private final double[] corners = new double[8];
+            /** The ends of the part of the line segment of the current shaft, as 2 X and then 2 Y co-ordinates. */
+            private final double[] ends = new double[4];
+            /** If anything crossed the line through the middle of the current shaft. */
+            private boolean obstructed;
+
+            /**
+             * Creates a new <code>CellTest</code>.
+             * @param iCellX The X co-ordinate of the left edge of the cell.
+             * @param iCellY The Y co-ordinate of the top edge of the cell.
+             * @param iCellSize The width and height of the cell.
+             */
+            private CellTest(double iCellX, double iCellY, double iCellSize) {
+                cellLeft = iCellX;
+                cellTop = iCellY;
+                cellRight = iCellX + iCellSize;
+                cellBottom = iCellY + iCellSize;
+                outside = new byte[solidX.length];
+                segmentShaft = new int[segmentStore.size()];
+                solidShaft = new int[solidX.length];
+            }
+
+            /**
+             * Returns if a line segment is hidden from everywhere in the cell.
+             * @param seg The index of the line segment.
+             * @return <code>true</code> if it was proved hidden, <code>false</code> if it may be visible.
+             */
+            private boolean isHidden(int seg) {
+                target = seg;
+                return isHidden(cellLeft, cellTop, cellRight, cellBottom, segmentStore.getX1(seg),
+                        segmentStore.getY1(seg), segmentStore.getX2(seg), segmentStore.getY2(seg), 0);
+            }
+
+            /**
+             * Returns if part of the line segment is hidden from everywhere in a rectangle.
+             * @param left The X co-ordinate of the left edge of the rectangle.
+             * @param top The Y co-ordinate of the top edge of the rectangle.
+             * @param right The X co-ordinate of the right edge of the rectangle.
+             * @param bottom The Y co-ordinate of the bottom edge of the rectangle.
+             * @param x1 The X co-ordinate of the start of the part of the line segment.
+             * @param y1 The Y co-ordinate of the start of the part of the line segment.
+             * @param x2 The X co-ordinate of the end of the part of the line segment.
+             * @param y2 The Y co-ordinate of the end of the part of the line segment.
+             * @param splits The number of times the cell and line segment have been split to get here.
+             * @return <code>true</code> if it was proved hidden, <code>false</code> if it may be visible.
+             */
+            private boolean isHidden(double left, double top, double right, double bottom, double x1, double y1,
+                                     double x2, double y2, int splits) {
+                corners[0] = corners[3] = left;
+                corners[1] = corners[2] = right;
+                corners[4] = corners[5] = top;
+                corners[6] = corners[7] = bottom;
+                ends[0] = x1;
+                ends[1] = x2;
+                ends[2] = y1;
+                ends[3] = y2;
+                shaft++;
+                obstructed = false;
+                final double midX = (x1 + x2) / 2;
+                final double midY = (y1 + y2) / 2;
+                if (segmentGrid.findSegmentAlong((left + right) / 2, (top + bottom) / 2, midX, midY, this) >= 0) {
+                    return true;
+                }
+                if (!obstructed || splits == MAX_SPLITS) {
+                    // Nothing is in the way of the middle of the shaft, or it has been split enough.
+                    return false;
+                }
+
+                final double length = Math.hypot(x2 - x1, y2 - y1);
+                if (length >= right - left && length >= bottom - top) {
+                    return isHidden(left, top, right, bottom, x1, y1, midX, midY, splits + 1)
+                            && isHidden(left, top, right, bottom, midX, midY, x2, y2, splits + 1);
+                } else if (right - left >= bottom - top) {
+                    final double middle = (left + right) / 2;
+                    return isHidden(left, top, middle, bottom, x1, y1, x2, y2, splits + 1)
+                            && isHidden(middle, top, right, bottom, x1, y1, x2, y2, splits + 1);
+                } else {
+                    final double middle = (top + bottom) / 2;
+                    return isHidden(left, top, right, middle, x1, y1, x2, y2, splits + 1)
+                            && isHidden(left, middle, right, bottom, x1, y1, x2, y2, splits + 1);
+                }
+            }
+
+            /**
+             * Tries a line segment found along the middle of the current shaft, and the solid polygons it is part of,
+             * as occluders.
+             * @param seg The index of the line segment.
+             * @return <code>true</code> if the shaft is blocked.
+             */
+            @Override
+            public boolean test(int seg) {
+                if (seg == target || segmentShaft[seg] == shaft) {
+                    return false;
+                }
+                segmentShaft[seg] = shaft;
+                final double fromX = (corners[0] + corners[1]) / 2;
+                final double fromY = (corners[4] + corners[6]) / 2;
+                if (!segmentStore.crossesLine(seg, fromX, fromY, (ends[0] + ends[1]) / 2 - fromX,
+                        (ends[2] + ends[3]) / 2 - fromY)) {
+                    return false;
+                }
+                obstructed = true;
+                if (blocks(segmentStore.getX1(seg), segmentStore.getY1(seg), segmentStore.getX2(seg),
+                        segmentStore.getY2(seg))) {
+                    return true;
+                }
+
+                for (int i = segmentSolidStart[seg]; i < segmentSolidStart[seg + 1] && segmentSolids[i] >= 0; i++) {
+                    final int solid = segmentSolids[i];
+                    if (solidShaft[solid] == shaft || !isOutside(solid)) {
+                        continue;
+                    }
+                    solidShaft[solid] = shaft;
+                    final double[] chords = solidChords[solid];
+                    for (int chord = 0; chord < chords.length; chord += 4) {
+                        if (blocks(chords[chord], chords[chord + 1], chords[chord + 2], chords[chord + 3])) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+
+            /**
+             * Returns if an occluder crosses every line from the rectangle of the current shaft to its part of the
+             * line segment.
+             * @param x1 The X co-ordinate of the start of the occluder.
+             * @param y1 The Y co-ordinate of the start of the occluder.
+             * @param x2 The X co-ordinate of the end of the occluder.
+             * @param y2 The Y co-ordinate of the end of the occluder.
+             * @return <code>true</code> if the occluder blocks the whole shaft.
+             */
+            private boolean blocks(double x1, double y1, double x2, double y2) {
+                final double dx = x2 - x1;
+                final double dy = y2 - y1;
+                final double minSide = tolerance * Math.hypot(dx, dy);
+                if (minSide == 0) {
+                    return false;
+                }
+                // The corners must be on one side of the line through the occluder and the ends on the other.
+                double cornerSide = 0;
+                for (int corner = 0; corner < 4; corner++) {
+                    final double side = dx * (corners[corner + 4] - y1) - dy * (corners[corner] - x1);
+                    if (Math.abs(side) <= minSide || side * cornerSide < 0) {
+                        return false;
+                    }
+                    cornerSide = side;
+                }
+                for (int end = 0; end < 2; end++) {
+                    final double side = dx * (ends[end + 2] - y1) - dy * (ends[end] - x1);
+                    if (Math.abs(side) <= minSide || side * cornerSide > 0) {
+                        return false;
+                    }
+                }
+                // And the ends of the occluder must be on either side of each line from a corner to an end.
+                for (int corner = 0; corner < 4; corner++) {
+                    final double cx = corners[corner];
+                    final double cy = corners[corner + 4];
+                    for (int end = 0; end < 2; end++) {
+                        final double lx = ends[end] - cx;
+                        final double ly = ends[end + 2] - cy;
+                        final double minLineSide = tolerance * Math.hypot(lx, ly);
+                        final double side1 = lx * (y1 - cy) - ly * (x1 - cx);
+                        final double side2 = lx * (y2 - cy) - ly * (x2 - cx);
+                        if (Math.abs(side1) <= minLineSide || Math.abs(side2) <= minLineSide || side1 * side2 > 0) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+
+            /**
+             * Returns if the whole cell is outside of a solid polygon.
+             * @param solid The index of the solid polygon.
+             * @return <code>true</code> if the cell is outside.
+             */
+            private boolean isOutside(int solid) {
+                if (outside[solid] == 0) {
+                    final double[] x = solidX[solid];
+                    final double[] y = solidY[solid];
+                    boolean isOutside = !contains(x, y, (cellLeft + cellRight) / 2, (cellTop + cellBottom) / 2);
+                    for (int i = 0; i < x.length && isOutside; i++) {
+                        final int next = (i + 1) % x.length;
+                        isOutside = !lineIntersectsRectangle(x[i], y[i], x[next], y[next], cellLeft, cellTop,
+                                cellRight, cellBottom);
+                    }
+                    outside[solid] = (byte) (isOutside ? 1 : -1);
+                }
+                return outside[solid] > 0;
+            }
+        }
+    }
+}
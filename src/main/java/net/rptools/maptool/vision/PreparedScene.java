@@ -0,0 +1,379 @@
+package net.rptools.maptool.vision;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Saves a {@link VisionBlockingPolygonList} with everything derived from it already built, so that loading a map
+ * doesn't have to prepare the polygons, remove the duplicate vertices and line segments and build the spatial index
+ * all over again.
+ *
+ * The file is little endian and laid out as
+ * <ul>
+ *     <li>a header of {@link #MAGIC}, {@link #FORMAT_VERSION}, the checksum of the polygons the scene was prepared
+ *     from (a <code>long</code>), and the size and CRC32 of the rest of the file,</li>
+ *     <li>the version of the list, the number of unique vertices and the polygons (enabled then disabled), each as
+ *     its number of vertices followed by the X and then the Y co-ordinates,</li>
+ *     <li>the number of polygons each line segment is in,</li>
+ *     <li>the {@link SegmentStore}: the co-ordinates of the line segments and which of them are disabled,</li>
+ *     <li>the {@link SegmentGrid}: its bounds and size, and where the line segments of each cell start, the line
+ *     segments in each cell and the number of them that are enabled.</li>
+ * </ul>
+ *
+ * The arrays are read straight into the store and grid, nothing is hashed when the file is loaded. The
+ * {@link VertexClassifier} isn't saved, it is built the first time it is needed (or when the list is frozen).
+ *
+ * A file that is from another version, is corrupt, or was prepared from different polygons is not loaded, and
+ * {@link #loadOrBuild(Path, List, Function)} prepares the polygons again and replaces it. For polygons in a
+ * {@link MappedScene}, {@link #loadOrBuild(Path, long, Supplier)} with {@link #checksum(MappedScene)} only copies the
+ * polygons onto the heap when they need preparing.
+ */
+public final class PreparedScene {
+    /** The message of the exception thrown when a file is corrupt. */
+    static final String CORRUPT = "Prepared scene file is corrupt";
+
+    /** Written at the start of a prepared scene file to identify it. */
+    private static final int MAGIC = 0x50534e45;
+    /** The version of the file format. */
+    private static final int FORMAT_VERSION = 1;
+    /** The size of the header in bytes. */
+    private static final int HEADER_SIZE = 4 * Integer.BYTES + Long.BYTES;
+    /** The size of the buffer used to work out the checksum of polygons. */
+    private static final int CHECKSUM_BUFFER_SIZE = 8192;
+
+    /**
+     * There are no instances, everything is static.
+     */
+    private PreparedScene() {
+    }
+
+    /**
+     * Loads a prepared scene, if it was prepared from the polygons given, otherwise prepares the polygons and saves
+     * them so the next load is quick.
+     *
+     * The file is only checked against the polygons, so if the way they are prepared changes (such as the tolerances
+     * of a {@link GeometryPreprocessor}) a different file should be used.
+     *
+     * @param path The prepared scene file, which doesn't have to exist.
+     * @param source The polygons the scene is prepared from.
+     * @param prepare Prepares the polygons, such as by adding them to a list after a {@link GeometryPreprocessor}.
+     * @return the prepared polygons, which are not frozen.
+     * @throws IOException if there is an error saving the prepared polygons.
+     */
+    public static VisionBlockingPolygonList loadOrBuild(Path path, List<VisionBlockingPolygon> source,
+            Function<List<VisionBlockingPolygon>, VisionBlockingPolygonList> prepare) throws IOException {
+        return loadOrBuild(path, checksum(source), () -> prepare.apply(source));
+    }
+
+    /**
+     * Loads a prepared scene, if it was prepared from polygons with the checksum given, otherwise prepares the
+     * polygons and saves them so the next load is quick.
+     *
+     * @param path The prepared scene file, which doesn't have to exist.
+     * @param sourceChecksum The checksum of the polygons the scene is prepared from.
+     * @param prepare Prepares the polygons, this is only called if the file can't be loaded.
+     * @return the prepared polygons, which are not frozen.
+     * @throws IOException if there is an error saving the prepared polygons.
+     */
+    public static VisionBlockingPolygonList loadOrBuild(Path path, long sourceChecksum,
+            Supplier<VisionBlockingPolygonList> prepare) throws IOException {
+        if (Files.exists(path)) {
+            try {
+                return load(path, sourceChecksum);
+            } catch (IOException e) {
+                // Stale, corrupt or from another version, so it is prepared again and replaced.
+            }
+        }
+        final VisionBlockingPolygonList visionBlockingPolygonList = prepare.get();
+        save(visionBlockingPolygonList, sourceChecksum, path);
+        return visionBlockingPolygonList;
+    }
+
+    /**
+     * Works out a checksum of some polygons, to tell if a prepared scene file was prepared from them.
+     * @param polygons The polygons.
+     * @return the checksum.
+     */
+    public static long checksum(List<VisionBlockingPolygon> polygons) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(polygons.size());
+        for (VisionBlockingPolygon vbp : polygons) {
+            final double[] xs = vbp.getVerticesX();
+            final double[] ys = vbp.getVerticesY();
+            if (buffer.remaining() < Integer.BYTES) {
+                updateChecksum(crc, buffer);
+            }
+            buffer.putInt(xs.length);
+            for (int i = 0; i < xs.length; i++) {
+                if (buffer.remaining() < 2 * Double.BYTES) {
+                    updateChecksum(crc, buffer);
+                }
+                buffer.putDouble(xs[i]);
+                buffer.putDouble(ys[i]);
+            }
+        }
+        updateChecksum(crc, buffer);
+        return crc.getValue();
+    }
+
+    /**
+     * Works out a checksum of the polygons in a scene file, without copying them onto the heap. This is the same as
+     * the {@link #checksum(List)} of the scene's polygons.
+     * @param scene The scene.
+     * @return the checksum.
+     */
+    public static long checksum(MappedScene scene) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(scene.getNumberPolygons());
+        for (int poly = 0; poly < scene.getNumberPolygons(); poly++) {
+            final int start = scene.getPolygonStart(poly);
+            final int end = scene.getPolygonStart(poly + 1);
+            if (buffer.remaining() < Integer.BYTES) {
+                updateChecksum(crc, buffer);
+            }
+            buffer.putInt(end - start);
+            // The line segments of a polygon start at each of its vertices in turn.
+            for (int seg = start; seg < end; seg++) {
+                if (buffer.remaining() < 2 * Double.BYTES) {
+                    updateChecksum(crc, buffer);
+                }
+                buffer.putDouble(scene.getX1(seg));
+                buffer.putDouble(scene.getY1(seg));
+            }
+        }
+        updateChecksum(crc, buffer);
+        return crc.getValue();
+    }
+
+    /**
+     * Works out a checksum of line segments in the order they are stored, including which of them are disabled, to
+     * tell if something derived from them (such as a {@link PotentiallyVisibleSet}) is for the same line segments.
+     * @param segments The line segments.
+     * @return the checksum.
+     */
+    static long segmentChecksum(SegmentSource segments) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(segments.size());
+        for (int seg = 0; seg < segments.size(); seg++) {
+            if (buffer.remaining() < 4 * Double.BYTES + 1) {
+                updateChecksum(crc, buffer);
+            }
+            buffer.putDouble(segments.getX1(seg));
+            buffer.putDouble(segments.getY1(seg));
+            buffer.putDouble(segments.getX2(seg));
+            buffer.putDouble(segments.getY2(seg));
+            buffer.put((byte) (segments.isEnabled(seg) ? 1 : 0));
+        }
+        updateChecksum(crc, buffer);
+        return crc.getValue();
+    }
+
+    /**
+     * Saves prepared polygons, building the spatial index first if it hasn't been built. The file is written next to
+     * where it goes and then moved there, so another process loading it never sees half a file.
+     * @param visionBlockingPolygonList The prepared polygons.
+     * @param sourceChecksum The {@link #checksum(List)} of the polygons they were prepared from.
+     * @param path The file to write to, it is replaced if it already exists.
+     * @throws IOException if there is an error writing the file.
+     */
+    public static void save(VisionBlockingPolygonList visionBlockingPolygonList, long sourceChecksum, Path path)
+            throws IOException {
+        final long payloadSize = visionBlockingPolygonList.getSerializedSize();
+        if (HEADER_SIZE + payloadSize > Integer.MAX_VALUE) {
+            throw new IOException("Too many line segments for a prepared scene file");
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (int) payloadSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(HEADER_SIZE);
+        visionBlockingPolygonList.write(buffer);
+        buffer.flip();
+
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().position(HEADER_SIZE));
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putLong(sourceChecksum);
+        buffer.putInt((int) payloadSize);
+        buffer.putInt((int) crc.getValue());
+        buffer.position(0);
+
+        final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads prepared polygons.
+     * @param path The file to load.
+     * @param sourceChecksum The {@link #checksum(List)} of the polygons they should have been prepared from.
+     * @return the prepared polygons, which are not frozen.
+     * @throws IOException if there is an error reading the file, it is not a prepared scene file, is from another
+     *                     version, is corrupt, or was prepared from other polygons.
+     */
+    public static VisionBlockingPolygonList load(Path path, long sourceChecksum) throws IOException {
+        final ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Prepared scene file is too large");
+            }
+            buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until the buffer is full.
+            }
+            buffer.flip();
+        }
+
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a prepared scene file");
+        }
+        final int formatVersion = buffer.getInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported prepared scene file version " + formatVersion);
+        }
+        if (buffer.getLong() != sourceChecksum) {
+            throw new IOException("Prepared scene file is stale");
+        }
+        final int payloadSize = buffer.getInt();
+        final int payloadChecksum = buffer.getInt();
+        if (payloadSize != buffer.remaining()) {
+            throw new IOException(CORRUPT);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if ((int) crc.getValue() != payloadChecksum) {
+            throw new IOException(CORRUPT);
+        }
+
+        try {
+            final VisionBlockingPolygonList visionBlockingPolygonList = VisionBlockingPolygonList.read(buffer);
+            if (buffer.hasRemaining()) {
+                throw new IOException(CORRUPT);
+            }
+            return visionBlockingPolygonList;
+        } catch (BufferUnderflowException e) {
+            throw new IOException(CORRUPT, e);
+        }
+    }
+
+    /**
+     * Writes the start of an array of <code>int</code>s.
+     * @param out Where the array is written.
+     * @param values The array.
+     * @param length The number of values to write.
+     */
+    static void putInts(ByteBuffer out, int[] values, int length) {
+        out.asIntBuffer().put(values, 0, length);
+        out.position(out.position() + length * Integer.BYTES);
+    }
+
+    /**
+     * Writes the start of an array of <code>long</code>s.
+     * @param out Where the array is written.
+     * @param values The array.
+     * @param length The number of values to write.
+     */
+    static void putLongs(ByteBuffer out, long[] values, int length) {
+        out.asLongBuffer().put(values, 0, length);
+        out.position(out.position() + length * Long.BYTES);
+    }
+
+    /**
+     * Writes the start of an array of <code>double</code>s.
+     * @param out Where the array is written.
+     * @param values The array.
+     * @param length The number of values to write.
+     */
+    static void putDoubles(ByteBuffer out, double[] values, int length) {
+        out.asDoubleBuffer().put(values, 0, length);
+        out.position(out.position() + length * Double.BYTES);
+    }
+
+    /**
+     * Reads an array of <code>int</code>s.
+     * @param in Where the array is read from.
+     * @param length The number of values to read.
+     * @return the array.
+     * @throws IOException if there aren't that many values left.
+     */
+    static int[] getInts(ByteBuffer in, int length) throws IOException {
+        checkLength(in, length, Integer.BYTES);
+        final int[] values = new int[length];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + length * Integer.BYTES);
+        return values;
+    }
+
+    /**
+     * Reads an array of <code>long</code>s.
+     * @param in Where the array is read from.
+     * @param length The number of values to read.
+     * @return the array.
+     * @throws IOException if there aren't that many values left.
+     */
+    static long[] getLongs(ByteBuffer in, int length) throws IOException {
+        checkLength(in, length, Long.BYTES);
+        final long[] values = new long[length];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + length * Long.BYTES);
+        return values;
+    }
+
+    /**
+     * Reads an array of <code>double</code>s.
+     * @param in Where the array is read from.
+     * @param length The number of values to read.
+     * @return the array.
+     * @throws IOException if there aren't that many values left.
+     */
+    static double[] getDoubles(ByteBuffer in, int length) throws IOException {
+        checkLength(in, length, Double.BYTES);
+        final double[] values = new double[length];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + length * Double.BYTES);
+        return values;
+    }
+
+    /**
+     * Checks that an array about to be read fits in what is left of the file, so a corrupt length can't allocate a
+     * huge array.
+     * @param in Where the array is read from.
+     * @param length The number of values.
+     * @param bytes The size of each value.
+     * @throws IOException if the array doesn't fit.
+     */
+    private static void checkLength(ByteBuffer in, int length, int bytes) throws IOException {
+        if (length < 0 || length > in.remaining() / bytes) {
+            throw new IOException(CORRUPT);
+        }
+    }
+
+    /**
+     * Adds what has been written to a buffer to a checksum and empties it.
+     * @param crc The checksum.
+     * @param buffer The buffer.
+     */
+    private static void updateChecksum(CRC32 crc, ByteBuffer buffer) {
+        buffer.flip();
+        crc.update(buffer);
+        buffer.clear();
+    }
+}
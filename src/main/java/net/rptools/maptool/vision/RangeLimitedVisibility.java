@@ -0,0 +1,352 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link VisibilityCalculator} for viewers (or light sources) that can only see a limited distance.
+ *
+ * Polygons whose bounding box lies entirely outside of the vision radius can't affect the result so they are culled
+ * before another calculator is used for what is left. A rectangle around everything that is left is added so that
+ * every ray hits something, and the resulting visible area is then clipped to the circle with the parts outside of
+ * it replaced by arcs.
+ *
+ * The circle is not added as a blocking polygon because the polygons that are left can cross it, which the
+ * {@link AngularSweepVisibility} does not allow for.
+ *
+ * Culling builds a new set of polygons (with its own line segments and spatial index), so rather than culling for
+ * every calculation the polygons are culled for a slightly larger circle and kept, each thread keeping its own. They
+ * are reused until the viewer moves far enough that its circle is no longer inside the larger one, or the polygons
+ * change.
+ */
+public class RangeLimitedVisibility implements VisibilityCalculator {
+    /** The furthest that the straight lines used to draw an arc can be inside the circle. */
+    private static final double MAX_ARC_ERROR = 0.5;
+    /** The largest angle between the points used to draw an arc. */
+    private static final double MAX_ARC_STEP = 2 * Math.PI / 16;
+    /** The smallest angle between the points used to draw an arc. */
+    private static final double MIN_ARC_STEP = 2 * Math.PI / 256;
+    /**
+     * How far the viewer can move before the polygons are culled again, as a fraction of the vision radius. The
+     * polygons are culled for a circle this much larger than the vision radius.
+     */
+    private static final double CULL_MARGIN = 0.25;
+
+    /** The calculator used for the polygons within the vision radius. */
+    private final VisibilityCalculator visibilityCalculator;
+    /** How far the viewer can see. */
+    private final double radius;
+    /** The cosine of the largest angle between the points used to draw an arc of the circle. */
+    private final double cosArcStep;
+    /** The sine of the largest angle between the points used to draw an arc of the circle. */
+    private final double sinArcStep;
+    /** The polygons each thread last culled, so the calculator can be shared between threads. */
+    private final ThreadLocal<Culled> lastCulled = new ThreadLocal<>();
+
+    /**
+     * Creates a new <code>RangeLimitedVisibility</code>.
+     * @param calculator The calculator used for the polygons within the vision radius. The same culled polygons are
+     *                   passed to it while the viewer stays close to where they were culled for, and a new set after
+     *                   that. It is used by every thread this calculator is, so one that keeps state between calls
+     *                   such as {@link ResortingSweepVisibility} can only be used from a single thread.
+     * @param iRadius How far the viewer can see.
+     */
+    public RangeLimitedVisibility(VisibilityCalculator calculator, double iRadius) {
+        if (iRadius <= 0) {
+            throw new IllegalArgumentException("Vision radius must be greater than 0");
+        }
+        visibilityCalculator = calculator;
+        radius = iRadius;
+        // A chord spanning an angle of a is radius * (1 - cos(a / 2)) inside the circle at its middle.
+        final double step = 2 * Math.acos(Math.max(-1, 1 - MAX_ARC_ERROR / radius));
+        final double arcStep = Math.max(MIN_ARC_STEP, Math.min(MAX_ARC_STEP, step));
+        // Arcs are drawn by rotating by the step, so this is the only trigonometry.
+        cosArcStep = Math.cos(arcStep);
+        sinArcStep = Math.sin(arcStep);
+    }
+
+    /**
+     * Returns how far the viewer can see.
+     * @return the vision radius.
+     */
+    public double getRadius() {
+        return radius;
+    }
+
+    @Override
+    public List<LineIntersection> calculateVisibility(VisionBlockingPolygonList visionBlockingPolygonList,
+                                                      Point2D viewer) {
+        Culled culled = lastCulled.get();
+        if (culled == null || !culled.covers(visionBlockingPolygonList, viewer)) {
+            culled = new Culled(visionBlockingPolygonList, viewer);
+            lastCulled.set(culled);
+        }
+        return clip(visibilityCalculator.calculateVisibility(culled.polygons, viewer), viewer);
+    }
+
+    /**
+     * Returns the polygons that could block vision within the vision radius of the viewer, along with a rectangle
+     * around all of them and the circle.
+     * @param visionBlockingPolygonList The polygons that block vision/light.
+     * @param viewer The viewer (or light source).
+     * @return the polygons within the vision radius.
+     */
+    public VisionBlockingPolygonList cull(VisionBlockingPolygonList visionBlockingPolygonList, Point2D viewer) {
+        return cull(visionBlockingPolygonList, viewer, radius);
+    }
+
+    /**
+     * Returns the polygons that could block vision within a circle, along with a rectangle around all of them and the
+     * circle.
+     * @param visionBlockingPolygonList The polygons that block vision/light.
+     * @param center The center of the circle.
+     * @param reach The radius of the circle.
+     * @return the polygons within the circle.
+     */
+    private static VisionBlockingPolygonList cull(VisionBlockingPolygonList visionBlockingPolygonList, Point2D center,
+                                                  double reach) {
+        VisionBlockingPolygonList culled = new VisionBlockingPolygonList();
+        double minX = center.getX() - reach;
+        double minY = center.getY() - reach;
+        double maxX = center.getX() + reach;
+        double maxY = center.getY() + reach;
+        for (VisionBlockingPolygon vbp : visionBlockingPolygonList.getPolygonList()) {
+            if (vbp.boundsIntersectCircle(center.getX(), center.getY(), reach)) {
+                culled.addVisionBlockingPolygon(vbp);
+                minX = Math.min(minX, vbp.getMinX());
+                minY = Math.min(minY, vbp.getMinY());
+                maxX = Math.max(maxX, vbp.getMaxX());
+                maxY = Math.max(maxY, vbp.getMaxY());
+            }
+        }
+        // Doors that are open in the scene are open here too, those in polygons that were culled are ignored.
+        for (LineSegment lineSegment : visionBlockingPolygonList.getDisabledLineSegments()) {
+            culled.setLineSegmentEnabled(lineSegment, false);
+        }
+
+        // Make sure the rectangle doesn't touch any of the polygons.
+        minX -= 1;
+        minY -= 1;
+        maxX += 1;
+        maxY += 1;
+        culled.addVisionBlockingPolygon(
+                new VisionBlockingPolygon(
+                        new Point2D[] {
+                                new Point2D(minX, minY),
+                                new Point2D(maxX, minY),
+                                new Point2D(maxX, maxY),
+                                new Point2D(minX, maxY)
+                        }
+                )
+        );
+
+        return culled;
+    }
+
+    /**
+     * Clips the visible area to the vision radius, replacing the parts outside of it with arcs.
+     * @param lineIntersections The intersections that make up the visible area sorted by angle.
+     * @param viewer The viewer (or light source).
+     * @return the intersections that make up the clipped area sorted by angle.
+     */
+    private List<LineIntersection> clip(List<LineIntersection> lineIntersections, Point2D viewer) {
+        List<LineIntersection> clipped = new ArrayList<>(lineIntersections.size() + 16);
+        final int num = lineIntersections.size();
+        if (num == 0) {
+            clipped.add(createIntersection(viewer, -1, 0));
+            addCircle(clipped, viewer);
+            return clipped;
+        }
+
+        for (int i = 0; i < num; i++) {
+            LineIntersection from = lineIntersections.get(i);
+            LineIntersection to = lineIntersections.get((i + 1) % num);
+            // Co-ordinates relative to the viewer.
+            final double px = from.getPoint().getX() - viewer.getX();
+            final double py = from.getPoint().getY() - viewer.getY();
+            final double dx = to.getPoint().getX() - viewer.getX() - px;
+            final double dy = to.getPoint().getY() - viewer.getY() - py;
+
+            final boolean fromInside = from.getDistance() <= radius;
+            if (fromInside) {
+                clipped.add(from);
+            } else {
+                clipped.add(createIntersection(viewer, px, py));
+            }
+
+            // Solve |p + d * t| = radius for where the line between the intersections enters and leaves the circle.
+            final double a = dx * dx + dy * dy;
+            final double b = 2 * (px * dx + py * dy);
+            final double c = px * px + py * py - radius * radius;
+            final double disc = b * b - 4 * a * c;
+            double enter = Double.NaN;
+            double leave = Double.NaN;
+            if (a > 0 && disc > 0) {
+                final double root = Math.sqrt(disc);
+                enter = (-b - root) / (2 * a);
+                leave = (-b + root) / (2 * a);
+            }
+
+            // The direction from the viewer where the line last went outside of the circle.
+            double outsideX = px;
+            double outsideY = py;
+            boolean outside = !fromInside;
+            if (!fromInside && enter > 0 && enter < 1) {
+                final double enterX = px + dx * enter;
+                final double enterY = py + dy * enter;
+                addArc(clipped, viewer, outsideX, outsideY, enterX, enterY);
+                clipped.add(createIntersection(viewer, enterX, enterY));
+                outside = false;
+            }
+            if (leave > 0 && leave < 1 && (fromInside || enter > 0)) {
+                outsideX = px + dx * leave;
+                outsideY = py + dy * leave;
+                clipped.add(createIntersection(viewer, outsideX, outsideY));
+                outside = true;
+            }
+            if (outside) {
+                addArc(clipped, viewer, outsideX, outsideY, px + dx, py + dy);
+            }
+        }
+
+        // The arc across the boundary behind the viewer ends up at the end of the list.
+        clipped.sort(LineIntersection.ANGULAR_ORDER);
+
+        return clipped;
+    }
+
+    /**
+     * Adds the points on the circle between two directions, not including the points in the directions themselves.
+     *
+     * The points are found by rotating the start direction by the arc step until it passes the end direction, which
+     * is measured by how far anticlockwise the pseudo angles are from the start. An arc of more than half a turn can
+     * only come from rounding putting the end slightly before the start, as the rectangle around the polygons always
+     * leaves the intersections less than half a turn apart, so no arc is added for one.
+     *
+     * @param lineIntersections The list to add the points to.
+     * @param viewer The viewer (or light source).
+     * @param startX The X component of the direction that the arc starts at.
+     * @param startY The Y component of the direction that the arc starts at.
+     * @param endX The X component of the direction that the arc ends at, going anticlockwise from the start.
+     * @param endY The Y component of the direction that the arc ends at, going anticlockwise from the start.
+     */
+    private void addArc(List<LineIntersection> lineIntersections, Point2D viewer, double startX, double startY,
+                        double endX, double endY) {
+        final double startAngle = LineIntersection.pseudoAngle(startX, startY);
+        final double sweep = anticlockwise(startAngle, LineIntersection.pseudoAngle(endX, endY));
+        if (sweep <= 0 || sweep > 2) {
+            return;
+        }
+        addArcPoints(lineIntersections, viewer, startX, startY, startAngle, sweep);
+    }
+
+    /**
+     * Adds the points on the whole circle, apart from the one directly to the left of the viewer.
+     * @param lineIntersections The list to add the points to.
+     * @param viewer The viewer (or light source).
+     */
+    private void addCircle(List<LineIntersection> lineIntersections, Point2D viewer) {
+        addArcPoints(lineIntersections, viewer, -1, 0, LineIntersection.pseudoAngle(-1, 0), 4);
+    }
+
+    /**
+     * Adds the points on the circle between a direction and a pseudo angle anticlockwise from it, not including the
+     * points at either end.
+     * @param lineIntersections The list to add the points to.
+     * @param viewer The viewer (or light source).
+     * @param startX The X component of the direction that the arc starts at.
+     * @param startY The Y component of the direction that the arc starts at.
+     * @param startAngle The pseudo angle of the direction that the arc starts at.
+     * @param sweep How far anticlockwise the end of the arc is, as a difference of pseudo angles.
+     */
+    private void addArcPoints(List<LineIntersection> lineIntersections, Point2D viewer, double startX,
+                              double startY, double startAngle, double sweep) {
+        final double length = Math.sqrt(startX * startX + startY * startY);
+        double x = startX / length;
+        double y = startY / length;
+        double previous = 0;
+        while (true) {
+            // Rotating (x, y) by an angle a gives (x cos(a) - y sin(a), x sin(a) + y cos(a)).
+            final double rotatedX = x * cosArcStep - y * sinArcStep;
+            y = x * sinArcStep + y * cosArcStep;
+            x = rotatedX;
+            final double along = anticlockwise(startAngle, LineIntersection.pseudoAngle(x, y));
+            // A step past the start again (only possible for the whole circle) comes back to a small difference.
+            if (along >= sweep || along <= previous) {
+                return;
+            }
+            lineIntersections.add(createIntersection(viewer, x, y));
+            previous = along;
+        }
+    }
+
+    /**
+     * Returns how far anticlockwise one pseudo angle is from another.
+     * @param from The pseudo angle to measure from.
+     * @param to The pseudo angle to measure to.
+     * @return the difference in pseudo angle, from 0 up to (but not including) 4 for a whole turn.
+     */
+    private static double anticlockwise(double from, double to) {
+        final double difference = to - from;
+        return difference < 0 ? difference + 4 : difference;
+    }
+
+    /**
+     * Returns the point on the circle in a direction from the viewer.
+     * @param viewer The viewer (or light source).
+     * @param dx The X component of the direction of the point.
+     * @param dy The Y component of the direction of the point.
+     * @return the point on the circle.
+     */
+    private LineIntersection createIntersection(Point2D viewer, double dx, double dy) {
+        final double length = Math.sqrt(dx * dx + dy * dy);
+        final double ux = dx / length;
+        final double uy = dy / length;
+        return new LineIntersection(
+                new Point2D(viewer.getX() + ux * radius, viewer.getY() + uy * radius),
+                radius,
+                ux,
+                uy
+        );
+    }
+
+
+    /**
+     * Polygons culled for a circle around a point, which can be reused for any viewer close enough to that point.
+     */
+    private class Culled {
+        /** The polygons that were culled. */
+        private final VisionBlockingPolygonList source;
+        /** The version of the polygons that were culled. */
+        private final long sourceVersion;
+        /** The point the polygons were culled around. */
+        private final Point2D center;
+        /** The polygons within the vision radius (plus the margin) of the point. */
+        private final VisionBlockingPolygonList polygons;
+
+        /**
+         * Creates a new <code>Culled</code>, culling the polygons.
+         * @param iSource The polygons that block vision/light.
+         * @param iCenter The point to cull the polygons around.
+         */
+        private Culled(VisionBlockingPolygonList iSource, Point2D iCenter) {
+            source = iSource;
+            sourceVersion = iSource.getVersion();
+            center = iCenter;
+            polygons = cull(iSource, iCenter, radius * (1 + CULL_MARGIN));
+        }
+
+        /**
+         * Returns if the culled polygons include everything within the vision radius of a viewer.
+         * @param visionBlockingPolygonList The polygons that block vision/light.
+         * @param viewer The viewer (or light source).
+         * @return <code>true</code> if the culled polygons can be used for the viewer.
+         */
+        private boolean covers(VisionBlockingPolygonList visionBlockingPolygonList, Point2D viewer) {
+            return visionBlockingPolygonList == source && visionBlockingPolygonList.getVersion() == sourceVersion
+                    && viewer.distance(center) <= radius * CULL_MARGIN;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link VisibilityCalculator} that casts rays at the vertices in the scene (directly at the vertex and a very small
+ * angle either side of it) and finds the closest intersection of each ray with the line segments.
+ *
+ * This is the simplest way to calculate the visible area, it is kept around as the reference that other calculators
+ * can be compared against. Rays are cast through the {@link SegmentGrid} of the scene so they are only tested against
+ * the line segments in the cells they pass through.
+ *
+ * The rays are built straight from the direction to each vertex, with the ones either side of it rotated by a
+ * constant amount, and sorted with {@link LineIntersection#ANGULAR_ORDER}, so no trigonometry is needed.
+ *
+ * By default three rays are cast at every vertex, as the reference should be exhaustive. Culling can be turned on with
+ * {@link #RayCastVisibility(boolean)}, which uses the {@link VertexClassifier} of the polygons to only cast the rays
+ * that can change the edge of the visible area, so corners only get the ray at the vertex, silhouettes also get the
+ * ray to the side the vertex can be passed on and vertices hidden behind their own polygon get none.
+ */
+public class RayCastVisibility implements VisibilityCalculator {
+    /** The cosine of {@link #VERY_SMALL_ANGLE}, used to rotate rays either side of a vertex. */
+    static final double COS_SMALL_ANGLE = Math.cos(VERY_SMALL_ANGLE);
+    /** The sine of {@link #VERY_SMALL_ANGLE}, used to rotate rays either side of a vertex. */
+    static final double SIN_SMALL_ANGLE = Math.sin(VERY_SMALL_ANGLE);
+
+    /**
+     * Scratch buffers for each thread, so that the calculator can be shared between threads without them sharing (or
+     * reallocating for every calculation) the buffers.
+     */
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+    /** If only the rays needed for each vertex are cast, rather than three at every vertex. */
+    private final boolean cullVertices;
+
+    /**
+     * Creates a new <code>RayCastVisibility</code> that casts three rays at every vertex.
+     */
+    public RayCastVisibility() {
+        this(false);
+    }
+
+    /**
+     * Creates a new <code>RayCastVisibility</code>.
+     * @param iCullVertices <code>true</code> to only cast the rays needed for each vertex, <code>false</code> to cast
+     *                      three rays at every vertex.
+     */
+    public RayCastVisibility(boolean iCullVertices) {
+        cullVertices = iCullVertices;
+    }
+
+    @Override
+    public List<LineIntersection> calculateVisibility(VisionBlockingPolygonList visionBlockingPolygonList,
+                                                      Point2D viewer) {
+        if (cullVertices) {
+            return calculateCulledVisibility(visionBlockingPolygonList, viewer);
+        }
+
+        // Make sure the array is large enough for rays to all vertices + small delta either side.
+        final Scratch buffers = scratch.get();
+        final double[] directions = buffers.getDirections(visionBlockingPolygonList.getNumberVertices() * 3);
+
+        // Loop through all the vertices and determine the direction from our viewer.
+        int numRays = 0;
+        for (Point2D vert : visionBlockingPolygonList.getVertices()) {
+            numRays = addRays(directions, numRays, vert.getX() - viewer.getX(), vert.getY() - viewer.getY());
+        }
+
+        return castRays(visionBlockingPolygonList.getSegmentGrid(), viewer, directions, null, numRays, buffers.hit);
+    }
+
+    /**
+     * Calculates the area that can be seen by the viewer, only casting the rays each vertex needs.
+     * @param visionBlockingPolygonList The polygons that block vision/light.
+     * @param viewer The viewer (or light source).
+     * @return the intersections that make up the visible area sorted by angle.
+     */
+    private List<LineIntersection> calculateCulledVisibility(VisionBlockingPolygonList visionBlockingPolygonList,
+                                                             Point2D viewer) {
+        final VertexClassifier classifier = visionBlockingPolygonList.getVertexClassifier();
+        final Scratch buffers = scratch.get();
+        final double[] directions = buffers.getDirections(classifier.getNumberVertices() * 3);
+        final double[] limits = buffers.getLimits(classifier.getNumberVertices() * 3);
+        final VertexClassifier.VertexClass[] classes = buffers.getClasses(classifier.getNumberVertices());
+        classifier.classify(viewer.getX(), viewer.getY(), classes, buffers.getSides(classifier.getNumberPolygons()));
+
+        int numRays = 0;
+        for (int v = 0; v < classifier.getNumberVertices(); v++) {
+            final VertexClassifier.VertexClass vertexClass = classes[v];
+            if (vertexClass == VertexClassifier.VertexClass.IRRELEVANT) {
+                continue;
+            }
+            final double dx = classifier.getX(v) - viewer.getX();
+            final double dy = classifier.getY(v) - viewer.getY();
+            final boolean before = vertexClass == VertexClassifier.VertexClass.SILHOUETTE_BEFORE
+                    || vertexClass == VertexClassifier.VertexClass.SILHOUETTE;
+            final boolean after = vertexClass == VertexClassifier.VertexClass.SILHOUETTE_AFTER
+                    || vertexClass == VertexClassifier.VertexClass.SILHOUETTE;
+            final int first = numRays;
+            numRays = addRays(directions, numRays, dx, dy, before, true, after);
+            for (int ray = first; ray < numRays; ray++) {
+                limits[ray] = Double.POSITIVE_INFINITY;
+            }
+            if (numRays > first && vertexClass != VertexClassifier.VertexClass.SILHOUETTE) {
+                // The ray at the vertex is only needed to reach it, passing it is left to the rays either side, and
+                // rounding could otherwise let it slip between the line segments there. Rays can pass either side of
+                // a silhouette as its line segments are disabled or in line with the ray, so it may not stop them.
+                limits[before ? first + 1 : first] = Math.sqrt(dx * dx + dy * dy);
+            }
+        }
+
+        return castRays(visionBlockingPolygonList.getSegmentGrid(), viewer, directions, limits, numRays,
+                buffers.hit);
+    }
+
+    /**
+     * Calculates the area that can be seen by the viewer directly from line segments, such as those of a
+     * {@link MappedScene}, without needing a {@link VisionBlockingPolygonList}.
+     *
+     * The rays are cast at the starting point of every line segment, which covers all of the vertices of closed
+     * polygons.
+     *
+     * @param segmentSource The line segments that block vision/light.
+     * @param segmentGrid The spatial index over the line segments.
+     * @param viewer The viewer (or light source).
+     * @return the intersections that make up the visible area sorted by angle.
+     */
+    public List<LineIntersection> calculateVisibility(SegmentSource segmentSource, SegmentGrid segmentGrid,
+                                                      Point2D viewer) {
+        final Scratch buffers = scratch.get();
+        final double[] directions = buffers.getDirections(segmentSource.size() * 3);
+
+        int numRays = 0;
+        for (int seg = 0; seg < segmentSource.size(); seg++) {
+            numRays = addRays(directions, numRays, segmentSource.getX1(seg) - viewer.getX(),
+                    segmentSource.getY1(seg) - viewer.getY());
+        }
+
+        return castRays(segmentGrid, viewer, directions, null, numRays, buffers.hit);
+    }
+
+    /**
+     * Calculates the area that can be seen by the viewer from a set of vertices and the line segments in a spatial
+     * index, such as the subset of line segments a {@link PotentiallyVisibleSet} has for the viewer's cell.
+     *
+     * @param segmentGrid The spatial index over the line segments that block vision/light.
+     * @param vertexX The X co-ordinates of the vertices to cast rays at.
+     * @param vertexY The Y co-ordinates of the vertices to cast rays at.
+     * @param numVertices The number of vertices.
+     * @param viewer The viewer (or light source).
+     * @return the intersections that make up the visible area sorted by angle.
+     */
+    public List<LineIntersection> calculateVisibility(SegmentGrid segmentGrid, double[] vertexX, double[] vertexY,
+                                                      int numVertices, Point2D viewer) {
+        final Scratch buffers = scratch.get();
+        final double[] directions = buffers.getDirections(numVertices * 3);
+
+        int numRays = 0;
+        for (int i = 0; i < numVertices; i++) {
+            numRays = addRays(directions, numRays, vertexX[i] - viewer.getX(), vertexY[i] - viewer.getY());
+        }
+
+        return castRays(segmentGrid, viewer, directions, null, numRays, buffers.hit);
+    }
+
+    /**
+     * Adds the directions of the three rays for a vertex: one directly at it and one a very small angle either side.
+     * @param directions Where the directions are written, two values (X then Y) for each ray.
+     * @param numRays The number of rays already in <code>directions</code>.
+     * @param dx The X component of the direction from the viewer to the vertex.
+     * @param dy The Y component of the direction from the viewer to the vertex.
+     * @return the number of rays in <code>directions</code> afterwards.
+     */
+    static int addRays(double[] directions, int numRays, double dx, double dy) {
+        return addRays(directions, numRays, dx, dy, true, true, true);
+    }
+
+    /**
+     * Adds the directions of some of the rays for a vertex.
+     * @param directions Where the directions are written, two values (X then Y) for each ray.
+     * @param numRays The number of rays already in <code>directions</code>.
+     * @param dx The X component of the direction from the viewer to the vertex.
+     * @param dy The Y component of the direction from the viewer to the vertex.
+     * @param before <code>true</code> to add the ray a very small angle before the vertex.
+     * @param direct <code>true</code> to add the ray directly at the vertex.
+     * @param after <code>true</code> to add the ray a very small angle after the vertex.
+     * @return the number of rays in <code>directions</code> afterwards.
+     */
+    private static int addRays(double[] directions, int numRays, double dx, double dy, boolean before,
+                               boolean direct, boolean after) {
+        final double length = Math.sqrt(dx * dx + dy * dy);
+        if (length == 0) {
+            // The viewer is on the vertex so there is no direction to it.
+            return numRays;
+        }
+        final double ux = dx / length;
+        final double uy = dy / length;
+        int ind = numRays * 2;
+        // Rotating (x, y) by an angle a gives (x cos(a) - y sin(a), x sin(a) + y cos(a)).
+        if (before) {
+            directions[ind++] = ux * COS_SMALL_ANGLE + uy * SIN_SMALL_ANGLE;
+            directions[ind++] = uy * COS_SMALL_ANGLE - ux * SIN_SMALL_ANGLE;
+        }
+        if (direct) {
+            directions[ind++] = ux;
+            directions[ind++] = uy;
+        }
+        if (after) {
+            directions[ind++] = ux * COS_SMALL_ANGLE - uy * SIN_SMALL_ANGLE;
+            directions[ind++] = uy * COS_SMALL_ANGLE + ux * SIN_SMALL_ANGLE;
+        }
+        return ind / 2;
+    }
+
+    /**
+     * Casts the rays and returns the closest intersection along each of them.
+     * @param segmentGrid The spatial index over the line segments.
+     * @param viewer The viewer (or light source).
+     * @param directions The unit directions of the rays, two values (X then Y) for each ray.
+     * @param limits The furthest each ray can reach, or <code>null</code> if there is no limit.
+     * @param numRays The number of rays.
+     * @param hit Scratch space for the closest hit of each ray.
+     * @return the intersections sorted by angle.
+     */
+    private List<LineIntersection> castRays(SegmentGrid segmentGrid, Point2D viewer, double[] directions,
+                                            double[] limits, int numRays, RayHit hit) {
+        // Get a list of the closest intersection along each ray, the spatial index means each ray is only tested
+        // against the line segments close to it.
+        // Only the closest hit for each ray is turned into a LineIntersection, the tests themselves write into the
+        // same RayHit so they don't create any garbage.
+        List<LineIntersection> lineIntersections = new ArrayList<>(numRays);
+        final long testsBefore = hit.getTests();
+        for (int i = 0; i < numRays; i++) {
+            final double dx = directions[i * 2];
+            final double dy = directions[i * 2 + 1];
+            // The ray actually extends to infinity from the viewer in this direction (and the intersection
+            // calculations take care of this fact).
+            hit.reset();
+            final boolean isHit = segmentGrid.castRay(viewer.getX(), viewer.getY(), dx, dy, hit);
+            if (limits != null && limits[i] < hit.getDistance()) {
+                final double limit = limits[i];
+                lineIntersections.add(new LineIntersection(
+                        new Point2D(viewer.getX() + dx * limit, viewer.getY() + dy * limit), limit, dx, dy)
+                );
+            } else if (isHit) {
+                lineIntersections.add(
+                        new LineIntersection(new Point2D(hit.getX(), hit.getY()), hit.getDistance(), dx, dy)
+                );
+            }
+        }
+        if (VisibilityMetrics.isEnabled()) {
+            VisibilityMetrics.countWork(numRays, hit.getTests() - testsBefore);
+        }
+
+        // Sort our intersections by the angle, this is so we can easily turn them into triangles.
+        lineIntersections.sort(LineIntersection.ANGULAR_ORDER);
+
+        return lineIntersections;
+    }
+
+    /**
+     * Scratch buffers used by a single thread.
+     */
+    private static class Scratch {
+        /** The directions of the rays to cast, two values (X then Y) for each ray. */
+        private double[] directions = new double[0];
+        /** The closest hit of the current ray. */
+        private final RayHit hit = new RayHit();
+        /** The furthest each ray can reach. */
+        private double[] limits = new double[0];
+        /** The class of each vertex. */
+        private VertexClassifier.VertexClass[] classes = new VertexClassifier.VertexClass[0];
+        /** Where the viewer is relative to each polygon. */
+        private byte[] sides = new byte[0];
+
+        /**
+         * Returns the buffer for the directions of the rays, making sure it is large enough.
+         * @param numRays The number of rays that need to fit.
+         * @return the buffer.
+         */
+        private double[] getDirections(int numRays) {
+            if (directions.length < numRays * 2) {
+                directions = new double[numRays * 2];
+            }
+            return directions;
+        }
+
+        /**
+         * Returns the buffer for the furthest each ray can reach, making sure it is large enough.
+         * @param numRays The number of rays that need to fit.
+         * @return the buffer.
+         */
+        private double[] getLimits(int numRays) {
+            if (limits.length < numRays) {
+                limits = new double[numRays];
+            }
+            return limits;
+        }
+
+        /**
+         * Returns the buffer for the classes of the vertices, making sure it is large enough.
+         * @param numVertices The number of vertices that need to fit.
+         * @return the buffer.
+         */
+        private VertexClassifier.VertexClass[] getClasses(int numVertices) {
+            if (classes.length < numVertices) {
+                classes = new VertexClassifier.VertexClass[numVertices];
+            }
+            return classes;
+        }
+
+        /**
+         * Returns the buffer for where the viewer is relative to each polygon, making sure it is large enough.
+         * @param numPolygons The number of polygons that need to fit.
+         * @return the buffer.
+         */
+        private byte[] getSides(int numPolygons) {
+            if (sides.length < numPolygons) {
+                sides = new byte[numPolygons];
+            }
+            return sides;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package net.rptools.maptool.vision;
+
+/**
+ * Mutable scratch state that ray queries write the closest hit into.
+ *
+ * Ray queries are run many times a frame so rather than creating a new {@link LineIntersection} for every test the
+ * caller creates one of these up front and reuses it for each ray. It should not be shared between threads.
+ */
+public class RayHit {
+    /** The distance along the ray of the closest hit, {@link Double#POSITIVE_INFINITY} if there is no hit. */
+    private double distance;
+    /** The X co-ordinate of the closest hit. */
+    private double x;
+    /** The Y co-ordinate of the closest hit. */
+    private double y;
+    /** The index of the line segment that was hit, -1 if there is no hit. */
+    private int segment;
+    /** The number of line segments tested since this was created, which is not cleared by {@link #reset()}. */
+    private long tests;
+
+    /**
+     * Creates a new <code>RayHit</code> with no hit recorded.
+     */
+    public RayHit() {
+        reset();
+    }
+
+    /**
+     * Clears the hit so that this can be used for a new ray.
+     */
+    public void reset() {
+        distance = Double.POSITIVE_INFINITY;
+        x = 0;
+        y = 0;
+        segment = -1;
+    }
+
+    /**
+     * Records a hit if it is closer than the current one.
+     * @param iDistance The distance along the ray of the hit.
+     * @param iX The X co-ordinate of the hit.
+     * @param iY The Y co-ordinate of the hit.
+     * @param iSegment The index of the line segment that was hit.
+     * @return <code>true</code> if the hit was closer and recorded.
+     */
+    public boolean offer(double iDistance, double iX, double iY, int iSegment) {
+        if (iDistance >= distance) {
+            return false;
+        }
+        distance = iDistance;
+        x = iX;
+        y = iY;
+        segment = iSegment;
+        return true;
+    }
+
+    /**
+     * Adds to the number of line segments tested.
+     * @param count The number of line segments tested.
+     */
+    void countTests(int count) {
+        tests += count;
+    }
+
+    /**
+     * Returns the number of line segments that rays have been tested against using this, which is kept across
+     * {@link #reset()} so that the tests for many rays can be totalled.
+     * @return the number of line segments tested.
+     */
+    public long getTests() {
+        return tests;
+    }
+
+    /**
+     * Returns if a hit has been recorded.
+     * @return <code>true</code> if there is a hit.
+     */
+    public boolean isHit() {
+        return segment >= 0;
+    }
+
+    /**
+     * Returns the distance along the ray of the closest hit.
+     * @return the distance or {@link Double#POSITIVE_INFINITY} if there is no hit.
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    /**
+     * Returns the X co-ordinate of the closest hit.
+     * @return the X co-ordinate.
+     */
+    public double getX() {
+        return x;
+    }
+
+    /**
+     * Returns the Y co-ordinate of the closest hit.
+     * @return the Y co-ordinate.
+     */
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * Returns the index of the line segment that was hit.
+     * @return the index of the line segment or -1 if there is no hit.
+     */
+    public int getSegment() {
+        return segment;
+    }
+}
@@ -0,0 +1,23 @@
+package net.rptools.maptool.vision;
+
+/**
+ * A routine that tests a ray against every line segment in a {@link SegmentStore} and records the closest hit.
+ *
+ * Implementations must give exactly the same result as {@link SegmentStore#castRay(double, double, double, double,
+ * RayHit)}, they only differ in how fast they get there.
+ */
+interface RayKernel {
+
+    /**
+     * Tests a ray against every line segment in the store and records the closest hit.
+     *
+     * @param segmentStore The line segments to test.
+     * @param ox The X co-ordinate of the origin of the ray.
+     * @param oy The Y co-ordinate of the origin of the ray.
+     * @param dx The X component of the direction of the ray.
+     * @param dy The Y component of the direction of the ray.
+     * @param hit The closest hit so far, updated if any line segment is closer.
+     * @return <code>true</code> if there is a hit.
+     */
+    boolean castRay(SegmentStore segmentStore, double ox, double oy, double dx, double dy, RayHit hit);
+}
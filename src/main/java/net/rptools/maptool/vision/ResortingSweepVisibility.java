@@ -0,0 +1,684 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * {@link VisibilityCalculator} for a single viewer that moves around, re-sorting the end points of the line segments
+ * from the order they were in for the previous position rather than sorting them from scratch.
+ *
+ * Like {@link AngularSweepVisibility} the line segment end points are sorted by angle from the viewer and swept to
+ * find the closest line segment between each pair of end points. Both the sorted order and the closest line segments
+ * are kept, and when the viewer moves only a little the order hardly changes. The order is repaired with an insertion
+ * sort (which is linear when little has moved) and only the closest line segments for the gaps between end points
+ * that swapped places are worked out again, from the gaps either side of them.
+ *
+ * This only saves the O(n log n) sort and keeping the line segments ordered by distance, each calculation still works
+ * out the angle of every end point and casts the rays at every vertex, as they all move when the viewer does. The
+ * cost of a small move is therefore still linear in the size of the scene, not in the number of end points that
+ * changed places. The angles are pseudo angles ({@link LineIntersection#pseudoAngle(double, double)}) and the rays are
+ * built from direction vectors, so that linear part needs no trigonometry.
+ *
+ * If too much has changed to repair cheaply, or the viewer moved far enough that a line segment now crosses the
+ * boundary behind the viewer, the sweep is done again from scratch.
+ *
+ * This keeps state between calls so each viewer needs its own instance, and it must not be shared between threads.
+ */
+public class ResortingSweepVisibility implements VisibilityCalculator {
+    /** The smallest number of gaps that can be repaired before it is quicker to sweep again from scratch. */
+    private static final int MIN_REPAIR_LIMIT = 16;
+    /** The fraction of the gaps that can be repaired before it is quicker to sweep again from scratch. */
+    private static final int REPAIR_LIMIT_DIVISOR = 4;
+
+    /** The polygons the state was built for. */
+    private VisionBlockingPolygonList scene;
+    /** The version of the polygons the state was built for. */
+    private long sceneVersion;
+    /** The line segments the state was built for. */
+    private SegmentStore segmentStore;
+    /** <code>false</code> if the state can't be reused and the sweep must be done from scratch. */
+    private boolean valid;
+
+    /** The X co-ordinate of the viewer. */
+    private double viewerX;
+    /** The Y co-ordinate of the viewer. */
+    private double viewerY;
+
+    /** The number of end points, two for each line segment, end point <code>e</code> belongs to segment e / 2. */
+    private int numEvents;
+    /** The index of the unique vertex for each end point. */
+    private int[] eventVertex = new int[0];
+    /** The pseudo angle of each end point from the viewer. */
+    private double[] angles = new double[0];
+    /** The end points sorted by angle. */
+    private int[] order = new int[0];
+    /** The pseudo angles of the end points in sorted order. */
+    private double[] sortedAngles = new double[0];
+    /**
+     * The closest line segment in each gap between the sorted end points, <code>fronts[g]</code> is the closest line
+     * segment after the first <code>g</code> end points have been passed (-1 if there is none).
+     */
+    private int[] fronts = new int[0];
+    /** Which way each line segment faces the viewer, 1 for anti-clockwise, -1 clockwise and 0 edge on. */
+    private int[] orientation = new int[0];
+    /** If each line segment crosses the boundary behind the viewer, where the pseudo angles wrap around. */
+    private boolean[] wraps = new boolean[0];
+    /** The direction that line segments are being ordered along, see {@link #setProbe(double)}. */
+    private final double[] probe = new double[2];
+    /** Which gaps need to be repaired. */
+    private boolean[] dirty = new boolean[0];
+    /** The position of the first end point of each group in a run of groups being repaired. */
+    private int[] runFirst = new int[0];
+    /** The position after the last end point of each group in a run of groups being repaired. */
+    private int[] runEnd = new int[0];
+
+    /** The number of unique vertices. */
+    private int numVertices;
+    /** The last time rays were cast at each vertex, to cast them only once when it is shared by line segments. */
+    private int[] vertexStamp = new int[0];
+    /** Incremented for each calculation. */
+    private int stamp;
+
+    /** The number of gaps repaired by the last calculation, or -1 if the sweep was done from scratch. */
+    private int lastRepairCount = -1;
+    /** The number of times a ray (or a probe) was tested against a line segment, for the metrics. */
+    private long tests;
+
+
+    @Override
+    public List<LineIntersection> calculateVisibility(VisionBlockingPolygonList visionBlockingPolygonList,
+                                                      Point2D viewer) {
+        if (visionBlockingPolygonList != scene || visionBlockingPolygonList.getVersion() != sceneVersion) {
+            prepare(visionBlockingPolygonList);
+        }
+
+        viewerX = viewer.getX();
+        viewerY = viewer.getY();
+        tests = 0;
+
+        if (!valid || !repair()) {
+            rebuild();
+        }
+
+        return castRays();
+    }
+
+    /**
+     * Returns the number of gaps between end points repaired by the last calculation.
+     * @return the number of gaps repaired, or -1 if the last calculation was done from scratch.
+     */
+    public int getLastRepairCount() {
+        return lastRepairCount;
+    }
+
+    /**
+     * Sets up the end points for a new set of polygons.
+     * @param visionBlockingPolygonList The polygons that block vision/light.
+     */
+    private void prepare(VisionBlockingPolygonList visionBlockingPolygonList) {
+        scene = visionBlockingPolygonList;
+        sceneVersion = visionBlockingPolygonList.getVersion();
+        // Disabled line segments (open doors) are left out.
+        segmentStore = visionBlockingPolygonList.getEnabledSegmentStore();
+        valid = false;
+
+        final int numSegments = segmentStore.size();
+        numEvents = numSegments * 2;
+        eventVertex = new int[numEvents];
+        angles = new double[numEvents];
+        order = new int[numEvents];
+        sortedAngles = new double[numEvents];
+        fronts = new int[numEvents + 1];
+        orientation = new int[numSegments];
+        wraps = new boolean[numSegments];
+        dirty = new boolean[numEvents + 1];
+        runFirst = new int[numEvents];
+        runEnd = new int[numEvents];
+
+        Map<Point2D, Integer> vertexIndex = new HashMap<>();
+        for (int e = 0; e < numEvents; e++) {
+            Point2D point = new Point2D(getEventX(e), getEventY(e));
+            eventVertex[e] = vertexIndex.computeIfAbsent(point, p -> vertexIndex.size());
+        }
+        numVertices = vertexIndex.size();
+        vertexStamp = new int[numVertices];
+    }
+
+    /**
+     * Works out the pseudo angle of each end point from the viewer.
+     * @return <code>false</code> if a line segment is now (or was) edge on or crosses the boundary behind the viewer
+     *         differently than it did, in which case the state can't be repaired.
+     */
+    private boolean computeAngles() {
+        boolean unchanged = true;
+        for (int e = 0; e < numEvents; e++) {
+            angles[e] = LineIntersection.pseudoAngle(getEventX(e) - viewerX, getEventY(e) - viewerY);
+        }
+        for (int seg = 0; seg < orientation.length; seg++) {
+            final double x1 = segmentStore.getX1(seg) - viewerX;
+            final double y1 = segmentStore.getY1(seg) - viewerY;
+            final double x2 = segmentStore.getX2(seg) - viewerX;
+            final double y2 = segmentStore.getY2(seg) - viewerY;
+            final int orient = (int) Math.signum(x1 * y2 - y1 * x2);
+            final boolean wrap = orient != 0 && angles[getStartEvent(seg, orient)] > angles[getEndEvent(seg, orient)];
+            // A line segment turning from one side to the other without being edge on is fine, its end points swap
+            // places in the sorted order so the gap between them is repaired.
+            if ((orient != orientation[seg] && orient * orientation[seg] != -1) || wrap != wraps[seg]) {
+                unchanged = false;
+            }
+            orientation[seg] = orient;
+            wraps[seg] = wrap;
+        }
+        return unchanged;
+    }
+
+    /**
+     * Sorts the end points and sweeps through them from scratch.
+     */
+    private void rebuild() {
+        computeAngles();
+
+        Integer[] sorted = new Integer[numEvents];
+        for (int e = 0; e < numEvents; e++) {
+            sorted[e] = e;
+        }
+        Arrays.sort(sorted, Comparator.comparingDouble(e -> angles[e]));
+        for (int k = 0; k < numEvents; k++) {
+            order[k] = sorted[k];
+            sortedAngles[k] = angles[order[k]];
+        }
+
+        TreeSet<Integer> active = new TreeSet<>(Comparator
+                .<Integer>comparingDouble(seg -> distanceAlong(seg, probe[0], probe[1]))
+                .thenComparingInt(seg -> seg));
+
+        setProbe((-2 + (numEvents > 0 ? sortedAngles[0] : 2)) / 2);
+        for (int seg = 0; seg < wraps.length; seg++) {
+            if (wraps[seg]) {
+                active.add(seg);
+            }
+        }
+        fronts[0] = active.isEmpty() ? -1 : active.first();
+
+        int k = 0;
+        while (k < numEvents) {
+            final double angle = sortedAngles[k];
+            int end = k;
+            while (end < numEvents && sortedAngles[end] == angle) {
+                end++;
+            }
+            final double prev = k > 0 ? sortedAngles[k - 1] : -2;
+            final double next = end < numEvents ? sortedAngles[end] : 2;
+
+            // Like AngularSweepVisibility the line segments are ordered half way between the end points.
+            setProbe((prev + angle) / 2);
+            for (int i = k; i < end; i++) {
+                final int seg = order[i] / 2;
+                if (orientation[seg] != 0 && order[i] == getEndEvent(seg, orientation[seg])
+                        && !active.remove(seg)) {
+                    active.removeIf(s -> s == seg);
+                }
+            }
+            setProbe((angle + next) / 2);
+            for (int i = k; i < end; i++) {
+                final int seg = order[i] / 2;
+                if (orientation[seg] != 0 && order[i] == getStartEvent(seg, orientation[seg])) {
+                    active.add(seg);
+                }
+            }
+
+            final int front = active.isEmpty() ? -1 : active.first();
+            for (int i = k; i < end; i++) {
+                fronts[i + 1] = front;
+            }
+            k = end;
+        }
+
+        valid = true;
+        lastRepairCount = -1;
+    }
+
+    /**
+     * Repairs the state from the last calculation for the new viewer position.
+     * @return <code>true</code> if it was repaired, <code>false</code> if the sweep needs to be done from scratch.
+     */
+    private boolean repair() {
+        if (!computeAngles()) {
+            return false;
+        }
+
+        // Insertion sort of the previous order. When an end point is moved back the gaps between it and where it came
+        // from are dirty as the set of line segments crossing them has changed.
+        final int limit = Math.max(MIN_REPAIR_LIMIT, numEvents / REPAIR_LIMIT_DIVISOR);
+        int numDirty = 0;
+        int firstDirty = numEvents + 1;
+        int lastDirty = -1;
+        for (int k = 0; k < numEvents; k++) {
+            sortedAngles[k] = angles[order[k]];
+        }
+        for (int i = 1; i < numEvents; i++) {
+            final int e = order[i];
+            final double angle = sortedAngles[i];
+            int j = i - 1;
+            while (j >= 0 && sortedAngles[j] > angle) {
+                order[j + 1] = order[j];
+                sortedAngles[j + 1] = sortedAngles[j];
+                if (!dirty[j + 1]) {
+                    dirty[j + 1] = true;
+                    numDirty++;
+                }
+                j--;
+            }
+            if (j + 1 != i) {
+                order[j + 1] = e;
+                sortedAngles[j + 1] = angle;
+                firstDirty = Math.min(firstDirty, j + 2);
+                lastDirty = Math.max(lastDirty, i);
+            }
+            if (numDirty > limit) {
+                Arrays.fill(dirty, false);
+                return false;
+            }
+        }
+
+        // Work the dirty gaps out again. End points at the same angle (such as the two line segments meeting at a
+        // vertex) are repaired together as a group, and each run of dirty groups is worked out forwards from the clean
+        // gap before it and, where that gets stuck, backwards from the clean gap after it.
+        boolean repaired = true;
+        int g = firstDirty;
+        while (g <= lastDirty && repaired) {
+            if (!dirty[g]) {
+                g++;
+                continue;
+            }
+
+            int numGroups = 0;
+            int first = getGroupStart(g - 1);
+            do {
+                runFirst[numGroups] = first;
+                runEnd[numGroups] = getGroupEnd(first);
+                first = runEnd[numGroups++];
+            } while (first < numEvents && dirty[first]);
+
+            int forward = 0;
+            while (forward < numGroups && repairForward(runFirst[forward], runEnd[forward])) {
+                forward++;
+            }
+            if (forward < numGroups) {
+                int backward = numGroups - 1;
+                while (backward > forward && repairBackward(runFirst[backward], runEnd[backward])) {
+                    backward--;
+                }
+                if (backward > forward) {
+                    repaired = false;
+                } else {
+                    // Both sides of the group that got stuck are known now.
+                    for (int i = runFirst[forward] + 1; i < runEnd[forward]; i++) {
+                        fronts[i] = fronts[runEnd[forward]];
+                    }
+                }
+            }
+            g = runEnd[numGroups - 1] + 1;
+        }
+        Arrays.fill(dirty, false);
+        lastRepairCount = numDirty;
+
+        return repaired;
+    }
+
+    /**
+     * Returns the position of the first end point at the same angle as an end point.
+     * @param k The position of the end point in the sorted order.
+     * @return the position of the first end point in the group.
+     */
+    private int getGroupStart(int k) {
+        while (k > 0 && sortedAngles[k - 1] == sortedAngles[k]) {
+            k--;
+        }
+        return k;
+    }
+
+    /**
+     * Returns the position after the last end point at the same angle as an end point.
+     * @param k The position of the end point in the sorted order.
+     * @return the position after the last end point in the group.
+     */
+    private int getGroupEnd(int k) {
+        final double angle = sortedAngles[k];
+        while (k < numEvents && sortedAngles[k] == angle) {
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * Works out the closest line segment after a group of end points at the same angle from the one before it.
+     *
+     * This can't be done if the closest line segment ends in the group as what is behind it is not known, unless
+     * another line segment carries on from the same vertex in which case the closest line segment starting in the group
+     * must be in front of anything behind it.
+     *
+     * @param first The position of the first end point in the group.
+     * @param end The position after the last end point in the group.
+     * @return <code>true</code> if the closest line segment after the group was worked out.
+     */
+    private boolean repairForward(int first, int end) {
+        final double angle = sortedAngles[first];
+        final double next = end < numEvents ? sortedAngles[end] : sortedAngles[0] + 4;
+        setProbe((angle + next) / 2);
+        final double dx = probe[0];
+        final double dy = probe[1];
+
+        int front = fronts[first];
+        int frontEndVertex = -1;
+        int closestStart = -1;
+        for (int i = first; i < end; i++) {
+            final int e = order[i];
+            final int seg = e / 2;
+            if (orientation[seg] == 0) {
+                continue;
+            }
+            if (e == getStartEvent(seg, orientation[seg])) {
+                if (closestStart < 0 || distanceAlong(seg, dx, dy) < distanceAlong(closestStart, dx, dy)) {
+                    closestStart = seg;
+                }
+            } else if (seg == front) {
+                frontEndVertex = eventVertex[e];
+            }
+        }
+
+        if (frontEndVertex >= 0) {
+            if (!hasEvent(first, end, frontEndVertex, true)) {
+                return false;
+            }
+            front = closestStart;
+        } else if (closestStart >= 0
+                && (front < 0 || distanceAlong(closestStart, dx, dy) < distanceAlong(front, dx, dy))) {
+            front = closestStart;
+        }
+
+        for (int i = first + 1; i <= end; i++) {
+            fronts[i] = front;
+        }
+        return true;
+    }
+
+    /**
+     * Works out the closest line segment before a group of end points at the same angle from the one after it.
+     *
+     * This is the reverse of {@link #repairForward(int, int)}, it can't be done if the closest line segment after the
+     * group starts in the group, unless another line segment ends at the same vertex.
+     *
+     * @param first The position of the first end point in the group.
+     * @param end The position after the last end point in the group.
+     * @return <code>true</code> if the closest line segment before the group was worked out.
+     */
+    private boolean repairBackward(int first, int end) {
+        final double angle = sortedAngles[first];
+        final double prev = first > 0 ? sortedAngles[first - 1] : sortedAngles[numEvents - 1] - 4;
+        setProbe((prev + angle) / 2);
+        final double dx = probe[0];
+        final double dy = probe[1];
+
+        int front = fronts[end];
+        int frontStartVertex = -1;
+        int closestEnd = -1;
+        for (int i = first; i < end; i++) {
+            final int e = order[i];
+            final int seg = e / 2;
+            if (orientation[seg] == 0) {
+                continue;
+            }
+            if (e == getEndEvent(seg, orientation[seg])) {
+                if (closestEnd < 0 || distanceAlong(seg, dx, dy) < distanceAlong(closestEnd, dx, dy)) {
+                    closestEnd = seg;
+                }
+            } else if (seg == front) {
+                frontStartVertex = eventVertex[e];
+            }
+        }
+
+        if (frontStartVertex >= 0) {
+            if (!hasEvent(first, end, frontStartVertex, false)) {
+                return false;
+            }
+            front = closestEnd;
+        } else if (closestEnd >= 0
+                && (front < 0 || distanceAlong(closestEnd, dx, dy) < distanceAlong(front, dx, dy))) {
+            front = closestEnd;
+        }
+
+        fronts[first] = front;
+        for (int i = first + 1; i < end; i++) {
+            fronts[i] = fronts[end];
+        }
+        return true;
+    }
+
+    /**
+     * Returns if a line segment starts (or ends) at a vertex within a group of end points.
+     * @param first The position of the first end point in the group.
+     * @param end The position after the last end point in the group.
+     * @param vertex The vertex.
+     * @param start <code>true</code> to look for a line segment starting at the vertex, <code>false</code> for one
+     *              ending there.
+     * @return <code>true</code> if there is one.
+     */
+    private boolean hasEvent(int first, int end, int vertex, boolean start) {
+        for (int i = first; i < end; i++) {
+            final int e = order[i];
+            final int seg = e / 2;
+            if (orientation[seg] != 0 && eventVertex[e] == vertex
+                    && (e == getStartEvent(seg, orientation[seg])) == start) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Casts the rays at each vertex (and a very small angle either side) using the closest line segments.
+     * @return the intersections that make up the visible area sorted by angle.
+     */
+    private List<LineIntersection> castRays() {
+        List<LineIntersection> lineIntersections = new ArrayList<>(numVertices * 3);
+        stamp++;
+        int numRayVertices = 0;
+
+        for (int k = 0; k < numEvents; k++) {
+            final int vertex = eventVertex[order[k]];
+            if (vertexStamp[vertex] == stamp) {
+                continue;
+            }
+            vertexStamp[vertex] = stamp;
+            numRayVertices++;
+
+            final double angle = sortedAngles[k];
+            int first = k;
+            while (first > 0 && sortedAngles[first - 1] == angle) {
+                first--;
+            }
+            int last = k;
+            while (last < numEvents - 1 && sortedAngles[last + 1] == angle) {
+                last++;
+            }
+
+            final double x = LineIntersection.pseudoAngleX(angle);
+            final double y = LineIntersection.pseudoAngleY(angle);
+            final double length = Math.sqrt(x * x + y * y);
+            final double ux = x / length;
+            final double uy = y / length;
+
+            // Rotating (x, y) by an angle a gives (x cos(a) - y sin(a), x sin(a) + y cos(a)).
+            final double beforeX = ux * RayCastVisibility.COS_SMALL_ANGLE + uy * RayCastVisibility.SIN_SMALL_ANGLE;
+            final double beforeY = uy * RayCastVisibility.COS_SMALL_ANGLE - ux * RayCastVisibility.SIN_SMALL_ANGLE;
+            final double beforeAngle = LineIntersection.pseudoAngle(beforeX, beforeY);
+            int before = first;
+            if (beforeAngle > angle) {
+                // The ray is past the boundary behind the viewer.
+                before = findGap(beforeAngle);
+            } else {
+                while (before > 0 && sortedAngles[before - 1] > beforeAngle) {
+                    before--;
+                }
+            }
+            addIntersection(lineIntersections, fronts[before], beforeX, beforeY);
+
+            LineIntersection beforeInter = getIntersection(fronts[first], ux, uy);
+            LineIntersection afterInter = getIntersection(fronts[last + 1], ux, uy);
+            if (beforeInter == null || (afterInter != null && afterInter.getDistance() < beforeInter.getDistance())) {
+                beforeInter = afterInter;
+            }
+            if (beforeInter != null) {
+                lineIntersections.add(beforeInter);
+            }
+
+            final double afterX = ux * RayCastVisibility.COS_SMALL_ANGLE - uy * RayCastVisibility.SIN_SMALL_ANGLE;
+            final double afterY = uy * RayCastVisibility.COS_SMALL_ANGLE + ux * RayCastVisibility.SIN_SMALL_ANGLE;
+            final double afterAngle = LineIntersection.pseudoAngle(afterX, afterY);
+            int after = last + 1;
+            if (afterAngle < angle) {
+                // The ray is past the boundary behind the viewer.
+                after = findGap(afterAngle);
+            } else {
+                while (after < numEvents && sortedAngles[after] <= afterAngle) {
+                    after++;
+                }
+            }
+            addIntersection(lineIntersections, fronts[after], afterX, afterY);
+        }
+        if (VisibilityMetrics.isEnabled()) {
+            // Three rays per vertex. The tests include ordering the line segments along the probes.
+            VisibilityMetrics.countWork(numRayVertices * 3L, tests);
+        }
+
+        // Vertices closer together than VERY_SMALL_ANGLE result in rays slightly out of order, the list is almost
+        // sorted so this is cheap.
+        lineIntersections.sort(LineIntersection.ANGULAR_ORDER);
+
+        return lineIntersections;
+    }
+
+    /**
+     * Returns the gap that a pseudo angle falls in.
+     * @param angle The pseudo angle.
+     * @return the index of the gap.
+     */
+    private int findGap(double angle) {
+        int ind = Arrays.binarySearch(sortedAngles, 0, numEvents, angle);
+        if (ind < 0) {
+            return -ind - 1;
+        }
+        while (ind < numEvents && sortedAngles[ind] == angle) {
+            ind++;
+        }
+        return ind;
+    }
+
+    /**
+     * Returns the end point where a line segment enters the sweep.
+     * @param seg The index of the line segment.
+     * @param orient Which way the line segment faces the viewer.
+     * @return the end point.
+     */
+    private static int getStartEvent(int seg, int orient) {
+        return orient > 0 ? seg * 2 : seg * 2 + 1;
+    }
+
+    /**
+     * Returns the end point where a line segment leaves the sweep.
+     * @param seg The index of the line segment.
+     * @param orient Which way the line segment faces the viewer.
+     * @return the end point.
+     */
+    private static int getEndEvent(int seg, int orient) {
+        return orient > 0 ? seg * 2 + 1 : seg * 2;
+    }
+
+    /**
+     * Returns the X co-ordinate of an end point.
+     * @param e The end point.
+     * @return the X co-ordinate.
+     */
+    private double getEventX(int e) {
+        return (e & 1) == 0 ? segmentStore.getX1(e / 2) : segmentStore.getX2(e / 2);
+    }
+
+    /**
+     * Returns the Y co-ordinate of an end point.
+     * @param e The end point.
+     * @return the Y co-ordinate.
+     */
+    private double getEventY(int e) {
+        return (e & 1) == 0 ? segmentStore.getY1(e / 2) : segmentStore.getY2(e / 2);
+    }
+
+    /**
+     * Sets the direction that line segments are ordered along.
+     * @param angle The pseudo angle of the direction, values past the boundary behind the viewer wrap around.
+     */
+    private void setProbe(double angle) {
+        probe[0] = LineIntersection.pseudoAngleX(angle);
+        probe[1] = LineIntersection.pseudoAngleY(angle);
+    }
+
+    /**
+     * Returns the distance from the viewer along a ray to the line that a line segment lies on.
+     * @param seg The index of the line segment.
+     * @param dx The X component of the direction of the ray.
+     * @param dy The Y component of the direction of the ray.
+     * @return the distance along the ray, in lengths of the direction, or {@link Double#POSITIVE_INFINITY} if the ray
+     *         is parallel to the line.
+     */
+    private double distanceAlong(int seg, double dx, double dy) {
+        tests++;
+        final double x1 = segmentStore.getX1(seg) - viewerX;
+        final double y1 = segmentStore.getY1(seg) - viewerY;
+        final double line_dx = segmentStore.getX2(seg) - segmentStore.getX1(seg);
+        final double line_dy = segmentStore.getY2(seg) - segmentStore.getY1(seg);
+        final double denom = dx * line_dy - dy * line_dx;
+        if (denom == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return (x1 * line_dy - y1 * line_dx) / denom;
+    }
+
+    /**
+     * Returns the intersection of a ray from the viewer with a line segment.
+     * @param seg The index of the line segment, or -1 if there is no line segment.
+     * @param dx The X component of the unit direction vector of the ray.
+     * @param dy The Y component of the unit direction vector of the ray.
+     * @return the intersection, or <code>null</code> if there is none.
+     */
+    private LineIntersection getIntersection(int seg, double dx, double dy) {
+        if (seg < 0) {
+            return null;
+        }
+        final double distance = distanceAlong(seg, dx, dy);
+        if (distance < 0 || Double.isInfinite(distance) || Double.isNaN(distance)) {
+            return null;
+        }
+        return new LineIntersection(new Point2D(viewerX + dx * distance, viewerY + dy * distance), distance, dx, dy);
+    }
+
+    /**
+     * Adds the intersection of a ray from the viewer with a line segment to a list if there is one.
+     * @param lineIntersections The list to add the intersection to.
+     * @param seg The index of the line segment, or -1 if there is no line segment.
+     * @param dx The X component of the unit direction vector of the ray.
+     * @param dy The Y component of the unit direction vector of the ray.
+     */
+    private void addIntersection(List<LineIntersection> lineIntersections, int seg, double dx, double dy) {
+        LineIntersection inter = getIntersection(seg, dx, dy);
+        if (inter != null) {
+            lineIntersections.add(inter);
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package net.rptools.maptool.vision;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * A uniform grid over the line segments that block vision/light used to speed up ray queries.
+ *
+ * Each cell of the grid holds the line segments that pass through it. Rays are walked through the grid one cell at a
+ * time (using a DDA traversal) so that only the line segments in the cells the ray passes through are tested, and the
+ * walk stops as soon as a hit is found that is closer than anything in the cells that are left.
+ *
+ * Each cell keeps room for every line segment that passes through it, with the enabled ones first. Disabling or
+ * enabling a line segment just moves it across the end of the enabled ones in each of its cells, so doors can be
+ * opened and closed without building a new grid. If line segments are added a new grid needs to be built.
+ */
+public class SegmentGrid {
+    /** The maximum number of cells along either side of the grid. */
+    private static final int MAX_CELLS_PER_SIDE = 1024;
+
+    /** The line segments in the grid. */
+    private final SegmentSource segments;
+    /** The number of line segments in the grid, line segments added to the store later are not in the grid. */
+    private final int numSegments;
+    /** The smallest X co-ordinate covered by the grid. */
+    private final double minX;
+    /** The smallest Y co-ordinate covered by the grid. */
+    private final double minY;
+    /** The largest X co-ordinate covered by the grid. */
+    private final double maxX;
+    /** The largest Y co-ordinate covered by the grid. */
+    private final double maxY;
+    /** The width and height of each cell. */
+    private final double cellSize;
+    /** The number of columns of cells. */
+    private final int columns;
+    /** The number of rows of cells. */
+    private final int rows;
+    /**
+     * The index into {@link #cellSegments} where the line segments for each cell start, the line segments for cell
+     * <code>c</code> are from <code>cellStart[c]</code> up to (but not including) <code>cellStart[c + 1]</code>.
+     */
+    private final int[] cellStart;
+    /** The indexes of the line segments in each cell, stored one cell after another with the enabled ones first. */
+    private final int[] cellSegments;
+    /** The number of enabled line segments in each cell. */
+    private final int[] cellCount;
+
+
+    /**
+     * Creates a new <code>SegmentGrid</code> for the line segments.
+     * @param segmentSource The line segments to put in the grid.
+     */
+    public SegmentGrid(SegmentSource segmentSource) {
+        segments = segmentSource;
+        numSegments = segmentSource.size();
+
+        double x1 = Double.POSITIVE_INFINITY;
+        double y1 = Double.POSITIVE_INFINITY;
+        double x2 = Double.NEGATIVE_INFINITY;
+        double y2 = Double.NEGATIVE_INFINITY;
+        for (int seg = 0; seg < numSegments; seg++) {
+            x1 = Math.min(x1, Math.min(segments.getX1(seg), segments.getX2(seg)));
+            y1 = Math.min(y1, Math.min(segments.getY1(seg), segments.getY2(seg)));
+            x2 = Math.max(x2, Math.max(segments.getX1(seg), segments.getX2(seg)));
+            y2 = Math.max(y2, Math.max(segments.getY1(seg), segments.getY2(seg)));
+        }
+        if (numSegments == 0) {
+            x1 = y1 = x2 = y2 = 0;
+        }
+        minX = x1;
+        minY = y1;
+        maxX = x2;
+        maxY = y2;
+
+        // Aim for roughly as many cells as there are line segments, so each cell holds only a few of them.
+        final double width = Math.max(maxX - minX, 1);
+        final double height = Math.max(maxY - minY, 1);
+        double size = Math.sqrt(width * height / Math.max(numSegments, 1));
+        size = Math.max(size, Math.max(width, height) / MAX_CELLS_PER_SIDE);
+        cellSize = size;
+        columns = Math.max(1, (int) Math.ceil(width / cellSize));
+        rows = Math.max(1, (int) Math.ceil(height / cellSize));
+
+        // First count the line segments in each cell, then fill them in.
+        cellStart = new int[columns * rows + 1];
+        for (int i = 0; i < numSegments; i++) {
+            forEachCell(i, cell -> cellStart[cell + 1]++);
+        }
+        for (int i = 0; i < columns * rows; i++) {
+            cellStart[i + 1] += cellStart[i];
+        }
+        cellSegments = new int[cellStart[columns * rows]];
+        cellCount = new int[columns * rows];
+        for (int i = 0; i < numSegments; i++) {
+            if (segments.isEnabled(i)) {
+                final int seg = i;
+                forEachCell(i, cell -> cellSegments[cellStart[cell] + cellCount[cell]++] = seg);
+            }
+        }
+        // The disabled line segments go after the enabled ones.
+        final int[] fill = cellCount.clone();
+        for (int i = 0; i < numSegments; i++) {
+            if (!segments.isEnabled(i)) {
+                final int seg = i;
+                forEachCell(i, cell -> cellSegments[cellStart[cell] + fill[cell]++] = seg);
+            }
+        }
+    }
+
+    /**
+     * Creates a new <code>SegmentGrid</code> that is a copy of another one, for a copy of its line segments. Enabling
+     * and disabling line segments in either grid doesn't affect the other.
+     * @param other The grid to copy.
+     * @param segmentSource The copy of the line segments in the other grid.
+     */
+    SegmentGrid(SegmentGrid other, SegmentSource segmentSource) {
+        segments = segmentSource;
+        numSegments = other.numSegments;
+        minX = other.minX;
+        minY = other.minY;
+        maxX = other.maxX;
+        maxY = other.maxY;
+        cellSize = other.cellSize;
+        columns = other.columns;
+        rows = other.rows;
+        // Where each cell starts never changes so it can be shared.
+        cellStart = other.cellStart;
+        cellSegments = other.cellSegments.clone();
+        cellCount = other.cellCount.clone();
+    }
+
+    /**
+     * Creates a new <code>SegmentGrid</code> read by {@link #read(ByteBuffer, SegmentSource)}.
+     * @param segmentSource The line segments in the grid.
+     * @param iBounds The smallest X and Y and largest X and Y co-ordinates covered by the grid.
+     * @param iCellSize The width and height of each cell.
+     * @param iColumns The number of columns of cells.
+     * @param iRows The number of rows of cells.
+     * @param iCellStart The index into the line segments where each cell starts.
+     * @param iCellSegments The indexes of the line segments in each cell.
+     * @param iCellCount The number of enabled line segments in each cell.
+     */
+    private SegmentGrid(SegmentSource segmentSource, double[] iBounds, double iCellSize, int iColumns, int iRows,
+                        int[] iCellStart, int[] iCellSegments, int[] iCellCount) {
+        segments = segmentSource;
+        numSegments = segmentSource.size();
+        minX = iBounds[0];
+        minY = iBounds[1];
+        maxX = iBounds[2];
+        maxY = iBounds[3];
+        cellSize = iCellSize;
+        columns = iColumns;
+        rows = iRows;
+        cellStart = iCellStart;
+        cellSegments = iCellSegments;
+        cellCount = iCellCount;
+    }
+
+    /**
+     * Finds the closest intersection of a ray with the line segments in the grid.
+     *
+     * @param ox The X co-ordinate of the origin of the ray.
+     * @param oy The Y co-ordinate of the origin of the ray.
+     * @param dx The X component of the direction of the ray, this should be a unit vector.
+     * @param dy The Y component of the direction of the ray, this should be a unit vector.
+     * @param hit Where the closest intersection is written, this should be {@link RayHit#reset()} before the call.
+     * @return <code>true</code> if the ray hit anything.
+     */
+    public boolean castRay(double ox, double oy, double dx, double dy, RayHit hit) {
+        // Find where the ray enters the grid, if it does at all.
+        double tEnter = 0;
+        double tLeave = Double.POSITIVE_INFINITY;
+        if (dx != 0) {
+            final double ta = (minX - ox) / dx;
+            final double tb = (maxX - ox) / dx;
+            tEnter = Math.max(tEnter, Math.min(ta, tb));
+            tLeave = Math.min(tLeave, Math.max(ta, tb));
+        } else if (ox < minX || ox > maxX) {
+            return false;
+        }
+        if (dy != 0) {
+            final double ta = (minY - oy) / dy;
+            final double tb = (maxY - oy) / dy;
+            tEnter = Math.max(tEnter, Math.min(ta, tb));
+            tLeave = Math.min(tLeave, Math.max(ta, tb));
+        } else if (oy < minY || oy > maxY) {
+            return false;
+        }
+        if (tEnter > tLeave) {
+            return false;
+        }
+
+        int col = getColumn(ox + dx * tEnter);
+        int row = getRow(oy + dy * tEnter);
+        final int stepCol = dx > 0 ? 1 : -1;
+        final int stepRow = dy > 0 ? 1 : -1;
+        // The distance along the ray to the next column / row boundary and between boundaries.
+        final double tDeltaX = dx != 0 ? cellSize / Math.abs(dx) : Double.POSITIVE_INFINITY;
+        final double tDeltaY = dy != 0 ? cellSize / Math.abs(dy) : Double.POSITIVE_INFINITY;
+        double tMaxX = dx != 0 ? (minX + (col + (dx > 0 ? 1 : 0)) * cellSize - ox) / dx : Double.POSITIVE_INFINITY;
+        double tMaxY = dy != 0 ? (minY + (row + (dy > 0 ? 1 : 0)) * cellSize - oy) / dy : Double.POSITIVE_INFINITY;
+
+        while (true) {
+            final int cell = row * columns + col;
+            hit.countTests(cellCount[cell]);
+            for (int i = cellStart[cell]; i < cellStart[cell] + cellCount[cell]; i++) {
+                segments.intersectRay(cellSegments[i], ox, oy, dx, dy, hit);
+            }
+
+            // Anything in the cells further along the ray can't be closer than the exit from this cell.
+            final double tExit = Math.min(tMaxX, tMaxY);
+            if (hit.getDistance() <= tExit) {
+                return true;
+            }
+
+            if (tMaxX < tMaxY) {
+                col += stepCol;
+                tMaxX += tDeltaX;
+            } else {
+                row += stepRow;
+                tMaxY += tDeltaY;
+            }
+            if (col < 0 || col >= columns || row < 0 || row >= rows) {
+                return hit.isHit();
+            }
+        }
+    }
+
+    /**
+     * Finds a line segment in the grid that blocks the line of sight between two points, walking the cells from the
+     * first point to the second and stopping at the first line segment found in the way. Which line segment is found
+     * when several are in the way is not defined.
+     *
+     * @param ox The X co-ordinate of the first point.
+     * @param oy The Y co-ordinate of the first point.
+     * @param tx The X co-ordinate of the second point.
+     * @param ty The Y co-ordinate of the second point.
+     * @return the index of a line segment in the way, or -1 if the points can see each other.
+     * @see SegmentSource#crossesLine(int, double, double, double, double)
+     */
+    public int findBlockingSegment(double ox, double oy, double tx, double ty) {
+        final double dx = tx - ox;
+        final double dy = ty - oy;
+        return findSegmentAlong(ox, oy, tx, ty, seg -> segments.crossesLine(seg, ox, oy, dx, dy));
+    }
+
+    /**
+     * Walks the cells from one point to another, testing each of the enabled line segments in them until one passes
+     * the test. A line segment in several of the cells is tested once for each of them.
+     *
+     * @param ox The X co-ordinate of the first point.
+     * @param oy The Y co-ordinate of the first point.
+     * @param tx The X co-ordinate of the second point.
+     * @param ty The Y co-ordinate of the second point.
+     * @param test The test, given the index of each line segment.
+     * @return the index of the first line segment that passed the test, or -1 if none did.
+     */
+    int findSegmentAlong(double ox, double oy, double tx, double ty, IntPredicate test) {
+        final double dx = tx - ox;
+        final double dy = ty - oy;
+
+        // Find the part of the line inside the grid, as a fraction of the way from the first point to the second.
+        double tEnter = 0;
+        double tLeave = 1;
+        if (dx != 0) {
+            final double ta = (minX - ox) / dx;
+            final double tb = (maxX - ox) / dx;
+            tEnter = Math.max(tEnter, Math.min(ta, tb));
+            tLeave = Math.min(tLeave, Math.max(ta, tb));
+        } else if (ox < minX || ox > maxX) {
+            return -1;
+        }
+        if (dy != 0) {
+            final double ta = (minY - oy) / dy;
+            final double tb = (maxY - oy) / dy;
+            tEnter = Math.max(tEnter, Math.min(ta, tb));
+            tLeave = Math.min(tLeave, Math.max(ta, tb));
+        } else if (oy < minY || oy > maxY) {
+            return -1;
+        }
+        if (tEnter > tLeave || (dx == 0 && dy == 0)) {
+            return -1;
+        }
+
+        int col = getColumn(ox + dx * tEnter);
+        int row = getRow(oy + dy * tEnter);
+        final int stepCol = dx > 0 ? 1 : -1;
+        final int stepRow = dy > 0 ? 1 : -1;
+        final double tDeltaX = dx != 0 ? cellSize / Math.abs(dx) : Double.POSITIVE_INFINITY;
+        final double tDeltaY = dy != 0 ? cellSize / Math.abs(dy) : Double.POSITIVE_INFINITY;
+        double tMaxX = dx != 0 ? (minX + (col + (dx > 0 ? 1 : 0)) * cellSize - ox) / dx : Double.POSITIVE_INFINITY;
+        double tMaxY = dy != 0 ? (minY + (row + (dy > 0 ? 1 : 0)) * cellSize - oy) / dy : Double.POSITIVE_INFINITY;
+
+        while (true) {
+            final int cell = row * columns + col;
+            for (int i = cellStart[cell]; i < cellStart[cell] + cellCount[cell]; i++) {
+                if (test.test(cellSegments[i])) {
+                    return cellSegments[i];
+                }
+            }
+
+            // Stop once the cell holding the second point has been checked.
+            if (Math.min(tMaxX, tMaxY) >= tLeave) {
+                return -1;
+            }
+
+            if (tMaxX < tMaxY) {
+                col += stepCol;
+                tMaxX += tDeltaX;
+            } else {
+                row += stepRow;
+                tMaxY += tDeltaY;
+            }
+            if (col < 0 || col >= columns || row < 0 || row >= rows) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of line segments in the grid, line segments added to the store later are not in the grid.
+     * @return the number of line segments.
+     */
+    public int getNumberSegments() {
+        return numSegments;
+    }
+
+    /**
+     * Enables or disables a line segment in each of the cells it passes through. This is managed by
+     * {@link VisionBlockingPolygonList}, which keeps its {@link SegmentStore} in step.
+     * @param seg The index of the line segment, which must be in the grid.
+     * @param enabled <code>false</code> if the line segment should no longer be tested.
+     */
+    void setEnabled(int seg, boolean enabled) {
+        forEachCell(seg, cell -> {
+            final int start = cellStart[cell];
+            final int enabledEnd = start + cellCount[cell];
+            for (int i = start; i < cellStart[cell + 1]; i++) {
+                if (cellSegments[i] != seg) {
+                    continue;
+                }
+                // Swap it with the line segment either side of the end of the enabled ones and move the end past it.
+                if (enabled && i >= enabledEnd) {
+                    cellSegments[i] = cellSegments[enabledEnd];
+                    cellSegments[enabledEnd] = seg;
+                    cellCount[cell]++;
+                } else if (!enabled && i < enabledEnd) {
+                    cellSegments[i] = cellSegments[enabledEnd - 1];
+                    cellSegments[enabledEnd - 1] = seg;
+                    cellCount[cell]--;
+                }
+                return;
+            }
+        });
+    }
+
+    /**
+     * Returns the number of bytes {@link #write(ByteBuffer)} writes.
+     * @return the number of bytes.
+     */
+    long getSerializedSize() {
+        return 5L * Double.BYTES + 3L * Integer.BYTES + (cellStart.length + cellSegments.length + cellCount.length)
+                * (long) Integer.BYTES;
+    }
+
+    /**
+     * Writes the grid for a {@link PreparedScene}, without the line segments in it.
+     * @param out Where the grid is written.
+     */
+    void write(ByteBuffer out) {
+        out.putDouble(minX);
+        out.putDouble(minY);
+        out.putDouble(maxX);
+        out.putDouble(maxY);
+        out.putDouble(cellSize);
+        out.putInt(columns);
+        out.putInt(rows);
+        out.putInt(cellSegments.length);
+        PreparedScene.putInts(out, cellStart, cellStart.length);
+        PreparedScene.putInts(out, cellSegments, cellSegments.length);
+        PreparedScene.putInts(out, cellCount, cellCount.length);
+    }
+
+    /**
+     * Reads a grid written by {@link #write(ByteBuffer)}.
+     * @param in Where the grid is read from.
+     * @param segmentSource The line segments that were in the grid when it was written.
+     * @return the grid.
+     * @throws IOException if the grid is corrupt.
+     */
+    static SegmentGrid read(ByteBuffer in, SegmentSource segmentSource) throws IOException {
+        final double[] bounds = {in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble()};
+        final double size = in.getDouble();
+        final int cols = in.getInt();
+        final int numRows = in.getInt();
+        final int numCellSegments = in.getInt();
+        if (cols < 1 || numRows < 1 || cols > MAX_CELLS_PER_SIDE || numRows > MAX_CELLS_PER_SIDE || !(size > 0)) {
+            throw new IOException(PreparedScene.CORRUPT);
+        }
+        final int numCells = cols * numRows;
+        final int[] starts = PreparedScene.getInts(in, numCells + 1);
+        final int[] segs = PreparedScene.getInts(in, numCellSegments);
+        final int[] counts = PreparedScene.getInts(in, numCells);
+
+        // Make sure queries can't index outside of the arrays.
+        if (starts[0] != 0 || starts[numCells] != numCellSegments) {
+            throw new IOException(PreparedScene.CORRUPT);
+        }
+        for (int cell = 0; cell < numCells; cell++) {
+            if (starts[cell + 1] < starts[cell] || counts[cell] < 0 || counts[cell] > starts[cell + 1] - starts[cell]) {
+                throw new IOException(PreparedScene.CORRUPT);
+            }
+        }
+        for (int seg : segs) {
+            if (seg < 0 || seg >= segmentSource.size()) {
+                throw new IOException(PreparedScene.CORRUPT);
+            }
+        }
+        return new SegmentGrid(segmentSource, bounds, size, cols, numRows, starts, segs, counts);
+    }
+
+    /**
+     * Returns the number of cells in the grid.
+     * @return the number of cells.
+     */
+    public int getNumberCells() {
+        return columns * rows;
+    }
+
+    /**
+     * Returns the width and height of each cell in the grid.
+     * @return the size of each cell.
+     */
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Returns the column of cells that a X co-ordinate falls in, clamped to the grid.
+     * @param x The X co-ordinate.
+     * @return the column.
+     */
+    private int getColumn(double x) {
+        return Math.min(columns - 1, Math.max(0, (int) Math.floor((x - minX) / cellSize)));
+    }
+
+    /**
+     * Returns the row of cells that a Y co-ordinate falls in, clamped to the grid.
+     * @param y The Y co-ordinate.
+     * @return the row.
+     */
+    private int getRow(double y) {
+        return Math.min(rows - 1, Math.max(0, (int) Math.floor((y - minY) / cellSize)));
+    }
+
+    /**
+     * Calls the consumer for each of the cells that a line segment passes through.
+     *
+     * Rather than walking the cells (where rounding could skip a cell the line segment only just passes through) this
+     * checks every cell under the bounding box of the line segment, keeping those that are not entirely on one side of
+     * it. This is a bit slower but it is only done when the grid is built.
+     *
+     * @param seg The index of the line segment.
+     * @param consumer The consumer to call with the index of each cell.
+     */
+    private void forEachCell(int seg, IntConsumer consumer) {
+        final double x1 = segments.getX1(seg);
+        final double y1 = segments.getY1(seg);
+        final double x2 = segments.getX2(seg);
+        final double y2 = segments.getY2(seg);
+        final double dx = x2 - x1;
+        final double dy = y2 - y1;
+        // Allow for a little rounding so line segments that only touch a cell are still put in it.
+        final double tolerance = 1e-9 * cellSize * (Math.abs(dx) + Math.abs(dy));
+
+        final int startCol = getColumn(Math.min(x1, x2));
+        final int endCol = getColumn(Math.max(x1, x2));
+        final int startRow = getRow(Math.min(y1, y2));
+        final int endRow = getRow(Math.max(y1, y2));
+        for (int row = startRow; row <= endRow; row++) {
+            for (int col = startCol; col <= endCol; col++) {
+                final double cx = minX + col * cellSize - x1;
+                final double cy = minY + row * cellSize - y1;
+                // Which side of the line segment each of the corners of the cell is on.
+                final double s1 = dx * cy - dy * cx;
+                final double s2 = dx * cy - dy * (cx + cellSize);
+                final double s3 = dx * (cy + cellSize) - dy * cx;
+                final double s4 = dx * (cy + cellSize) - dy * (cx + cellSize);
+                final double min = Math.min(Math.min(s1, s2), Math.min(s3, s4));
+                final double max = Math.max(Math.max(s1, s2), Math.max(s3, s4));
+                if (min <= tolerance && max >= -tolerance) {
+                    consumer.accept(row * columns + col);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package net.rptools.maptool.vision;
+
+/**
+ * Something that can provide line segments that block vision/light as primitive co-ordinates, such as a
+ * {@link SegmentStore} on the heap or a {@link MappedScene} read straight from a file.
+ */
+public interface SegmentSource {
+
+    /**
+     * Returns the number of line segments.
+     * @return the number of line segments.
+     */
+    int size();
+
+    /**
+     * Returns the X co-ordinate of the starting point of a line segment.
+     * @param seg The index of the line segment.
+     * @return the X co-ordinate.
+     */
+    double getX1(int seg);
+
+    /**
+     * Returns the Y co-ordinate of the starting point of a line segment.
+     * @param seg The index of the line segment.
+     * @return the Y co-ordinate.
+     */
+    double getY1(int seg);
+
+    /**
+     * Returns the X co-ordinate of the ending point of a line segment.
+     * @param seg The index of the line segment.
+     * @return the X co-ordinate.
+     */
+    double getX2(int seg);
+
+    /**
+     * Returns the Y co-ordinate of the ending point of a line segment.
+     * @param seg The index of the line segment.
+     * @return the Y co-ordinate.
+     */
+    double getY2(int seg);
+
+    /**
+     * Returns if a line segment blocks vision/light, line segments that don't are left out of a {@link SegmentGrid}.
+     * @param seg The index of the line segment.
+     * @return <code>true</code> unless the line segment has been disabled.
+     */
+    default boolean isEnabled(int seg) {
+        return true;
+    }
+
+    /**
+     * Tests a ray against a single line segment and records the hit if it is closer than the one already in
+     * <code>hit</code>.
+     *
+     * The ray is considered to extend past to infinity from the origin in the direction given. If the direction is a
+     * unit vector the distance recorded is the distance from the origin.
+     *
+     * @param seg The index of the line segment to test.
+     * @param ox The X co-ordinate of the origin of the ray.
+     * @param oy The Y co-ordinate of the origin of the ray.
+     * @param dx The X component of the direction of the ray.
+     * @param dy The Y component of the direction of the ray.
+     * @param hit The closest hit so far, updated if this line segment is closer.
+     * @return <code>true</code> if the line segment was hit and is the closest so far.
+     */
+    default boolean intersectRay(int seg, double ox, double oy, double dx, double dy, RayHit hit) {
+        // See SegmentStore.intersectRay() for how this works.
+        final double sx1 = getX1(seg);
+        final double sy1 = getY1(seg);
+        final double line_dx = getX2(seg) - sx1;
+        final double line_dy = getY2(seg) - sy1;
+        final double denom = dx * line_dy - dy * line_dx;
+        if (denom == 0) {
+            return false;
+        }
+
+        final double wx = sx1 - ox;
+        final double wy = sy1 - oy;
+        final double inv = 1.0 / denom;
+        final double ray_t = (wx * line_dy - wy * line_dx) * inv;
+        final double line_t = (wx * dy - wy * dx) * inv;
+        if (ray_t < 0 || line_t < 0 || line_t > 1) {
+            return false;
+        }
+
+        return hit.offer(ray_t, ox + dx * ray_t, oy + dy * ray_t, seg);
+    }
+
+    /**
+     * Returns if a line segment crosses the line between two points. Touching the line segment at either of the points
+     * doesn't count, so a viewer or target standing on a wall can still be seen.
+     *
+     * @param seg The index of the line segment to test.
+     * @param ox The X co-ordinate of the first point.
+     * @param oy The Y co-ordinate of the first point.
+     * @param dx The X distance from the first point to the second.
+     * @param dy The Y distance from the first point to the second.
+     * @return <code>true</code> if the line segment is in the way.
+     */
+    default boolean crossesLine(int seg, double ox, double oy, double dx, double dy) {
+        // See SegmentStore.intersectRay() for how this works.
+        final double sx1 = getX1(seg);
+        final double sy1 = getY1(seg);
+        final double line_dx = getX2(seg) - sx1;
+        final double line_dy = getY2(seg) - sy1;
+        final double denom = dx * line_dy - dy * line_dx;
+        if (denom == 0) {
+            return false;
+        }
+
+        final double wx = sx1 - ox;
+        final double wy = sy1 - oy;
+        final double inv = 1.0 / denom;
+        final double ray_t = (wx * line_dy - wy * line_dx) * inv;
+        final double line_t = (wx * dy - wy * dx) * inv;
+        return ray_t > 0 && ray_t < 1 && line_t >= 0 && line_t <= 1;
+    }
+
+    /**
+     * Tests a ray against every line segment and records the closest hit.
+     *
+     * @param ox The X co-ordinate of the origin of the ray.
+     * @param oy The Y co-ordinate of the origin of the ray.
+     * @param dx The X component of the direction of the ray.
+     * @param dy The Y component of the direction of the ray.
+     * @param hit The closest hit so far, updated if any line segment is closer.
+     * @return <code>true</code> if there is a hit.
+     */
+    default boolean castRay(double ox, double oy, double dx, double dy, RayHit hit) {
+        final int size = size();
+        for (int seg = 0; seg < size; seg++) {
+            intersectRay(seg, ox, oy, dx, dy, hit);
+        }
+        return hit.isHit();
+    }
+}
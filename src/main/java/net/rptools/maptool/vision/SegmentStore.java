@@ -0,0 +1,422 @@
+package net.rptools.maptool.vision;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Stores line segments as parallel arrays of primitive co-ordinates rather than as {@link LineSegment} objects.
+ *
+ * Keeping the co-ordinates next to each other in memory makes looping over the line segments far more cache friendly
+ * and the intersection routines here write their result into a {@link RayHit} so they don't allocate anything.
+ *
+ * Line segments can be disabled (an open door, or a wall whose polygons have all been removed) without changing the
+ * index of any line segment, with one bit per line segment. Disabled line segments are skipped by
+ * {@link #castRay(double, double, double, double, RayHit)} and
+ * {@link #castRayVectorized(double, double, double, double, RayHit)}, but not by the tests of single line segments,
+ * which are left to the caller (usually a {@link SegmentGrid}, which leaves them out of its cells).
+ */
+public class SegmentStore implements SegmentSource {
+    /** The initial capacity of the arrays. */
+    private static final int INITIAL_CAPACITY = 16;
+    /** The class of the SIMD kernel, which is only compiled when the JDK has the Vector API. */
+    private static final String VECTOR_KERNEL_CLASS = "net.rptools.maptool.vision.VectorRayKernel";
+    /** System property that can be set to <code>false</code> to stop the SIMD kernel being used. */
+    private static final String VECTOR_KERNEL_PROPERTY = "vision.vectorKernel";
+    /** The SIMD kernel, or <code>null</code> if it is not available. */
+    private static final RayKernel VECTOR_KERNEL = loadVectorKernel();
+
+    /** The X co-ordinates of the starting points of the line segments. */
+    private double[] x1 = new double[INITIAL_CAPACITY];
+    /** The Y co-ordinates of the starting points of the line segments. */
+    private double[] y1 = new double[INITIAL_CAPACITY];
+    /** The X co-ordinates of the ending points of the line segments. */
+    private double[] x2 = new double[INITIAL_CAPACITY];
+    /** The Y co-ordinates of the ending points of the line segments. */
+    private double[] y2 = new double[INITIAL_CAPACITY];
+    /** The number of line segments stored. */
+    private int size;
+    /** One bit for each line segment, set if it has been disabled. */
+    private long[] disabled = new long[(INITIAL_CAPACITY + 63) >>> 6];
+    /** The number of line segments that have been disabled. */
+    private int numDisabled;
+
+    /**
+     * Creates a new empty <code>SegmentStore</code>.
+     */
+    public SegmentStore() {
+    }
+
+    /**
+     * Creates a new <code>SegmentStore</code> holding a copy of the line segments in another store, changes to either
+     * store don't affect the other.
+     * @param other The store to copy.
+     */
+    public SegmentStore(SegmentStore other) {
+        x1 = other.x1.clone();
+        y1 = other.y1.clone();
+        x2 = other.x2.clone();
+        y2 = other.y2.clone();
+        size = other.size;
+        disabled = other.disabled.clone();
+        numDisabled = other.numDisabled;
+    }
+
+    /**
+     * Adds a line segment to the store.
+     * @param lineSegment The line segment to add.
+     * @return the index of the line segment.
+     */
+    public int add(LineSegment lineSegment) {
+        return add(lineSegment.getPoint1().getX(), lineSegment.getPoint1().getY(),
+                lineSegment.getPoint2().getX(), lineSegment.getPoint2().getY());
+    }
+
+    /**
+     * Adds a line segment to the store.
+     * @param sx1 The X co-ordinate of the starting point.
+     * @param sy1 The Y co-ordinate of the starting point.
+     * @param sx2 The X co-ordinate of the ending point.
+     * @param sy2 The Y co-ordinate of the ending point.
+     * @return the index of the line segment.
+     */
+    public int add(double sx1, double sy1, double sx2, double sy2) {
+        if (size == x1.length) {
+            final int capacity = size * 2;
+            x1 = Arrays.copyOf(x1, capacity);
+            y1 = Arrays.copyOf(y1, capacity);
+            x2 = Arrays.copyOf(x2, capacity);
+            y2 = Arrays.copyOf(y2, capacity);
+            disabled = Arrays.copyOf(disabled, (capacity + 63) >>> 6);
+        }
+        x1[size] = sx1;
+        y1[size] = sy1;
+        x2[size] = sx2;
+        y2[size] = sy2;
+        return size++;
+    }
+
+    /**
+     * Returns the number of line segments in the store.
+     * @return the number of line segments.
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the X co-ordinate of the starting point of a line segment.
+     * @param seg The index of the line segment.
+     * @return the X co-ordinate.
+     */
+    @Override
+    public double getX1(int seg) {
+        return x1[seg];
+    }
+
+    /**
+     * Returns the Y co-ordinate of the starting point of a line segment.
+     * @param seg The index of the line segment.
+     * @return the Y co-ordinate.
+     */
+    @Override
+    public double getY1(int seg) {
+        return y1[seg];
+    }
+
+    /**
+     * Returns the X co-ordinate of the ending point of a line segment.
+     * @param seg The index of the line segment.
+     * @return the X co-ordinate.
+     */
+    @Override
+    public double getX2(int seg) {
+        return x2[seg];
+    }
+
+    /**
+     * Returns the Y co-ordinate of the ending point of a line segment.
+     * @param seg The index of the line segment.
+     * @return the Y co-ordinate.
+     */
+    @Override
+    public double getY2(int seg) {
+        return y2[seg];
+    }
+
+    /**
+     * Tests a ray against a single line segment and records the hit if it is closer than the one already in
+     * <code>hit</code>.
+     *
+     * The ray is considered to extend past to infinity from the origin in the direction given. If the direction is a
+     * unit vector the distance recorded is the distance from the origin.
+     *
+     * @param seg The index of the line segment to test.
+     * @param ox The X co-ordinate of the origin of the ray.
+     * @param oy The Y co-ordinate of the origin of the ray.
+     * @param dx The X component of the direction of the ray.
+     * @param dy The Y component of the direction of the ray.
+     * @param hit The closest hit so far, updated if this line segment is closer.
+     * @return <code>true</code> if the line segment was hit and is the closest so far.
+     */
+    @Override
+    public boolean intersectRay(int seg, double ox, double oy, double dx, double dy, RayHit hit) {
+        // Solving origin + d * t = p1 + (p2 - p1) * s (see LineSegment.getIntersectionWith) using cross products,
+        // which only needs the one division and no square roots.
+        final double line_dx = x2[seg] - x1[seg];
+        final double line_dy = y2[seg] - y1[seg];
+        final double denom = dx * line_dy - dy * line_dx;
+        if (denom == 0) {
+            // Parallel so they can't intersect.
+            return false;
+        }
+
+        final double wx = x1[seg] - ox;
+        final double wy = y1[seg] - oy;
+        final double inv = 1.0 / denom;
+        final double ray_t = (wx * line_dy - wy * line_dx) * inv;
+        final double line_t = (wx * dy - wy * dx) * inv;
+        if (ray_t < 0 || line_t < 0 || line_t > 1) {
+            return false;
+        }
+
+        return hit.offer(ray_t, ox + dx * ray_t, oy + dy * ray_t, seg);
+    }
+
+    /**
+     * Returns if a line segment crosses the line between two points. Touching the line segment at either of the points
+     * doesn't count, so a viewer or target standing on a wall can still be seen.
+     *
+     * @param seg The index of the line segment to test.
+     * @param ox The X co-ordinate of the first point.
+     * @param oy The Y co-ordinate of the first point.
+     * @param dx The X distance from the first point to the second.
+     * @param dy The Y distance from the first point to the second.
+     * @return <code>true</code> if the line segment is in the way.
+     */
+    @Override
+    public boolean crossesLine(int seg, double ox, double oy, double dx, double dy) {
+        // The same as intersectRay() but only the part of the ray between the two points counts.
+        final double line_dx = x2[seg] - x1[seg];
+        final double line_dy = y2[seg] - y1[seg];
+        final double denom = dx * line_dy - dy * line_dx;
+        if (denom == 0) {
+            return false;
+        }
+
+        final double wx = x1[seg] - ox;
+        final double wy = y1[seg] - oy;
+        final double inv = 1.0 / denom;
+        final double ray_t = (wx * line_dy - wy * line_dx) * inv;
+        final double line_t = (wx * dy - wy * dx) * inv;
+        return ray_t > 0 && ray_t < 1 && line_t >= 0 && line_t <= 1;
+    }
+
+    /**
+     * Tests a ray against every line segment in the store and records the closest hit.
+     *
+     * @param ox The X co-ordinate of the origin of the ray.
+     * @param oy The Y co-ordinate of the origin of the ray.
+     * @param dx The X component of the direction of the ray.
+     * @param dy The Y component of the direction of the ray.
+     * @param hit The closest hit so far, updated if any line segment is closer.
+     * @return <code>true</code> if there is a hit.
+     */
+    @Override
+    public boolean castRay(double ox, double oy, double dx, double dy, RayHit hit) {
+        hit.countTests(size - numDisabled);
+        if (numDisabled == 0) {
+            for (int seg = 0; seg < size; seg++) {
+                intersectRay(seg, ox, oy, dx, dy, hit);
+            }
+        } else {
+            for (int seg = 0; seg < size; seg++) {
+                if (isEnabled(seg)) {
+                    intersectRay(seg, ox, oy, dx, dy, hit);
+                }
+            }
+        }
+        return hit.isHit();
+    }
+
+    /**
+     * Tests a ray against every line segment in the store and records the closest hit, using SIMD instructions to
+     * test several line segments at once if the Vector API is available.
+     *
+     * This gives exactly the same result as {@link #castRay(double, double, double, double, RayHit)}, which is used
+     * instead when the Vector API is not available.
+     *
+     * @param ox The X co-ordinate of the origin of the ray.
+     * @param oy The Y co-ordinate of the origin of the ray.
+     * @param dx The X component of the direction of the ray.
+     * @param dy The Y component of the direction of the ray.
+     * @param hit The closest hit so far, updated if any line segment is closer.
+     * @return <code>true</code> if there is a hit.
+     */
+    public boolean castRayVectorized(double ox, double oy, double dx, double dy, RayHit hit) {
+        if (VECTOR_KERNEL == null) {
+            return castRay(ox, oy, dx, dy, hit);
+        }
+        hit.countTests(size - numDisabled);
+        return VECTOR_KERNEL.castRay(this, ox, oy, dx, dy, hit);
+    }
+
+    /**
+     * Returns if a line segment blocks vision/light.
+     * @param seg The index of the line segment.
+     * @return <code>false</code> if the line segment has been disabled.
+     */
+    @Override
+    public boolean isEnabled(int seg) {
+        return (disabled[seg >>> 6] & (1L << seg)) == 0;
+    }
+
+    /**
+     * Enables or disables a line segment. This is managed by {@link VisionBlockingPolygonList}, which keeps its
+     * {@link SegmentGrid} in step.
+     * @param seg The index of the line segment.
+     * @param enabled <code>false</code> if the line segment should no longer block vision/light.
+     */
+    void setEnabled(int seg, boolean enabled) {
+        if (enabled == isEnabled(seg)) {
+            return;
+        }
+        disabled[seg >>> 6] ^= 1L << seg;
+        numDisabled += enabled ? -1 : 1;
+    }
+
+    /**
+     * Returns the number of line segments that have been disabled.
+     * @return the number of disabled line segments.
+     */
+    public int getNumberDisabled() {
+        return numDisabled;
+    }
+
+    /**
+     * Returns a store holding only the line segments that are enabled, for code that loops over all of the line
+     * segments. The indexes of the line segments are not the same as in this store unless none are disabled, in which
+     * case this store is returned.
+     * @return the enabled line segments.
+     */
+    public SegmentStore getEnabledSegments() {
+        if (numDisabled == 0) {
+            return this;
+        }
+        SegmentStore enabled = new SegmentStore();
+        for (int seg = 0; seg < size; seg++) {
+            if (isEnabled(seg)) {
+                enabled.add(x1[seg], y1[seg], x2[seg], y2[seg]);
+            }
+        }
+        return enabled;
+    }
+
+    /**
+     * Returns the number of bytes {@link #write(ByteBuffer)} writes.
+     * @return the number of bytes.
+     */
+    long getSerializedSize() {
+        return Integer.BYTES + size * 4L * Double.BYTES + ((size + 63L) >>> 6) * Long.BYTES;
+    }
+
+    /**
+     * Writes the line segments for a {@link PreparedScene}.
+     * @param out Where the line segments are written.
+     */
+    void write(ByteBuffer out) {
+        out.putInt(size);
+        PreparedScene.putDoubles(out, x1, size);
+        PreparedScene.putDoubles(out, y1, size);
+        PreparedScene.putDoubles(out, x2, size);
+        PreparedScene.putDoubles(out, y2, size);
+        PreparedScene.putLongs(out, disabled, (size + 63) >>> 6);
+    }
+
+    /**
+     * Reads line segments written by {@link #write(ByteBuffer)}.
+     * @param in Where the line segments are read from.
+     * @return the line segments.
+     * @throws IOException if the line segments are corrupt.
+     */
+    static SegmentStore read(ByteBuffer in) throws IOException {
+        final SegmentStore store = new SegmentStore();
+        final int size = in.getInt();
+        store.x1 = PreparedScene.getDoubles(in, size);
+        store.y1 = PreparedScene.getDoubles(in, size);
+        store.x2 = PreparedScene.getDoubles(in, size);
+        store.y2 = PreparedScene.getDoubles(in, size);
+        store.disabled = PreparedScene.getLongs(in, (size + 63) >>> 6);
+        store.size = size;
+        for (long word : store.disabled) {
+            store.numDisabled += Long.bitCount(word);
+        }
+        if (size == 0) {
+            // Adding grows the arrays by doubling them.
+            store.x1 = new double[INITIAL_CAPACITY];
+            store.y1 = new double[INITIAL_CAPACITY];
+            store.x2 = new double[INITIAL_CAPACITY];
+            store.y2 = new double[INITIAL_CAPACITY];
+            store.disabled = new long[(INITIAL_CAPACITY + 63) >>> 6];
+        }
+        return store;
+    }
+
+    /**
+     * Returns if {@link #castRayVectorized(double, double, double, double, RayHit)} uses SIMD instructions.
+     * @return <code>true</code> if the Vector API is available.
+     */
+    public static boolean isVectorized() {
+        return VECTOR_KERNEL != null;
+    }
+
+    /**
+     * Returns the X co-ordinates of the starting points of the line segments, only the first {@link #size()} are used.
+     * @return the X co-ordinates.
+     */
+    double[] getX1Array() {
+        return x1;
+    }
+
+    /**
+     * Returns the Y co-ordinates of the starting points of the line segments, only the first {@link #size()} are used.
+     * @return the Y co-ordinates.
+     */
+    double[] getY1Array() {
+        return y1;
+    }
+
+    /**
+     * Returns the X co-ordinates of the ending points of the line segments, only the first {@link #size()} are used.
+     * @return the X co-ordinates.
+     */
+    double[] getX2Array() {
+        return x2;
+    }
+
+    /**
+     * Returns the Y co-ordinates of the ending points of the line segments, only the first {@link #size()} are used.
+     * @return the Y co-ordinates.
+     */
+    double[] getY2Array() {
+        return y2;
+    }
+
+    /**
+     * Loads the SIMD kernel. It is compiled separately as the Vector API is still an incubator module, so it is only
+     * there when the JDK used to build has it, and it only loads when the JVM is started with
+     * <code>--add-modules jdk.incubator.vector</code>.
+     * @return the SIMD kernel, or <code>null</code> if it is not available.
+     */
+    private static RayKernel loadVectorKernel() {
+        if (!Boolean.parseBoolean(System.getProperty(VECTOR_KERNEL_PROPERTY, "true"))) {
+            return null;
+        }
+        try {
+            return (RayKernel) Class.forName(VECTOR_KERNEL_CLASS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Works out which vertices of the vision/light blocking polygons rays need to be cast at for a viewer, using the line
+ * segments either side of each vertex in its polygon.
+ *
+ * <ul>
+ *     <li>If the line segments either side of a vertex are on opposite sides of the ray to it the ray ends there and
+ *     the edge of the visible area just bends, so only the ray directly at the vertex is needed.</li>
+ *     <li>If they are on the same side rays on the other side can pass the vertex and hit something behind it, so as
+ *     well as the ray at the vertex one is needed just to that side of it.</li>
+ *     <li>If both line segments face away from the viewer the vertex is hidden behind its own polygon and no rays are
+ *     needed.</li>
+ * </ul>
+ *
+ * Which way the line segments face depends on whether the viewer is inside the polygon, which is only tested for
+ * polygons whose bounding box the viewer is in. This relies on the polygon not crossing itself, so polygons that do
+ * (or are too large to check) never have their vertices marked irrelevant, and neither do polygons the viewer is on
+ * the edge of.
+ *
+ * Line segments that have been disabled (open doors) don't block anything, so rays are cast either side of the
+ * vertices at their ends and the vertices of their polygons are never marked irrelevant, as the viewer can see into
+ * the polygon. Enabling and disabling line segments only updates the vertices at their ends.
+ */
+public class VertexClassifier {
+    /**
+     * What rays a vertex needs.
+     */
+    public enum VertexClass {
+        /** The line segments either side are on opposite sides of the ray, only one ray at the vertex is needed. */
+        BLOCKING_CORNER,
+        /**
+         * The line segments either side are after the ray, so rays just before it can pass the vertex. The ray at
+         * the vertex and one just before it are needed.
+         */
+        SILHOUETTE_BEFORE,
+        /**
+         * The line segments either side are before the ray, so rays just after it can pass the vertex. The ray at
+         * the vertex and one just after it are needed.
+         */
+        SILHOUETTE_AFTER,
+        /** Rays either side of the vertex can pass it, so rays are needed at and either side of it. */
+        SILHOUETTE,
+        /** The vertex is hidden behind its own polygon, no rays are needed. */
+        IRRELEVANT
+    }
+
+    /** The largest polygon that is checked for crossing itself, larger polygons never have vertices culled. */
+    private static final int MAX_CHECKED_VERTICES = 1024;
+    /**
+     * How close to a line segment of a polygon the viewer counts as on it, relative to the size of the polygon, and the
+     * sine of the smallest angle between a ray and a line segment that doesn't count as them being in line.
+     */
+    private static final double RELATIVE_TOLERANCE = 1e-9;
+    /** The viewer is outside a polygon, or the vertices of the polygon can't be marked irrelevant anyway. */
+    private static final byte OUTSIDE = 0;
+    /** The viewer is inside a polygon. */
+    private static final byte INSIDE = 1;
+    /**
+     * The viewer is on (or within rounding of) a line segment of a polygon, so whether rays see into the polygon is
+     * decided by rounding and none of its vertices are marked irrelevant.
+     */
+    private static final byte ON_EDGE = 2;
+
+    /** The X co-ordinates of the unique vertices. */
+    private final double[] vertexX;
+    /** The Y co-ordinates of the unique vertices. */
+    private final double[] vertexY;
+    /**
+     * The occurrences of each vertex in the polygons, those of vertex <code>v</code> are from
+     * <code>occurrenceStart[v]</code> up to <code>occurrenceStart[v + 1]</code>.
+     */
+    private final int[] occurrenceStart;
+    /** The polygon of each occurrence. */
+    private final int[] occurrencePolygon;
+    /** The vertex before each occurrence in its polygon. */
+    private final int[] occurrencePrevious;
+    /** The vertex after each occurrence in its polygon. */
+    private final int[] occurrenceNext;
+    /** The polygons. */
+    private final VisionBlockingPolygon[] polygons;
+    /** If the vertices of each polygon can be marked irrelevant. */
+    private final boolean[] cullable;
+    /** If each polygon goes anticlockwise, i.e. its inside is to the left of its line segments. */
+    private final boolean[] anticlockwise;
+    /** The index of each unique vertex. */
+    private final Map<Point2D, Integer> vertexIndex;
+    /** If the line segment from the vertex before each occurrence has been disabled. */
+    private final boolean[] previousOpen;
+    /** If the line segment to the vertex after each occurrence has been disabled. */
+    private final boolean[] nextOpen;
+    /** The number of line segments of each polygon that have been disabled. */
+    private final int[] openEdges;
+
+    /**
+     * Creates a new <code>VertexClassifier</code> for the vision/light blocking polygons.
+     * @param visionBlockingPolygonList The polygons that block vision/light.
+     */
+    public VertexClassifier(VisionBlockingPolygonList visionBlockingPolygonList) {
+        final List<VisionBlockingPolygon> polygonList = visionBlockingPolygonList.getPolygonList();
+        polygons = polygonList.toArray(new VisionBlockingPolygon[0]);
+        cullable = new boolean[polygons.length];
+        anticlockwise = new boolean[polygons.length];
+
+        // Number the unique vertices.
+        final Map<Point2D, Integer> index = new LinkedHashMap<>();
+        vertexIndex = index;
+        int numOccurrences = 0;
+        for (VisionBlockingPolygon vbp : polygons) {
+            for (Point2D vert : vbp.getVertices()) {
+                index.putIfAbsent(vert, index.size());
+            }
+            numOccurrences += vbp.getNumberVerticies();
+        }
+        final int numVertices = index.size();
+        vertexX = new double[numVertices];
+        vertexY = new double[numVertices];
+        for (Map.Entry<Point2D, Integer> entry : index.entrySet()) {
+            vertexX[entry.getValue()] = entry.getKey().getX();
+            vertexY[entry.getValue()] = entry.getKey().getY();
+        }
+
+        occurrenceStart = new int[numVertices + 1];
+        for (VisionBlockingPolygon vbp : polygons) {
+            for (Point2D vert : vbp.getVertices()) {
+                occurrenceStart[index.get(vert) + 1]++;
+            }
+        }
+        for (int v = 0; v < numVertices; v++) {
+            occurrenceStart[v + 1] += occurrenceStart[v];
+        }
+
+        occurrencePolygon = new int[numOccurrences];
+        occurrencePrevious = new int[numOccurrences];
+        occurrenceNext = new int[numOccurrences];
+        final int[] fill = new int[numVertices];
+        for (int poly = 0; poly < polygons.length; poly++) {
+            final List<Point2D> vertices = polygons[poly].getVertices();
+            final int n = vertices.size();
+            for (int i = 0; i < n; i++) {
+                final int v = index.get(vertices.get(i));
+                final int occurrence = occurrenceStart[v] + fill[v]++;
+                occurrencePolygon[occurrence] = poly;
+                occurrencePrevious[occurrence] = index.get(vertices.get((i + n - 1) % n));
+                occurrenceNext[occurrence] = index.get(vertices.get((i + 1) % n));
+            }
+            anticlockwise[poly] = signedArea(polygons[poly]) > 0;
+            cullable[poly] = n >= 3 && n <= MAX_CHECKED_VERTICES && !crossesItself(polygons[poly]);
+        }
+
+        previousOpen = new boolean[numOccurrences];
+        nextOpen = new boolean[numOccurrences];
+        openEdges = new int[polygons.length];
+        for (LineSegment lineSegment : visionBlockingPolygonList.getDisabledLineSegments()) {
+            setLineSegmentEnabled(lineSegment.getPoint1(), lineSegment.getPoint2(), false);
+        }
+    }
+
+    /**
+     * Creates a new <code>VertexClassifier</code> that is a copy of another one. Enabling and disabling line segments
+     * in either doesn't affect the other.
+     * @param other The classifier to copy.
+     */
+    VertexClassifier(VertexClassifier other) {
+        // Only which line segments are disabled can change, everything else can be shared.
+        vertexX = other.vertexX;
+        vertexY = other.vertexY;
+        occurrenceStart = other.occurrenceStart;
+        occurrencePolygon = other.occurrencePolygon;
+        occurrencePrevious = other.occurrencePrevious;
+        occurrenceNext = other.occurrenceNext;
+        polygons = other.polygons;
+        cullable = other.cullable;
+        anticlockwise = other.anticlockwise;
+        vertexIndex = other.vertexIndex;
+        previousOpen = other.previousOpen.clone();
+        nextOpen = other.nextOpen.clone();
+        openEdges = other.openEdges.clone();
+    }
+
+    /**
+     * Records that the line segment between two vertices has been enabled or disabled, in every polygon it is in.
+     * This is managed by {@link VisionBlockingPolygonList}.
+     * @param point1 One end of the line segment.
+     * @param point2 The other end of the line segment.
+     * @param enabled <code>false</code> if the line segment no longer blocks vision/light.
+     */
+    void setLineSegmentEnabled(Point2D point1, Point2D point2, boolean enabled) {
+        final Integer v1 = vertexIndex.get(point1);
+        final Integer v2 = vertexIndex.get(point2);
+        if (v1 == null || v2 == null) {
+            return;
+        }
+        setOpen(v1, v2, !enabled);
+        setOpen(v2, v1, !enabled);
+    }
+
+    /**
+     * Marks the line segments from a vertex to one of its neighbours as open or closed, in every polygon it is in.
+     * @param v The index of the vertex.
+     * @param neighbour The index of the neighbouring vertex.
+     * @param open <code>true</code> if the line segment has been disabled.
+     */
+    private void setOpen(int v, int neighbour, boolean open) {
+        for (int occurrence = occurrenceStart[v]; occurrence < occurrenceStart[v + 1]; occurrence++) {
+            if (occurrencePrevious[occurrence] == neighbour) {
+                previousOpen[occurrence] = open;
+            }
+            // Each line segment of a polygon is the one after exactly one occurrence, so it is counted there.
+            if (occurrenceNext[occurrence] == neighbour && nextOpen[occurrence] != open) {
+                nextOpen[occurrence] = open;
+                openEdges[occurrencePolygon[occurrence]] += open ? 1 : -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of unique vertices.
+     * @return the number of vertices.
+     */
+    public int getNumberVertices() {
+        return vertexX.length;
+    }
+
+    /**
+     * Returns the X co-ordinate of a vertex.
+     * @param v The index of the vertex.
+     * @return the X co-ordinate.
+     */
+    public double getX(int v) {
+        return vertexX[v];
+    }
+
+    /**
+     * Returns the Y co-ordinate of a vertex.
+     * @param v The index of the vertex.
+     * @return the Y co-ordinate.
+     */
+    public double getY(int v) {
+        return vertexY[v];
+    }
+
+    /**
+     * Returns the number of polygons.
+     * @return the number of polygons.
+     */
+    public int getNumberPolygons() {
+        return polygons.length;
+    }
+
+    /**
+     * Works out what rays each vertex needs for a viewer.
+     *
+     * A vertex in several polygons is irrelevant if it is hidden behind any of them, otherwise it needs the rays
+     * needed for any of them. A line segment in line with the ray only grazes it, so rays are cast either side of the
+     * vertex.
+     *
+     * @param viewerX The X co-ordinate of the viewer.
+     * @param viewerY The Y co-ordinate of the viewer.
+     * @param classes Where the class of each vertex is written, at least {@link #getNumberVertices()} long.
+     * @param sides Scratch space for where the viewer is relative to each polygon, at least
+     *              {@link #getNumberPolygons()} long.
+     */
+    public void classify(double viewerX, double viewerY, VertexClass[] classes, byte[] sides) {
+        for (int poly = 0; poly < polygons.length; poly++) {
+            sides[poly] = isCullable(poly) ? getSide(polygons[poly], viewerX, viewerY) : OUTSIDE;
+        }
+
+        for (int v = 0; v < vertexX.length; v++) {
+            final double dx = vertexX[v] - viewerX;
+            final double dy = vertexY[v] - viewerY;
+            boolean irrelevant = false;
+            boolean passesBefore = false;
+            boolean passesAfter = false;
+            for (int occurrence = occurrenceStart[v]; occurrence < occurrenceStart[v + 1]; occurrence++) {
+                final int prev = occurrencePrevious[occurrence];
+                final int next = occurrenceNext[occurrence];
+                final int poly = occurrencePolygon[occurrence];
+                if (previousOpen[occurrence] || nextOpen[occurrence]) {
+                    // Only one side of the vertex blocks anything, rays can pass it either side.
+                    passesBefore = true;
+                    passesAfter = true;
+                    continue;
+                }
+                if (isCullable(poly) && sides[poly] != ON_EDGE
+                        && facesAway(prev, v, poly, viewerX, viewerY, sides[poly] == INSIDE)
+                        && facesAway(v, next, poly, viewerX, viewerY, sides[poly] == INSIDE)) {
+                    irrelevant = true;
+                    break;
+                }
+
+                // Which side of the ray each of the neighbouring vertices is on, positive is after it.
+                final double prevSide = sideOfRay(dx, dy, v, prev);
+                final double nextSide = sideOfRay(dx, dy, v, next);
+                if ((prevSide > 0 && nextSide < 0) || (prevSide < 0 && nextSide > 0)) {
+                    continue;
+                }
+                if (prevSide == 0 || nextSide == 0) {
+                    // The ray grazes a line segment in line with it, so where it ends is down to rounding.
+                    passesBefore = true;
+                    passesAfter = true;
+                    continue;
+                }
+                // Rays can pass on the side neither line segment is on.
+                passesBefore |= prevSide > 0;
+                passesAfter |= prevSide < 0;
+            }
+
+            final VertexClass vertexClass;
+            if (irrelevant) {
+                vertexClass = VertexClass.IRRELEVANT;
+            } else if (passesBefore && passesAfter) {
+                vertexClass = VertexClass.SILHOUETTE;
+            } else if (passesBefore) {
+                vertexClass = VertexClass.SILHOUETTE_BEFORE;
+            } else if (passesAfter) {
+                vertexClass = VertexClass.SILHOUETTE_AFTER;
+            } else {
+                vertexClass = VertexClass.BLOCKING_CORNER;
+            }
+            classes[v] = vertexClass;
+        }
+    }
+
+    /**
+     * Returns which side of a ray to a vertex one of its neighbours is on. A neighbour within rounding of the ray, as
+     * it is when the viewer is on the line segment between them, counts as in line with it so that rays are still
+     * cast to pass the vertex on either side.
+     * @param dx The X component of the direction of the ray.
+     * @param dy The Y component of the direction of the ray.
+     * @param v The index of the vertex.
+     * @param neighbour The index of the neighbouring vertex.
+     * @return positive if the neighbour is after the ray, negative if it is before it, or zero if it is in line.
+     */
+    private double sideOfRay(double dx, double dy, int v, int neighbour) {
+        final double ex = vertexX[neighbour] - vertexX[v];
+        final double ey = vertexY[neighbour] - vertexY[v];
+        final double side = dx * ey - dy * ex;
+        // The sine of the angle between the ray and the line segment is side / (|d| |e|).
+        if (side * side <= RELATIVE_TOLERANCE * RELATIVE_TOLERANCE * (dx * dx + dy * dy) * (ex * ex + ey * ey)) {
+            return 0;
+        }
+        return side;
+    }
+
+    /**
+     * Returns if the vertices of a polygon can be marked irrelevant, which they can't if the polygon crosses itself or
+     * has a line segment disabled.
+     * @param poly The index of the polygon.
+     * @return <code>true</code> if the vertices can be marked irrelevant.
+     */
+    private boolean isCullable(int poly) {
+        return cullable[poly] && openEdges[poly] == 0;
+    }
+
+    /**
+     * Returns if a line segment of a polygon faces away from the viewer, so that it is hidden behind the rest of the
+     * polygon.
+     *
+     * From outside a polygon the first line segment a ray hits is always one where it goes in, so line segments with
+     * the viewer on their inside are hidden. From inside it is the other way round.
+     *
+     * @param from The index of the vertex the line segment starts at.
+     * @param to The index of the vertex the line segment ends at.
+     * @param poly The index of the polygon.
+     * @param viewerX The X co-ordinate of the viewer.
+     * @param viewerY The Y co-ordinate of the viewer.
+     * @param inside <code>true</code> if the viewer is inside the polygon.
+     * @return <code>true</code> if the line segment faces away from the viewer.
+     */
+    private boolean facesAway(int from, int to, int poly, double viewerX, double viewerY, boolean inside) {
+        final double cross = (vertexX[to] - vertexX[from]) * (viewerY - vertexY[from])
+                - (vertexY[to] - vertexY[from]) * (viewerX - vertexX[from]);
+        if (cross == 0) {
+            // The viewer is in line with the line segment.
+            return false;
+        }
+        final boolean viewerOnInside = anticlockwise[poly] == (cross > 0);
+        return viewerOnInside != inside;
+    }
+
+    /**
+     * Returns where a point is relative to a polygon, using the even-odd rule for whether it is inside.
+     *
+     * A point on a line segment is neither inside nor outside. Rays cast from there can start either side of the line
+     * segment depending on rounding, so it is reported separately rather than letting the even-odd rule pick a side.
+     *
+     * @param vbp The polygon, which has no line segments of zero length.
+     * @param x The X co-ordinate of the point.
+     * @param y The Y co-ordinate of the point.
+     * @return {@link #INSIDE}, {@link #OUTSIDE} or {@link #ON_EDGE}.
+     */
+    private static byte getSide(VisionBlockingPolygon vbp, double x, double y) {
+        final double tolerance = RELATIVE_TOLERANCE
+                * Math.max(1, Math.hypot(vbp.getMaxX() - vbp.getMinX(), vbp.getMaxY() - vbp.getMinY()));
+        if (x < vbp.getMinX() - tolerance || x > vbp.getMaxX() + tolerance
+                || y < vbp.getMinY() - tolerance || y > vbp.getMaxY() + tolerance) {
+            return OUTSIDE;
+        }
+        final double[] xs = vbp.getVerticesX();
+        final double[] ys = vbp.getVerticesY();
+        boolean inside = false;
+        for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+            // The closest point on the line segment to the point.
+            final double ex = xs[i] - xs[j];
+            final double ey = ys[i] - ys[j];
+            final double t = Math.max(0, Math.min(1, ((x - xs[j]) * ex + (y - ys[j]) * ey) / (ex * ex + ey * ey)));
+            final double distanceX = x - xs[j] - ex * t;
+            final double distanceY = y - ys[j] - ey * t;
+            if (distanceX * distanceX + distanceY * distanceY <= tolerance * tolerance) {
+                return ON_EDGE;
+            }
+            if ((ys[i] > y) != (ys[j] > y) && x < xs[j] + (y - ys[j]) * (xs[i] - xs[j]) / (ys[i] - ys[j])) {
+                inside = !inside;
+            }
+        }
+        return inside ? INSIDE : OUTSIDE;
+    }
+
+    /**
+     * Returns twice the signed area of a polygon, which is positive if it goes anticlockwise.
+     * @param vbp The polygon.
+     * @return twice the signed area.
+     */
+    private static double signedArea(VisionBlockingPolygon vbp) {
+        final double[] xs = vbp.getVerticesX();
+        final double[] ys = vbp.getVerticesY();
+        double area = 0;
+        for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+            area += xs[j] * ys[i] - xs[i] * ys[j];
+        }
+        return area;
+    }
+
+    /**
+     * Returns if any two line segments of a polygon that aren't next to each other touch, or if the polygon repeats a
+     * vertex.
+     * @param vbp The polygon.
+     * @return <code>true</code> if the polygon crosses itself.
+     */
+    private static boolean crossesItself(VisionBlockingPolygon vbp) {
+        final double[] xs = vbp.getVerticesX();
+        final double[] ys = vbp.getVerticesY();
+        final int n = xs.length;
+        for (int i = 0; i < n; i++) {
+            final int i2 = (i + 1) % n;
+            if (xs[i] == xs[i2] && ys[i] == ys[i2]) {
+                return true;
+            }
+            for (int j = i + 2; j < n; j++) {
+                final int j2 = (j + 1) % n;
+                if (j2 == i) {
+                    // The last line segment is next to the first.
+                    continue;
+                }
+                if (segmentsTouch(xs[i], ys[i], xs[i2], ys[i2], xs[j], ys[j], xs[j2], ys[j2])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns if two line segments touch, including if they only touch at an end.
+     * @param ax1 The X co-ordinate of the start of the first line segment.
+     * @param ay1 The Y co-ordinate of the start of the first line segment.
+     * @param ax2 The X co-ordinate of the end of the first line segment.
+     * @param ay2 The Y co-ordinate of the end of the first line segment.
+     * @param bx1 The X co-ordinate of the start of the second line segment.
+     * @param by1 The Y co-ordinate of the start of the second line segment.
+     * @param bx2 The X co-ordinate of the end of the second line segment.
+     * @param by2 The Y co-ordinate of the end of the second line segment.
+     * @return <code>true</code> if the line segments touch.
+     */
+    private static boolean segmentsTouch(double ax1, double ay1, double ax2, double ay2,
+                                         double bx1, double by1, double bx2, double by2) {
+        final double d1 = orientation(bx1, by1, bx2, by2, ax1, ay1);
+        final double d2 = orientation(bx1, by1, bx2, by2, ax2, ay2);
+        final double d3 = orientation(ax1, ay1, ax2, ay2, bx1, by1);
+        final double d4 = orientation(ax1, ay1, ax2, ay2, bx2, by2);
+        if (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0))) {
+            return true;
+        }
+        return (d1 == 0 && onSegment(bx1, by1, bx2, by2, ax1, ay1))
+                || (d2 == 0 && onSegment(bx1, by1, bx2, by2, ax2, ay2))
+                || (d3 == 0 && onSegment(ax1, ay1, ax2, ay2, bx1, by1))
+                || (d4 == 0 && onSegment(ax1, ay1, ax2, ay2, bx2, by2));
+    }
+
+    /**
+     * Returns which side of the line through two points a third point is on.
+     * @param x1 The X co-ordinate of the first point on the line.
+     * @param y1 The Y co-ordinate of the first point on the line.
+     * @param x2 The X co-ordinate of the second point on the line.
+     * @param y2 The Y co-ordinate of the second point on the line.
+     * @param px The X co-ordinate of the point.
+     * @param py The Y co-ordinate of the point.
+     * @return positive on one side, negative on the other and 0 on the line.
+     */
+    private static double orientation(double x1, double y1, double x2, double y2, double px, double py) {
+        return (x2 - x1) * (py - y1) - (y2 - y1) * (px - x1);
+    }
+
+    /**
+     * Returns if a point on the line through a line segment is within the line segment.
+     * @param x1 The X co-ordinate of the start of the line segment.
+     * @param y1 The Y co-ordinate of the start of the line segment.
+     * @param x2 The X co-ordinate of the end of the line segment.
+     * @param y2 The Y co-ordinate of the end of the line segment.
+     * @param px The X co-ordinate of the point.
+     * @param py The Y co-ordinate of the point.
+     * @return <code>true</code> if the point is within the line segment.
+     */
+    private static boolean onSegment(double x1, double y1, double x2, double y2, double px, double py) {
+        return Math.min(x1, x2) <= px && px <= Math.max(x1, x2) && Math.min(y1, y2) <= py && py <= Math.max(y1, y2);
+    }
+}
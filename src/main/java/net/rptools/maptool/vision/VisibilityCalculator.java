@@ -0,0 +1,27 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.List;
+
+/**
+ * Interface for classes that calculate the area visible (or lit) from a point given a set of vision/light
+ * blocking polygons.
+ */
+public interface VisibilityCalculator {
+
+    /** Small delta angle used for a ray either side of vertex so that vision/light will extend past the vertex. */
+    double VERY_SMALL_ANGLE = 0.00001;
+
+    /**
+     * Calculates the area visible from the viewer.
+     *
+     * The result is a list of the closest intersections along rays cast from the viewer, sorted by the angle of the
+     * ray so that consecutive intersections (and the last and first) form triangles with the viewer.
+     *
+     * @param visionBlockingPolygonList The polygons that block vision/light.
+     * @param viewer The viewer (or light source).
+     * @return the intersections that make up the visible area sorted by angle.
+     */
+    List<LineIntersection> calculateVisibility(VisionBlockingPolygonList visionBlockingPolygonList, Point2D viewer);
+}
@@ -0,0 +1,658 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary encoding of visible areas for sending them from a server to clients.
+ *
+ * The co-ordinates are rounded to a fixed number of fractional bits and each vertex is written as the difference from
+ * the one before it (the first from the viewer), zigzag encoded so small negative differences are small too, as a
+ * variable length integer of 7 bits a byte. Visible areas are mostly short edges near the viewer, so most vertices
+ * take 2 to 4 bytes instead of the 8 or more of a pair of floats.
+ *
+ * Each viewer has its own {@link Encoder} and {@link Decoder}, which remember the last frame so that the next one can
+ * be sent as a delta against it: runs of vertices that are in the same order in both frames (the corners of walls that
+ * are still in view) are copied, and only the vertices that changed are written. If too little of the frame can be
+ * copied, or there is no previous frame, a key frame is written instead.
+ *
+ * Every frame starts with a byte holding {@link #FORMAT_VERSION} and whether it is a key or delta frame, followed by
+ * its frame number so a delta frame that doesn't follow the decoder's last frame is detected rather than decoded
+ * against the wrong one.
+ *
+ * Encoding and decoding write to and read from a {@link ByteBuffer} and allocate nothing once their arrays have grown
+ * to fit the largest frame seen.
+ */
+public final class VisibilityCodec {
+    /** The version of the encoding, written in the top half of the first byte of each frame. */
+    public static final int FORMAT_VERSION = 1;
+    /** The number of fractional bits kept if none is given, co-ordinates are rounded to 1/16. */
+    public static final int DEFAULT_FRACTION_BITS = 4;
+    /** The largest number of fractional bits that can be kept. */
+    public static final int MAX_FRACTION_BITS = 16;
+
+    /** Frame type of a frame that doesn't depend on any other. */
+    private static final int KEY_FRAME = 0;
+    /** Frame type of a frame that is encoded against the one before it. */
+    private static final int DELTA_FRAME = 1;
+
+    /** Delta frame operation that copies a run of vertices from the previous frame. */
+    private static final int COPY = 0;
+    /** Delta frame operation that skips over vertices of the previous frame that are no longer there. */
+    private static final int SKIP = 1;
+    /** Delta frame operation that is followed by a run of new vertices. */
+    private static final int LITERAL = 2;
+    /** The number of bits the operation takes at the bottom of its run length. */
+    private static final int OP_BITS = 2;
+
+    /** The most vertices of the previous frame a single vertex that matches is allowed to skip over. */
+    private static final int MAX_SKIP = 16;
+    /** The largest number of bytes a variable length <code>int</code> takes. */
+    private static final int MAX_VARINT_BYTES = 5;
+
+    /**
+     * There are no instances, everything is in the {@link Encoder} and {@link Decoder}.
+     */
+    private VisibilityCodec() {
+    }
+
+    /**
+     * Returns the most bytes a frame of a visible area can take, for sizing the buffer it is encoded into.
+     * @param numVertices The number of vertices in the visible area.
+     * @return the most bytes the frame can take.
+     */
+    public static int getMaxEncodedSize(int numVertices) {
+        // Header, frame number, fractional bits, viewer and number of vertices, then at worst a skip, an operation and
+        // the co-ordinates for every vertex.
+        return 2 + MAX_VARINT_BYTES * 4 + numVertices * MAX_VARINT_BYTES * 4;
+    }
+
+    /**
+     * Encodes the visible areas of one viewer, each as a delta against the one before when that is smaller.
+     *
+     * This is not thread safe, each viewer being sent to each client should have its own encoder.
+     */
+    public static class Encoder {
+        /** The number of fractional bits kept. */
+        private final int fractionBits;
+        /** What co-ordinates are multiplied by before they are rounded. */
+        private final double scale;
+        /** The number of the next frame. */
+        private int frameNumber;
+        /** <code>true</code> if there is a previous frame the next one can be a delta against. */
+        private boolean hasPrevious;
+
+        /** The rounded X co-ordinate of the viewer in the previous frame. */
+        private int previousViewerX;
+        /** The rounded Y co-ordinate of the viewer in the previous frame. */
+        private int previousViewerY;
+        /** The number of vertices in the previous frame. */
+        private int previousCount;
+        /** The rounded X co-ordinates of the vertices in the previous frame. */
+        private int[] previousX = new int[0];
+        /** The rounded Y co-ordinates of the vertices in the previous frame. */
+        private int[] previousY = new int[0];
+
+        /** The number of vertices in the frame being encoded. */
+        private int count;
+        /** The rounded X co-ordinates of the vertices in the frame being encoded. */
+        private int[] currentX = new int[0];
+        /** The rounded Y co-ordinates of the vertices in the frame being encoded. */
+        private int[] currentY = new int[0];
+        /** The index in the previous frame each vertex is copied from, or -1 if it is new. */
+        private int[] match = new int[0];
+
+        /** Hash table of the vertices of the previous frame, the index of the first vertex at each point. */
+        private int[] tableIndex = new int[0];
+        /** The frame each slot of the hash table was filled for, so it doesn't need clearing. */
+        private int[] tableStamp = new int[0];
+        /** The index of the next vertex of the previous frame at the same point as each one, or -1. */
+        private int[] sameNext = new int[0];
+        /** The stamp of slots filled for the previous frame. */
+        private int stamp;
+
+        /**
+         * Creates a new <code>Encoder</code> that rounds co-ordinates to 1/16.
+         */
+        public Encoder() {
+            this(DEFAULT_FRACTION_BITS);
+        }
+
+        /**
+         * Creates a new <code>Encoder</code>. Co-ordinates must fit in an <code>int</code> after being multiplied by
+         * 2 to the power of the fractional bits.
+         * @param iFractionBits The number of fractional bits of the co-ordinates to keep, 0 rounds to whole numbers.
+         */
+        public Encoder(int iFractionBits) {
+            if (iFractionBits < 0 || iFractionBits > MAX_FRACTION_BITS) {
+                throw new IllegalArgumentException("Fraction bits must be from 0 to " + MAX_FRACTION_BITS);
+            }
+            fractionBits = iFractionBits;
+            scale = 1 << fractionBits;
+        }
+
+        /**
+         * Makes the next frame a key frame, such as when a new client starts receiving this viewer.
+         */
+        public void reset() {
+            hasPrevious = false;
+        }
+
+        /**
+         * Returns the number of the next frame to be encoded.
+         * @return the frame number.
+         */
+        public int getFrameNumber() {
+            return frameNumber;
+        }
+
+        /**
+         * Encodes a visible area.
+         * @param viewer The viewer (or light source).
+         * @param lineIntersections The intersections that make up the visible area sorted by angle, as returned by a
+         *                          {@link VisibilityCalculator}.
+         * @param out Where the frame is written, which must have at least {@link #getMaxEncodedSize(int)} bytes
+         *            remaining.
+         * @return <code>true</code> if a key frame was written, <code>false</code> if a delta frame was.
+         */
+        public boolean encode(Point2D viewer, List<LineIntersection> lineIntersections, ByteBuffer out) {
+            final int viewerX = quantize(viewer.getX());
+            final int viewerY = quantize(viewer.getY());
+            count = lineIntersections.size();
+            if (currentX.length < count) {
+                final int capacity = Math.max(count, currentX.length * 2);
+                currentX = new int[capacity];
+                currentY = new int[capacity];
+                match = new int[capacity];
+            }
+            for (int i = 0; i < count; i++) {
+                final Point2D point = lineIntersections.get(i).getPoint();
+                currentX[i] = quantize(point.getX());
+                currentY[i] = quantize(point.getY());
+            }
+
+            final boolean keyFrame = !hasPrevious || !matchPrevious();
+            out.put((byte) (FORMAT_VERSION << 4 | (keyFrame ? KEY_FRAME : DELTA_FRAME)));
+            putVarint(out, frameNumber);
+            if (keyFrame) {
+                out.put((byte) fractionBits);
+                putVarint(out, zigzag(viewerX));
+                putVarint(out, zigzag(viewerY));
+                putVarint(out, count);
+                putVertices(out, 0, count, viewerX, viewerY);
+            } else {
+                putVarint(out, zigzag(viewerX - previousViewerX));
+                putVarint(out, zigzag(viewerY - previousViewerY));
+                putVarint(out, count);
+                putDelta(out, viewerX, viewerY);
+            }
+
+            // This frame becomes the previous one.
+            int[] swap = previousX;
+            previousX = currentX;
+            currentX = swap;
+            swap = previousY;
+            previousY = currentY;
+            currentY = swap;
+            previousCount = count;
+            previousViewerX = viewerX;
+            previousViewerY = viewerY;
+            hasPrevious = true;
+            frameNumber++;
+            return keyFrame;
+        }
+
+        /**
+         * Rounds a co-ordinate to the fractional bits kept.
+         * @param v The co-ordinate.
+         * @return the rounded co-ordinate, in units of the smallest fraction kept.
+         */
+        private int quantize(double v) {
+            return (int) Math.round(v * scale);
+        }
+
+        /**
+         * Finds the vertices of the frame being encoded that can be copied from the previous frame, which are those at
+         * the same point and in the same order.
+         * @return <code>true</code> if a delta frame would be smaller than a key frame. Each vertex copied saves at
+         *         least 2 bytes, and each operation of a delta frame usually costs 1 or 2.
+         */
+        private boolean matchPrevious() {
+            // Power of two at least twice the number of vertices, so the table is never more than half full.
+            int size = Integer.highestOneBit(Math.max(1, previousCount) * 2) << 1;
+            if (tableIndex.length < size) {
+                tableIndex = new int[size];
+                tableStamp = new int[size];
+            } else {
+                size = tableIndex.length;
+            }
+            if (sameNext.length < previousCount) {
+                sameNext = new int[previousX.length];
+            }
+            stamp++;
+            // Added from the end so that each slot ends up with the first vertex at its point, and the vertices after
+            // it at the same point are chained in order.
+            for (int j = previousCount - 1; j >= 0; j--) {
+                int slot = hash(previousX[j], previousY[j]) & (size - 1);
+                while (tableStamp[slot] == stamp && (previousX[tableIndex[slot]] != previousX[j]
+                        || previousY[tableIndex[slot]] != previousY[j])) {
+                    slot = (slot + 1) & (size - 1);
+                }
+                sameNext[j] = tableStamp[slot] == stamp ? tableIndex[slot] : -1;
+                tableStamp[slot] = stamp;
+                tableIndex[slot] = j;
+            }
+
+            int matched = 0;
+            int operations = 0;
+            int cursor = 0;
+            for (int i = 0; i < count; i++) {
+                final int j = find(currentX[i], currentY[i], size, cursor);
+                final int start = cursor;
+                match[i] = -1;
+                // Copying never goes backwards, so a match far ahead (such as a corner that has come round from the
+                // other end of the sweep) would stop everything before it being copied. Only jump that far for a run.
+                if (j >= 0 && (j - cursor <= MAX_SKIP || i + 1 < count && j + 1 < previousCount
+                        && previousX[j + 1] == currentX[i + 1] && previousY[j + 1] == currentY[i + 1])) {
+                    match[i] = j;
+                    cursor = j + 1;
+                    matched++;
+                }
+                if (i == 0 || (match[i] < 0 ? match[i - 1] >= 0 : match[i - 1] != match[i] - 1)) {
+                    // Starts a new run, which takes a skip as well if it is a copy from further on.
+                    operations += match[i] > start ? 2 : 1;
+                }
+            }
+            return matched > operations;
+        }
+
+        /**
+         * Looks up a point in the hash table of the vertices of the previous frame.
+         * @param x The rounded X co-ordinate.
+         * @param y The rounded Y co-ordinate.
+         * @param size The size of the hash table.
+         * @param cursor The index of the first vertex of the previous frame that can be copied.
+         * @return the index of the first vertex of the previous frame at the point that can be copied, or -1 if there
+         *         isn't one.
+         */
+        private int find(int x, int y, int size, int cursor) {
+            int slot = hash(x, y) & (size - 1);
+            while (tableStamp[slot] == stamp) {
+                int j = tableIndex[slot];
+                if (previousX[j] == x && previousY[j] == y) {
+                    while (j >= 0 && j < cursor) {
+                        j = sameNext[j];
+                    }
+                    return j;
+                }
+                slot = (slot + 1) & (size - 1);
+            }
+            return -1;
+        }
+
+        /**
+         * Writes the vertices of a delta frame as copies, skips and runs of new vertices.
+         * @param out Where the frame is written.
+         * @param viewerX The rounded X co-ordinate of the viewer.
+         * @param viewerY The rounded Y co-ordinate of the viewer.
+         */
+        private void putDelta(ByteBuffer out, int viewerX, int viewerY) {
+            int lastX = viewerX;
+            int lastY = viewerY;
+            int cursor = 0;
+            int i = 0;
+            while (i < count) {
+                final int start = i;
+                if (match[i] >= 0) {
+                    final int j = match[i];
+                    if (j > cursor) {
+                        putVarint(out, (j - cursor) << OP_BITS | SKIP);
+                    }
+                    while (i < count && match[i] == j + (i - start)) {
+                        i++;
+                    }
+                    putVarint(out, (i - start) << OP_BITS | COPY);
+                    cursor = j + (i - start);
+                } else {
+                    while (i < count && match[i] < 0) {
+                        i++;
+                    }
+                    putVarint(out, (i - start) << OP_BITS | LITERAL);
+                    putVertices(out, start, i, lastX, lastY);
+                }
+                lastX = currentX[i - 1];
+                lastY = currentY[i - 1];
+            }
+        }
+
+        /**
+         * Writes a run of vertices as the differences from the vertex before each of them.
+         * @param out Where the vertices are written.
+         * @param start The index of the first vertex.
+         * @param end The index after the last vertex.
+         * @param lastX The rounded X co-ordinate of the vertex before the first one.
+         * @param lastY The rounded Y co-ordinate of the vertex before the first one.
+         */
+        private void putVertices(ByteBuffer out, int start, int end, int lastX, int lastY) {
+            for (int i = start; i < end; i++) {
+                putVarint(out, zigzag(currentX[i] - lastX));
+                putVarint(out, zigzag(currentY[i] - lastY));
+                lastX = currentX[i];
+                lastY = currentY[i];
+            }
+        }
+    }
+
+    /**
+     * Decodes the visible areas of one viewer written by an {@link Encoder}.
+     *
+     * This is not thread safe, each viewer being received should have its own decoder.
+     */
+    public static class Decoder {
+        /** What rounded co-ordinates are multiplied by to get them back, set by the first key frame. */
+        private double inverseScale = Double.NaN;
+        /** The number of the last frame decoded. */
+        private int frameNumber;
+        /** <code>true</code> if a frame has been decoded that a delta frame can follow. */
+        private boolean hasPrevious;
+
+        /** The rounded X co-ordinate of the viewer. */
+        private int viewerX;
+        /** The rounded Y co-ordinate of the viewer. */
+        private int viewerY;
+        /** The number of vertices in the last frame decoded. */
+        private int count;
+        /** The rounded X co-ordinates of the vertices in the last frame decoded. */
+        private int[] vertexX = new int[0];
+        /** The rounded Y co-ordinates of the vertices in the last frame decoded. */
+        private int[] vertexY = new int[0];
+        /** The rounded X co-ordinates of the vertices in the frame being decoded. */
+        private int[] nextX = new int[0];
+        /** The rounded Y co-ordinates of the vertices in the frame being decoded. */
+        private int[] nextY = new int[0];
+
+        /**
+         * Decodes a frame. If the frame can't be decoded the last frame decoded is kept, and the next frame needs to be
+         * a key frame.
+         * @param in Where the frame is read from, positioned after the frame when this returns.
+         * @throws IOException if the frame is corrupt, is from another version of the encoding, or is a delta frame
+         *                     that doesn't follow the last frame decoded.
+         */
+        public void decode(ByteBuffer in) throws IOException {
+            try {
+                final int header = in.get() & 0xff;
+                if (header >>> 4 != FORMAT_VERSION) {
+                    throw new IOException("Unsupported visibility frame version " + (header >>> 4));
+                }
+                final int type = header & 0xf;
+                final int frame = getVarint(in);
+                final int x;
+                final int y;
+                final int numVertices;
+                if (type == KEY_FRAME) {
+                    final int fractionBits = in.get();
+                    if (fractionBits < 0 || fractionBits > MAX_FRACTION_BITS) {
+                        throw new IOException("Visibility frame is corrupt");
+                    }
+                    x = unzigzag(getVarint(in));
+                    y = unzigzag(getVarint(in));
+                    numVertices = getCount(in);
+                    getVertices(in, 0, numVertices, x, y);
+                    inverseScale = 1.0 / (1 << fractionBits);
+                } else if (type == DELTA_FRAME) {
+                    if (!hasPrevious || frame != frameNumber + 1) {
+                        hasPrevious = false;
+                        throw new IOException("Visibility delta frame " + frame + " doesn't follow frame "
+                                + frameNumber);
+                    }
+                    x = viewerX + unzigzag(getVarint(in));
+                    y = viewerY + unzigzag(getVarint(in));
+                    numVertices = getCount(in);
+                    getDelta(in, numVertices, x, y);
+                } else {
+                    throw new IOException("Visibility frame is corrupt");
+                }
+
+                int[] swap = vertexX;
+                vertexX = nextX;
+                nextX = swap;
+                swap = vertexY;
+                vertexY = nextY;
+                nextY = swap;
+                count = numVertices;
+                viewerX = x;
+                viewerY = y;
+                frameNumber = frame;
+                hasPrevious = true;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                hasPrevious = false;
+                throw new IOException("Visibility frame is corrupt", e);
+            } catch (IOException e) {
+                hasPrevious = false;
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the number of the last frame decoded.
+         * @return the frame number.
+         */
+        public int getFrameNumber() {
+            return frameNumber;
+        }
+
+        /**
+         * Returns the number of vertices in the last frame decoded.
+         * @return the number of vertices.
+         */
+        public int getNumberVertices() {
+            return count;
+        }
+
+        /**
+         * Returns the X co-ordinate of a vertex in the last frame decoded.
+         * @param i The index of the vertex.
+         * @return the X co-ordinate.
+         */
+        public double getX(int i) {
+            return vertexX[i] * inverseScale;
+        }
+
+        /**
+         * Returns the Y co-ordinate of a vertex in the last frame decoded.
+         * @param i The index of the vertex.
+         * @return the Y co-ordinate.
+         */
+        public double getY(int i) {
+            return vertexY[i] * inverseScale;
+        }
+
+        /**
+         * Returns the X co-ordinate of the viewer in the last frame decoded.
+         * @return the X co-ordinate.
+         */
+        public double getViewerX() {
+            return viewerX * inverseScale;
+        }
+
+        /**
+         * Returns the Y co-ordinate of the viewer in the last frame decoded.
+         * @return the Y co-ordinate.
+         */
+        public double getViewerY() {
+            return viewerY * inverseScale;
+        }
+
+        /**
+         * Returns the last frame decoded as intersections, with the distances and directions worked out from the
+         * viewer. Unlike the rest of the decoder this allocates.
+         * @return the intersections that make up the visible area in the order they were encoded. Vertices at almost
+         *         the same angle may be out of order by angle after rounding.
+         */
+        public List<LineIntersection> toLineIntersections() {
+            final List<LineIntersection> lineIntersections = new ArrayList<>(count);
+            final double vx = getViewerX();
+            final double vy = getViewerY();
+            for (int i = 0; i < count; i++) {
+                final double x = getX(i);
+                final double y = getY(i);
+                final double distance = Math.hypot(x - vx, y - vy);
+                final double scale = distance > 0 ? 1 / distance : 1;
+                lineIntersections.add(new LineIntersection(new Point2D(x, y), distance, (x - vx) * scale,
+                        (y - vy) * scale));
+            }
+            return lineIntersections;
+        }
+
+        /**
+         * Reads the number of vertices in a frame and makes sure there is room for them.
+         * @param in Where the frame is read from.
+         * @return the number of vertices.
+         * @throws IOException if the number can't be right.
+         */
+        private int getCount(ByteBuffer in) throws IOException {
+            final int numVertices = getVarint(in);
+            // Every vertex takes at least a byte for each co-ordinate or a share of a copy, so this stops a corrupt
+            // count from allocating a huge array.
+            if (numVertices < 0 || numVertices > in.remaining() * 2L + count) {
+                throw new IOException("Visibility frame is corrupt");
+            }
+            if (nextX.length < numVertices) {
+                final int capacity = Math.max(numVertices, nextX.length * 2);
+                nextX = new int[capacity];
+                nextY = new int[capacity];
+            }
+            return numVertices;
+        }
+
+        /**
+         * Reads the vertices of a delta frame.
+         * @param in Where the frame is read from.
+         * @param numVertices The number of vertices in the frame.
+         * @param x The rounded X co-ordinate of the viewer.
+         * @param y The rounded Y co-ordinate of the viewer.
+         * @throws IOException if the frame is corrupt.
+         */
+        private void getDelta(ByteBuffer in, int numVertices, int x, int y) throws IOException {
+            int cursor = 0;
+            int i = 0;
+            while (i < numVertices) {
+                final int op = getVarint(in);
+                final int run = op >>> OP_BITS;
+                if (run <= 0) {
+                    throw new IOException("Visibility frame is corrupt");
+                }
+                switch (op & ((1 << OP_BITS) - 1)) {
+                    case COPY:
+                        if (run > numVertices - i || run > count - cursor) {
+                            throw new IOException("Visibility frame is corrupt");
+                        }
+                        System.arraycopy(vertexX, cursor, nextX, i, run);
+                        System.arraycopy(vertexY, cursor, nextY, i, run);
+                        cursor += run;
+                        i += run;
+                        break;
+                    case SKIP:
+                        if (run > count - cursor) {
+                            throw new IOException("Visibility frame is corrupt");
+                        }
+                        cursor += run;
+                        break;
+                    case LITERAL:
+                        if (run > numVertices - i) {
+                            throw new IOException("Visibility frame is corrupt");
+                        }
+                        getVertices(in, i, i + run, i > 0 ? nextX[i - 1] : x, i > 0 ? nextY[i - 1] : y);
+                        i += run;
+                        break;
+                    default:
+                        throw new IOException("Visibility frame is corrupt");
+                }
+            }
+        }
+
+        /**
+         * Reads a run of vertices written as the differences from the vertex before each of them.
+         * @param in Where the vertices are read from.
+         * @param start The index of the first vertex.
+         * @param end The index after the last vertex.
+         * @param lastX The rounded X co-ordinate of the vertex before the first one.
+         * @param lastY The rounded Y co-ordinate of the vertex before the first one.
+         * @throws IOException if the frame is corrupt.
+         */
+        private void getVertices(ByteBuffer in, int start, int end, int lastX, int lastY) throws IOException {
+            for (int i = start; i < end; i++) {
+                lastX += unzigzag(getVarint(in));
+                lastY += unzigzag(getVarint(in));
+                nextX[i] = lastX;
+                nextY[i] = lastY;
+            }
+        }
+    }
+
+    /**
+     * Maps a signed number to an unsigned one so that numbers near zero are small either side of it.
+     * @param v The signed number.
+     * @return the unsigned number.
+     */
+    static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    /**
+     * Maps a number from {@link #zigzag(int)} back to the signed number.
+     * @param v The unsigned number.
+     * @return the signed number.
+     */
+    static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Writes an unsigned number 7 bits at a time, low bits first, with the top bit of each byte set if there are more.
+     * @param out Where the number is written.
+     * @param v The number, treated as unsigned.
+     */
+    static void putVarint(ByteBuffer out, int v) {
+        while ((v & ~0x7f) != 0) {
+            out.put((byte) (v & 0x7f | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    /**
+     * Reads a number written by {@link #putVarint(ByteBuffer, int)}.
+     * @param in Where the number is read from.
+     * @return the number.
+     * @throws IOException if the number is too long.
+     */
+    static int getVarint(ByteBuffer in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < MAX_VARINT_BYTES * 7; shift += 7) {
+            final int b = in.get();
+            v |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+        throw new IOException("Visibility frame is corrupt");
+    }
+
+    /**
+     * Returns a hash of a rounded point for the encoder's hash table.
+     * @param x The rounded X co-ordinate.
+     * @param y The rounded Y co-ordinate.
+     * @return the hash.
+     */
+    private static int hash(int x, int y) {
+        final int h = x * 0x9e3779b1 + y;
+        return h ^ (h >>> 16);
+    }
+}
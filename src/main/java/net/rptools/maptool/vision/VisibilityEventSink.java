@@ -0,0 +1,38 @@
+package net.rptools.maptool.vision;
+
+/**
+ * Somewhere the details of each visibility calculation are sent when {@link VisibilityMetrics} are enabled, such as
+ * a Java Flight Recorder event.
+ *
+ * An event is started with {@link #begin()} before the calculation so that its duration is the time the calculation
+ * takes, and committed with the details once it has finished.
+ */
+interface VisibilityEventSink {
+
+    /**
+     * Starts the event for a visibility calculation that is about to be made.
+     * @return the event, or <code>null</code> if the sink isn't recording events.
+     */
+    CalculationEvent begin();
+
+
+    /**
+     * The event for a single visibility calculation.
+     */
+    interface CalculationEvent {
+
+        /**
+         * Ends the event and records the details of the calculation.
+         *
+         * @param calculator The name of the calculator used.
+         * @param viewerX The X co-ordinate of the viewer.
+         * @param viewerY The Y co-ordinate of the viewer.
+         * @param segments The number of line segments blocking vision/light.
+         * @param rays The number of rays cast.
+         * @param intersectionTests The number of times a ray was tested against a line segment.
+         * @param hits The number of intersections in the visible area.
+         */
+        void commit(String calculator, double viewerX, double viewerY, int segments, long rays,
+                    long intersectionTests, int hits);
+    }
+}
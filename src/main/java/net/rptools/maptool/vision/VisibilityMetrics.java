@@ -0,0 +1,211 @@
+package net.rptools.maptool.vision;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings for the visibility calculations made through {@link InstrumentedVisibility}, for finding out
+ * where the time goes on slow maps.
+ *
+ * Nothing is recorded unless this is enabled, either with {@link #setEnabled(boolean)} or by starting the JVM with
+ * <code>-Dvision.metrics=true</code>. When it is disabled the only cost is reading a flag once per calculation.
+ *
+ * While enabled the totals are kept in {@link LongAdder}s so that calculations on many threads don't contend, and
+ * each calculation is also sent to Java Flight Recorder as a <code>net.rptools.maptool.vision.Visibility</code> event
+ * when the JDK has it.
+ *
+ * The calculators report the rays they cast and the line segments they test them against with
+ * {@link #countWork(long, long)} on the thread making the calculation. {@link InstrumentedVisibility} clears the
+ * counts on that thread when a calculation starts, and they are added to the calculation when it is recorded.
+ */
+public final class VisibilityMetrics {
+    /** System property that can be set to <code>true</code> to enable the metrics from the start. */
+    private static final String ENABLED_PROPERTY = "vision.metrics";
+    /** The class of the Java Flight Recorder sink, which is only compiled when the JDK has JFR. */
+    private static final String JFR_SINK_CLASS = "net.rptools.maptool.vision.JfrVisibilityEventSink";
+    /** The Java Flight Recorder sink, or <code>null</code> if it is not available. */
+    private static final VisibilityEventSink JFR_SINK = loadJfrSink();
+
+    /** <code>true</code> if the metrics are being recorded. */
+    private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+    /** The number of calculations. */
+    private static final LongAdder calculations = new LongAdder();
+    /** The number of rays cast. */
+    private static final LongAdder raysCast = new LongAdder();
+    /** The number of times a ray was tested against a line segment. */
+    private static final LongAdder intersectionTests = new LongAdder();
+    /** The number of intersections in the visible areas. */
+    private static final LongAdder hits = new LongAdder();
+    /** The total time taken in nanoseconds. */
+    private static final LongAdder totalNanos = new LongAdder();
+    /** How long each calculation took. */
+    private static final LatencyHistogram latency = new LatencyHistogram();
+
+    /** The rays cast and intersection tests made by the current calculation on each thread. */
+    private static final ThreadLocal<long[]> work = ThreadLocal.withInitial(() -> new long[2]);
+
+    /**
+     * There are no instances, everything is static.
+     */
+    private VisibilityMetrics() {
+    }
+
+    /**
+     * Returns if the metrics are being recorded.
+     * @return <code>true</code> if enabled.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts or stops recording the metrics. The totals so far are kept, use {@link #reset()} to clear them.
+     * @param iEnabled <code>true</code> to record the metrics.
+     */
+    public static void setEnabled(boolean iEnabled) {
+        enabled = iEnabled;
+    }
+
+    /**
+     * Returns if each calculation is also sent to Java Flight Recorder when enabled.
+     * @return <code>true</code> if the JDK has Java Flight Recorder.
+     */
+    public static boolean isFlightRecorderAvailable() {
+        return JFR_SINK != null;
+    }
+
+    /**
+     * Adds to the rays cast and intersection tests made by the calculation in progress on this thread. Calculators
+     * should only call this when {@link #isEnabled()}.
+     * @param rays The number of rays cast.
+     * @param tests The number of times a ray was tested against a line segment.
+     */
+    public static void countWork(long rays, long tests) {
+        final long[] counts = work.get();
+        counts[0] += rays;
+        counts[1] += tests;
+    }
+
+    /**
+     * Clears the work counted on this thread, so work counted outside of a calculation (such as by a calculator used
+     * directly rather than through {@link InstrumentedVisibility}) isn't added to the next one recorded.
+     */
+    public static void clearWork() {
+        final long[] counts = work.get();
+        counts[0] = 0;
+        counts[1] = 0;
+    }
+
+    /**
+     * Starts the Java Flight Recorder event for a calculation that is about to be made, so that the event's duration
+     * is the time the calculation takes. It is committed by
+     * {@link #record(VisibilityEventSink.CalculationEvent, String, double, double, int, int, long)}.
+     * @return the event, or <code>null</code> if Java Flight Recorder isn't available or isn't recording the events.
+     */
+    static VisibilityEventSink.CalculationEvent beginEvent() {
+        return JFR_SINK == null ? null : JFR_SINK.begin();
+    }
+
+    /**
+     * Records a calculation, along with the work counted on this thread since the last one.
+     * @param event The Java Flight Recorder event from {@link #beginEvent()} to commit, or <code>null</code> if there
+     *              is none.
+     * @param calculator The name of the calculator used.
+     * @param viewerX The X co-ordinate of the viewer.
+     * @param viewerY The Y co-ordinate of the viewer.
+     * @param segments The number of line segments blocking vision/light.
+     * @param numHits The number of intersections in the visible area.
+     * @param nanos How long the calculation took in nanoseconds.
+     */
+    static void record(VisibilityEventSink.CalculationEvent event, String calculator, double viewerX, double viewerY,
+                       int segments, int numHits, long nanos) {
+        final long[] counts = work.get();
+        final long rays = counts[0];
+        final long tests = counts[1];
+        counts[0] = 0;
+        counts[1] = 0;
+
+        calculations.increment();
+        raysCast.add(rays);
+        intersectionTests.add(tests);
+        hits.add(numHits);
+        totalNanos.add(nanos);
+        latency.record(nanos);
+        if (event != null) {
+            event.commit(calculator, viewerX, viewerY, segments, rays, tests, numHits);
+        }
+    }
+
+    /**
+     * Returns the number of calculations recorded.
+     * @return the number of calculations.
+     */
+    public static long getCalculations() {
+        return calculations.sum();
+    }
+
+    /**
+     * Returns the number of rays cast by the calculations recorded.
+     * @return the number of rays.
+     */
+    public static long getRaysCast() {
+        return raysCast.sum();
+    }
+
+    /**
+     * Returns the number of times a ray was tested against a line segment by the calculations recorded.
+     * @return the number of intersection tests.
+     */
+    public static long getIntersectionTests() {
+        return intersectionTests.sum();
+    }
+
+    /**
+     * Returns the number of intersections in the visible areas of the calculations recorded.
+     * @return the number of intersections.
+     */
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the total time taken by the calculations recorded.
+     * @return the time in nanoseconds.
+     */
+    public static long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * Returns the histogram of how long each calculation recorded took.
+     * @return the latency histogram.
+     */
+    public static LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Clears all of the totals and the latency histogram.
+     */
+    public static void reset() {
+        calculations.reset();
+        raysCast.reset();
+        intersectionTests.reset();
+        hits.reset();
+        totalNanos.reset();
+        latency.reset();
+    }
+
+    /**
+     * Loads the Java Flight Recorder sink. It is compiled separately as JFR is only in JDK 11 onwards, so it is only
+     * there when the JDK used to build has it.
+     * @return the sink, or <code>null</code> if it is not available.
+     */
+    private static VisibilityEventSink loadJfrSink() {
+        try {
+            return (VisibilityEventSink) Class.forName(JFR_SINK_CLASS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,615 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combines the areas visible from several viewers (e.g. all of a player's tokens) into the outline and area of
+ * everything any of them can see.
+ *
+ * The visible area of each viewer is calculated with a {@link VisibilityCalculator} and cached, so when only some of
+ * the viewers move only their areas are calculated again. The union itself is a sweep-line boolean union rather than
+ * clipping the areas against each other one pair at a time:
+ * <ol>
+ *     <li>the edges of all of the areas are swept from left to right to find where edges of different areas cross or
+ *     overlap, which only compares edges that overlap the sweep line at the same time,</li>
+ *     <li>the edges are split where they cross, so each piece is either entirely inside or entirely outside each of
+ *     the other areas,</li>
+ *     <li>the pieces outside all of the other areas form the outline. Each area is star shaped around its viewer, so
+ *     whether a point is inside it is found with a binary search for the angle of the point,</li>
+ *     <li>the area is the sum over the outline of the shoelace formula, and the pieces are chained together into the
+ *     rings of the outline.</li>
+ * </ol>
+ *
+ * Where edges of two areas lie along the same line (e.g. where both areas end at the same wall) only one of them is
+ * kept if the areas are on the same side of it and neither is kept if they are on opposite sides.
+ *
+ * This is not thread safe.
+ */
+public class VisibilityUnion {
+    /** How close points must be, relative to the size of the areas, to be treated as the same. */
+    private static final double RELATIVE_TOLERANCE = 1e-9;
+
+    /** The point is inside the polygon. */
+    private static final int INSIDE = 0;
+    /** The point is outside the polygon. */
+    private static final int OUTSIDE = 1;
+    /** The point is on an edge of the polygon that goes the same way as the edge it is on. */
+    private static final int SAME_EDGE = 2;
+    /** The point is on an edge of the polygon that goes the opposite way to the edge it is on. */
+    private static final int OPPOSITE_EDGE = 3;
+
+    /** Used to calculate the area visible from each viewer. */
+    private final VisibilityCalculator visibilityCalculator;
+    /** The viewers the cached areas were calculated for. */
+    private final List<Point2D> viewers = new ArrayList<>();
+    /** The cached visible area of each viewer. */
+    private final List<List<LineIntersection>> visibility = new ArrayList<>();
+    /** The polygons the cached areas were calculated for. */
+    private VisionBlockingPolygonList cachedPolygons;
+    /** The version of the polygons the cached areas were calculated for. */
+    private long cachedVersion;
+    /** The union of the cached areas, <code>null</code> if it needs working out again. */
+    private Result cachedResult;
+    /**
+     * The number of viewers whose areas were calculated by the last call to
+     * {@link #calculate(VisionBlockingPolygonList, List)}.
+     */
+    private int lastCalculated;
+
+    /**
+     * Creates a new <code>VisibilityUnion</code>.
+     * @param calculator Used to calculate the area visible from each viewer.
+     */
+    public VisibilityUnion(VisibilityCalculator calculator) {
+        visibilityCalculator = calculator;
+    }
+
+    /**
+     * Calculates the union of the areas visible from the viewers. Viewers are matched to the previous call by their
+     * position in the list, and only those that have moved (or all of them if the polygons have changed) have their
+     * area calculated again.
+     * @param visionBlockingPolygonList The polygons that block vision/light.
+     * @param viewerList The viewers (or light sources).
+     * @return the union of the areas.
+     */
+    public Result calculate(VisionBlockingPolygonList visionBlockingPolygonList, List<Point2D> viewerList) {
+        final boolean samePolygons = visionBlockingPolygonList == cachedPolygons
+                && visionBlockingPolygonList.getVersion() == cachedVersion;
+        cachedPolygons = visionBlockingPolygonList;
+        cachedVersion = visionBlockingPolygonList.getVersion();
+        if (!samePolygons || viewerList.size() != viewers.size()) {
+            cachedResult = null;
+        }
+
+        lastCalculated = 0;
+        for (int i = 0; i < viewerList.size(); i++) {
+            final Point2D viewer = viewerList.get(i);
+            if (i < viewers.size() && samePolygons && viewer.equals(viewers.get(i))) {
+                continue;
+            }
+            final List<LineIntersection> lineIntersections =
+                    visibilityCalculator.calculateVisibility(visionBlockingPolygonList, viewer);
+            if (i < viewers.size()) {
+                viewers.set(i, viewer);
+                visibility.set(i, lineIntersections);
+            } else {
+                viewers.add(viewer);
+                visibility.add(lineIntersections);
+            }
+            lastCalculated++;
+            cachedResult = null;
+        }
+        while (viewers.size() > viewerList.size()) {
+            viewers.remove(viewers.size() - 1);
+            visibility.remove(visibility.size() - 1);
+        }
+
+        if (cachedResult == null) {
+            cachedResult = union(viewers, visibility);
+        }
+        return cachedResult;
+    }
+
+    /**
+     * Returns the cached area visible from one of the viewers of the last call to
+     * {@link #calculate(VisionBlockingPolygonList, List)}.
+     * @param index The position of the viewer in the list.
+     * @return the intersections that make up the visible area sorted by angle.
+     */
+    public List<LineIntersection> getVisibility(int index) {
+        return visibility.get(index);
+    }
+
+    /**
+     * Returns the number of viewers whose areas were calculated by the last call to
+     * {@link #calculate(VisionBlockingPolygonList, List)}, rather than coming from the cache.
+     * @return the number of viewers calculated.
+     */
+    public int getLastCalculated() {
+        return lastCalculated;
+    }
+
+    /**
+     * Works out the union of visible areas that have already been calculated.
+     * @param viewerList The viewers (or light sources).
+     * @param visibilityList The area visible from each viewer, as returned by a {@link VisibilityCalculator}.
+     * @return the union of the areas.
+     */
+    public static Result union(List<Point2D> viewerList, List<List<LineIntersection>> visibilityList) {
+        if (viewerList.size() != visibilityList.size()) {
+            throw new IllegalArgumentException("There must be a visible area for each viewer");
+        }
+        final List<StarPolygon> stars = new ArrayList<>();
+        for (int i = 0; i < viewerList.size(); i++) {
+            final StarPolygon star = new StarPolygon(viewerList.get(i), visibilityList.get(i));
+            if (star.size() >= 3) {
+                stars.add(star);
+            }
+        }
+        return new Sweep(stars).run();
+    }
+
+    /**
+     * The outline and area of the union of visible areas.
+     */
+    public static class Result {
+        /** The rings that make up the outline. */
+        private final List<List<Point2D>> outline;
+        /** The area covered. */
+        private final double area;
+
+        /**
+         * Creates a new <code>Result</code>.
+         * @param iOutline The rings that make up the outline.
+         * @param iArea The area covered.
+         */
+        private Result(List<List<Point2D>> iOutline, double iArea) {
+            outline = iOutline;
+            area = iArea;
+        }
+
+        /**
+         * Returns the rings that make up the outline. The outer edges of the area go the same way round as the areas
+         * of the viewers (the angle increasing) and the edges of any holes go the other way, so the rings can be
+         * filled with the non-zero or even-odd rule.
+         * @return the rings of the outline.
+         */
+        public List<List<Point2D>> getOutline() {
+            return outline;
+        }
+
+        /**
+         * Returns the area covered by the union.
+         * @return the area.
+         */
+        public double getArea() {
+            return area;
+        }
+    }
+
+    /**
+     * The area visible from a viewer as a polygon that is star shaped around the viewer.
+     */
+    private static class StarPolygon {
+        /** The X co-ordinate of the viewer. */
+        private final double viewerX;
+        /** The Y co-ordinate of the viewer. */
+        private final double viewerY;
+        /** The X co-ordinates of the vertices, in order of angle from the viewer. */
+        private final double[] xs;
+        /** The Y co-ordinates of the vertices, in order of angle from the viewer. */
+        private final double[] ys;
+        /** The pseudo angle of each vertex from the viewer, see {@link LineIntersection#pseudoAngle}. */
+        private final double[] angles;
+        /** The X co-ordinate of the left edge of the bounding box. */
+        private double minX = Double.POSITIVE_INFINITY;
+        /** The Y co-ordinate of the top edge of the bounding box. */
+        private double minY = Double.POSITIVE_INFINITY;
+        /** The X co-ordinate of the right edge of the bounding box. */
+        private double maxX = Double.NEGATIVE_INFINITY;
+        /** The Y co-ordinate of the bottom edge of the bounding box. */
+        private double maxY = Double.NEGATIVE_INFINITY;
+
+        /**
+         * Creates a new <code>StarPolygon</code>.
+         * @param viewer The viewer.
+         * @param lineIntersections The intersections that make up the visible area sorted by angle.
+         */
+        private StarPolygon(Point2D viewer, List<LineIntersection> lineIntersections) {
+            viewerX = viewer.getX();
+            viewerY = viewer.getY();
+            final int n = lineIntersections.size();
+            final double[] x = new double[n];
+            final double[] y = new double[n];
+            int size = 0;
+            for (LineIntersection li : lineIntersections) {
+                final Point2D point = li.getPoint();
+                // Rays that hit the same place add nothing to the outline.
+                if (size > 0 && point.getX() == x[size - 1] && point.getY() == y[size - 1]) {
+                    continue;
+                }
+                x[size] = point.getX();
+                y[size] = point.getY();
+                size++;
+            }
+            if (size > 1 && x[0] == x[size - 1] && y[0] == y[size - 1]) {
+                size--;
+            }
+            xs = Arrays.copyOf(x, size);
+            ys = Arrays.copyOf(y, size);
+            angles = new double[size];
+            for (int i = 0; i < size; i++) {
+                angles[i] = LineIntersection.pseudoAngle(xs[i] - viewerX, ys[i] - viewerY);
+                minX = Math.min(minX, xs[i]);
+                minY = Math.min(minY, ys[i]);
+                maxX = Math.max(maxX, xs[i]);
+                maxY = Math.max(maxY, ys[i]);
+            }
+        }
+
+        /**
+         * Returns the number of vertices.
+         * @return the number of vertices.
+         */
+        private int size() {
+            return xs.length;
+        }
+
+        /**
+         * Works out where a point is compared to this polygon.
+         * @param px The X co-ordinate of the point.
+         * @param py The Y co-ordinate of the point.
+         * @param dx The X component of the direction of the edge the point is on.
+         * @param dy The Y component of the direction of the edge the point is on.
+         * @param tolerance How close to the outline the point must be to count as on it.
+         * @return {@link #INSIDE}, {@link #OUTSIDE}, {@link #SAME_EDGE} if it is on an edge going the same way or
+         *         {@link #OPPOSITE_EDGE} if it is on an edge going the other way.
+         */
+        private int locate(double px, double py, double dx, double dy, double tolerance) {
+            if (px < minX - tolerance || px > maxX + tolerance || py < minY - tolerance || py > maxY + tolerance) {
+                return OUTSIDE;
+            }
+            if (px == viewerX && py == viewerY) {
+                return INSIDE;
+            }
+            // The edge of the polygon across the wedge the point is in.
+            final double angle = LineIntersection.pseudoAngle(px - viewerX, py - viewerY);
+            int i = Arrays.binarySearch(angles, angle);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            if (i < 0) {
+                i = angles.length - 1;
+            }
+            final int j = i + 1 < angles.length ? i + 1 : 0;
+            final double ex = xs[j] - xs[i];
+            final double ey = ys[j] - ys[i];
+            final double length = Math.sqrt(ex * ex + ey * ey);
+            final double cross = ex * (py - ys[i]) - ey * (px - xs[i]);
+            if (Math.abs(cross) <= tolerance * length) {
+                return ex * dx + ey * dy > 0 ? SAME_EDGE : OPPOSITE_EDGE;
+            }
+            return cross > 0 ? INSIDE : OUTSIDE;
+        }
+    }
+
+    /**
+     * A point that an edge is split at.
+     */
+    private static class Split {
+        /** How far along the edge the point is, from 0 at the start to 1 at the end. */
+        private final double t;
+        /** The point. */
+        private final Point2D point;
+
+        /**
+         * Creates a new <code>Split</code>.
+         * @param iT How far along the edge the point is.
+         * @param iPoint The point.
+         */
+        private Split(double iT, Point2D iPoint) {
+            t = iT;
+            point = iPoint;
+        }
+    }
+
+    /**
+     * The state of a single union.
+     */
+    private static class Sweep {
+        /** The areas being combined. */
+        private final List<StarPolygon> stars;
+        /** How close points must be to be treated as the same. */
+        private final double tolerance;
+        /** Welds together the points of the outline that are within the tolerance of each other. */
+        private final PointWelder welder;
+        /** The polygon that each edge is from. */
+        private final int[] edgePolygon;
+        /** The start of each edge. */
+        private final Point2D[] edgeStart;
+        /** The end of each edge. */
+        private final Point2D[] edgeEnd;
+        /** The points each edge is split at, <code>null</code> for edges that aren't split. */
+        private final List<List<Split>> edgeSplits;
+
+        /**
+         * Creates a new <code>Sweep</code>.
+         * @param iStars The areas being combined.
+         */
+        private Sweep(List<StarPolygon> iStars) {
+            stars = iStars;
+            double scale = 1;
+            for (StarPolygon star : stars) {
+                scale = Math.max(scale, Math.max(Math.max(Math.abs(star.minX), Math.abs(star.maxX)),
+                        Math.max(Math.abs(star.minY), Math.abs(star.maxY))));
+            }
+            tolerance = scale * RELATIVE_TOLERANCE;
+            welder = new PointWelder(tolerance);
+
+            // Rays from different viewers that hit the same corner give points a rounding error apart, welding them
+            // makes the pieces of the outline join up exactly.
+            final List<Integer> polygonList = new ArrayList<>();
+            final List<Point2D> startList = new ArrayList<>();
+            final List<Point2D> endList = new ArrayList<>();
+            for (int poly = 0; poly < stars.size(); poly++) {
+                final StarPolygon star = stars.get(poly);
+                final Point2D first = welder.weld(new Point2D(star.xs[0], star.ys[0]));
+                Point2D prev = first;
+                for (int i = 0; i < star.size(); i++) {
+                    final Point2D next = i + 1 < star.size()
+                            ? welder.weld(new Point2D(star.xs[i + 1], star.ys[i + 1])) : first;
+                    if (next != prev) {
+                        polygonList.add(poly);
+                        startList.add(prev);
+                        endList.add(next);
+                    }
+                    prev = next;
+                }
+            }
+            edgePolygon = polygonList.stream().mapToInt(Integer::intValue).toArray();
+            edgeStart = startList.toArray(new Point2D[0]);
+            edgeEnd = endList.toArray(new Point2D[0]);
+            edgeSplits = new ArrayList<>(Collections.nCopies(edgeStart.length, null));
+        }
+
+        /**
+         * Works out the union.
+         * @return the union.
+         */
+        private Result run() {
+            findCrossings();
+
+            // Keep the pieces of the edges that are on the outline and total up the area as they are found.
+            final List<Point2D> starts = new ArrayList<>();
+            final List<Point2D> ends = new ArrayList<>();
+            double area = 0;
+            for (int edge = 0; edge < edgeStart.length; edge++) {
+                final List<Split> splits = edgeSplits.get(edge);
+                Point2D from = edgeStart[edge];
+                final int numPieces = splits == null ? 1 : splits.size() + 1;
+                if (splits != null) {
+                    splits.sort(Comparator.comparingDouble(s -> s.t));
+                }
+                for (int piece = 0; piece < numPieces; piece++) {
+                    final Point2D to = piece < numPieces - 1 ? splits.get(piece).point : edgeEnd[edge];
+                    if (!from.equals(to) && isOnOutline(edge, from, to)) {
+                        starts.add(from);
+                        ends.add(to);
+                        area += from.getX() * to.getY() - to.getX() * from.getY();
+                    }
+                    from = to;
+                }
+            }
+
+            return new Result(chain(starts, ends), area / 2);
+        }
+
+        /**
+         * Sweeps the edges from left to right, splitting edges of different areas where they cross or overlap.
+         */
+        private void findCrossings() {
+            final Integer[] order = new Integer[edgeStart.length];
+            for (int edge = 0; edge < order.length; edge++) {
+                order[edge] = edge;
+            }
+            Arrays.sort(order, Comparator.comparingDouble(this::edgeMinX));
+
+            // The edges that the sweep line currently crosses, edges it has passed are dropped as they are found.
+            final int[] active = new int[order.length];
+            int numActive = 0;
+            for (int edge : order) {
+                final double sweepX = edgeMinX(edge) - tolerance;
+                final double minY = Math.min(edgeStart[edge].getY(), edgeEnd[edge].getY()) - tolerance;
+                final double maxY = Math.max(edgeStart[edge].getY(), edgeEnd[edge].getY()) + tolerance;
+                for (int i = 0; i < numActive; i++) {
+                    final int other = active[i];
+                    if (edgeMaxX(other) < sweepX) {
+                        active[i--] = active[--numActive];
+                    } else if (edgePolygon[other] != edgePolygon[edge]
+                            && Math.max(edgeStart[other].getY(), edgeEnd[other].getY()) >= minY
+                            && Math.min(edgeStart[other].getY(), edgeEnd[other].getY()) <= maxY) {
+                        intersect(edge, other);
+                    }
+                }
+                active[numActive++] = edge;
+            }
+        }
+
+        /**
+         * Splits two edges where they cross, or at each other's ends where they overlap along the same line.
+         * @param a The first edge.
+         * @param b The second edge.
+         */
+        private void intersect(int a, int b) {
+            final Point2D a1 = edgeStart[a];
+            final Point2D a2 = edgeEnd[a];
+            final Point2D b1 = edgeStart[b];
+            final Point2D b2 = edgeEnd[b];
+            final double rx = a2.getX() - a1.getX();
+            final double ry = a2.getY() - a1.getY();
+            final double sx = b2.getX() - b1.getX();
+            final double sy = b2.getY() - b1.getY();
+            final double lengthA = Math.sqrt(rx * rx + ry * ry);
+            final double lengthB = Math.sqrt(sx * sx + sy * sy);
+
+            final double b1Side = rx * (b1.getY() - a1.getY()) - ry * (b1.getX() - a1.getX());
+            final double b2Side = rx * (b2.getY() - a1.getY()) - ry * (b2.getX() - a1.getX());
+            if (Math.abs(b1Side) <= tolerance * lengthA && Math.abs(b2Side) <= tolerance * lengthA) {
+                // Along the same line, each is split where the other ends.
+                splitAtPoint(a, b1);
+                splitAtPoint(a, b2);
+                splitAtPoint(b, a1);
+                splitAtPoint(b, a2);
+                return;
+            }
+
+            final double denom = rx * sy - ry * sx;
+            if (denom == 0) {
+                return;
+            }
+            final double qx = b1.getX() - a1.getX();
+            final double qy = b1.getY() - a1.getY();
+            final double t = (qx * sy - qy * sx) / denom;
+            final double u = (qx * ry - qy * rx) / denom;
+            final double slackA = tolerance / lengthA;
+            final double slackB = tolerance / lengthB;
+            if (t < -slackA || t > 1 + slackA || u < -slackB || u > 1 + slackB) {
+                return;
+            }
+
+            // Where the crossing is at the end of an edge the end is used so the pieces join up exactly.
+            Point2D point;
+            if (t <= slackA) {
+                point = a1;
+            } else if (t >= 1 - slackA) {
+                point = a2;
+            } else if (u <= slackB) {
+                point = b1;
+            } else if (u >= 1 - slackB) {
+                point = b2;
+            } else {
+                point = welder.weld(new Point2D(a1.getX() + rx * t, a1.getY() + ry * t));
+            }
+            splitAtPoint(a, point);
+            splitAtPoint(b, point);
+        }
+
+        /**
+         * Splits an edge at a point on it, unless the point is at (or beyond) one of its ends.
+         * @param edge The edge.
+         * @param point The point.
+         */
+        private void splitAtPoint(int edge, Point2D point) {
+            final Point2D start = edgeStart[edge];
+            final Point2D end = edgeEnd[edge];
+            final double rx = end.getX() - start.getX();
+            final double ry = end.getY() - start.getY();
+            final double lengthSquared = rx * rx + ry * ry;
+            final double t = ((point.getX() - start.getX()) * rx + (point.getY() - start.getY()) * ry) / lengthSquared;
+            final double slack = tolerance / Math.sqrt(lengthSquared);
+            if (t <= slack || t >= 1 - slack) {
+                return;
+            }
+            List<Split> splits = edgeSplits.get(edge);
+            if (splits == null) {
+                splits = new ArrayList<>(2);
+                edgeSplits.set(edge, splits);
+            }
+            splits.add(new Split(t, point));
+        }
+
+        /**
+         * Returns if a piece of an edge is on the outline of the union, i.e. it is not inside any of the other areas.
+         * @param edge The edge the piece is from.
+         * @param from The start of the piece.
+         * @param to The end of the piece.
+         * @return <code>true</code> if the piece is on the outline.
+         */
+        private boolean isOnOutline(int edge, Point2D from, Point2D to) {
+            final int poly = edgePolygon[edge];
+            final double mx = (from.getX() + to.getX()) / 2;
+            final double my = (from.getY() + to.getY()) / 2;
+            final double dx = to.getX() - from.getX();
+            final double dy = to.getY() - from.getY();
+            for (int other = 0; other < stars.size(); other++) {
+                if (other == poly) {
+                    continue;
+                }
+                switch (stars.get(other).locate(mx, my, dx, dy, tolerance)) {
+                    case INSIDE:
+                    case OPPOSITE_EDGE:
+                        return false;
+                    case SAME_EDGE:
+                        // Only the first area with the edge keeps it.
+                        if (other < poly) {
+                            return false;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Joins the pieces of the outline up into rings.
+         * @param starts The start of each piece.
+         * @param ends The end of each piece.
+         * @return the rings.
+         */
+        private static List<List<Point2D>> chain(List<Point2D> starts, List<Point2D> ends) {
+            // The points have all been welded so the same point is always the same object.
+            final Map<Point2D, ArrayDeque<Integer>> byStart = new IdentityHashMap<>();
+            for (int piece = 0; piece < starts.size(); piece++) {
+                byStart.computeIfAbsent(starts.get(piece), k -> new ArrayDeque<>()).add(piece);
+            }
+            final boolean[] used = new boolean[starts.size()];
+            final List<List<Point2D>> rings = new ArrayList<>();
+            for (int first = 0; first < starts.size(); first++) {
+                if (used[first]) {
+                    continue;
+                }
+                final List<Point2D> ring = new ArrayList<>();
+                int piece = first;
+                while (piece >= 0) {
+                    used[piece] = true;
+                    byStart.get(starts.get(piece)).remove(piece);
+                    ring.add(starts.get(piece));
+                    // Follow on from the end, a ring that doesn't close up is left open.
+                    final ArrayDeque<Integer> next = byStart.get(ends.get(piece));
+                    piece = next == null || next.isEmpty() ? -1 : next.peek();
+                }
+                rings.add(ring);
+            }
+            return rings;
+        }
+
+        /**
+         * Returns the X co-ordinate of the left end of an edge.
+         * @param edge The edge.
+         * @return the X co-ordinate.
+         */
+        private double edgeMinX(int edge) {
+            return Math.min(edgeStart[edge].getX(), edgeEnd[edge].getX());
+        }
+
+        /**
+         * Returns the X co-ordinate of the right end of an edge.
+         * @param edge The edge.
+         * @return the X co-ordinate.
+         */
+        private double edgeMaxX(int edge) {
+            return Math.max(edgeStart[edge].getX(), edgeEnd[edge].getX());
+        }
+    }
+}
@@ -2,6 +2,7 @@ package net.rptools.maptool.vision;
 
 import javafx.geometry.Point2D;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -19,8 +20,17 @@ public class VisionBlockingPolygon {
     /** An array that contains all the Y co-ordinates of polygon vertices */
     private final double[] verticesY;
 
-    /** The lines that make up the polygon. */
-    private final Set<LineSegment> lineSegments = new HashSet<>();
+    /** The lines that make up the polygon, which can't be changed so polygons can be shared between threads. */
+    private final Set<LineSegment> lineSegments;
+
+    /** The smallest X co-ordinate of the bounding box of the polygon. */
+    private final double minX;
+    /** The smallest Y co-ordinate of the bounding box of the polygon. */
+    private final double minY;
+    /** The largest X co-ordinate of the bounding box of the polygon. */
+    private final double maxX;
+    /** The largest Y co-ordinate of the bounding box of the polygon. */
+    private final double maxY;
 
 
     /**
@@ -36,21 +46,35 @@ public class VisionBlockingPolygon {
         verticesY = new double[vertices.size()];
 
         int ind = 0;
+        double x1 = Double.POSITIVE_INFINITY;
+        double y1 = Double.POSITIVE_INFINITY;
+        double x2 = Double.NEGATIVE_INFINITY;
+        double y2 = Double.NEGATIVE_INFINITY;
         for (Point2D point : vertices) {
             verticesX[ind] = point.getX();
             verticesY[ind] = point.getY();
+            x1 = Math.min(x1, point.getX());
+            y1 = Math.min(y1, point.getY());
+            x2 = Math.max(x2, point.getX());
+            y2 = Math.max(y2, point.getY());
             ind++;
         };
+        minX = x1;
+        minY = y1;
+        maxX = x2;
+        maxY = y2;
 
+        Set<LineSegment> segments = new HashSet<>();
         Point2D prevPoint = null;
         for (Point2D p : vertices) {
             if (prevPoint != null) {
-                lineSegments.add(new LineSegment(prevPoint, p));
+                segments.add(new LineSegment(prevPoint, p));
             }
             prevPoint = p;
         }
         // complete the polygon
-        lineSegments.add(new LineSegment(prevPoint, vertices.get(0)));
+        segments.add(new LineSegment(prevPoint, vertices.get(0)));
+        lineSegments = Collections.unmodifiableSet(segments);
 
     }
 
@@ -93,4 +117,50 @@ public class VisionBlockingPolygon {
     public Set<LineSegment> getLineSegments() {
         return lineSegments;
     }
+
+    /**
+     * Returns the smallest X co-ordinate of the bounding box of the polygon.
+     * @return the smallest X co-ordinate.
+     */
+    public double getMinX() {
+        return minX;
+    }
+
+    /**
+     * Returns the smallest Y co-ordinate of the bounding box of the polygon.
+     * @return the smallest Y co-ordinate.
+     */
+    public double getMinY() {
+        return minY;
+    }
+
+    /**
+     * Returns the largest X co-ordinate of the bounding box of the polygon.
+     * @return the largest X co-ordinate.
+     */
+    public double getMaxX() {
+        return maxX;
+    }
+
+    /**
+     * Returns the largest Y co-ordinate of the bounding box of the polygon.
+     * @return the largest Y co-ordinate.
+     */
+    public double getMaxY() {
+        return maxY;
+    }
+
+    /**
+     * Returns if the bounding box of the polygon overlaps a circle.
+     * @param x The X co-ordinate of the centre of the circle.
+     * @param y The Y co-ordinate of the centre of the circle.
+     * @param radius The radius of the circle.
+     * @return <code>true</code> if the bounding box overlaps the circle.
+     */
+    public boolean boundsIntersectCircle(double x, double y, double radius) {
+        // The closest point of the bounding box to the centre of the circle.
+        final double dx = x - Math.max(minX, Math.min(x, maxX));
+        final double dy = y - Math.max(minY, Math.min(y, maxY));
+        return dx * dx + dy * dy <= radius * radius;
+    }
 }
@@ -2,9 +2,16 @@ package net.rptools.maptool.vision;
 
 import javafx.geometry.Point2D;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -12,14 +19,115 @@ import java.util.Set;
  *
  * This class does a bit more than just maintain the list, it also provides convenient methods for extracting just the
  * vertices or lines that make up the vision/light blocking.
+ *
+ * Polygons can be removed or disabled, and single line segments can be disabled (such as a door being opened).
+ * Vertices and line segments are reference counted by the polygons they are in, so those shared with other polygons
+ * are kept. Disabled line segments stay in the {@link SegmentStore} with their index unchanged and are switched off in
+ * it, the {@link SegmentGrid} and the {@link VertexClassifier} without building any of them again. Adding polygons with
+ * new line segments still rebuilds the grid.
+ *
+ * A list can be frozen with {@link #freeze()}, which builds everything derived from the polygons up front and stops
+ * any more polygons being added. A frozen list can then be used by any number of threads at once without locking,
+ * see {@link SharedScene}. {@link #freezeLazily()} stops polygons being added without building anything, which is then
+ * built by whichever thread needs it first while the others wait for it. A list that isn't frozen should only be used
+ * by one thread at a time.
+ *
+ * A list can also be restored from a {@link PreparedScene} file with its store and grid read straight in. The sets of
+ * vertices and lines are then only built (hashing every vertex and line) the first time something needs them, such
+ * as changing the polygons or calling {@link #getVertices()}.
  */
 public class VisionBlockingPolygonList {
-    /** List of {@link VisionBlockingPolygon}s that is being managed. */
+    /**
+     * The smallest number of line segments no longer in any polygon that are left in the store before it is compacted.
+     */
+    private static final int MIN_UNREFERENCED_TO_COMPACT = 64;
+
+    /** List of enabled {@link VisionBlockingPolygon}s that is being managed. */
     private final List<VisionBlockingPolygon> polygonList = new ArrayList<>();
-    /** List of unique vertices for vision/light blocking polygons. */
-    private final Set<Point2D> vertices = new HashSet<>();
-    /** List of unique lines that make up the vision/light blocking polygons. */
+    /** Polygons that have been disabled, which don't block anything until they are enabled again. */
+    private final List<VisionBlockingPolygon> disabledPolygons = new ArrayList<>();
+    /** Unique vertices of the enabled polygons, with the number of times they are in them. */
+    private final Map<Point2D, Integer> vertexReferences = new HashMap<>();
+    /** List of unique lines (in either direction) that make up the enabled polygons, less those disabled. */
     private final Set<LineSegment> lineSegments = new HashSet<>();
+    /** The index in the store of every unique line (in either direction) in it. */
+    private final Map<LineSegment, Integer> segmentIndexes = new HashMap<>();
+    /** The number of times each line in the store is in the enabled polygons, by index. */
+    private int[] segmentReferences = new int[0];
+    /** The number of lines in the store that are no longer in any enabled polygon. */
+    private int numUnreferenced;
+    /** Lines (as stored) that have been disabled, such as open doors. */
+    private final Set<LineSegment> disabledSegments = new HashSet<>();
+    /** Read only view of {@link #polygonList}. */
+    private final List<VisionBlockingPolygon> polygonListView = Collections.unmodifiableList(polygonList);
+    /** Read only view of {@link #disabledPolygons}. */
+    private final List<VisionBlockingPolygon> disabledPolygonsView = Collections.unmodifiableList(disabledPolygons);
+    /** Read only view of the vertices. */
+    private final Set<Point2D> verticesView = Collections.unmodifiableSet(vertexReferences.keySet());
+    /** Read only view of {@link #lineSegments}. */
+    private final Set<LineSegment> lineSegmentsView = Collections.unmodifiableSet(lineSegments);
+    /** Read only view of {@link #disabledSegments}. */
+    private final Set<LineSegment> disabledSegmentsView = Collections.unmodifiableSet(disabledSegments);
+    /** The unique lines stored as primitive co-ordinates for fast intersection tests. */
+    private SegmentStore segmentStore;
+    /**
+     * The enabled lines only and the version of the polygons they were taken from, <code>null</code> until it is first
+     * needed, see {@link #getEnabledSegmentStore()}. The store and version are kept together so that a thread never
+     * sees one without the other.
+     */
+    private volatile EnabledSegments enabledSegments;
+    /**
+     * Spatial index over the line segments, <code>null</code> if it needs to be (re)built. This and
+     * {@link #vertexClassifier} are volatile so a lazily frozen list can build them on whichever thread needs them.
+     */
+    private volatile SegmentGrid segmentGrid;
+    /** Works out which vertices need rays cast at them, <code>null</code> if it needs to be (re)built. */
+    private volatile VertexClassifier vertexClassifier;
+    /** Incremented every time the polygons change so that anything derived from them knows to update. */
+    private long version;
+    /** <code>true</code> if the polygons can no longer be changed. */
+    private boolean frozen;
+    /**
+     * <code>false</code> if the list was restored and the vertex and line sets haven't been built yet. This is
+     * volatile as a frozen list may be shared between threads before they are built.
+     */
+    private volatile boolean indexed = true;
+    /** The number of unique vertices of a restored list, until the vertex set is built. */
+    private int restoredNumberVertices;
+
+    /**
+     * Creates a new <code>VisionBlockingPolygonList</code> with no polygons.
+     */
+    public VisionBlockingPolygonList() {
+        segmentStore = new SegmentStore();
+    }
+
+    /**
+     * Creates a new <code>VisionBlockingPolygonList</code> with the same polygons and version as another list, which
+     * is not frozen even if the other list is. Changes to either list don't affect the other.
+     * @param other The list to copy.
+     */
+    public VisionBlockingPolygonList(VisionBlockingPolygonList other) {
+        other.index();
+        // The polygons can't be changed so they are shared rather than copied.
+        polygonList.addAll(other.polygonList);
+        disabledPolygons.addAll(other.disabledPolygons);
+        vertexReferences.putAll(other.vertexReferences);
+        lineSegments.addAll(other.lineSegments);
+        segmentIndexes.putAll(other.segmentIndexes);
+        segmentReferences = other.segmentReferences.clone();
+        numUnreferenced = other.numUnreferenced;
+        disabledSegments.addAll(other.disabledSegments);
+        segmentStore = new SegmentStore(other.segmentStore);
+        // Copying what is derived from the polygons is much quicker than building it again.
+        if (other.segmentGrid != null) {
+            segmentGrid = new SegmentGrid(other.segmentGrid, segmentStore);
+        }
+        if (other.vertexClassifier != null) {
+            vertexClassifier = new VertexClassifier(other.vertexClassifier);
+        }
+        version = other.version;
+    }
 
     /**
      * Add some simple polygons to the scene for testing.
@@ -154,19 +262,120 @@ public class VisionBlockingPolygonList {
     /**
      * Adds a vision/light blocking polygon to the scene.
      * @param poly the polygon to add.
+     * @throws IllegalStateException if the list is frozen.
      */
     public void addVisionBlockingPolygon(VisionBlockingPolygon poly) {
+        checkNotFrozen();
+        index();
         polygonList.add(poly);
-        vertices.addAll(poly.getVertices());
-        lineSegments.addAll(poly.getLineSegments());
+        addReferences(poly);
+        version++;
+    }
+
+    /**
+     * Removes a vision/light blocking polygon from the scene, whether it is enabled or not. Vertices and lines it
+     * shares with other polygons are kept.
+     * @param poly the polygon to remove.
+     * @return <code>true</code> if the polygon was in the scene.
+     * @throws IllegalStateException if the list is frozen.
+     */
+    public boolean removeVisionBlockingPolygon(VisionBlockingPolygon poly) {
+        checkNotFrozen();
+        index();
+        if (polygonList.remove(poly)) {
+            removeReferences(poly);
+        } else if (!disabledPolygons.remove(poly)) {
+            return false;
+        }
+        version++;
+        return true;
+    }
+
+    /**
+     * Enables or disables a vision/light blocking polygon in the scene. A disabled polygon stays in the scene but
+     * doesn't block anything, and is not in {@link #getPolygonList()}.
+     * @param poly the polygon.
+     * @param enabled <code>true</code> if the polygon should block vision/light.
+     * @return <code>true</code> if the polygon was changed, <code>false</code> if it already was enabled or disabled
+     *         or is not in the scene.
+     * @throws IllegalStateException if the list is frozen.
+     */
+    public boolean setPolygonEnabled(VisionBlockingPolygon poly, boolean enabled) {
+        checkNotFrozen();
+        index();
+        if (enabled && disabledPolygons.remove(poly)) {
+            polygonList.add(poly);
+            addReferences(poly);
+        } else if (!enabled && polygonList.remove(poly)) {
+            disabledPolygons.add(poly);
+            removeReferences(poly);
+        } else {
+            return false;
+        }
+        version++;
+        return true;
+    }
+
+    /**
+     * Enables or disables a single line (in either direction) of the enabled polygons, such as a door being closed or
+     * opened. A disabled line doesn't block anything and is not in {@link #getLineSegments()}, but the vertices at its
+     * ends are still in {@link #getVertices()}. If every polygon the line is in is removed or disabled it is enabled
+     * again.
+     * @param lineSegment the line.
+     * @param enabled <code>true</code> if the line should block vision/light.
+     * @return <code>true</code> if the line is in the enabled polygons.
+     * @throws IllegalStateException if the list is frozen.
+     */
+    public boolean setLineSegmentEnabled(LineSegment lineSegment, boolean enabled) {
+        checkNotFrozen();
+        index();
+        final LineSegment stored = findStored(lineSegment);
+        if (stored == null || segmentReferences[segmentIndexes.get(stored)] == 0) {
+            return false;
+        }
+        if (enabled ? disabledSegments.remove(stored) : disabledSegments.add(stored)) {
+            updateEnabled(stored, segmentIndexes.get(stored));
+            if (vertexClassifier != null) {
+                vertexClassifier.setLineSegmentEnabled(stored.getPoint1(), stored.getPoint2(), enabled);
+            }
+            version++;
+        }
+        return true;
+    }
+
+    /**
+     * Returns if a line (in either direction) of the enabled polygons blocks vision/light.
+     * @param lineSegment the line.
+     * @return <code>true</code> if the line is in the enabled polygons and has not been disabled.
+     */
+    public boolean isLineSegmentEnabled(LineSegment lineSegment) {
+        index();
+        final LineSegment stored = findStored(lineSegment);
+        return stored != null && lineSegments.contains(stored);
+    }
+
+    /**
+     * Returns the lines of the enabled polygons that have been disabled.
+     * @return the disabled lines, which can't be changed.
+     */
+    public Set<LineSegment> getDisabledLineSegments() {
+        return disabledSegmentsView;
+    }
+
+    /**
+     * Returns the polygons in the scene that have been disabled.
+     * @return the disabled polygons, which can't be changed.
+     */
+    public List<VisionBlockingPolygon> getDisabledPolygons() {
+        return disabledPolygonsView;
     }
 
     /**
      * Returns a list of vision/light blocking polygons in the scene.
-     * @return the list of polygons.
+     * @return the list of polygons, which can't be changed.
      */
     public List<VisionBlockingPolygon> getPolygonList() {
-        return polygonList;
+        return polygonListView;
     }
 
     /**
@@ -174,23 +383,445 @@ public class VisionBlockingPolygonList {
      * @return the number of vertices in the scene.
      */
     public int getNumberVertices() {
-        return vertices.size();
+        return indexed ? vertexReferences.size() : restoredNumberVertices;
     }
 
     /**
      * Returns the vertices for vision/light blocking polygons in the scene.
-     * @return the vertices in the scene.
+     * @return the vertices in the scene, which can't be changed.
      */
     public Set<Point2D> getVertices() {
-        return vertices;
+        index();
+        return verticesView;
     }
 
     /**
      * Returns the lights that make up the vision/light blocking polygons.
-     * @return the lines that make up the polygons.
+     * @return the lines that make up the polygons, which can't be changed.
      */
     public Set<LineSegment> getLineSegments() {
-        return lineSegments;
+        index();
+        return lineSegmentsView;
+    }
+
+    /**
+     * Returns a number that changes every time the vision/light blocking polygons change.
+     * @return the version of the polygons.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the lines that make up the vision/light blocking polygons stored as primitive co-ordinates. This must not
+     * be changed, use {@link #addVisionBlockingPolygon(VisionBlockingPolygon)} instead. Lines that have been disabled
+     * or are no longer in any polygon are still in the store, see {@link SegmentStore#isEnabled(int)}.
+     * @return the lines that make up the polygons.
+     */
+    public SegmentStore getSegmentStore() {
+        return segmentStore;
+    }
+
+    /**
+     * Returns a store holding only the lines that are enabled, for code that loops over all of them. This is built
+     * the first time it is requested after the polygons change, and is the same as {@link #getSegmentStore()} if no
+     * lines are disabled. The indexes of the lines are not the same as in {@link #getSegmentStore()} otherwise. Like
+     * the grid, it must be built before a list that isn't frozen is used by several threads, see
+     * {@link ParallelVisibility}.
+     * @return the enabled lines that make up the polygons.
+     */
+    public SegmentStore getEnabledSegmentStore() {
+        EnabledSegments enabled = enabledSegments;
+        if (enabled == null || enabled.version != version) {
+            synchronized (this) {
+                enabled = enabledSegments;
+                if (enabled == null || enabled.version != version) {
+                    enabled = new EnabledSegments(segmentStore.getEnabledSegments(), version);
+                    enabledSegments = enabled;
+                }
+            }
+        }
+        return enabled.segmentStore;
+    }
+
+    /**
+     * Returns the spatial index over the lines that make up the vision/light blocking polygons.
+     *
+     * The index is built the first time it is requested after polygons with new lines are added so that adding many
+     * polygons at once only builds it once. Removing and disabling polygons and lines updates it in place.
+     *
+     * @return the spatial index of the lines.
+     */
+    public SegmentGrid getSegmentGrid() {
+        SegmentGrid grid = segmentGrid;
+        if (grid == null) {
+            synchronized (this) {
+                grid = segmentGrid;
+                if (grid == null) {
+                    grid = new SegmentGrid(segmentStore);
+                    segmentGrid = grid;
+                }
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Returns the {@link VertexClassifier} for the vision/light blocking polygons, which is built the first time it is
+     * requested after polygons are added, removed, enabled or disabled. Disabling lines updates it in place.
+     * @return the vertex classifier.
+     */
+    public VertexClassifier getVertexClassifier() {
+        VertexClassifier classifier = vertexClassifier;
+        if (classifier == null) {
+            synchronized (this) {
+                classifier = vertexClassifier;
+                if (classifier == null) {
+                    classifier = new VertexClassifier(this);
+                    vertexClassifier = classifier;
+                }
+            }
+        }
+        return classifier;
+    }
+
+    /**
+     * Stops any more polygons being added, and builds everything derived from the polygons that would otherwise be
+     * built the first time it is needed. After this the list can be shared between threads, as long as it is
+     * published safely (such as through {@link java.util.concurrent.atomic.AtomicReference}).
+     * @return this list.
+     */
+    public VisionBlockingPolygonList freeze() {
+        getEnabledSegmentStore();
+        getSegmentGrid();
+        getVertexClassifier();
+        frozen = true;
+        return this;
+    }
+
+    /**
+     * Stops any more polygons being added, without building anything derived from the polygons. Each of those is built
+     * the first time it is needed, by whichever thread needs it, so the list can be shared between threads as soon as
+     * it is published safely. This suits lists that are used for a short time, or by calculators that only need some
+     * of what {@link #freeze()} would build.
+     * @return this list.
+     */
+    public VisionBlockingPolygonList freezeLazily() {
+        frozen = true;
+        return this;
+    }
+
+    /**
+     * Returns if the polygons can no longer be changed.
+     * @return <code>true</code> if {@link #freeze()} has been called.
+     */
+    public boolean isFrozen() {
+        return frozen;
     }
 
+    /**
+     * Returns the number of bytes {@link #write(ByteBuffer)} writes, building the grid if it hasn't been built.
+     * @return the number of bytes.
+     */
+    long getSerializedSize() {
+        long size = Long.BYTES + 4 * Integer.BYTES;
+        for (VisionBlockingPolygon poly : polygonList) {
+            size += Integer.BYTES + poly.getNumberVerticies() * 2L * Double.BYTES;
+        }
+        for (VisionBlockingPolygon poly : disabledPolygons) {
+            size += Integer.BYTES + poly.getNumberVerticies() * 2L * Double.BYTES;
+        }
+        return size + segmentStore.size() * (long) Integer.BYTES + segmentStore.getSerializedSize()
+                + getSegmentGrid().getSerializedSize();
+    }
+
+    /**
+     * Writes the polygons and everything derived from them except the {@link VertexClassifier} for a
+     * {@link PreparedScene}.
+     * @param out Where the polygons are written.
+     */
+    void write(ByteBuffer out) {
+        final SegmentGrid grid = getSegmentGrid();
+        out.putLong(version);
+        out.putInt(getNumberVertices());
+        out.putInt(polygonList.size());
+        out.putInt(disabledPolygons.size());
+        for (VisionBlockingPolygon poly : polygonList) {
+            writePolygon(out, poly);
+        }
+        for (VisionBlockingPolygon poly : disabledPolygons) {
+            writePolygon(out, poly);
+        }
+        out.putInt(segmentStore.size());
+        PreparedScene.putInts(out, segmentReferences, segmentStore.size());
+        segmentStore.write(out);
+        grid.write(out);
+    }
+
+    /**
+     * Reads polygons written by {@link #write(ByteBuffer)}. The vertex and line sets are not built until they are
+     * needed.
+     * @param in Where the polygons are read from.
+     * @return the polygons.
+     * @throws IOException if the polygons are corrupt.
+     */
+    static VisionBlockingPolygonList read(ByteBuffer in) throws IOException {
+        final VisionBlockingPolygonList list = new VisionBlockingPolygonList();
+        final long version = in.getLong();
+        final int numVertices = in.getInt();
+        final int numPolygons = in.getInt();
+        final int numDisabledPolygons = in.getInt();
+        if (numVertices < 0 || numPolygons < 0 || numDisabledPolygons < 0) {
+            throw new IOException(PreparedScene.CORRUPT);
+        }
+        for (int i = 0; i < numPolygons; i++) {
+            list.polygonList.add(readPolygon(in));
+        }
+        for (int i = 0; i < numDisabledPolygons; i++) {
+            list.disabledPolygons.add(readPolygon(in));
+        }
+        final int[] references = PreparedScene.getInts(in, in.getInt());
+        final SegmentStore store = SegmentStore.read(in);
+        if (references.length != store.size()) {
+            throw new IOException(PreparedScene.CORRUPT);
+        }
+        final SegmentGrid grid = SegmentGrid.read(in, store);
+
+        for (int seg = 0; seg < references.length; seg++) {
+            if (references[seg] < 0) {
+                throw new IOException(PreparedScene.CORRUPT);
+            } else if (references[seg] == 0) {
+                list.numUnreferenced++;
+            } else if (!store.isEnabled(seg)) {
+                // There are only a few of these (doors) so they are worth having straight away.
+                list.disabledSegments.add(storedSegment(store, seg));
+            }
+        }
+        list.version = version;
+        list.restoredNumberVertices = numVertices;
+        list.segmentReferences = references;
+        list.segmentStore = store;
+        list.segmentGrid = grid;
+        list.indexed = false;
+        return list;
+    }
+
+    /**
+     * Writes the vertices of a polygon.
+     * @param out Where the polygon is written.
+     * @param poly The polygon.
+     */
+    private static void writePolygon(ByteBuffer out, VisionBlockingPolygon poly) {
+        final double[] xs = poly.getVerticesX();
+        final double[] ys = poly.getVerticesY();
+        out.putInt(xs.length);
+        PreparedScene.putDoubles(out, xs, xs.length);
+        PreparedScene.putDoubles(out, ys, ys.length);
+    }
+
+    /**
+     * Reads a polygon written by {@link #writePolygon(ByteBuffer, VisionBlockingPolygon)}.
+     * @param in Where the polygon is read from.
+     * @return the polygon.
+     * @throws IOException if the polygon is corrupt.
+     */
+    private static VisionBlockingPolygon readPolygon(ByteBuffer in) throws IOException {
+        final int numVertices = in.getInt();
+        if (numVertices < 1) {
+            throw new IOException(PreparedScene.CORRUPT);
+        }
+        final double[] xs = PreparedScene.getDoubles(in, numVertices);
+        final double[] ys = PreparedScene.getDoubles(in, numVertices);
+        final Point2D[] points = new Point2D[numVertices];
+        for (int i = 0; i < numVertices; i++) {
+            points[i] = new Point2D(xs[i], ys[i]);
+        }
+        return new VisionBlockingPolygon(points);
+    }
+
+    /**
+     * Returns a line in the store as a {@link LineSegment}, which is equal to the one that was added.
+     * @param store The store.
+     * @param seg The index of the line.
+     * @return the line.
+     */
+    private static LineSegment storedSegment(SegmentStore store, int seg) {
+        return new LineSegment(new Point2D(store.getX1(seg), store.getY1(seg)),
+                new Point2D(store.getX2(seg), store.getY2(seg)));
+    }
+
+    /**
+     * Builds the vertex and line sets of a restored list, if they haven't been built yet.
+     */
+    private void index() {
+        if (indexed) {
+            return;
+        }
+        synchronized (this) {
+            if (indexed) {
+                return;
+            }
+            for (VisionBlockingPolygon poly : polygonList) {
+                for (Point2D vert : poly.getVertices()) {
+                    vertexReferences.merge(vert, 1, Integer::sum);
+                }
+            }
+            for (int seg = 0; seg < segmentStore.size(); seg++) {
+                final LineSegment stored = storedSegment(segmentStore, seg);
+                segmentIndexes.put(stored, seg);
+                if (segmentReferences[seg] > 0 && segmentStore.isEnabled(seg)) {
+                    lineSegments.add(stored);
+                }
+            }
+            indexed = true;
+        }
+    }
+
+    /**
+     * Throws an exception if the list is frozen.
+     * @throws IllegalStateException if the list is frozen.
+     */
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("Vision blocking polygon list is frozen");
+        }
+    }
+
+    /**
+     * Returns the line as it was stored, which may be in the opposite direction.
+     * @param lineSegment the line.
+     * @return the line as stored, or <code>null</code> if it is not in the store.
+     */
+    private LineSegment findStored(LineSegment lineSegment) {
+        if (segmentIndexes.containsKey(lineSegment)) {
+            return lineSegment;
+        }
+        // Walls shared by neighbouring polygons are usually in the opposite direction, they only need testing once.
+        final LineSegment reversed = new LineSegment(lineSegment.getPoint2(), lineSegment.getPoint1());
+        return segmentIndexes.containsKey(reversed) ? reversed : null;
+    }
+
+    /**
+     * Counts the vertices and lines of a polygon that has been enabled, adding the lines that are new to the store.
+     * @param poly the polygon.
+     */
+    private void addReferences(VisionBlockingPolygon poly) {
+        for (Point2D vert : poly.getVertices()) {
+            vertexReferences.merge(vert, 1, Integer::sum);
+        }
+        for (LineSegment lineSegment : poly.getLineSegments()) {
+            LineSegment stored = findStored(lineSegment);
+            final int seg;
+            if (stored == null) {
+                stored = lineSegment;
+                seg = segmentStore.add(lineSegment);
+                segmentIndexes.put(lineSegment, seg);
+                if (seg >= segmentReferences.length) {
+                    segmentReferences = Arrays.copyOf(segmentReferences, Math.max(16, seg * 2));
+                }
+                // The grid only knows about the lines it was built with.
+                segmentGrid = null;
+            } else {
+                seg = segmentIndexes.get(stored);
+                if (segmentReferences[seg] == 0) {
+                    numUnreferenced--;
+                }
+            }
+            if (segmentReferences[seg]++ == 0) {
+                updateEnabled(stored, seg);
+            }
+        }
+        vertexClassifier = null;
+    }
+
+    /**
+     * Stops counting the vertices and lines of a polygon that has been removed or disabled.
+     * @param poly the polygon.
+     */
+    private void removeReferences(VisionBlockingPolygon poly) {
+        for (Point2D vert : poly.getVertices()) {
+            vertexReferences.computeIfPresent(vert, (v, count) -> count == 1 ? null : count - 1);
+        }
+        for (LineSegment lineSegment : poly.getLineSegments()) {
+            final LineSegment stored = findStored(lineSegment);
+            final int seg = segmentIndexes.get(stored);
+            if (--segmentReferences[seg] == 0) {
+                numUnreferenced++;
+                // A door is forgotten along with its walls.
+                disabledSegments.remove(stored);
+                updateEnabled(stored, seg);
+            }
+        }
+        vertexClassifier = null;
+
+        if (numUnreferenced >= MIN_UNREFERENCED_TO_COMPACT && numUnreferenced * 2 > segmentStore.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Enables or disables a line in the store and grid, depending on whether it is in any enabled polygon and has
+     * not been disabled itself.
+     * @param stored the line as stored.
+     * @param seg the index of the line in the store.
+     */
+    private void updateEnabled(LineSegment stored, int seg) {
+        final boolean enabled = segmentReferences[seg] > 0 && !disabledSegments.contains(stored);
+        if (enabled) {
+            lineSegments.add(stored);
+        } else {
+            lineSegments.remove(stored);
+        }
+        if (enabled != segmentStore.isEnabled(seg)) {
+            segmentStore.setEnabled(seg, enabled);
+            if (segmentGrid != null && seg < segmentGrid.getNumberSegments()) {
+                segmentGrid.setEnabled(seg, enabled);
+            }
+        }
+    }
+
+    /**
+     * Builds a new store without the lines that are no longer in any polygon, once there are enough of them that
+     * they slow down anything that loops over the whole store. The index of the lines that are left changes.
+     */
+    private void compact() {
+        final SegmentStore compacted = new SegmentStore();
+        final int[] references = new int[segmentReferences.length];
+        for (Iterator<Map.Entry<LineSegment, Integer>> it = segmentIndexes.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<LineSegment, Integer> entry = it.next();
+            final int refs = segmentReferences[entry.getValue()];
+            if (refs == 0) {
+                it.remove();
+                continue;
+            }
+            final int seg = compacted.add(entry.getKey());
+            compacted.setEnabled(seg, !disabledSegments.contains(entry.getKey()));
+            references[seg] = refs;
+            entry.setValue(seg);
+        }
+        segmentStore = compacted;
+        segmentReferences = references;
+        numUnreferenced = 0;
+        segmentGrid = null;
+    }
+
+    /**
+     * The store of the enabled lines only, along with the version of the polygons it was taken from.
+     */
+    private static final class EnabledSegments {
+        /** The enabled lines. */
+        private final SegmentStore segmentStore;
+        /** The version of the polygons the lines were taken from. */
+        private final long version;
+
+        /**
+         * Creates a new <code>EnabledSegments</code>.
+         * @param iSegmentStore The enabled lines.
+         * @param iVersion The version of the polygons the lines were taken from.
+         */
+        private EnabledSegments(SegmentStore iSegmentStore, long iVersion) {
+            segmentStore = iSegmentStore;
+            version = iVersion;
+        }
+    }
 }
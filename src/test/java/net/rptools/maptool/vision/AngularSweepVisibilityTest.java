@@ -0,0 +1,80 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the area {@link AngularSweepVisibility} finds visible with the area the exhaustive
+ * {@link RayCastVisibility} finds visible.
+ */
+public class AngularSweepVisibilityTest {
+    /** The largest difference allowed between the areas, relative to the area. */
+    private static final double TOLERANCE = 1e-4;
+    /**
+     * The number of slivers {@link VisibilityCalculator#VERY_SMALL_ANGLE} wide, reaching across the scene, that the
+     * areas may also differ by. Grazing rays either side of a vertex can end on different line segments.
+     */
+    private static final double SLIVERS = 2;
+    /** The number of viewer positions tried in each scene. */
+    private static final int VIEWERS = 300;
+
+    /**
+     * The calculators agree in the demo scene.
+     */
+    @Test
+    public void matchesRayCastInDemoScene() {
+        final Random random = new Random(1);
+        final VisionBlockingPolygonList scene = TestScenes.createDemoScene();
+        assertMatchesRayCast(scene, TestScenes.createDemoViewers(scene, VIEWERS, random));
+    }
+
+    /**
+     * The calculators agree in the demo scene with some of the line segments disabled.
+     */
+    @Test
+    public void matchesRayCastInDemoSceneWithDisabledSegments() {
+        final Random random = new Random(2);
+        final VisionBlockingPolygonList scene = TestScenes.createDemoScene();
+        assertTrue(TestScenes.disableSegments(scene, 0.3, random) > 0);
+        assertMatchesRayCast(scene, TestScenes.createDemoViewers(scene, VIEWERS, random));
+    }
+
+    /**
+     * The calculators agree in random scenes.
+     */
+    @Test
+    public void matchesRayCastInRandomScenes() {
+        final Random random = new Random(3);
+        for (int cellsPerSide = 1; cellsPerSide <= 8; cellsPerSide++) {
+            final VisionBlockingPolygonList scene = TestScenes.createScene(cellsPerSide, random);
+            assertMatchesRayCast(scene, TestScenes.createViewers(cellsPerSide, VIEWERS, random));
+        }
+    }
+
+    /**
+     * The calculators agree in random scenes with some of the line segments disabled.
+     */
+    @Test
+    public void matchesRayCastInRandomScenesWithDisabledSegments() {
+        final Random random = new Random(4);
+        for (int cellsPerSide = 1; cellsPerSide <= 8; cellsPerSide++) {
+            final VisionBlockingPolygonList scene = TestScenes.createScene(cellsPerSide, random);
+            TestScenes.disableSegments(scene, 0.3, random);
+            assertMatchesRayCast(scene, TestScenes.createViewers(cellsPerSide, VIEWERS, random));
+        }
+    }
+
+    /**
+     * Checks that the calculators find the same area visible from each of the viewers.
+     * @param scene The polygons that block vision/light.
+     * @param viewers The viewer positions.
+     */
+    private static void assertMatchesRayCast(VisionBlockingPolygonList scene, List<Point2D> viewers) {
+        TestScenes.assertMatchesRayCast(new AngularSweepVisibility(), scene, viewers, TOLERANCE, SLIVERS);
+    }
+}
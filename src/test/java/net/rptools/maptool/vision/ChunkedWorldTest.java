@@ -0,0 +1,251 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a {@link ChunkedWorld} only loads the tiles a query needs, drops the least recently used tiles to keep
+ * within its limit without dropping those of the current query, and that viewers walking across it see the same as
+ * they would with the whole world loaded.
+ *
+ * The world is a scene from {@link TestScenes#createScene(int, Random)} split into tiles of two by two cells, so every
+ * tile has the room around the scene (which is in all of them) and four cell polygons. The right and bottom edges of
+ * the room are on the far edges of the last tiles, so there is also a column and a row of tiles with only the room.
+ */
+public class ChunkedWorldTest {
+    /** The number of cells along each side of the scene. */
+    private static final int CELLS_PER_SIDE = 8;
+    /** The width and height of each tile. */
+    private static final double TILE_SIZE = 2 * TestScenes.CELL_SIZE;
+    /** The number of tiles along each side of the world. */
+    private static final int TILES_PER_SIDE = 4;
+    /** The number of vertices in each tile, the room and four cells with four vertices each. */
+    private static final int TILE_VERTICES = 5 * 4;
+    /** The number of polygons in each tile. */
+    private static final int TILE_POLYGONS = 5;
+    /** The vision radius of the walking viewer. */
+    private static final double RADIUS = 70;
+    /** How far the viewer moves each step. */
+    private static final double STEP = 7;
+
+    /** The directory the world is written to. */
+    private Path directory;
+    /** The scene the world is written from. */
+    private VisionBlockingPolygonList scene;
+
+    /**
+     * Writes the world.
+     * @throws IOException if the world can't be written.
+     */
+    @Before
+    public void writeWorld() throws IOException {
+        directory = Files.createTempDirectory("chunked-world-test");
+        scene = TestScenes.createScene(CELLS_PER_SIDE, new Random(1));
+        ChunkedWorld.write(scene.getPolygonList(), TILE_SIZE, directory);
+    }
+
+    /**
+     * Deletes the directory and the files in it.
+     * @throws IOException if something can't be deleted.
+     */
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    /**
+     * Tiles are only loaded when a query first needs them, and are kept for the next queries until the least recently
+     * used of them are dropped to make room for others, along with the lists of polygons that include them.
+     */
+    @Test
+    public void loadsLazilyAndDropsLeastRecentlyUsed() throws IOException {
+        final ChunkedWorld world = ChunkedWorld.open(directory, 6 * TILE_VERTICES);
+        assertEquals(TILE_SIZE, world.getTileSize(), 0);
+        assertCounts(world, 0, 0, 0);
+
+        // The room is in every tile but is only in the list once.
+        final VisionBlockingPolygonList first = getTile(world, 0, 0);
+        assertEquals(TILE_POLYGONS, first.getPolygonList().size());
+        assertCounts(world, 1, 0, 1);
+        assertSame(first, getTile(world, 0, 0));
+        assertCounts(world, 1, 0, 1);
+
+        // Four tiles, one of which is already loaded.
+        final VisionBlockingPolygonList corner = world.getPolygons(TILE_SIZE - 10, TILE_SIZE - 10, TILE_SIZE + 10,
+                TILE_SIZE + 10);
+        assertDistinct(corner);
+        assertEquals(1 + 4 * (TILE_POLYGONS - 1), corner.getPolygonList().size());
+        assertCounts(world, 4, 0, 4);
+
+        // Two more fill the limit, then using the first tile again leaves (0, 1) as the least recently used.
+        getTile(world, 2, 0);
+        getTile(world, 3, 0);
+        assertCounts(world, 6, 0, 6);
+        assertSame(first, getTile(world, 0, 0));
+        getTile(world, 2, 1);
+        assertCounts(world, 7, 1, 6);
+        getTile(world, 1, 0);
+        getTile(world, 0, 0);
+        assertCounts(world, 7, 1, 6);
+        // Which has to be loaded again, dropping (1, 1).
+        getTile(world, 0, 1);
+        assertCounts(world, 8, 2, 6);
+        getTile(world, 1, 1);
+        assertCounts(world, 9, 3, 6);
+
+        // Working through the rest of the tiles drops the first one, and with it the list it was in.
+        for (int row = 2; row < TILES_PER_SIDE; row++) {
+            for (int col = 0; col < TILES_PER_SIDE; col++) {
+                getTile(world, col, row);
+            }
+        }
+        assertCounts(world, 17, 11, 6);
+        final VisionBlockingPolygonList reloaded = getTile(world, 0, 0);
+        assertNotSame(first, reloaded);
+        assertEquals(first.getVertices(), reloaded.getVertices());
+        assertCounts(world, 18, 12, 6);
+    }
+
+    /**
+     * A query that needs more tiles than the limit allows keeps all of them, dropping everything else, and the next
+     * query drops them back down to the limit.
+     */
+    @Test
+    public void neverDropsTilesOfTheCurrentQuery() throws IOException {
+        final ChunkedWorld world = ChunkedWorld.open(directory, 2 * TILE_VERTICES);
+        getTile(world, 3, 3);
+        getTile(world, 3, 2);
+        assertCounts(world, 2, 0, 2);
+
+        // Three by three tiles.
+        final VisionBlockingPolygonList polygons = world.getPolygons(10, 10, 2 * TILE_SIZE + 10, 2 * TILE_SIZE + 10);
+        assertDistinct(polygons);
+        assertEquals(1 + 9 * (TILE_POLYGONS - 1), polygons.getPolygonList().size());
+        assertCounts(world, 11, 2, 9);
+        assertEquals(9 * TILE_VERTICES, world.getLoadedVertices());
+        assertSame(polygons, world.getPolygons(10, 10, 2 * TILE_SIZE + 10, 2 * TILE_SIZE + 10));
+        assertCounts(world, 11, 2, 9);
+
+        getTile(world, 0, 0);
+        assertCounts(world, 11, 9, 2);
+    }
+
+    /**
+     * A viewer walking across the world, with too small a limit to keep every tile it passes, sees the same area as it
+     * does with the whole scene. Only the tiles it needs are loaded and the limit is kept to whenever a single query
+     * needs less than it.
+     */
+    @Test
+    public void walkingViewerSeesWholeWorld() throws IOException {
+        final long maxVertices = 5 * TILE_VERTICES;
+        final ChunkedWorld world = ChunkedWorld.open(directory, maxVertices);
+        final RangeLimitedVisibility chunked = new RangeLimitedVisibility(new RayCastVisibility(true), RADIUS);
+        final RangeLimitedVisibility whole = new RangeLimitedVisibility(new RayCastVisibility(true), RADIUS);
+        final double size = CELLS_PER_SIDE * TestScenes.CELL_SIZE;
+
+        // Along a line between the cells and back along another.
+        final double[] lines = {2 * TestScenes.CELL_SIZE + 2, 5 * TestScenes.CELL_SIZE + 2};
+        for (int pass = 0; pass < lines.length; pass++) {
+            for (double along = 2; along < size; along += STEP) {
+                final Point2D viewer = new Point2D(pass == 0 ? along : size - along, lines[pass]);
+                TestScenes.assertSameWithinRadius("Seen from " + viewer, whole.calculateVisibility(scene, viewer),
+                        world.calculateVisibility(chunked, viewer), viewer, RADIUS);
+
+                final long needed = neededVertices(viewer);
+                assertEquals(world.getTileLoads() - world.getEvictions(), world.getNumberLoadedTiles());
+                assertTrue(world.getLoadedVertices() + " vertices loaded, " + needed + " needed",
+                        world.getLoadedVertices() >= needed
+                                && world.getLoadedVertices() <= Math.max(maxVertices, needed));
+            }
+        }
+        // The second pass goes back past tiles the first had to drop.
+        assertTrue(world.getTileLoads() > TILES_PER_SIDE * TILES_PER_SIDE / 2);
+        assertTrue(world.getEvictions() > 0);
+    }
+
+    /**
+     * Returns the polygons of a single tile, querying an area inside it.
+     * @param world The world.
+     * @param col The column of the tile.
+     * @param row The row of the tile.
+     * @return the polygons.
+     */
+    private static VisionBlockingPolygonList getTile(ChunkedWorld world, int col, int row) {
+        return world.getPolygons(col * TILE_SIZE + 10, row * TILE_SIZE + 10, (col + 1) * TILE_SIZE - 10,
+                (row + 1) * TILE_SIZE - 10);
+    }
+
+    /**
+     * Returns the number of vertices in the tiles that the vision radius of a viewer overlaps.
+     * @param viewer The viewer.
+     * @return the number of vertices.
+     */
+    private static long neededVertices(Point2D viewer) {
+        long vertices = 0;
+        for (int row = tileIndex(viewer.getY() - RADIUS); row <= tileIndex(viewer.getY() + RADIUS); row++) {
+            for (int col = tileIndex(viewer.getX() - RADIUS); col <= tileIndex(viewer.getX() + RADIUS); col++) {
+                if (col < 0 || row < 0 || col > TILES_PER_SIDE || row > TILES_PER_SIDE) {
+                    continue;
+                }
+                // The right and bottom edges of the room are in a column and row of tiles of their own.
+                vertices += col < TILES_PER_SIDE && row < TILES_PER_SIDE ? TILE_VERTICES : 4;
+            }
+        }
+        return vertices;
+    }
+
+    /**
+     * Returns the column or row of the tile that a co-ordinate is in.
+     * @param coordinate The X or Y co-ordinate.
+     * @return the column or row.
+     */
+    private static int tileIndex(double coordinate) {
+        return (int) Math.floor(coordinate / TILE_SIZE);
+    }
+
+    /**
+     * Checks the counts of tile loads and evictions, and that the number of vertices loaded is that of the tiles.
+     * @param world The world.
+     * @param tileLoads The number of times a tile should have been loaded.
+     * @param evictions The number of times a tile should have been dropped.
+     * @param loadedTiles The number of tiles that should be loaded.
+     */
+    private static void assertCounts(ChunkedWorld world, long tileLoads, long evictions, int loadedTiles) {
+        assertEquals("Tile loads", tileLoads, world.getTileLoads());
+        assertEquals("Evictions", evictions, world.getEvictions());
+        assertEquals("Loaded tiles", loadedTiles, world.getNumberLoadedTiles());
+        assertEquals("Loaded vertices", loadedTiles * (long) TILE_VERTICES, world.getLoadedVertices());
+    }
+
+    /**
+     * Checks that no polygon is in a list more than once.
+     * @param polygons The polygons.
+     */
+    private static void assertDistinct(VisionBlockingPolygonList polygons) {
+        final Set<List<Point2D>> vertices = new HashSet<>();
+        for (VisionBlockingPolygon vbp : polygons.getPolygonList()) {
+            assertTrue("Duplicate " + vbp.getVertices(), vertices.add(vbp.getVertices()));
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package net.rptools.maptool.vision;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that an {@link ExploredAreaMask} marks exactly the cells whose centres are inside the polygons added to it,
+ * counting only the cells that hadn't been seen before, that it can be saved and loaded back, and that a saved mask
+ * with a corrupt header or cut short is rejected with an {@link IOException}.
+ */
+public class ExploredAreaMaskTest {
+    /** The number of columns of the masks, which isn't a multiple of the 64 cells in each word of a row. */
+    private static final int COLUMNS = 130;
+    /** The number of rows of the masks. */
+    private static final int ROWS = 90;
+    /** Where the number of columns is in a saved mask, after the magic number, version, origin and cell size. */
+    private static final int COLUMNS_OFFSET = 2 * Integer.BYTES + 3 * Double.BYTES;
+    /** The size of the header of a saved mask in bytes. */
+    private static final int HEADER_SIZE = COLUMNS_OFFSET + 2 * Integer.BYTES;
+
+    /**
+     * A rectangle covers the cells whose centres are inside it.
+     */
+    @Test
+    public void fillsSquare() {
+        final ExploredAreaMask mask = new ExploredAreaMask(0, 0, COLUMNS, ROWS, 1);
+        assertEquals(COLUMNS, mask.getColumns());
+        assertEquals(ROWS, mask.getRows());
+        assertEquals(0, mask.getExploredCount());
+
+        // Cells 10 to 79 across and 20 to 49 down have their centres inside, across the first two words of each row.
+        final double[] xs = {80.3, 10.3, 10.3, 80.3};
+        final double[] ys = {20.3, 20.3, 50.3, 50.3};
+        assertEquals(70 * 30, mask.addPolygon(xs, ys, 4));
+        assertEquals(70 * 30, mask.getExploredCount());
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                assertEquals("Cell " + column + ", " + row, column >= 10 && column < 80 && row >= 20 && row < 50,
+                        mask.isExplored(column, row));
+            }
+        }
+        assertTrue(mask.isExplored(10.0, 20.0));
+        assertFalse(mask.isExplored(9.9, 20.0));
+        assertFalse(mask.isExplored(80.0, 49.9));
+    }
+
+    /**
+     * A triangle, and a polygon with a notch in it, cover the cells whose centres are inside them, both added in
+     * either direction.
+     */
+    @Test
+    public void fillsTriangleAndConcavePolygon() {
+        final double[][] polygons = {
+                {5.2, 3.7, 120.9, 20.1, 30.3, 86.6},
+                {2.5, 2.5, 100.1, 10.2, 60.7, 40.4, 110.3, 80.8, 8.8, 70.1}
+        };
+        for (double[] coordinates : polygons) {
+            for (boolean reverse : new boolean[] {false, true}) {
+                final int numVertices = coordinates.length / 2;
+                final double[] xs = new double[numVertices];
+                final double[] ys = new double[numVertices];
+                for (int i = 0; i < numVertices; i++) {
+                    final int vertex = reverse ? numVertices - 1 - i : i;
+                    xs[i] = coordinates[vertex * 2];
+                    ys[i] = coordinates[vertex * 2 + 1];
+                }
+                final ExploredAreaMask mask = new ExploredAreaMask(0, 0, COLUMNS, ROWS, 1);
+                final int added = mask.addPolygon(xs, ys, numVertices);
+                assertEquals(countCentresInside(mask, xs, ys), added);
+                assertEquals(added, mask.getExploredCount());
+                assertMatchesPolygon(mask, xs, ys);
+            }
+        }
+    }
+
+    /**
+     * Adding an area again adds no cells, and an overlapping area only adds the cells that hadn't been seen.
+     */
+    @Test
+    public void countsOnlyNewCells() {
+        final ExploredAreaMask mask = new ExploredAreaMask(0, 0, COLUMNS, ROWS, 1);
+        final double[] xs = {5.2, 120.9, 30.3};
+        final double[] ys = {3.7, 20.1, 86.6};
+        final int added = mask.addPolygon(xs, ys, 3);
+        assertTrue(added > 0);
+        assertEquals(0, mask.addPolygon(xs, ys, 3));
+        assertEquals(added, mask.getExploredCount());
+
+        // Cells 60 to 99 across and 10 to 24 down, some of which the triangle covers.
+        final double[] squareXs = {60, 100, 100, 60};
+        final double[] squareYs = {10, 10, 25, 25};
+        int seen = 0;
+        for (int row = 10; row < 25; row++) {
+            for (int column = 60; column < 100; column++) {
+                seen += mask.isExplored(column, row) ? 1 : 0;
+            }
+        }
+        assertTrue(seen > 0 && seen < 40 * 15);
+        assertEquals(40 * 15 - seen, mask.addPolygon(squareXs, squareYs, 4));
+        assertEquals(added + 40 * 15 - seen, mask.getExploredCount());
+
+        // Fewer than three vertices have no area.
+        assertEquals(0, mask.addPolygon(new double[] {0, 200}, new double[] {0, 200}, 2));
+        mask.clear();
+        assertEquals(0, mask.getExploredCount());
+        assertEquals(added, mask.addPolygon(xs, ys, 3));
+    }
+
+    /**
+     * Polygons that go over the edges of the mask only cover the cells inside it, and those entirely outside of it
+     * cover nothing.
+     */
+    @Test
+    public void clipsToEdges() {
+        final ExploredAreaMask mask = new ExploredAreaMask(-20.5, 10, COLUMNS * 2, ROWS * 2, 2);
+        assertEquals(COLUMNS, mask.getColumns());
+        assertEquals(ROWS, mask.getRows());
+        assertEquals(2, mask.getCellSize(), 0);
+
+        final double[] outsideXs = {-100, -30, -60};
+        final double[] outsideYs = {0, 50, 300};
+        assertEquals(0, mask.addPolygon(outsideXs, outsideYs, 3));
+        assertEquals(0, mask.addPolygon(new double[] {0, 100, 50}, new double[] {-50, -50, 5}, 3));
+
+        // Over the left, top and bottom edges.
+        final double[] xs = {-70, 150.7, -45};
+        final double[] ys = {-30.2, 95.3, 260};
+        final int added = mask.addPolygon(xs, ys, 3);
+        assertEquals(countCentresInside(mask, -20.5, 10, 2, xs, ys), added);
+        assertTrue(mask.isExplored(-20.5, 10));
+        assertFalse(mask.isExplored(-20.6, 10));
+        assertFalse(mask.isExplored(-20.5, 9.9));
+
+        // Over every edge.
+        final double[] allXs = {-1000, 1000, 1000, -1000};
+        final double[] allYs = {-1000, -1000, 1000, 1000};
+        assertEquals(COLUMNS * ROWS - added, mask.addPolygon(allXs, allYs, 4));
+        assertEquals(COLUMNS * ROWS, mask.getExploredCount());
+        assertFalse(mask.isExplored(-20.5 + COLUMNS * 2, 10));
+        assertFalse(mask.isExplored(-20.5, 10 + ROWS * 2));
+    }
+
+    /**
+     * A saved mask loads back with the same cells seen.
+     */
+    @Test
+    public void savesAndLoads() throws IOException {
+        final ExploredAreaMask mask = new ExploredAreaMask(-20.5, 10, COLUMNS * 2, ROWS * 2, 2);
+        mask.addPolygon(new double[] {-70, 150.7, -45}, new double[] {-30.2, 95.3, 260}, 3);
+        mask.addPolygon(new double[] {200, 240, 240}, new double[] {20, 20, 90}, 3);
+        final byte[] saved = save(mask);
+
+        final ExploredAreaMask loaded = ExploredAreaMask.load(new ByteArrayInputStream(saved));
+        assertEquals(mask.getColumns(), loaded.getColumns());
+        assertEquals(mask.getRows(), loaded.getRows());
+        assertEquals(mask.getCellSize(), loaded.getCellSize(), 0);
+        assertEquals(mask.getExploredCount(), loaded.getExploredCount());
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                assertEquals("Cell " + column + ", " + row, mask.isExplored(column, row),
+                        loaded.isExplored(column, row));
+            }
+        }
+        // The origin is kept.
+        assertTrue(loaded.isExplored(-20.5, 10));
+        assertFalse(loaded.isExplored(-20.6, 10));
+    }
+
+    /**
+     * A saved mask that isn't one, is from another version, has a header with an impossible origin, cell size or
+     * number of cells, or is cut short is rejected.
+     */
+    @Test
+    public void rejectsCorruptMask() throws IOException {
+        final ExploredAreaMask mask = new ExploredAreaMask(0, 0, COLUMNS, ROWS, 1);
+        mask.addPolygon(new double[] {5.2, 120.9, 30.3}, new double[] {3.7, 20.1, 86.6}, 3);
+        final byte[] saved = save(mask);
+
+        assertRejected(saved, b -> b.putInt(0, b.getInt(0) + 1), "Not an explored area mask");
+        assertRejected(saved, b -> b.putInt(4, 2), "Unsupported explored area mask version 2");
+        final String corrupt = "Explored area mask is corrupt";
+        for (double origin : new double[] {Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY}) {
+            assertRejected(saved, b -> b.putDouble(8, origin), corrupt);
+            assertRejected(saved, b -> b.putDouble(16, origin), corrupt);
+        }
+        for (double cellSize : new double[] {0, -1, Double.NaN, Double.POSITIVE_INFINITY}) {
+            assertRejected(saved, b -> b.putDouble(24, cellSize), corrupt);
+        }
+        for (int count : new int[] {0, -1, Integer.MIN_VALUE}) {
+            assertRejected(saved, b -> b.putInt(COLUMNS_OFFSET, count), corrupt);
+            assertRejected(saved, b -> b.putInt(COLUMNS_OFFSET + Integer.BYTES, count), corrupt);
+        }
+        assertRejected(saved, b -> {
+            b.putInt(COLUMNS_OFFSET, Integer.MAX_VALUE);
+            b.putInt(COLUMNS_OFFSET + Integer.BYTES, Integer.MAX_VALUE);
+        }, corrupt);
+        // More cells than were saved runs out of data.
+        assertRejected(saved, b -> b.putInt(COLUMNS_OFFSET + Integer.BYTES, 1 << 20), corrupt);
+
+        for (int length : new int[] {0, 3, HEADER_SIZE - 1, HEADER_SIZE, saved.length / 2}) {
+            try {
+                ExploredAreaMask.load(new ByteArrayInputStream(Arrays.copyOf(saved, length)));
+                fail("Loaded a mask cut short to " + length + " bytes");
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+    }
+
+    /**
+     * Saves a mask.
+     * @param mask The mask.
+     * @return the saved mask.
+     * @throws IOException if there is an error saving the mask.
+     */
+    private static byte[] save(ExploredAreaMask mask) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mask.save(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Checks that a saved mask is rejected once it has been changed.
+     * @param saved The saved mask.
+     * @param change Changes a copy of the saved mask, which is big endian.
+     * @param message The message the mask should be rejected with.
+     */
+    private static void assertRejected(byte[] saved, Consumer<ByteBuffer> change, String message) {
+        final byte[] corrupt = saved.clone();
+        change.accept(ByteBuffer.wrap(corrupt));
+        try {
+            ExploredAreaMask.load(new ByteArrayInputStream(corrupt));
+            fail("Loaded a corrupt mask, expected " + message);
+        } catch (IOException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    /**
+     * Checks that the cells of a mask with its origin at 0, 0 and cells of size 1 are seen exactly when their centres
+     * are inside a polygon.
+     * @param mask The mask.
+     * @param xs The X co-ordinates of the vertices of the polygon.
+     * @param ys The Y co-ordinates of the vertices of the polygon.
+     */
+    private static void assertMatchesPolygon(ExploredAreaMask mask, double[] xs, double[] ys) {
+        for (int row = 0; row < mask.getRows(); row++) {
+            for (int column = 0; column < mask.getColumns(); column++) {
+                assertEquals("Cell " + column + ", " + row, contains(xs, ys, column + 0.5, row + 0.5),
+                        mask.isExplored(column, row));
+            }
+        }
+    }
+
+    /**
+     * Counts the cells of a mask with its origin at 0, 0 and cells of size 1 whose centres are inside a polygon.
+     * @param mask The mask.
+     * @param xs The X co-ordinates of the vertices of the polygon.
+     * @param ys The Y co-ordinates of the vertices of the polygon.
+     * @return the number of cells.
+     */
+    private static int countCentresInside(ExploredAreaMask mask, double[] xs, double[] ys) {
+        return countCentresInside(mask, 0, 0, 1, xs, ys);
+    }
+
+    /**
+     * Counts the cells of a mask whose centres are inside a polygon.
+     * @param mask The mask.
+     * @param originX The X co-ordinate of the left edge of the mask.
+     * @param originY The Y co-ordinate of the top edge of the mask.
+     * @param cellSize The width and height of each cell.
+     * @param xs The X co-ordinates of the vertices of the polygon.
+     * @param ys The Y co-ordinates of the vertices of the polygon.
+     * @return the number of cells.
+     */
+    private static int countCentresInside(ExploredAreaMask mask, double originX, double originY, double cellSize,
+                                          double[] xs, double[] ys) {
+        int count = 0;
+        for (int row = 0; row < mask.getRows(); row++) {
+            for (int column = 0; column < mask.getColumns(); column++) {
+                if (contains(xs, ys, originX + (column + 0.5) * cellSize, originY + (row + 0.5) * cellSize)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns if a point is inside a polygon, by the even-odd rule.
+     * @param xs The X co-ordinates of the vertices of the polygon.
+     * @param ys The Y co-ordinates of the vertices of the polygon.
+     * @param x The X co-ordinate of the point.
+     * @param y The Y co-ordinate of the point.
+     * @return <code>true</code> if the point is inside the polygon.
+     */
+    private static boolean contains(double[] xs, double[] ys, double x, double y) {
+        boolean inside = false;
+        for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+            if ((ys[i] > y) != (ys[j] > y) && x < xs[j] + (xs[i] - xs[j]) * (y - ys[j]) / (ys[i] - ys[j])) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+}
@@ -0,0 +1,327 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link GeometryPreprocessor} (and the {@link PointWelder} it uses) welds near duplicate vertices, drops
+ * collinear vertices and degenerate polygons, and leaves the area visible from viewers unchanged.
+ */
+public class GeometryPreprocessorTest {
+    /** The weld tolerance used, well below the size of anything in the scenes. */
+    private static final double WELD_TOLERANCE = 1e-6;
+    /** The largest difference allowed between the visible areas, relative to the area. */
+    private static final double TOLERANCE = 1e-4;
+    /**
+     * The number of slivers {@link VisibilityCalculator#VERY_SMALL_ANGLE} wide, reaching across the scene, that the
+     * visible areas may also differ by.
+     */
+    private static final double SLIVERS = 2;
+    /** The number of viewer positions tried in each scene. */
+    private static final int VIEWERS = 100;
+
+    /**
+     * Points within the tolerance are welded onto the first of them, even across grid cells, and points further away
+     * are not, even if they are within the tolerance of a point that was welded.
+     */
+    @Test
+    public void weldsPointsWithinTolerance() {
+        final PointWelder welder = new PointWelder(1);
+        final Point2D first = new Point2D(0.99, 0);
+        assertSame(first, welder.weld(first));
+        assertSame("Neighbouring cell", first, welder.weld(new Point2D(1.01, 0)));
+        assertSame("Exactly the tolerance", first, welder.weld(new Point2D(0.99, 1)));
+        assertSame("Diagonal cell", first, welder.weld(new Point2D(1.5, 0.5)));
+        final Point2D far = new Point2D(2.0, 0);
+        assertSame("Not chained", far, welder.weld(far));
+
+        final Point2D negative = new Point2D(-0.01, -0.01);
+        assertSame(negative, welder.weld(negative));
+        assertSame("Across zero", negative, welder.weld(new Point2D(0.01, -0.5)));
+    }
+
+    /**
+     * A tolerance of 0 welds nothing, not even equal points, as they are already the same.
+     */
+    @Test
+    public void zeroToleranceWeldsNothing() {
+        final PointWelder welder = new PointWelder(0);
+        final Point2D point = new Point2D(1, 1);
+        welder.weld(point);
+        final Point2D same = new Point2D(1, 1);
+        assertSame(same, welder.weld(same));
+    }
+
+    /**
+     * Negative tolerances are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeTolerance() {
+        new GeometryPreprocessor(-1, 0);
+    }
+
+    /**
+     * Neighbouring squares whose shared corners are slightly apart end up sharing exactly the same wall, which is then
+     * only stored once.
+     */
+    @Test
+    public void weldsSharedWalls() {
+        final VisionBlockingPolygonList scene = new VisionBlockingPolygonList();
+        scene.addVisionBlockingPolygon(polygon(0, 0, 10, 0, 10, 10, 0, 10));
+        scene.addVisionBlockingPolygon(polygon(10 + WELD_TOLERANCE / 3, -WELD_TOLERANCE / 3, 20, 0, 20, 10,
+                10 - WELD_TOLERANCE / 3, 10 + WELD_TOLERANCE / 3));
+        assertEquals(8, scene.getNumberVertices());
+        assertEquals(8, scene.getSegmentStore().size());
+
+        final GeometryPreprocessor.Result result = new GeometryPreprocessor(WELD_TOLERANCE, 0).process(scene);
+        final VisionBlockingPolygonList processed = result.getVisionBlockingPolygonList();
+        assertArrayEquals(polygon(0, 0, 10, 0, 10, 10, 0, 10).getVerticesX(),
+                processed.getPolygonList().get(0).getVerticesX(), 0);
+        assertArrayEquals(polygon(10, 0, 20, 0, 20, 10, 10, 10).getVerticesX(),
+                processed.getPolygonList().get(1).getVerticesX(), 0);
+        assertArrayEquals(polygon(10, 0, 20, 0, 20, 10, 10, 10).getVerticesY(),
+                processed.getPolygonList().get(1).getVerticesY(), 0);
+        assertEquals(0, result.getPolygonsRemoved());
+        assertEquals(2, result.getVerticesRemoved());
+        assertEquals(1, result.getSegmentsRemoved());
+    }
+
+    /**
+     * Vertices on the line between their neighbours, or within the weld tolerance of it, are removed, but not if they
+     * are shared with another polygon.
+     */
+    @Test
+    public void dropsCollinearVertices() {
+        final VisionBlockingPolygonList scene = new VisionBlockingPolygonList();
+        // A square with extra vertices along its sides, one of them slightly off the line.
+        scene.addVisionBlockingPolygon(polygon(0, 0, 5, 0, 10, 0, 10, 3, 10 + WELD_TOLERANCE / 2, 6, 10, 10,
+                0, 10, 0, 5));
+        // A wall that ends on the left side of the square, at the vertex (0, 5).
+        scene.addVisionBlockingPolygon(polygon(-10, 5, 0, 5));
+
+        final GeometryPreprocessor.Result result = new GeometryPreprocessor(WELD_TOLERANCE, 0).process(scene);
+        final VisionBlockingPolygon square = result.getVisionBlockingPolygonList().getPolygonList().get(0);
+        assertArrayEquals(polygon(0, 0, 10, 0, 10, 10, 0, 10, 0, 5).getVerticesX(), square.getVerticesX(), 0);
+        assertArrayEquals(polygon(0, 0, 10, 0, 10, 10, 0, 10, 0, 5).getVerticesY(), square.getVerticesY(), 0);
+        assertEquals(3, result.getVerticesRemoved());
+        assertEquals(3, result.getSegmentsRemoved());
+    }
+
+    /**
+     * Repeated vertices are removed and polygons that collapse to a point are dropped.
+     */
+    @Test
+    public void dropsDegenerateGeometry() {
+        final VisionBlockingPolygonList scene = new VisionBlockingPolygonList();
+        scene.addVisionBlockingPolygon(polygon(0, 0, 0, 0, 10, 0, 10, WELD_TOLERANCE / 2, 10, 10, 0, 10, 0, 0));
+        scene.addVisionBlockingPolygon(polygon(20, 20, 20 + WELD_TOLERANCE / 2, 20, 20, 20 + WELD_TOLERANCE / 2));
+        scene.addVisionBlockingPolygon(polygon(30, 30, 40, 40, 40 + WELD_TOLERANCE / 2, 40));
+
+        final GeometryPreprocessor.Result result = new GeometryPreprocessor(WELD_TOLERANCE, 0).process(scene);
+        final List<VisionBlockingPolygon> polygons = result.getVisionBlockingPolygonList().getPolygonList();
+        assertEquals(1, result.getPolygonsRemoved());
+        assertEquals(2, polygons.size());
+        assertArrayEquals(polygon(0, 0, 10, 0, 10, 10, 0, 10).getVerticesX(), polygons.get(0).getVerticesX(), 0);
+        assertArrayEquals(polygon(0, 0, 10, 0, 10, 10, 0, 10).getVerticesY(), polygons.get(0).getVerticesY(), 0);
+        // The triangle collapses to a wall.
+        assertArrayEquals(polygon(30, 30, 40, 40).getVerticesX(), polygons.get(1).getVerticesX(), 0);
+        assertArrayEquals(polygon(30, 30, 40, 40).getVerticesY(), polygons.get(1).getVerticesY(), 0);
+    }
+
+    /**
+     * Simplifying a curve keeps every vertex removed within the tolerance of the new outline.
+     */
+    @Test
+    public void simplifiesCurvesWithinTolerance() {
+        final double radius = 100;
+        final double tolerance = 0.5;
+        final int numPoints = 360;
+        final Point2D[] circle = new Point2D[numPoints];
+        for (int i = 0; i < numPoints; i++) {
+            final double angle = 2 * Math.PI * i / numPoints;
+            circle[i] = new Point2D(radius * Math.cos(angle), radius * Math.sin(angle));
+        }
+        final VisionBlockingPolygonList scene = new VisionBlockingPolygonList();
+        scene.addVisionBlockingPolygon(new VisionBlockingPolygon(circle));
+
+        final GeometryPreprocessor.Result result = new GeometryPreprocessor(WELD_TOLERANCE, tolerance).process(scene);
+        final VisionBlockingPolygon simplified = result.getVisionBlockingPolygonList().getPolygonList().get(0);
+        assertTrue("Nothing removed", result.getVerticesRemoved() > numPoints / 2);
+        for (Point2D point : circle) {
+            double closest = Double.POSITIVE_INFINITY;
+            for (LineSegment lineSegment : simplified.getLineSegments()) {
+                closest = Math.min(closest, distanceToSegment(point, lineSegment));
+            }
+            assertTrue(point + " is " + closest + " from the outline", closest <= tolerance);
+        }
+    }
+
+    /**
+     * Disabled polygons are cleaned up and stay disabled, and open doors stay open even where simplifying would
+     * otherwise merge them into the walls either side.
+     */
+    @Test
+    public void keepsDisabledPolygonsAndDoors() {
+        final VisionBlockingPolygonList scene = new VisionBlockingPolygonList();
+        // A square with a door from (0, 0) to (0, 5) along its left side, which carries on to (0, 10).
+        scene.addVisionBlockingPolygon(polygon(0, 0, 10, 0, 10, 10, 0, 10, 0, 5));
+        // A polygon with a near duplicate of the square's corner and collinear vertices that are removed.
+        final VisionBlockingPolygon disabled = polygon(20, 0, 30, 0, 30, 5, 30, 10, 20, 10,
+                10 + WELD_TOLERANCE / 2, 10);
+        scene.addVisionBlockingPolygon(disabled);
+        scene.setPolygonEnabled(disabled, false);
+        final LineSegment door = new LineSegment(new Point2D(0, 5), new Point2D(0, 0));
+        assertTrue(scene.setLineSegmentEnabled(door, false));
+
+        final GeometryPreprocessor.Result result = new GeometryPreprocessor(WELD_TOLERANCE, 0).process(scene);
+        final VisionBlockingPolygonList processed = result.getVisionBlockingPolygonList();
+        assertEquals(0, result.getPolygonsRemoved());
+        assertEquals(1, processed.getPolygonList().size());
+        assertArrayEquals(polygon(0, 0, 10, 0, 10, 10, 0, 10, 0, 5).getVerticesX(),
+                processed.getPolygonList().get(0).getVerticesX(), 0);
+        assertEquals(1, processed.getDisabledPolygons().size());
+        final VisionBlockingPolygon cleaned = processed.getDisabledPolygons().get(0);
+        assertArrayEquals(polygon(20, 0, 30, 0, 30, 10, 10, 10).getVerticesX(), cleaned.getVerticesX(), 0);
+        assertArrayEquals(polygon(20, 0, 30, 0, 30, 10, 10, 10).getVerticesY(), cleaned.getVerticesY(), 0);
+        assertEquals(1, processed.getDisabledLineSegments().size());
+        assertFalse(processed.isLineSegmentEnabled(door));
+        assertTrue(processed.isLineSegmentEnabled(new LineSegment(new Point2D(0, 5), new Point2D(0, 10))));
+
+        // Seen through the door, and nothing blocked by the disabled polygon.
+        final VisibilityCalculator calculator = new RayCastVisibility();
+        for (Point2D viewer : new Point2D[] {new Point2D(-5, 2.5), new Point2D(5, 5), new Point2D(25, 5)}) {
+            assertEquals("Visible area from " + viewer, TestScenes.area(calculator.calculateVisibility(scene, viewer)),
+                    TestScenes.area(calculator.calculateVisibility(processed, viewer)), 1e-9);
+        }
+
+        // Enabling the cleaned up polygon blocks vision again.
+        processed.setPolygonEnabled(cleaned, true);
+        assertTrue(processed.isLineSegmentEnabled(new LineSegment(new Point2D(30, 0), new Point2D(30, 10))));
+    }
+
+    /**
+     * Only the line segments still in the enabled polygons are counted, so lines left in the store by removed or
+     * disabled polygons aren't reported as removed when nothing was welded or simplified away.
+     */
+    @Test
+    public void countsOnlyLineSegmentsInUse() {
+        final VisionBlockingPolygonList scene = new VisionBlockingPolygonList();
+        scene.addVisionBlockingPolygon(polygon(0, 0, 10, 0, 10, 10, 0, 10));
+        final VisionBlockingPolygon removed = polygon(20, 0, 30, 0, 30, 10);
+        scene.addVisionBlockingPolygon(removed);
+        final VisionBlockingPolygon disabled = polygon(40, 0, 50, 0, 50, 10, 40, 10);
+        scene.addVisionBlockingPolygon(disabled);
+        assertTrue(scene.removeVisionBlockingPolygon(removed));
+        assertTrue(scene.setPolygonEnabled(disabled, false));
+        assertTrue(scene.setLineSegmentEnabled(new LineSegment(new Point2D(0, 0), new Point2D(10, 0)), false));
+        assertEquals(11, scene.getSegmentStore().size());
+
+        final GeometryPreprocessor.Result result = new GeometryPreprocessor(WELD_TOLERANCE, 0).process(scene);
+        assertEquals(0, result.getPolygonsRemoved());
+        assertEquals(0, result.getVerticesRemoved());
+        assertEquals(0, result.getSegmentsRemoved());
+        assertEquals("Removed 0 of 2 polygons, 0 of 4 vertices and 0 of 4 line segments", result.toString());
+    }
+
+    /**
+     * Random scenes with extra vertices along their line segments and near duplicates of their vertices are cleaned up
+     * back to the original polygons, and the same areas are visible before and after.
+     */
+    @Test
+    public void leavesVisibilityUnchanged() {
+        final Random random = new Random(1);
+        final VisibilityCalculator calculator = new RayCastVisibility();
+        for (int cellsPerSide = 1; cellsPerSide <= 6; cellsPerSide++) {
+            final VisionBlockingPolygonList clean = TestScenes.createScene(cellsPerSide, random);
+            final VisionBlockingPolygonList dirty = new VisionBlockingPolygonList();
+            for (VisionBlockingPolygon vbp : clean.getPolygonList()) {
+                dirty.addVisionBlockingPolygon(dirty(vbp, random));
+            }
+
+            final GeometryPreprocessor.Result result = new GeometryPreprocessor(WELD_TOLERANCE, 0).process(dirty);
+            final VisionBlockingPolygonList processed = result.getVisionBlockingPolygonList();
+            assertEquals(0, result.getPolygonsRemoved());
+            assertEquals(dirty.getNumberVertices() - clean.getNumberVertices(), result.getVerticesRemoved());
+            for (int i = 0; i < clean.getPolygonList().size(); i++) {
+                assertArrayEquals("X of polygon " + i, clean.getPolygonList().get(i).getVerticesX(),
+                        processed.getPolygonList().get(i).getVerticesX(), 0);
+                assertArrayEquals("Y of polygon " + i, clean.getPolygonList().get(i).getVerticesY(),
+                        processed.getPolygonList().get(i).getVerticesY(), 0);
+            }
+
+            final double sliverArea = TestScenes.sliverArea(dirty) * SLIVERS;
+            for (Point2D viewer : TestScenes.createViewers(cellsPerSide, VIEWERS, random)) {
+                final double expected = TestScenes.area(calculator.calculateVisibility(dirty, viewer));
+                final double actual = TestScenes.area(calculator.calculateVisibility(processed, viewer));
+                assertEquals("Visible area from " + viewer, expected, actual, expected * TOLERANCE + sliverArea);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of a polygon with extra vertices along each of its line segments, and a near duplicate of some of
+     * its vertices straight after them.
+     * @param vbp The polygon.
+     * @param random The random number generator.
+     * @return the copy.
+     */
+    private static VisionBlockingPolygon dirty(VisionBlockingPolygon vbp, Random random) {
+        final List<Point2D> vertices = vbp.getVertices();
+        final List<Point2D> points = new ArrayList<>();
+        for (int i = 0; i < vertices.size(); i++) {
+            final Point2D p1 = vertices.get(i);
+            final Point2D p2 = vertices.get((i + 1) % vertices.size());
+            points.add(p1);
+            if (random.nextBoolean()) {
+                points.add(new Point2D(p1.getX() + (random.nextDouble() - 0.5) * WELD_TOLERANCE,
+                        p1.getY() + (random.nextDouble() - 0.5) * WELD_TOLERANCE));
+            }
+            final int extra = random.nextInt(3);
+            for (int j = 1; j <= extra; j++) {
+                final double t = (double) j / (extra + 1);
+                points.add(new Point2D(p1.getX() + (p2.getX() - p1.getX()) * t,
+                        p1.getY() + (p2.getY() - p1.getY()) * t));
+            }
+        }
+        return new VisionBlockingPolygon(points.toArray(new Point2D[0]));
+    }
+
+    /**
+     * Creates a polygon.
+     * @param coordinates The X and Y co-ordinates of each vertex in turn.
+     * @return the polygon.
+     */
+    private static VisionBlockingPolygon polygon(double... coordinates) {
+        final Point2D[] points = new Point2D[coordinates.length / 2];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point2D(coordinates[i * 2], coordinates[i * 2 + 1]);
+        }
+        return new VisionBlockingPolygon(points);
+    }
+
+    /**
+     * Returns the distance from a point to the closest point on a line segment.
+     * @param point The point.
+     * @param lineSegment The line segment.
+     * @return the distance to the line segment.
+     */
+    private static double distanceToSegment(Point2D point, LineSegment lineSegment) {
+        final Point2D p1 = lineSegment.getPoint1();
+        final Point2D p2 = lineSegment.getPoint2();
+        final double dx = p2.getX() - p1.getX();
+        final double dy = p2.getY() - p1.getY();
+        final double t = Math.max(0, Math.min(1,
+                ((point.getX() - p1.getX()) * dx + (point.getY() - p1.getY()) * dy) / (dx * dx + dy * dy)));
+        return point.distance(p1.getX() + dx * t, p1.getY() + dy * t);
+    }
+}
@@ -0,0 +1,250 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link HeadlessVisibility} writes the result for each position in the same order as the positions,
+ * across several batches worked on at once, that a line it can't parse stops it with the number of that line, and
+ * that only the options in its usage are accepted.
+ */
+public class HeadlessVisibilityTest {
+    /** The number of worker threads, so batches finish out of order. */
+    private static final int THREADS = 4;
+    /** The number of lines in each batch, as in {@link HeadlessVisibility}. */
+    private static final int BATCH_SIZE = 256;
+    /** The number of viewers, enough for several batches with a part batch at the end. */
+    private static final int VIEWERS = BATCH_SIZE * 4 + 37;
+    /** How far a written co-ordinate can be from the calculated one, as they are written to 3 decimal places. */
+    private static final double TOLERANCE = 0.0005;
+
+    /** The calculator being tested, shut down after each test. */
+    private HeadlessVisibility headless;
+
+    /**
+     * Stops the worker threads.
+     */
+    @After
+    public void shutdown() {
+        if (headless != null) {
+            headless.shutdown();
+        }
+    }
+
+    /**
+     * Each line of the output is the visible area of the viewer on the same line of the input, ignoring blank lines
+     * and comments.
+     */
+    @Test
+    public void visibleAreasAreInInputOrder() throws IOException, InterruptedException {
+        final Random random = new Random(1);
+        final VisionBlockingPolygonList scene = TestScenes.createDemoScene();
+        final List<Point2D> viewers = TestScenes.createDemoViewers(scene, VIEWERS, random);
+        final VisibilityCalculator calculator = new RayCastVisibility(true);
+        headless = new HeadlessVisibility(scene, calculator, null, THREADS);
+
+        final List<String> output = run(createInput(viewers, random));
+        assertEquals(viewers.size(), output.size());
+        for (int v = 0; v < viewers.size(); v++) {
+            final List<LineIntersection> expected = calculator.calculateVisibility(scene, viewers.get(v));
+            final String[] vertices = output.get(v).split(" ");
+            assertEquals("Vertices seen from viewer " + v, expected.size(), vertices.length);
+            for (int i = 0; i < vertices.length; i++) {
+                final String[] xy = vertices[i].split(",");
+                assertEquals("Viewer " + v + " vertex " + i + " x", expected.get(i).getPoint().getX(),
+                        Double.parseDouble(xy[0]), TOLERANCE);
+                assertEquals("Viewer " + v + " vertex " + i + " y", expected.get(i).getPoint().getY(),
+                        Double.parseDouble(xy[1]), TOLERANCE);
+            }
+        }
+    }
+
+    /**
+     * With targets, each line of the output is the indexes of the targets the viewer on the same line of the input
+     * can see.
+     */
+    @Test
+    public void visibleTargetsAreInInputOrder() throws IOException, InterruptedException {
+        final Random random = new Random(2);
+        final VisionBlockingPolygonList scene = TestScenes.createDemoScene();
+        final List<Point2D> viewers = TestScenes.createDemoViewers(scene, VIEWERS, random);
+        final List<Point2D> targets = TestScenes.createDemoViewers(scene, 70, random);
+        headless = new HeadlessVisibility(scene, new RayCastVisibility(true), targets, THREADS);
+
+        final List<String> output = run(createInput(viewers, random));
+        assertEquals(viewers.size(), output.size());
+        for (int v = 0; v < viewers.size(); v++) {
+            final StringBuilder expected = new StringBuilder();
+            for (int t = 0; t < targets.size(); t++) {
+                if (LineOfSight.canSee(scene, viewers.get(v), targets.get(t))) {
+                    if (expected.length() > 0) {
+                        expected.append(' ');
+                    }
+                    expected.append(t);
+                }
+            }
+            assertEquals("Targets seen from viewer " + v, expected.toString(), output.get(v));
+        }
+    }
+
+    /**
+     * A line that can't be parsed is reported with its line number, counting blank lines and comments, and the
+     * results of the batches before its batch are written but not those of its own.
+     */
+    @Test
+    public void malformedLineStopsWithItsLineNumber() throws IOException, InterruptedException {
+        final Random random = new Random(3);
+        final VisionBlockingPolygonList scene = TestScenes.createDemoScene();
+        headless = new HeadlessVisibility(scene, new RayCastVisibility(true), null, THREADS);
+
+        // In the third batch, after a comment and a blank line in the first.
+        final int badLine = BATCH_SIZE * 2 + 88;
+        final StringBuilder input = new StringBuilder("# viewers\n\n");
+        for (Point2D viewer : TestScenes.createDemoViewers(scene, BATCH_SIZE * 4, random)) {
+            input.append(viewer.getX()).append(' ').append(viewer.getY()).append('\n');
+        }
+        final String[] lines = input.toString().split("\n", -1);
+        lines[badLine - 1] = "12.5 north";
+        final StringWriter out = new StringWriter();
+        try {
+            headless.run(new BufferedReader(new StringReader(String.join("\n", lines))), out);
+            fail("Malformed line accepted");
+        } catch (HeadlessVisibility.PositionFormatException e) {
+            assertEquals(badLine, e.getLineNumber());
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Input line " + badLine + ":"));
+            assertTrue(e.getMessage(), e.getMessage().contains("12.5 north"));
+        }
+        // The first batch has two lines without positions.
+        assertEquals(BATCH_SIZE * 2 - 2, outputLines(out.toString()).size());
+    }
+
+    /**
+     * A malformed first line stops it before anything is written.
+     */
+    @Test
+    public void malformedFirstLineWritesNothing() throws IOException, InterruptedException {
+        headless = new HeadlessVisibility(TestScenes.createDemoScene(), new RayCastVisibility(true), null, THREADS);
+        final StringWriter out = new StringWriter();
+        try {
+            headless.run(new BufferedReader(new StringReader("1,2,3\n100 100\n")), out);
+            fail("Malformed line accepted");
+        } catch (HeadlessVisibility.PositionFormatException e) {
+            assertEquals(1, e.getLineNumber());
+        }
+        assertEquals("", out.toString());
+    }
+
+    /**
+     * Every option in the usage is accepted, with or without a value.
+     */
+    @Test
+    public void parsesOptions() {
+        final Map<String, String> options = HeadlessVisibility.parseOptions(new String[] {
+                "--scene=scene.bin", "--prepared=scene.prepared", "--input=-", "--output=out.txt",
+                "--targets=targets.txt", "--radius=50", "--threads=4", "--help"
+        });
+        assertEquals(8, options.size());
+        assertEquals("scene.bin", options.get("scene"));
+        assertEquals("scene.prepared", options.get("prepared"));
+        assertEquals("-", options.get("input"));
+        assertEquals("out.txt", options.get("output"));
+        assertEquals("targets.txt", options.get("targets"));
+        assertEquals("50", options.get("radius"));
+        assertEquals("4", options.get("threads"));
+        assertEquals("", options.get("help"));
+        assertEquals("a=b", HeadlessVisibility.parseOptions(new String[] {"--input=a=b"}).get("input"));
+        assertTrue(HeadlessVisibility.parseOptions(new String[0]).isEmpty());
+    }
+
+    /**
+     * A misspelt or unknown option is rejected rather than ignored, as is an argument that isn't an option.
+     */
+    @Test
+    public void rejectsUnknownOptions() {
+        assertRejected("Unknown option --raduis", "--radius=50", "--raduis=50");
+        assertRejected("Unknown option --thread", "--thread=4");
+        assertRejected("Unknown option --verbose", "--verbose");
+        assertRejected("Unknown option --", "--=5");
+        assertRejected("Unknown option --Radius", "--Radius=50");
+        assertRejected("Unexpected argument -radius=50", "-radius=50");
+        assertRejected("Unexpected argument input.txt", "input.txt");
+    }
+
+    /**
+     * Checks that parsing some arguments fails.
+     * @param message The message it should fail with.
+     * @param args The arguments.
+     */
+    private static void assertRejected(String message, String... args) {
+        try {
+            HeadlessVisibility.parseOptions(args);
+            fail("Accepted " + String.join(" ", args));
+        } catch (IllegalArgumentException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the viewer positions one per line, separated in each of the ways allowed, with blank lines and comments
+     * between some of them.
+     * @param viewers The viewers.
+     * @param random The random number generator for where the blank lines and comments go.
+     * @return the input.
+     */
+    private static String createInput(List<Point2D> viewers, Random random) {
+        final String[] separators = {" ", ",", ", ", "\t", " , "};
+        final StringBuilder sb = new StringBuilder();
+        for (int v = 0; v < viewers.size(); v++) {
+            if (random.nextInt(20) == 0) {
+                sb.append(random.nextBoolean() ? "# comment\n" : "   \n");
+            }
+            sb.append(' ').append(viewers.get(v).getX()).append(separators[v % separators.length])
+                    .append(viewers.get(v).getY()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Runs the calculator over some input.
+     * @param input The input.
+     * @return the lines of output.
+     * @throws IOException if there is an error reading or writing.
+     * @throws InterruptedException if the thread is interrupted while waiting for a result.
+     */
+    private List<String> run(String input) throws IOException, InterruptedException {
+        final StringWriter out = new StringWriter();
+        headless.run(new BufferedReader(new StringReader(input)), out);
+        return outputLines(out.toString());
+    }
+
+    /**
+     * Splits the output into lines.
+     * @param output The output, each line of which ends with a line separator.
+     * @return the lines.
+     */
+    private static List<String> outputLines(String output) {
+        final List<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int end = output.indexOf(System.lineSeparator()); end >= 0;
+             end = output.indexOf(System.lineSeparator(), start)) {
+            lines.add(output.substring(start, end));
+            start = end + System.lineSeparator().length();
+        }
+        assertEquals("Unterminated output", output.length(), start);
+        return lines;
+    }
+}
@@ -0,0 +1,127 @@
+package net.rptools.maptool.vision;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a {@link LatencyHistogram} puts each time in the bucket for its power of 2 and that the percentiles are
+ * the upper bounds of the buckets they fall in.
+ */
+public class LatencyHistogramTest {
+    /** The number of short times recorded for the percentiles. */
+    private static final int SHORT_TIMES = 30;
+    /** The number of long times recorded for the percentiles. */
+    private static final int LONG_TIMES = 10;
+    /** A short time, in the bucket up to 128ns. */
+    private static final long SHORT_NANOS = 100;
+    /** A long time, in the bucket up to 8192ns. */
+    private static final long LONG_NANOS = 5000;
+
+    /**
+     * Each time goes in the bucket whose upper bound is the next power of 2 above it, with 0 and negative times in the
+     * first bucket and the largest times in the last.
+     */
+    @Test
+    public void recordsInBucketBoundaries() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(Long.SIZE, histogram.getNumberBuckets());
+        assertBucket(histogram, 0, 0);
+        assertBucket(histogram, -1, 0);
+        assertBucket(histogram, Long.MIN_VALUE, 0);
+        assertBucket(histogram, 1, 1);
+        assertBucket(histogram, 2, 2);
+        assertBucket(histogram, 3, 2);
+        assertBucket(histogram, 4, 3);
+        for (int b = 2; b < Long.SIZE - 1; b++) {
+            assertBucket(histogram, (1L << b) - 1, b);
+            assertBucket(histogram, 1L << b, b + 1);
+        }
+        assertBucket(histogram, Long.MAX_VALUE, Long.SIZE - 1);
+
+        assertEquals(1, histogram.getUpperBound(0));
+        assertEquals(2, histogram.getUpperBound(1));
+        assertEquals(1L << 62, histogram.getUpperBound(62));
+        assertEquals(Long.MAX_VALUE, histogram.getUpperBound(Long.SIZE - 1));
+    }
+
+    /**
+     * The percentiles give the upper bound of the bucket the time of that rank is in, with 0 giving the smallest
+     * bucket used and 1 the largest, and 0 when nothing has been recorded.
+     */
+    @Test
+    public void givesPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(0, histogram.getPercentile(1));
+
+        for (int i = 0; i < LONG_TIMES; i++) {
+            histogram.record(LONG_NANOS);
+        }
+        for (int i = 0; i < SHORT_TIMES; i++) {
+            histogram.record(SHORT_NANOS);
+        }
+        assertEquals(SHORT_TIMES + LONG_TIMES, histogram.getTotalCount());
+        assertEquals(128, histogram.getPercentile(0));
+        assertEquals(128, histogram.getPercentile(0.5));
+        // The 30th of 40 times is the last short one.
+        assertEquals(128, histogram.getPercentile(0.75));
+        assertEquals(8192, histogram.getPercentile(0.8));
+        assertEquals(8192, histogram.getPercentile(1));
+    }
+
+    /**
+     * A fraction outside of 0 to 1, or that isn't a number, is rejected.
+     */
+    @Test
+    public void rejectsIllegalFractions() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(SHORT_NANOS);
+        for (double fraction : new double[] {-0.01, 1.01, Double.NaN}) {
+            try {
+                histogram.getPercentile(fraction);
+                fail("Accepted fraction " + fraction);
+            } catch (IllegalArgumentException e) {
+                assertEquals("Fraction must be between 0 and 1", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Resetting clears every bucket.
+     */
+    @Test
+    public void resets() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(SHORT_NANOS);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(3, histogram.getTotalCount());
+        histogram.reset();
+        assertEquals(0, histogram.getTotalCount());
+        for (int b = 0; b < histogram.getNumberBuckets(); b++) {
+            assertEquals(0, histogram.getCount(b));
+        }
+        assertEquals(0, histogram.getPercentile(1));
+    }
+
+    /**
+     * Checks that recording a time adds one to a bucket and nothing to the others.
+     * @param histogram The histogram.
+     * @param nanos The time recorded.
+     * @param bucket The bucket the time should go in.
+     */
+    private static void assertBucket(LatencyHistogram histogram, long nanos, int bucket) {
+        final long[] before = new long[histogram.getNumberBuckets()];
+        for (int b = 0; b < before.length; b++) {
+            before[b] = histogram.getCount(b);
+        }
+        histogram.record(nanos);
+        for (int b = 0; b < before.length; b++) {
+            assertEquals("Bucket " + b + " after recording " + nanos, before[b] + (b == bucket ? 1 : 0),
+                    histogram.getCount(b));
+        }
+    }
+}
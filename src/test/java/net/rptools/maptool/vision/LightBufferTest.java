@@ -0,0 +1,226 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link LightBuffer} adds up the same light at every pixel whatever size the tiles are, including where
+ * the edges of the lit areas lie along the edges of the tiles, and that it matches the light worked out one pixel at a
+ * time.
+ */
+public class LightBufferTest {
+    /** The number of cells along each side of the scene. */
+    private static final int CELLS_PER_SIDE = 4;
+    /** The width of the buffers, which is not a multiple of any of the tile sizes. */
+    private static final int WIDTH = 167;
+    /** The height of the buffers, which is not a multiple of any of the tile sizes. */
+    private static final int HEIGHT = 149;
+    /** The tile sizes tried, from one pixel up to a single tile covering the whole buffer. */
+    private static final int[] TILE_SIZES = {1, 2, 3, 8, 16, 40, LightBuffer.DEFAULT_TILE_SIZE, 1000};
+    /** The largest difference allowed between the light at a pixel and the light worked out for it alone. */
+    private static final float TOLERANCE = 1e-5f;
+
+    /** The pool the tiles are filled on. */
+    private ForkJoinPool pool;
+
+    /**
+     * Creates the pool.
+     */
+    @Before
+    public void createPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    /**
+     * Shuts the pool down.
+     */
+    @After
+    public void shutdownPool() {
+        pool.shutdown();
+    }
+
+    /**
+     * The light is exactly the same whatever size the tiles are, as each pixel adds up the same lights in the same
+     * order, and matches the light worked out one pixel at a time.
+     */
+    @Test
+    public void sameLightForEveryTileSize() {
+        final Random random = new Random(1);
+        final List<LightBuffer.Light> lights = createLights(random);
+        final float[] expected = renderPixelByPixel(lights);
+        float[] first = null;
+        for (int tileSize : TILE_SIZES) {
+            final LightBuffer buffer = new LightBuffer(WIDTH, HEIGHT, tileSize, pool);
+            buffer.render(lights);
+            assertArrayEquals("Tile size " + tileSize, expected, buffer.getLight(), TOLERANCE);
+            if (first == null) {
+                first = buffer.getLight().clone();
+            } else {
+                assertArrayEquals("Tile size " + tileSize, first, buffer.getLight(), 0);
+            }
+        }
+    }
+
+    /**
+     * Lit areas whose edges and corners lie exactly along the edges of the tiles, and through the centres of pixels at
+     * the edges of the tiles, only light each pixel once.
+     */
+    @Test
+    public void lightsAlignedWithTilesOnlyLightPixelsOnce() {
+        final int tileSize = 16;
+        final List<LightBuffer.Light> lights = new ArrayList<>();
+        // Edges along the edges of the tiles.
+        lights.add(createLight(new Point2D(40, 40), Double.POSITIVE_INFINITY, 16, 16, 64, 16, 64, 64, 16, 64));
+        // Two triangles making up a square with its corners at the centres of the last pixels of tiles, so its edges
+        // and the diagonal between them go through the centres of pixels.
+        lights.add(createLight(new Point2D(40, 40), Double.POSITIVE_INFINITY, 15.5, 15.5, 63.5, 15.5, 63.5, 63.5));
+        lights.add(createLight(new Point2D(40, 40), Double.POSITIVE_INFINITY, 15.5, 15.5, 63.5, 63.5, 15.5, 63.5));
+        // A fading light whose corners are at the corners of the tiles.
+        lights.add(createLight(new Point2D(80, 80), 50, 48, 48, 112, 48, 112, 112, 48, 112));
+
+        final float[] expected = renderPixelByPixel(lights);
+        for (int size : new int[] {1, tileSize, tileSize * 4}) {
+            final LightBuffer buffer = new LightBuffer(WIDTH, HEIGHT, size, pool);
+            buffer.render(lights);
+            assertArrayEquals("Tile size " + size, expected, buffer.getLight(), TOLERANCE);
+        }
+
+        // Between them the triangles light every pixel whose centre is in the square once, apart from those on its
+        // right and bottom edges.
+        final LightBuffer buffer = new LightBuffer(WIDTH, HEIGHT, tileSize, pool);
+        buffer.render(lights.subList(1, 3));
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                final boolean inSquare = x >= 15 && x < 63 && y >= 15 && y < 63;
+                assertEquals("Pixel " + x + ", " + y, inSquare ? 1 : 0, buffer.getLight()[(y * WIDTH + x) * 3], 0);
+            }
+        }
+    }
+
+    /**
+     * Lights add up, and the packed pixels are clamped to white.
+     */
+    @Test
+    public void overlappingLightsAddUp() {
+        final List<LightBuffer.Light> lights = Arrays.asList(
+                createLight(new Point2D(10, 10), Double.POSITIVE_INFINITY, 0, 0, 20, 0, 20, 20, 0, 20),
+                createLight(new Point2D(10, 10), Double.POSITIVE_INFINITY, 0, 0, 20, 0, 20, 20, 0, 20));
+        final LightBuffer buffer = new LightBuffer(WIDTH, HEIGHT, 7, pool);
+        buffer.render(lights);
+        assertEquals(2, buffer.getLight()[(10 * WIDTH + 10) * 3], 0);
+        assertEquals(0xffffffff, buffer.getPixels()[10 * WIDTH + 10]);
+        assertEquals(0, buffer.getPixels()[30 * WIDTH + 30]);
+
+        // Rendering again replaces what was there.
+        buffer.render(lights.subList(0, 1));
+        assertEquals(1, buffer.getLight()[(10 * WIDTH + 10) * 3], 0);
+        buffer.render(new ArrayList<>());
+        assertEquals(0, buffer.getLight()[(10 * WIDTH + 10) * 3], 0);
+        assertEquals(0, buffer.getPixels()[10 * WIDTH + 10]);
+    }
+
+    /**
+     * Buffers with no pixels are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyBuffer() {
+        new LightBuffer(0, HEIGHT, 1, pool);
+    }
+
+    /**
+     * Creates lights around a random scene, some fading and some not, some partly or entirely off the buffer.
+     * @param random The random number generator.
+     * @return the lights.
+     */
+    private static List<LightBuffer.Light> createLights(Random random) {
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final VisibilityCalculator calculator = new AngularSweepVisibility();
+        final List<LightBuffer.Light> lights = new ArrayList<>();
+        for (Point2D viewer : TestScenes.createViewers(CELLS_PER_SIDE, 12, random)) {
+            final double radius = random.nextInt(4) == 0 ? Double.POSITIVE_INFINITY : 20 + random.nextDouble() * 150;
+            lights.add(new LightBuffer.Light(viewer, calculator.calculateVisibility(scene, viewer), radius,
+                    random.nextFloat(), random.nextFloat(), random.nextFloat()));
+        }
+        lights.add(createLight(new Point2D(-10, 20), 60, -30, -5, 25.25, 3.75, 7, 60));
+        lights.add(createLight(new Point2D(160, 140), Double.POSITIVE_INFINITY, 150, 130, 190, 135, 170, 170));
+        lights.add(createLight(new Point2D(-50, -50), Double.POSITIVE_INFINITY, -60, -60, -40, -60, -50, -40));
+        return lights;
+    }
+
+    /**
+     * Creates a white light with a lit area given by its vertices.
+     * @param position Where the light is.
+     * @param radius The distance at which the light has faded to nothing.
+     * @param coordinates The X and Y co-ordinates of each vertex of the lit area in turn.
+     * @return the light.
+     */
+    private static LightBuffer.Light createLight(Point2D position, double radius, double... coordinates) {
+        final List<LineIntersection> area = new ArrayList<>();
+        for (int i = 0; i < coordinates.length; i += 2) {
+            final Point2D point = new Point2D(coordinates[i], coordinates[i + 1]);
+            area.add(new LineIntersection(point, point.distance(position), point.getX() - position.getX(),
+                    point.getY() - position.getY()));
+        }
+        return new LightBuffer.Light(position, area, radius, 1, 1, 1);
+    }
+
+    /**
+     * Works out the light at each pixel one pixel at a time, without any tiles. A pixel is lit by a light if its
+     * centre is inside the lit area by the even-odd rule, counting the edges a horizontal line through the centre
+     * crosses at or before it. As in {@link LightBuffer} an edge covers the rows from its lower end up to, but not
+     * including, its upper end.
+     * @param lights The lights.
+     * @return the red, green and blue light at each pixel, one row after another.
+     */
+    private static float[] renderPixelByPixel(List<LightBuffer.Light> lights) {
+        final float[] light = new float[WIDTH * HEIGHT * 3];
+        for (LightBuffer.Light l : lights) {
+            final List<LineIntersection> area = l.getVisibleArea();
+            if (area.size() < 3) {
+                continue;
+            }
+            for (int y = 0; y < HEIGHT; y++) {
+                final double centreY = y + 0.5;
+                for (int x = 0; x < WIDTH; x++) {
+                    final double centreX = x + 0.5;
+                    boolean inside = false;
+                    for (int i = 0; i < area.size(); i++) {
+                        final Point2D a = area.get(i).getPoint();
+                        final Point2D b = area.get((i + 1) % area.size()).getPoint();
+                        if ((a.getY() <= centreY) != (b.getY() <= centreY) && a.getX()
+                                + (centreY - a.getY()) * (b.getX() - a.getX()) / (b.getY() - a.getY()) <= centreX) {
+                            inside = !inside;
+                        }
+                    }
+                    if (!inside) {
+                        continue;
+                    }
+                    float f = 1;
+                    if (l.getRadius() != Double.POSITIVE_INFINITY) {
+                        final double fade = 1 - l.getPosition().distance(centreX, centreY) / l.getRadius();
+                        if (fade <= 0) {
+                            continue;
+                        }
+                        f = (float) (fade * fade);
+                    }
+                    final int i = (y * WIDTH + x) * 3;
+                    light[i] += l.getRed() * f;
+                    light[i + 1] += l.getGreen() * f;
+                    light[i + 2] += l.getBlue() * f;
+                }
+            }
+        }
+        return light;
+    }
+}
@@ -0,0 +1,222 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link LineOfSight} agrees with the area {@link RayCastVisibility} finds visible, and that the batch form
+ * gives the same answers as asking about each viewer/target pair on its own.
+ */
+public class LineOfSightTest {
+    /** The number of cells along each side of the random scenes. */
+    private static final int CELLS_PER_SIDE = 5;
+    /** The number of viewers in each scene. */
+    private static final int VIEWERS = 40;
+    /** The number of targets in each scene, more than fit in one <code>long</code> of the result. */
+    private static final int TARGETS = 150;
+    /**
+     * How close to the edge of the visible area a target can be before it is skipped. Grazing rays either side of a
+     * vertex are {@link VisibilityCalculator#VERY_SMALL_ANGLE} apart, so the edge of the area can be out by that
+     * angle across the whole scene.
+     */
+    private static final double EDGE_DISTANCE = 0.01;
+
+    /** The line of sight calculator, on its own pool. */
+    private LineOfSight lineOfSight;
+    /** The pool batches are run on. */
+    private ForkJoinPool pool;
+
+    /**
+     * Creates the calculator.
+     */
+    @Before
+    public void createLineOfSight() {
+        pool = new ForkJoinPool(4);
+        lineOfSight = new LineOfSight(pool);
+    }
+
+    /**
+     * Shuts the pool down.
+     */
+    @After
+    public void shutdownPool() {
+        pool.shutdown();
+    }
+
+    /**
+     * A viewer can see a target if and only if the target is in the area visible from the viewer.
+     */
+    @Test
+    public void agreesWithVisibleArea() {
+        final Random random = new Random(1);
+        for (int scene = 0; scene < 4; scene++) {
+            final VisionBlockingPolygonList polygons = TestScenes.createScene(CELLS_PER_SIDE, random);
+            assertAgreesWithVisibleArea(polygons, random);
+        }
+    }
+
+    /**
+     * Disabled line segments don't block the line of sight any more than they block the visible area.
+     */
+    @Test
+    public void agreesWithVisibleAreaWithDisabledSegments() {
+        final Random random = new Random(2);
+        for (int scene = 0; scene < 4; scene++) {
+            final VisionBlockingPolygonList polygons = TestScenes.createScene(CELLS_PER_SIDE, random);
+            assertTrue(TestScenes.disableSegments(polygons, 0.3, random) > 0);
+            assertAgreesWithVisibleArea(polygons, random);
+        }
+    }
+
+    /**
+     * The batch gives the same answer as each pair on its own, whether the targets are in a random order or next to
+     * each other (so each viewer's last blocking wall often blocks the next target too).
+     */
+    @Test
+    public void batchMatchesSingleQueries() {
+        final Random random = new Random(3);
+        final VisionBlockingPolygonList polygons = TestScenes.createScene(CELLS_PER_SIDE, random);
+        TestScenes.disableSegments(polygons, 0.2, random);
+        final List<Point2D> viewers = TestScenes.createViewers(CELLS_PER_SIDE, VIEWERS, random);
+
+        final List<Point2D> scattered = createTargets(polygons, TARGETS, random);
+        assertBatchMatches(polygons, viewers, scattered);
+
+        // Targets in a line across the room, one after another.
+        final double size = CELLS_PER_SIDE * TestScenes.CELL_SIZE;
+        final List<Point2D> inLine = new ArrayList<>();
+        for (int i = 0; i < TARGETS; i++) {
+            inLine.add(new Point2D((i + 0.5) * size / TARGETS, size * 0.7));
+        }
+        assertBatchMatches(polygons, viewers, inLine);
+
+        // No viewers or no targets.
+        assertBatchMatches(polygons, new ArrayList<>(), inLine);
+        assertBatchMatches(polygons, viewers, new ArrayList<>());
+    }
+
+    /**
+     * Checks that each viewer can see exactly the targets in its visible area, skipping targets too close to the edge
+     * of the area for it to be sure.
+     * @param polygons The polygons that block vision/light, the first of which is the room around everything else.
+     * @param random The random number generator for the viewers and targets.
+     */
+    private void assertAgreesWithVisibleArea(VisionBlockingPolygonList polygons, Random random) {
+        final VisibilityCalculator calculator = new RayCastVisibility();
+        final List<Point2D> viewers = TestScenes.createViewers(CELLS_PER_SIDE, VIEWERS, random);
+        final List<Point2D> targets = createTargets(polygons, TARGETS, random);
+        int seen = 0;
+        int hidden = 0;
+        for (Point2D viewer : viewers) {
+            final List<Point2D> area = new ArrayList<>();
+            for (LineIntersection lineIntersection : calculator.calculateVisibility(polygons, viewer)) {
+                area.add(lineIntersection.getPoint());
+            }
+            for (Point2D target : targets) {
+                if (distanceToEdge(area, target) <= EDGE_DISTANCE) {
+                    continue;
+                }
+                final boolean expected = contains(area, target);
+                assertEquals(viewer + " can see " + target, expected, LineOfSight.canSee(polygons, viewer, target));
+                if (expected) {
+                    seen++;
+                } else {
+                    hidden++;
+                }
+            }
+        }
+        assertTrue("Nothing seen", seen > 0);
+        assertTrue("Nothing hidden", hidden > 0);
+
+        assertBatchMatches(polygons, viewers, targets);
+    }
+
+    /**
+     * Checks that the batch gives the same answers as asking about each pair on its own.
+     * @param polygons The polygons that block vision/light.
+     * @param viewers The viewers.
+     * @param targets The targets.
+     */
+    private void assertBatchMatches(VisionBlockingPolygonList polygons, List<Point2D> viewers, List<Point2D> targets) {
+        final LineOfSight.Result result = lineOfSight.canSee(polygons, viewers, targets);
+        assertEquals(viewers.size(), result.getNumberViewers());
+        assertEquals(targets.size(), result.getNumberTargets());
+        for (int v = 0; v < viewers.size(); v++) {
+            int count = 0;
+            for (int t = 0; t < targets.size(); t++) {
+                final boolean expected = LineOfSight.canSee(polygons, viewers.get(v), targets.get(t));
+                assertEquals(viewers.get(v) + " can see " + targets.get(t), expected, result.canSee(v, t));
+                if (expected) {
+                    count++;
+                }
+            }
+            assertEquals("Targets " + viewers.get(v) + " can see", count, result.getVisibleCount(v));
+        }
+    }
+
+    /**
+     * Returns random targets anywhere in the room around a scene, including inside the other polygons.
+     * @param polygons The polygons, the first of which is the room around everything else.
+     * @param count The number of targets.
+     * @param random The random number generator.
+     * @return the targets.
+     */
+    private static List<Point2D> createTargets(VisionBlockingPolygonList polygons, int count, Random random) {
+        final VisionBlockingPolygon room = polygons.getPolygonList().get(0);
+        final List<Point2D> targets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            targets.add(new Point2D(room.getMinX() + random.nextDouble() * (room.getMaxX() - room.getMinX()),
+                    room.getMinY() + random.nextDouble() * (room.getMaxY() - room.getMinY())));
+        }
+        return targets;
+    }
+
+    /**
+     * Returns the distance from a point to the closest edge of a polygon.
+     * @param polygon The vertices of the polygon.
+     * @param point The point.
+     * @return the distance.
+     */
+    private static double distanceToEdge(List<Point2D> polygon, Point2D point) {
+        double closest = Double.POSITIVE_INFINITY;
+        for (int i = 0, j = polygon.size() - 1; i < polygon.size(); j = i++) {
+            final Point2D p = polygon.get(j);
+            final double ex = polygon.get(i).getX() - p.getX();
+            final double ey = polygon.get(i).getY() - p.getY();
+            final double lengthSquared = ex * ex + ey * ey;
+            final double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1,
+                    ((point.getX() - p.getX()) * ex + (point.getY() - p.getY()) * ey) / lengthSquared));
+            closest = Math.min(closest, point.distance(p.getX() + ex * t, p.getY() + ey * t));
+        }
+        return closest;
+    }
+
+    /**
+     * Returns if a point is inside a polygon, using the even-odd rule.
+     * @param polygon The vertices of the polygon.
+     * @param point The point.
+     * @return <code>true</code> if the point is inside the polygon.
+     */
+    private static boolean contains(List<Point2D> polygon, Point2D point) {
+        boolean inside = false;
+        for (int i = 0, j = polygon.size() - 1; i < polygon.size(); j = i++) {
+            final Point2D p = polygon.get(j);
+            final Point2D q = polygon.get(i);
+            if ((q.getY() > point.getY()) != (p.getY() > point.getY()) && point.getX()
+                    < p.getX() + (q.getX() - p.getX()) * (point.getY() - p.getY()) / (q.getY() - p.getY())) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+}
@@ -0,0 +1,254 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a {@link MappedScene} file opens with the same polygons and line segments as were written and blocks
+ * the same areas, and that truncated files and files with a bad header or out of range indexes are rejected with an
+ * {@link IOException} when they are opened.
+ */
+public class MappedSceneTest {
+    /** The number of cells along each side of the scenes. */
+    private static final int CELLS_PER_SIDE = 6;
+    /** The number of viewer positions the visible areas are compared from. */
+    private static final int VIEWERS = 50;
+    /** The size of the header of a scene file in bytes. */
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+    /** The number of threads that request the spatial index at once. */
+    private static final int THREADS = 8;
+    /** The largest difference allowed between the visible areas, relative to the area. */
+    private static final double TOLERANCE = 1e-9;
+
+    /** The directory the files are written to. */
+    private Path directory;
+    /** The scene file. */
+    private Path path;
+
+    /**
+     * Creates the directory for the files.
+     * @throws IOException if the directory can't be created.
+     */
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("mapped-scene-test");
+        path = directory.resolve("scene.bin");
+    }
+
+    /**
+     * Deletes the directory and the files in it.
+     * @throws IOException if something can't be deleted.
+     */
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    /**
+     * A scene opens with the polygons it was written with, each vertex starting a line segment to the next vertex of
+     * its polygon, and ray casting over the file sees the same as over the polygons.
+     */
+    @Test
+    public void writesAndOpens() throws IOException {
+        final Random random = new Random(1);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        MappedScene.write(scene.getPolygonList(), path);
+        final MappedScene mapped = MappedScene.open(path);
+
+        final List<VisionBlockingPolygon> polygons = scene.getPolygonList();
+        assertEquals(polygons.size(), mapped.getNumberPolygons());
+        int seg = 0;
+        for (int poly = 0; poly < polygons.size(); poly++) {
+            final double[] xs = polygons.get(poly).getVerticesX();
+            final double[] ys = polygons.get(poly).getVerticesY();
+            assertEquals(seg, mapped.getPolygonStart(poly));
+            assertArrayEquals("X of polygon " + poly, xs, mapped.getPolygon(poly).getVerticesX(), 0);
+            assertArrayEquals("Y of polygon " + poly, ys, mapped.getPolygon(poly).getVerticesY(), 0);
+            for (int i = 0; i < xs.length; i++, seg++) {
+                assertEquals("X1 of line segment " + seg, xs[i], mapped.getX1(seg), 0);
+                assertEquals("Y1 of line segment " + seg, ys[i], mapped.getY1(seg), 0);
+                assertEquals("X2 of line segment " + seg, xs[(i + 1) % xs.length], mapped.getX2(seg), 0);
+                assertEquals("Y2 of line segment " + seg, ys[(i + 1) % xs.length], mapped.getY2(seg), 0);
+            }
+        }
+        assertEquals(seg, mapped.getPolygonStart(polygons.size()));
+        assertEquals(seg, mapped.size());
+        assertEquals(scene.getVertices(), mapped.toVisionBlockingPolygonList().getVertices());
+
+        final RayCastVisibility calculator = new RayCastVisibility(false);
+        assertSame(mapped.getSegmentGrid(), mapped.getSegmentGrid());
+        for (Point2D viewer : TestScenes.createViewers(CELLS_PER_SIDE, VIEWERS, random)) {
+            final double expected = TestScenes.area(calculator.calculateVisibility(scene, viewer));
+            assertEquals("Visible area from " + viewer, expected,
+                    TestScenes.area(calculator.calculateVisibility(mapped, mapped.getSegmentGrid(), viewer)),
+                    expected * TOLERANCE);
+        }
+    }
+
+    /**
+     * Writing over a larger file replaces it, and a scene without any polygons can be written and opened.
+     */
+    @Test
+    public void writesEmptySceneOverLargerFile() throws IOException {
+        MappedScene.write(TestScenes.createScene(CELLS_PER_SIDE, new Random(2)).getPolygonList(), path);
+        MappedScene.write(Collections.emptyList(), path);
+        final MappedScene mapped = MappedScene.open(path);
+        assertEquals(0, mapped.getNumberPolygons());
+        assertEquals(0, mapped.size());
+        assertTrue(mapped.toVisionBlockingPolygonList().getPolygonList().isEmpty());
+    }
+
+    /**
+     * The spatial index is only built once when several threads request it at the same time.
+     */
+    @Test
+    public void buildsSegmentGridOnce() throws IOException, InterruptedException, ExecutionException {
+        MappedScene.write(TestScenes.createScene(CELLS_PER_SIDE, new Random(3)).getPolygonList(), path);
+        final MappedScene mapped = MappedScene.open(path);
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<SegmentGrid>> grids = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                grids.add(executor.submit((Callable<SegmentGrid>) () -> {
+                    start.await();
+                    return mapped.getSegmentGrid();
+                }));
+            }
+            start.countDown();
+            for (Future<SegmentGrid> grid : grids) {
+                assertSame(mapped.getSegmentGrid(), grid.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A file cut short or with extra bytes on the end is rejected.
+     */
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        final byte[] bytes = writeScene();
+        for (int length : new int[] {0, 1, HEADER_SIZE - 1, HEADER_SIZE, HEADER_SIZE + 1, bytes.length / 2,
+                bytes.length - 1, bytes.length + Double.BYTES}) {
+            Files.write(path, Arrays.copyOf(bytes, length));
+            rejectionMessage("length " + length);
+        }
+    }
+
+    /**
+     * A file that doesn't start with the magic number, is from another version or whose numbers of polygons and
+     * vertices don't match its length is rejected.
+     */
+    @Test
+    public void rejectsBadHeader() throws IOException {
+        final byte[] bytes = writeScene();
+        assertRejected(bytes, buffer -> buffer.putInt(0, buffer.getInt(0) ^ 1), "Not a scene file");
+        assertRejected(bytes, buffer -> buffer.putInt(4, 2), "Unsupported scene file version 2");
+        assertRejected(bytes, buffer -> buffer.putInt(4, 0), "Unsupported scene file version 0");
+        assertRejected(bytes, buffer -> buffer.putInt(8, -1), "Scene file is corrupt");
+        assertRejected(bytes, buffer -> buffer.putInt(8, buffer.getInt(8) + 1), "Scene file is corrupt");
+        assertRejected(bytes, buffer -> buffer.putInt(12, -1), "Scene file is corrupt");
+        assertRejected(bytes, buffer -> buffer.putInt(12, buffer.getInt(12) - 1), "Scene file is corrupt");
+    }
+
+    /**
+     * A file whose polygons don't cover the vertices in order, or with a vertex joined to one outside the file, is
+     * rejected when it is opened rather than part way through a query.
+     */
+    @Test
+    public void rejectsOutOfRangeIndexes() throws IOException {
+        final byte[] bytes = writeScene();
+        final ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        final int numPolygons = header.getInt(8);
+        final int numVertices = header.getInt(12);
+        final int nextVertex = HEADER_SIZE + (numPolygons + 1) * Integer.BYTES;
+        final int lastStart = nextVertex - Integer.BYTES;
+        final String corrupt = "Scene file is corrupt";
+
+        assertRejected(bytes, buffer -> buffer.putInt(HEADER_SIZE, 1), corrupt);
+        assertRejected(bytes, buffer -> buffer.putInt(HEADER_SIZE, -4), corrupt);
+        assertRejected(bytes, buffer -> buffer.putInt(lastStart, numVertices - 1), corrupt);
+        assertRejected(bytes, buffer -> buffer.putInt(lastStart, numVertices + 1), corrupt);
+        // The second polygon starting after the third.
+        assertRejected(bytes, buffer -> buffer.putInt(HEADER_SIZE + Integer.BYTES,
+                buffer.getInt(HEADER_SIZE + 3 * Integer.BYTES) + 1), corrupt);
+        assertRejected(bytes, buffer -> buffer.putInt(nextVertex + 5 * Integer.BYTES, -1), corrupt);
+        assertRejected(bytes, buffer -> buffer.putInt(nextVertex + 5 * Integer.BYTES, numVertices), corrupt);
+        assertRejected(bytes, buffer -> buffer.putInt(nextVertex + (numVertices - 1) * Integer.BYTES,
+                Integer.MAX_VALUE), corrupt);
+    }
+
+    /**
+     * Writes a scene to the file.
+     * @return the contents of the file.
+     * @throws IOException if there is an error writing or reading the file.
+     */
+    private byte[] writeScene() throws IOException {
+        MappedScene.write(TestScenes.createScene(CELLS_PER_SIDE, new Random(4)).getPolygonList(), path);
+        MappedScene.open(path);
+        return Files.readAllBytes(path);
+    }
+
+    /**
+     * Checks that a file is rejected once it has been changed.
+     * @param bytes The contents of a valid file.
+     * @param change Changes a copy of the contents, which are little endian.
+     * @param message The message the file should be rejected with.
+     * @throws IOException if there is an error writing the file.
+     */
+    private void assertRejected(byte[] bytes, Consumer<ByteBuffer> change, String message) throws IOException {
+        final byte[] corrupt = bytes.clone();
+        change.accept(ByteBuffer.wrap(corrupt).order(ByteOrder.LITTLE_ENDIAN));
+        Files.write(path, corrupt);
+        assertEquals(message, rejectionMessage(message));
+    }
+
+    /**
+     * Checks that opening the file fails.
+     * @param description What is wrong with the file.
+     * @return the message of the exception it failed with.
+     */
+    private String rejectionMessage(String description) {
+        try {
+            MappedScene.open(path);
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+        fail("Opened a file with " + description);
+        return null;
+    }
+}
@@ -0,0 +1,145 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link ParallelVisibility} returns the same visible area for each viewer, in the same order, as
+ * calculating them one after another, with the work done on the pool it was given, for lists whose spatial index and
+ * other lazily built parts have not been built yet as well as frozen ones.
+ */
+public class ParallelVisibilityTest {
+    /** The number of worker threads, small so each has several chunks. */
+    private static final int THREADS = 3;
+    /** The number of cells along each side of the scenes. */
+    private static final int CELLS_PER_SIDE = 8;
+    /** The number of viewers, which doesn't split evenly into chunks. */
+    private static final int VIEWERS = 101;
+
+    /** The pool the calculations are run on. */
+    private ForkJoinPool pool;
+
+    /**
+     * Creates the pool.
+     */
+    @Before
+    public void createPool() {
+        pool = new ForkJoinPool(THREADS);
+    }
+
+    /**
+     * Shuts the pool down.
+     */
+    @After
+    public void shutdownPool() {
+        pool.shutdown();
+    }
+
+    /**
+     * A list that has never been used, so the workers would all need its lazily built parts at once, gives the same
+     * results as calculating each viewer in turn over the same polygons.
+     */
+    @Test
+    public void matchesSequentialForListNotBuilt() {
+        final VisibilityCalculator[] calculators = {
+                new RayCastVisibility(true), new RayCastVisibility(false), new AngularSweepVisibility()
+        };
+        for (VisibilityCalculator calculator : calculators) {
+            final VisionBlockingPolygonList scene = createScene(1);
+            final List<Point2D> viewers = TestScenes.createViewers(CELLS_PER_SIDE, VIEWERS, new Random(1));
+            assertMatchesSequential(calculator, scene, createScene(1), viewers);
+        }
+    }
+
+    /**
+     * A list whose lazily built parts were built and then thrown away by a change, and a frozen list, give the same
+     * results as calculating each viewer in turn.
+     */
+    @Test
+    public void matchesSequentialForChangedAndFrozenLists() {
+        final Random random = new Random(2);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final List<Point2D> viewers = TestScenes.createViewers(CELLS_PER_SIDE, VIEWERS, random);
+        final VisibilityCalculator calculator = new RayCastVisibility(true);
+        assertMatchesSequential(calculator, scene, scene, viewers);
+
+        assertTrue(TestScenes.disableSegments(scene, 0.2, random) > 0);
+        assertMatchesSequential(calculator, scene, scene, viewers);
+
+        scene.freeze();
+        assertMatchesSequential(calculator, scene, scene, viewers);
+    }
+
+    /**
+     * No viewers gives no results, and fewer viewers than threads gives one result for each.
+     */
+    @Test
+    public void handlesFewViewers() {
+        final Random random = new Random(3);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final VisibilityCalculator calculator = new RayCastVisibility(true);
+        assertTrue(new ParallelVisibility(calculator, pool).calculateVisibility(scene, Collections.emptyList())
+                .isEmpty());
+        assertMatchesSequential(calculator, scene, scene, TestScenes.createViewers(CELLS_PER_SIDE, 2, random));
+    }
+
+    /**
+     * Creates a scene with some of its line segments disabled, the same each time for the same seed.
+     * @param seed The seed for the random number generator.
+     * @return the scene.
+     */
+    private static VisionBlockingPolygonList createScene(long seed) {
+        final Random random = new Random(seed);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        assertTrue(TestScenes.disableSegments(scene, 0.2, random) > 0);
+        return scene;
+    }
+
+    /**
+     * Checks that calculating the visible areas in parallel gives exactly the same intersections for each viewer, in
+     * the same order, as calculating them one after another, and that the work is done on the pool.
+     * @param calculator The calculator used for each viewer.
+     * @param scene The polygons the visible areas are calculated in parallel for.
+     * @param sequentialScene The same polygons, for the visible areas calculated one after another.
+     * @param viewers The viewers.
+     */
+    private void assertMatchesSequential(VisibilityCalculator calculator, VisionBlockingPolygonList scene,
+                                         VisionBlockingPolygonList sequentialScene, List<Point2D> viewers) {
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        final ParallelVisibility parallel = new ParallelVisibility((polygons, viewer) -> {
+            threads.add(Thread.currentThread());
+            return calculator.calculateVisibility(polygons, viewer);
+        }, pool);
+        final List<List<LineIntersection>> results = parallel.calculateVisibility(scene, viewers);
+
+        assertEquals(viewers.size(), results.size());
+        for (int v = 0; v < viewers.size(); v++) {
+            final List<LineIntersection> expected = calculator.calculateVisibility(sequentialScene, viewers.get(v));
+            final List<LineIntersection> actual = results.get(v);
+            assertEquals("Intersections seen from viewer " + v, expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals("Viewer " + v + " intersection " + i, expected.get(i).getPoint(),
+                        actual.get(i).getPoint());
+            }
+        }
+        assertEquals(viewers.isEmpty(), threads.isEmpty());
+        for (Thread thread : threads) {
+            assertTrue(thread + " is not a worker", thread instanceof ForkJoinWorkerThread);
+            assertSame(pool, ((ForkJoinWorkerThread) thread).getPool());
+        }
+    }
+}
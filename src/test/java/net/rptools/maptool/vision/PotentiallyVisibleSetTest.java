@@ -0,0 +1,231 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link PotentiallyVisibleSet} finds the same area visible as the exhaustive {@link RayCastVisibility},
+ * which it only does if no line segment that can be seen from a cell is left out of the cell's set.
+ *
+ * Only the corners of the cells are sampled, so the line segments seen from nowhere else in the cells must not be
+ * left out either.
+ */
+public class PotentiallyVisibleSetTest {
+    /** The largest difference allowed between the areas, relative to the area. */
+    private static final double TOLERANCE = 1e-9;
+    /**
+     * The number of slivers {@link VisibilityCalculator#VERY_SMALL_ANGLE} wide, reaching across the scene, that the
+     * areas may also differ by. A ray aimed exactly at a vertex can pass between its line segments through rounding,
+     * and whether it does depends on which other line segments are there.
+     */
+    private static final double SLIVERS = 1;
+    /** The number of viewer positions tried in each scene. */
+    private static final int VIEWERS = 500;
+    /** The width and height of the cells of the sets. */
+    private static final double CELL_SIZE = TestScenes.CELL_SIZE / 2;
+    /** The number of points sampled along each side of a cell. */
+    private static final int SAMPLES_PER_SIDE = 2;
+    /** Where the X co-ordinate of the left edge of the cells is in saved sets, the top edge follows it. */
+    private static final int MIN_X_OFFSET = 2 * Integer.BYTES;
+    /** Where the size of the cells is in saved sets. */
+    private static final int CELL_SIZE_OFFSET = MIN_X_OFFSET + 2 * Double.BYTES;
+    /** Where the number of columns is in saved sets, the number of rows follows it. */
+    private static final int COLUMNS_OFFSET = CELL_SIZE_OFFSET + Double.BYTES;
+    /** Where the total size of the sets is in saved sets. */
+    private static final int TOTAL_SEGMENTS_OFFSET = COLUMNS_OFFSET + 3 * Integer.BYTES + Long.BYTES;
+
+    /**
+     * The sets are conservative in the demo scene.
+     */
+    @Test
+    public void matchesRayCastInDemoScene() {
+        final Random random = new Random(11);
+        final VisionBlockingPolygonList scene = TestScenes.createDemoScene();
+        assertMatchesRayCast(scene, TestScenes.createDemoViewers(scene, VIEWERS, random));
+    }
+
+    /**
+     * The sets are conservative in random scenes.
+     */
+    @Test
+    public void matchesRayCastInRandomScenes() {
+        final Random random = new Random(12);
+        for (int cellsPerSide = 1; cellsPerSide <= 6; cellsPerSide++) {
+            final VisionBlockingPolygonList scene = TestScenes.createScene(cellsPerSide, random);
+            assertMatchesRayCast(scene, TestScenes.createViewers(cellsPerSide, VIEWERS, random));
+        }
+    }
+
+    /**
+     * The sets are conservative in random scenes with some of the line segments disabled.
+     */
+    @Test
+    public void matchesRayCastInRandomScenesWithDisabledSegments() {
+        final Random random = new Random(13);
+        for (int cellsPerSide = 1; cellsPerSide <= 6; cellsPerSide++) {
+            final VisionBlockingPolygonList scene = TestScenes.createScene(cellsPerSide, random);
+            TestScenes.disableSegments(scene, 0.3, random);
+            assertMatchesRayCast(scene, TestScenes.createViewers(cellsPerSide, VIEWERS, random));
+        }
+    }
+
+    /**
+     * The sets can't be used once a line segment has been disabled, even though the number of line segments is the
+     * same.
+     */
+    @Test
+    public void rejectsChangedPolygons() {
+        final Random random = new Random(14);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(3, random);
+        final PotentiallyVisibleSet potentiallyVisibleSet = PotentiallyVisibleSet.build(scene, CELL_SIZE,
+                SAMPLES_PER_SIDE);
+        final Point2D viewer = TestScenes.createViewers(3, 1, random).get(0);
+        potentiallyVisibleSet.calculateVisibility(scene, viewer);
+
+        assertTrue(TestScenes.disableSegments(scene, 0.5, random) > 0);
+        try {
+            potentiallyVisibleSet.calculateVisibility(scene, viewer);
+            fail("Used sets built for different polygons");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * The sets can't be used with a different scene that has had the same number of changes and has the same number
+     * of line segments.
+     */
+    @Test
+    public void rejectsDifferentPolygonsAtTheSameVersion() {
+        final VisionBlockingPolygonList scene = TestScenes.createScene(3, new Random(15));
+        final VisionBlockingPolygonList other = TestScenes.createScene(3, new Random(16));
+        assertEquals(scene.getVersion(), other.getVersion());
+        assertEquals(scene.getSegmentStore().size(), other.getSegmentStore().size());
+
+        final PotentiallyVisibleSet potentiallyVisibleSet = PotentiallyVisibleSet.build(scene, CELL_SIZE,
+                SAMPLES_PER_SIDE);
+        try {
+            potentiallyVisibleSet.calculateVisibility(other, new Point2D(2, 2));
+            fail("Used sets built for different polygons");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Saved sets load with the same sets, and can be used with a copy of the polygons they were built from.
+     * @throws IOException if the sets can't be saved or loaded.
+     */
+    @Test
+    public void savedSetsLoad() throws IOException {
+        final Random random = new Random(17);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(4, random);
+        TestScenes.disableSegments(scene, 0.2, random);
+        final PotentiallyVisibleSet saved = PotentiallyVisibleSet.build(scene, CELL_SIZE, SAMPLES_PER_SIDE);
+        final PotentiallyVisibleSet loaded = PotentiallyVisibleSet.load(new ByteArrayInputStream(save(saved)));
+
+        assertEquals(saved.getNumberCells(), loaded.getNumberCells());
+        final VisionBlockingPolygonList copy = new VisionBlockingPolygonList(scene);
+        for (Point2D viewer : TestScenes.createViewers(4, VIEWERS, random)) {
+            assertEquals(saved.getSetSize(viewer.getX(), viewer.getY()),
+                    loaded.getSetSize(viewer.getX(), viewer.getY()));
+            assertEquals(TestScenes.area(saved.calculateVisibility(scene, viewer)),
+                    TestScenes.area(loaded.calculateVisibility(copy, viewer)), 0);
+        }
+    }
+
+    /**
+     * Saved sets with a corrupt header or cut short are not loaded.
+     * @throws IOException if the sets can't be saved.
+     */
+    @Test
+    public void rejectsCorruptSets() throws IOException {
+        final VisionBlockingPolygonList scene = TestScenes.createScene(3, new Random(18));
+        final byte[] bytes = save(PotentiallyVisibleSet.build(scene, CELL_SIZE, SAMPLES_PER_SIDE));
+
+        assertNotLoaded(withDouble(bytes, MIN_X_OFFSET, Double.NaN));
+        assertNotLoaded(withDouble(bytes, MIN_X_OFFSET + Double.BYTES, Double.NEGATIVE_INFINITY));
+        assertNotLoaded(withDouble(bytes, CELL_SIZE_OFFSET, Double.NaN));
+        assertNotLoaded(withDouble(bytes, CELL_SIZE_OFFSET, Double.POSITIVE_INFINITY));
+        assertNotLoaded(withDouble(bytes, CELL_SIZE_OFFSET, 0));
+        final byte[] hugeGrid = withInt(bytes, COLUMNS_OFFSET, Integer.MAX_VALUE / 2);
+        assertNotLoaded(withInt(hugeGrid, COLUMNS_OFFSET + Integer.BYTES, 3));
+        assertNotLoaded(withInt(bytes, TOTAL_SEGMENTS_OFFSET, Integer.MAX_VALUE));
+        assertNotLoaded(withInt(bytes, TOTAL_SEGMENTS_OFFSET, 0));
+        assertNotLoaded(Arrays.copyOf(bytes, TOTAL_SEGMENTS_OFFSET));
+        assertNotLoaded(Arrays.copyOf(bytes, bytes.length / 2));
+    }
+
+    /**
+     * Saves sets.
+     * @param potentiallyVisibleSet The sets.
+     * @return the saved sets.
+     * @throws IOException if the sets can't be saved.
+     */
+    private static byte[] save(PotentiallyVisibleSet potentiallyVisibleSet) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        potentiallyVisibleSet.save(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a copy of saved sets with a <code>double</code> in the header changed.
+     * @param bytes The saved sets.
+     * @param offset Where the <code>double</code> is.
+     * @param value The new value.
+     * @return the changed copy.
+     */
+    private static byte[] withDouble(byte[] bytes, int offset, double value) {
+        final byte[] copy = bytes.clone();
+        ByteBuffer.wrap(copy).putDouble(offset, value);
+        return copy;
+    }
+
+    /**
+     * Returns a copy of saved sets with an <code>int</code> in the header changed.
+     * @param bytes The saved sets.
+     * @param offset Where the <code>int</code> is.
+     * @param value The new value.
+     * @return the changed copy.
+     */
+    private static byte[] withInt(byte[] bytes, int offset, int value) {
+        final byte[] copy = bytes.clone();
+        ByteBuffer.wrap(copy).putInt(offset, value);
+        return copy;
+    }
+
+    /**
+     * Checks that saved sets are not loaded.
+     * @param bytes The saved sets.
+     */
+    private static void assertNotLoaded(byte[] bytes) {
+        try {
+            PotentiallyVisibleSet.load(new ByteArrayInputStream(bytes));
+            fail("Loaded corrupt sets");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Checks that the sets find the same area visible from each of the viewers as exhaustive ray casting.
+     * @param scene The polygons that block vision/light.
+     * @param viewers The viewer positions.
+     */
+    private static void assertMatchesRayCast(VisionBlockingPolygonList scene, List<Point2D> viewers) {
+        TestScenes.assertMatchesRayCast(PotentiallyVisibleSet.build(scene, CELL_SIZE, SAMPLES_PER_SIDE), scene, viewers,
+                TOLERANCE, SLIVERS);
+    }
+}
@@ -0,0 +1,274 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a {@link PreparedScene} file loads back to the same polygons, line segments and visible areas as were
+ * saved, and that stale, corrupt or truncated files are rejected with an {@link IOException} and prepared again by
+ * {@link PreparedScene#loadOrBuild(Path, List, java.util.function.Function)}.
+ */
+public class PreparedSceneTest {
+    /** The number of cells along each side of the scenes. */
+    private static final int CELLS_PER_SIDE = 6;
+    /** The number of viewer positions the visible areas are compared from. */
+    private static final int VIEWERS = 50;
+    /** The size of the header of a prepared scene file in bytes. */
+    private static final int HEADER_SIZE = 4 * Integer.BYTES + Long.BYTES;
+    /** Where the CRC32 of the rest of the file is in the header. */
+    private static final int PAYLOAD_CHECKSUM_OFFSET = HEADER_SIZE - Integer.BYTES;
+    /** The number of files corrupted at random. */
+    private static final int CORRUPT_FILES = 300;
+
+    /** The directory the files are written to. */
+    private Path directory;
+    /** The prepared scene file. */
+    private Path path;
+
+    /**
+     * Creates the directory for the files.
+     * @throws IOException if the directory can't be created.
+     */
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("prepared-scene-test");
+        path = directory.resolve("scene.prepared");
+    }
+
+    /**
+     * Deletes the directory and the files in it.
+     * @throws IOException if something can't be deleted.
+     */
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    /**
+     * A scene with disabled line segments is loaded back as it was saved.
+     */
+    @Test
+    public void savesAndLoads() throws IOException {
+        final Random random = new Random(1);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        assertTrue(TestScenes.disableSegments(scene, 0.3, random) > 0);
+        final long checksum = PreparedScene.checksum(scene.getPolygonList());
+        PreparedScene.save(scene, checksum, path);
+
+        assertSameScene(scene, PreparedScene.load(path, checksum), random);
+    }
+
+    /**
+     * The file is only prepared the first time, after that it is loaded.
+     */
+    @Test
+    public void loadOrBuildLoadsFreshFile() throws IOException {
+        final Random random = new Random(2);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final int[] prepared = new int[1];
+
+        final VisionBlockingPolygonList first = PreparedScene.loadOrBuild(path, scene.getPolygonList(), polygons -> {
+            prepared[0]++;
+            return scene;
+        });
+        assertEquals(1, prepared[0]);
+        assertTrue(Files.exists(path));
+
+        final VisionBlockingPolygonList second = PreparedScene.loadOrBuild(path, scene.getPolygonList(), polygons -> {
+            prepared[0]++;
+            return scene;
+        });
+        assertEquals("Prepared again", 1, prepared[0]);
+        assertSameScene(first, second, random);
+    }
+
+    /**
+     * A file prepared from other polygons is stale, so it is rejected and prepared again from the new ones.
+     */
+    @Test
+    public void rebuildsStaleFile() throws IOException {
+        final Random random = new Random(3);
+        final VisionBlockingPolygonList oldScene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final long oldChecksum = PreparedScene.checksum(oldScene.getPolygonList());
+        PreparedScene.save(oldScene, oldChecksum, path);
+
+        final VisionBlockingPolygonList newScene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final long newChecksum = PreparedScene.checksum(newScene.getPolygonList());
+        assertTrue(newChecksum != oldChecksum);
+        assertCorrupt(newChecksum);
+
+        final int[] prepared = new int[1];
+        final VisionBlockingPolygonList loaded = PreparedScene.loadOrBuild(path, newScene.getPolygonList(),
+                polygons -> {
+                    prepared[0]++;
+                    return newScene;
+                });
+        assertEquals(1, prepared[0]);
+        assertSameScene(newScene, loaded, random);
+        // The file was replaced.
+        assertSameScene(newScene, PreparedScene.load(path, newChecksum), random);
+        assertCorrupt(oldChecksum);
+    }
+
+    /**
+     * A file with a changed byte anywhere is rejected, by the CRC32 if not by the header, and prepared again.
+     */
+    @Test
+    public void rejectsCorruptFile() throws IOException {
+        final Random random = new Random(4);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final long checksum = PreparedScene.checksum(scene.getPolygonList());
+        PreparedScene.save(scene, checksum, path);
+        final byte[] bytes = Files.readAllBytes(path);
+
+        for (int i = 0; i < bytes.length; i += 7) {
+            final byte[] corrupt = bytes.clone();
+            corrupt[i] ^= 1 << (i % 8);
+            Files.write(path, corrupt);
+            assertCorrupt(checksum);
+        }
+
+        final VisionBlockingPolygonList loaded = PreparedScene.loadOrBuild(path, scene.getPolygonList(),
+                polygons -> scene);
+        assertSameScene(scene, loaded, random);
+        assertSameScene(scene, PreparedScene.load(path, checksum), random);
+    }
+
+    /**
+     * A file cut short anywhere is rejected and prepared again.
+     */
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        final Random random = new Random(5);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final long checksum = PreparedScene.checksum(scene.getPolygonList());
+        PreparedScene.save(scene, checksum, path);
+        final byte[] bytes = Files.readAllBytes(path);
+
+        for (int length : new int[] {0, 1, HEADER_SIZE - 1, HEADER_SIZE, HEADER_SIZE + 1, bytes.length / 2,
+                bytes.length - 1}) {
+            Files.write(path, Arrays.copyOf(bytes, length));
+            assertCorrupt(checksum);
+        }
+
+        final VisionBlockingPolygonList loaded = PreparedScene.loadOrBuild(path, scene.getPolygonList(),
+                polygons -> scene);
+        assertSameScene(scene, loaded, random);
+    }
+
+    /**
+     * A payload that is corrupt but has a matching CRC32, as a file written by a broken writer would, is either
+     * loaded or rejected with an {@link IOException}, never anything else.
+     */
+    @Test
+    public void corruptPayloadOnlyThrowsIOException() throws IOException {
+        final Random random = new Random(6);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(2, random);
+        TestScenes.disableSegments(scene, 0.3, random);
+        final long checksum = PreparedScene.checksum(scene.getPolygonList());
+        PreparedScene.save(scene, checksum, path);
+        final byte[] bytes = Files.readAllBytes(path);
+
+        int rejected = 0;
+        for (int trial = 0; trial < CORRUPT_FILES; trial++) {
+            final byte[] corrupt = bytes.clone();
+            final int changes = 1 + random.nextInt(3);
+            for (int i = 0; i < changes; i++) {
+                corrupt[HEADER_SIZE + random.nextInt(corrupt.length - HEADER_SIZE)] = (byte) random.nextInt(256);
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(corrupt, HEADER_SIZE, corrupt.length - HEADER_SIZE);
+            ByteBuffer.wrap(corrupt).order(ByteOrder.LITTLE_ENDIAN).putInt(PAYLOAD_CHECKSUM_OFFSET,
+                    (int) crc.getValue());
+            Files.write(path, corrupt);
+            try {
+                PreparedScene.load(path, checksum);
+            } catch (IOException e) {
+                rejected++;
+            }
+        }
+        assertTrue("Nothing was rejected", rejected > 0);
+    }
+
+    /**
+     * Checks that loading the file fails.
+     * @param checksum The checksum of the polygons the file should have been prepared from.
+     */
+    private void assertCorrupt(long checksum) {
+        try {
+            PreparedScene.load(path, checksum);
+            fail("Loaded a stale, corrupt or truncated file");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Checks that a loaded scene has the same polygons and line segments as the scene saved, and that the same areas
+     * are visible in it.
+     * @param expected The scene that was saved.
+     * @param actual The scene that was loaded.
+     * @param random The random number generator for the viewer positions.
+     */
+    private static void assertSameScene(VisionBlockingPolygonList expected, VisionBlockingPolygonList actual,
+                                        Random random) {
+        assertEquals("Version", expected.getVersion(), actual.getVersion());
+        assertEquals("Number of vertices", expected.getNumberVertices(), actual.getNumberVertices());
+        assertEquals("Disabled line segments", expected.getDisabledLineSegments(), actual.getDisabledLineSegments());
+        final List<VisionBlockingPolygon> expectedPolygons = expected.getPolygonList();
+        final List<VisionBlockingPolygon> actualPolygons = actual.getPolygonList();
+        assertEquals("Number of polygons", expectedPolygons.size(), actualPolygons.size());
+        for (int i = 0; i < expectedPolygons.size(); i++) {
+            assertArrayEquals("X of polygon " + i, expectedPolygons.get(i).getVerticesX(),
+                    actualPolygons.get(i).getVerticesX(), 0);
+            assertArrayEquals("Y of polygon " + i, expectedPolygons.get(i).getVerticesY(),
+                    actualPolygons.get(i).getVerticesY(), 0);
+        }
+
+        final SegmentStore expectedStore = expected.getSegmentStore();
+        final SegmentStore actualStore = actual.getSegmentStore();
+        assertEquals("Number of line segments", expectedStore.size(), actualStore.size());
+        for (int seg = 0; seg < expectedStore.size(); seg++) {
+            assertEquals("X1 of line segment " + seg, expectedStore.getX1(seg), actualStore.getX1(seg), 0);
+            assertEquals("Y1 of line segment " + seg, expectedStore.getY1(seg), actualStore.getY1(seg), 0);
+            assertEquals("X2 of line segment " + seg, expectedStore.getX2(seg), actualStore.getX2(seg), 0);
+            assertEquals("Y2 of line segment " + seg, expectedStore.getY2(seg), actualStore.getY2(seg), 0);
+            assertEquals("Line segment " + seg + " enabled", expectedStore.isEnabled(seg),
+                    actualStore.isEnabled(seg));
+        }
+
+        final VisibilityCalculator calculator = new RayCastVisibility(true);
+        for (Point2D viewer : TestScenes.createViewers(CELLS_PER_SIDE, VIEWERS, random)) {
+            final List<LineIntersection> expectedArea = calculator.calculateVisibility(expected, viewer);
+            final List<LineIntersection> actualArea = calculator.calculateVisibility(actual, viewer);
+            assertEquals("Number of intersections from " + viewer, expectedArea.size(), actualArea.size());
+            for (int i = 0; i < expectedArea.size(); i++) {
+                assertEquals("Intersection " + i + " from " + viewer, expectedArea.get(i).getPoint(),
+                        actualArea.get(i).getPoint());
+            }
+        }
+    }
+}
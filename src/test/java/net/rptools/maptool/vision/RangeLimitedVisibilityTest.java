@@ -0,0 +1,246 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a {@link RangeLimitedVisibility} sees the same as exhaustive ray casting clipped to its vision radius,
+ * nothing further away than the radius, with open doors staying open in the culled polygons and the culled polygons
+ * reused only while the viewer stays close to where they were culled for.
+ */
+public class RangeLimitedVisibilityTest {
+    /** The number of cells along each side of the scenes. */
+    private static final int CELLS_PER_SIDE = 8;
+    /** The number of viewer positions the visible areas are compared from. */
+    private static final int VIEWERS = 60;
+    /** The vision radius, a few cells across. */
+    private static final double RADIUS = 60;
+    /** How far the viewer can move before the polygons are culled again, as in {@link RangeLimitedVisibility}. */
+    private static final double CULL_MARGIN = 0.25 * RADIUS;
+    /** How far the walking viewer moves each step. */
+    private static final double STEP = 0.1 * RADIUS;
+    /** How far a point of the visible area can be outside the vision radius from rounding. */
+    private static final double DISTANCE_TOLERANCE = 1e-9;
+
+    /**
+     * The area seen matches exhaustive ray casting clipped to the circle, for a radius that is a few cells across and
+     * one that is larger than the whole scene.
+     */
+    @Test
+    public void matchesClippedRayCast() {
+        final Random random = new Random(1);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final List<Point2D> viewers = TestScenes.createViewers(CELLS_PER_SIDE, VIEWERS, random);
+        for (double radius : new double[] {RADIUS, 2 * CELLS_PER_SIDE * TestScenes.CELL_SIZE}) {
+            final RangeLimitedVisibility calculator = new RangeLimitedVisibility(new RayCastVisibility(true), radius);
+            assertEquals(radius, calculator.getRadius(), 0);
+            for (Point2D viewer : viewers) {
+                assertMatchesClippedRayCast(calculator, scene, viewer);
+            }
+        }
+    }
+
+    /**
+     * With some of the line segments disabled, the culled polygons have the same ones disabled so the viewer sees
+     * through them, and disabling more after the polygons have been culled is seen straight away.
+     */
+    @Test
+    public void seesThroughDisabledSegments() {
+        final Random random = new Random(2);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        assertTrue(TestScenes.disableSegments(scene, 0.3, random) > 0);
+        final RangeLimitedVisibility calculator = new RangeLimitedVisibility(new RayCastVisibility(true), RADIUS);
+        final List<Point2D> viewers = TestScenes.createViewers(CELLS_PER_SIDE, VIEWERS, random);
+        for (Point2D viewer : viewers) {
+            assertMatchesClippedRayCast(calculator, scene, viewer);
+        }
+
+        // Opening every wall near the last viewer, after the polygons around it were culled.
+        final Point2D viewer = viewers.get(viewers.size() - 1);
+        final double before = TestScenes.area(calculator.calculateVisibility(scene, viewer));
+        final List<VisionBlockingPolygon> polygons = scene.getPolygonList();
+        for (int i = 1; i < polygons.size(); i++) {
+            if (polygons.get(i).boundsIntersectCircle(viewer.getX(), viewer.getY(), RADIUS)) {
+                for (LineSegment lineSegment : polygons.get(i).getLineSegments()) {
+                    scene.setLineSegmentEnabled(lineSegment, false);
+                }
+            }
+        }
+        assertMatchesClippedRayCast(calculator, scene, viewer);
+        assertTrue(TestScenes.area(calculator.calculateVisibility(scene, viewer)) > before);
+    }
+
+    /**
+     * The culled polygons are reused while the viewer stays within the margin of where they were culled for, and
+     * culled again once it moves beyond it, when the polygons change or when another thread uses the calculator, with
+     * the viewer seeing the same as exhaustive ray casting throughout.
+     */
+    @Test
+    public void reusesCulledPolygonsWithinMargin() throws InterruptedException, ExecutionException {
+        final Random random = new Random(3);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final List<VisionBlockingPolygonList> culled = new ArrayList<>();
+        final VisibilityCalculator rayCast = new RayCastVisibility(true);
+        final RangeLimitedVisibility calculator = new RangeLimitedVisibility((polygons, viewer) -> {
+            culled.add(polygons);
+            return rayCast.calculateVisibility(polygons, viewer);
+        }, RADIUS);
+
+        // Along a line between the cells.
+        final double y = 3 * TestScenes.CELL_SIZE + TestScenes.MARGIN / 2;
+        final double size = CELLS_PER_SIDE * TestScenes.CELL_SIZE;
+        Point2D center = null;
+        int culls = 0;
+        for (double x = TestScenes.MARGIN / 2; x < size; x += STEP) {
+            final Point2D viewer = new Point2D(x, y);
+            assertMatchesClippedRayCast(calculator, scene, viewer);
+            final VisionBlockingPolygonList used = culled.get(culled.size() - 1);
+            if (center == null || viewer.distance(center) > CULL_MARGIN) {
+                center = viewer;
+                culls++;
+                if (culled.size() > 1) {
+                    assertNotSame("Culled again at " + viewer, culled.get(culled.size() - 2), used);
+                }
+            } else {
+                assertSame("Reused at " + viewer, culled.get(culled.size() - 2), used);
+            }
+        }
+        assertTrue(culls > 1 && culls < culled.size() / 2);
+
+        // Changing the polygons culls them again without the viewer moving.
+        final Point2D viewer = new Point2D(center.getX(), y);
+        final VisionBlockingPolygonList last = culled.get(culled.size() - 1);
+        final long version = scene.getVersion();
+        assertTrue(scene.setLineSegmentEnabled(
+                scene.getPolygonList().get(CELLS_PER_SIDE * 3 + 1).getLineSegments().iterator().next(), false));
+        assertTrue(scene.getVersion() > version);
+        assertMatchesClippedRayCast(calculator, scene, viewer);
+        assertNotSame(last, culled.get(culled.size() - 1));
+
+        // As does another thread, which keeps its own.
+        final VisionBlockingPolygonList mine = culled.get(culled.size() - 1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> calculator.calculateVisibility(scene, viewer)).get();
+        } finally {
+            executor.shutdown();
+        }
+        assertNotSame(mine, culled.get(culled.size() - 1));
+        calculator.calculateVisibility(scene, viewer);
+        assertSame(mine, culled.get(culled.size() - 1));
+    }
+
+    /**
+     * Checks that the area a calculator sees matches exhaustive ray casting clipped to its vision radius, with no
+     * point further away than the radius.
+     *
+     * Where the area reaches the circle it is drawn with straight lines inside it, so it can be smaller than the
+     * clipped area by as much as those lines cut off, but no larger. Every point of it inside the circle has to be on
+     * the edge of the ray cast area. That isn't checked the other way round, as a ray cast straight at a vertex can
+     * pass it and add a spike with no area to the ray cast area.
+     *
+     * @param calculator The calculator being checked.
+     * @param scene The polygons that block vision/light.
+     * @param viewer The viewer (or light source).
+     */
+    private static void assertMatchesClippedRayCast(RangeLimitedVisibility calculator, VisionBlockingPolygonList scene,
+                                                    Point2D viewer) {
+        final double radius = calculator.getRadius();
+        final List<LineIntersection> actual = calculator.calculateVisibility(scene, viewer);
+        final List<LineIntersection> rayCast = new RayCastVisibility(false).calculateVisibility(scene, viewer);
+        for (LineIntersection lineIntersection : actual) {
+            assertTrue(lineIntersection.getPoint() + " is outside the vision radius of " + viewer,
+                    lineIntersection.getPoint().distance(viewer) <= radius * (1 + DISTANCE_TOLERANCE));
+        }
+
+        final double expected = clippedArea(rayCast, viewer, radius);
+        final double area = TestScenes.area(actual);
+        final double slivers = 2 * TestScenes.sliverArea(scene);
+        assertTrue("Visible area " + area + " from " + viewer + " is larger than " + expected,
+                area <= expected + slivers);
+        assertTrue("Visible area " + area + " from " + viewer + " is much smaller than " + expected,
+                area >= expected - slivers - TestScenes.MAX_ARC_ERROR * 2 * Math.PI * radius);
+
+        TestScenes.assertOnEdgeWithin("From " + viewer, actual, rayCast, viewer, radius);
+    }
+
+    /**
+     * Works out the area of the part of a visible region that is within a circle around the viewer.
+     * @param lineIntersections The intersections that make up the visible area, sorted by angle.
+     * @param viewer The viewer (or light source), at the centre of the circle.
+     * @param radius The radius of the circle.
+     * @return the area.
+     */
+    private static double clippedArea(List<LineIntersection> lineIntersections, Point2D viewer, double radius) {
+        double area = 0;
+        final int size = lineIntersections.size();
+        for (int i = 0; i < size; i++) {
+            final Point2D p = lineIntersections.get(i).getPoint();
+            final Point2D q = lineIntersections.get((i + 1) % size).getPoint();
+            area += clippedTriangleArea(p.getX() - viewer.getX(), p.getY() - viewer.getY(),
+                    q.getX() - viewer.getX(), q.getY() - viewer.getY(), radius);
+        }
+        return Math.abs(area);
+    }
+
+    /**
+     * Works out the signed area of the part of a triangle with one corner at the centre of a circle that is within
+     * the circle. The line between the other two corners is split where it crosses the circle, each part inside it
+     * adding a triangle and each part outside a sector.
+     * @param ax The X co-ordinate of the second corner, relative to the centre of the circle.
+     * @param ay The Y co-ordinate of the second corner, relative to the centre of the circle.
+     * @param bx The X co-ordinate of the third corner, relative to the centre of the circle.
+     * @param by The Y co-ordinate of the third corner, relative to the centre of the circle.
+     * @param radius The radius of the circle.
+     * @return the area, positive if the corners are anticlockwise.
+     */
+    private static double clippedTriangleArea(double ax, double ay, double bx, double by, double radius) {
+        final double dx = bx - ax;
+        final double dy = by - ay;
+        // Solve |a + d * t| = radius for where the line crosses the circle.
+        final double a = dx * dx + dy * dy;
+        final double b = 2 * (ax * dx + ay * dy);
+        final double c = ax * ax + ay * ay - radius * radius;
+        final double disc = b * b - 4 * a * c;
+        final double[] ts = new double[4];
+        int numTs = 1;
+        if (a > 0 && disc > 0) {
+            final double root = Math.sqrt(disc);
+            for (double t : new double[] {(-b - root) / (2 * a), (-b + root) / (2 * a)}) {
+                if (t > 0 && t < 1) {
+                    ts[numTs++] = t;
+                }
+            }
+        }
+        ts[numTs++] = 1;
+
+        double area = 0;
+        for (int i = 0; i + 1 < numTs; i++) {
+            final double px = ax + dx * ts[i];
+            final double py = ay + dy * ts[i];
+            final double qx = ax + dx * ts[i + 1];
+            final double qy = ay + dy * ts[i + 1];
+            final double cross = px * qy - py * qx;
+            final double midX = (px + qx) / 2;
+            final double midY = (py + qy) / 2;
+            if (midX * midX + midY * midY <= radius * radius) {
+                area += cross / 2;
+            } else {
+                area += radius * radius * Math.atan2(cross, px * qx + py * qy) / 2;
+            }
+        }
+        return area;
+    }
+}
@@ -0,0 +1,107 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link ResortingSweepVisibility} gives the same result after repairing the order for a viewer that has
+ * moved as it does when sweeping from scratch, and the same area as {@link AngularSweepVisibility}.
+ */
+public class ResortingSweepVisibilityTest {
+    /** The largest difference allowed between the co-ordinates of the intersections. */
+    private static final double POINT_TOLERANCE = 1e-9;
+    /** The largest difference allowed between the areas, relative to the area. */
+    private static final double AREA_TOLERANCE = 1e-4;
+    /** How far the viewer moves each step. */
+    private static final double STEP = 0.7;
+
+    /**
+     * The repaired result matches sweeping from scratch as the viewer walks across random scenes.
+     */
+    @Test
+    public void repairMatchesRebuild() {
+        final Random random = new Random(5);
+        for (int cellsPerSide = 1; cellsPerSide <= 6; cellsPerSide++) {
+            assertWalkMatches(TestScenes.createScene(cellsPerSide, random), cellsPerSide, random);
+        }
+    }
+
+    /**
+     * The repaired result matches sweeping from scratch with some of the line segments disabled.
+     */
+    @Test
+    public void repairMatchesRebuildWithDisabledSegments() {
+        final Random random = new Random(6);
+        for (int cellsPerSide = 1; cellsPerSide <= 6; cellsPerSide++) {
+            final VisionBlockingPolygonList scene = TestScenes.createScene(cellsPerSide, random);
+            TestScenes.disableSegments(scene, 0.3, random);
+            assertWalkMatches(scene, cellsPerSide, random);
+        }
+    }
+
+    /**
+     * Changing the polygons between calculations starts again from the new polygons.
+     */
+    @Test
+    public void followsChangesToThePolygons() {
+        final Random random = new Random(7);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(4, random);
+        final ResortingSweepVisibility resorting = new ResortingSweepVisibility();
+        final Point2D viewer = new Point2D(2, 2);
+        resorting.calculateVisibility(scene, viewer);
+
+        TestScenes.disableSegments(scene, 0.5, random);
+        assertSameIntersections(new ResortingSweepVisibility().calculateVisibility(scene, viewer),
+                resorting.calculateVisibility(scene, viewer));
+    }
+
+    /**
+     * Walks a viewer along the lines between the cells of a scene, checking each step.
+     * @param scene The scene.
+     * @param cellsPerSide The number of cells along each side of the scene.
+     * @param random The random number generator.
+     */
+    private static void assertWalkMatches(VisionBlockingPolygonList scene, int cellsPerSide, Random random) {
+        final ResortingSweepVisibility resorting = new ResortingSweepVisibility();
+        final VisibilityCalculator sweep = new AngularSweepVisibility();
+        final double sliverArea = TestScenes.sliverArea(scene) * 2;
+        final double size = cellsPerSide * TestScenes.CELL_SIZE;
+        final double line = random.nextInt(cellsPerSide) * TestScenes.CELL_SIZE + 2;
+
+        int repaired = 0;
+        for (double along = 2; along < size - 2; along += STEP) {
+            final Point2D viewer = new Point2D(line, along);
+            final List<LineIntersection> actual = resorting.calculateVisibility(scene, viewer);
+            if (resorting.getLastRepairCount() >= 0) {
+                repaired++;
+            }
+            assertSameIntersections(new ResortingSweepVisibility().calculateVisibility(scene, viewer), actual);
+
+            final double expectedArea = TestScenes.area(sweep.calculateVisibility(scene, viewer));
+            assertEquals("Visible area from " + viewer, expectedArea, TestScenes.area(actual),
+                    expectedArea * AREA_TOLERANCE + sliverArea);
+        }
+        assertTrue("Order was never repaired", repaired > 0);
+    }
+
+    /**
+     * Checks that two visible areas are made up of the same intersections.
+     * @param expected The intersections expected.
+     * @param actual The intersections found.
+     */
+    private static void assertSameIntersections(List<LineIntersection> expected, List<LineIntersection> actual) {
+        assertEquals("Number of intersections", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            final Point2D expectedPoint = expected.get(i).getPoint();
+            final Point2D actualPoint = actual.get(i).getPoint();
+            assertEquals("X of intersection " + i, expectedPoint.getX(), actualPoint.getX(), POINT_TOLERANCE);
+            assertEquals("Y of intersection " + i, expectedPoint.getY(), actualPoint.getY(), POINT_TOLERANCE);
+        }
+    }
+}
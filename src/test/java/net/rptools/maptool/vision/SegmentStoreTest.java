@@ -0,0 +1,145 @@
+package net.rptools.maptool.vision;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link SegmentGrid#castRay(double, double, double, double, RayHit)}, which stops walking the cells as
+ * soon as nothing further along the ray can be closer, finds hits at exactly the same distance as
+ * {@link SegmentStore#castRay(double, double, double, double, RayHit)}, which tests every line segment, and that
+ * {@link SegmentStore#castRayVectorized(double, double, double, double, RayHit)} finds exactly the same hits as that.
+ *
+ * The SIMD routine is only used when the tests are run on a JDK with the Vector API, otherwise this checks the
+ * fallback to the scalar routine.
+ */
+public class SegmentStoreTest {
+    /** The number of rays cast from each origin. */
+    private static final int RAYS = 3600;
+
+    /**
+     * The grid and the store agree in a random scene.
+     */
+    @Test
+    public void gridMatchesStore() {
+        final VisionBlockingPolygonList scene = TestScenes.createScene(16, new Random(8));
+        assertSameHits(scene.getSegmentStore(), scene.getSegmentGrid(), new Random(9));
+    }
+
+    /**
+     * The grid and the store agree in a random scene with some of the line segments disabled.
+     */
+    @Test
+    public void gridMatchesStoreWithDisabledSegments() {
+        final Random random = new Random(10);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(16, random);
+        TestScenes.disableSegments(scene, 0.3, random);
+        assertSameHits(scene.getSegmentStore(), scene.getSegmentGrid(), random);
+    }
+
+    /**
+     * The grid and the store agree for every number of line segments up to a few dozen, including grids of a single
+     * cell.
+     */
+    @Test
+    public void gridMatchesStoreForEverySize() {
+        final Random random = new Random(11);
+        final SegmentStore segmentStore = new SegmentStore();
+        for (int size = 0; size <= 40; size++) {
+            assertSameHits(segmentStore, new SegmentGrid(segmentStore), random);
+            segmentStore.add(random.nextDouble() * 100, random.nextDouble() * 100, random.nextDouble() * 100,
+                    random.nextDouble() * 100);
+        }
+    }
+
+    /**
+     * The SIMD and scalar routines agree in a random scene.
+     */
+    @Test
+    public void vectorizedMatchesScalar() {
+        final VisionBlockingPolygonList scene = TestScenes.createScene(16, new Random(12));
+        assertSameVectorizedHits(scene.getSegmentStore(), new Random(13));
+    }
+
+    /**
+     * The SIMD and scalar routines agree in a random scene with some of the line segments disabled.
+     */
+    @Test
+    public void vectorizedMatchesScalarWithDisabledSegments() {
+        final Random random = new Random(14);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(16, random);
+        TestScenes.disableSegments(scene, 0.3, random);
+        assertSameVectorizedHits(scene.getSegmentStore(), random);
+    }
+
+    /**
+     * The SIMD and scalar routines agree for every number of line segments up to a few times the width of a vector,
+     * so the line segments left over after the last full vector are covered.
+     */
+    @Test
+    public void vectorizedMatchesScalarForEverySize() {
+        final Random random = new Random(15);
+        final SegmentStore segmentStore = new SegmentStore();
+        for (int size = 0; size <= 40; size++) {
+            assertSameVectorizedHits(segmentStore, random);
+            segmentStore.add(random.nextDouble() * 100, random.nextDouble() * 100, random.nextDouble() * 100,
+                    random.nextDouble() * 100);
+        }
+    }
+
+    /**
+     * Casts rays in every direction from random origins, checking that the grid and the store find a hit at the same
+     * distance. Where several line segments meet at the hit either of them may be the one found.
+     * @param segmentStore The line segments.
+     * @param segmentGrid The grid over the line segments.
+     * @param random The random number generator for the origins.
+     */
+    private static void assertSameHits(SegmentStore segmentStore, SegmentGrid segmentGrid, Random random) {
+        final RayHit storeHit = new RayHit();
+        final RayHit gridHit = new RayHit();
+        for (int origin = 0; origin < 4; origin++) {
+            final double ox = random.nextDouble() * 100;
+            final double oy = random.nextDouble() * 100;
+            for (int i = 0; i < RAYS; i++) {
+                final double angle = 2 * Math.PI * i / RAYS;
+                final double dx = Math.cos(angle);
+                final double dy = Math.sin(angle);
+                storeHit.reset();
+                gridHit.reset();
+                segmentStore.castRay(ox, oy, dx, dy, storeHit);
+                segmentGrid.castRay(ox, oy, dx, dy, gridHit);
+                assertEquals("Hit at angle " + angle, storeHit.isHit(), gridHit.isHit());
+                assertEquals("Distance at angle " + angle, storeHit.getDistance(), gridHit.getDistance(), 0);
+            }
+        }
+    }
+
+    /**
+     * Casts rays in every direction from random origins, checking that the SIMD and scalar routines find the same hit
+     * and count the same number of tests.
+     * @param segmentStore The line segments.
+     * @param random The random number generator for the origins.
+     */
+    private static void assertSameVectorizedHits(SegmentStore segmentStore, Random random) {
+        final RayHit scalarHit = new RayHit();
+        final RayHit vectorHit = new RayHit();
+        for (int origin = 0; origin < 4; origin++) {
+            final double ox = random.nextDouble() * 100;
+            final double oy = random.nextDouble() * 100;
+            for (int i = 0; i < RAYS; i++) {
+                final double angle = 2 * Math.PI * i / RAYS;
+                final double dx = Math.cos(angle);
+                final double dy = Math.sin(angle);
+                scalarHit.reset();
+                vectorHit.reset();
+                segmentStore.castRay(ox, oy, dx, dy, scalarHit);
+                segmentStore.castRayVectorized(ox, oy, dx, dy, vectorHit);
+                assertEquals("Segment hit at angle " + angle, scalarHit.getSegment(), vectorHit.getSegment());
+                assertEquals("Distance at angle " + angle, scalarHit.getDistance(), vectorHit.getDistance(), 0);
+            }
+        }
+        assertEquals("Tests counted", scalarHit.getTests(), vectorHit.getTests());
+    }
+}
@@ -0,0 +1,356 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a {@link SharedScene} snapshot never changes once it has been published, however the scene is edited
+ * afterwards, and that edits made by several threads at once are all kept while readers only ever see complete
+ * snapshots.
+ */
+public class SharedSceneTest {
+    /** The number of cells along each side of the scenes. */
+    private static final int CELLS_PER_SIDE = 4;
+    /** The number of cells along each side of the large scene, which has 10,000 line segments. */
+    private static final int LARGE_CELLS_PER_SIDE = 50;
+    /** The number of doors opened in the large scene with a single edit. */
+    private static final int DOORS = 200;
+    /** The number of doors closed again in the large scene with an edit each. */
+    private static final int CLOSED_DOORS = 20;
+    /** The number of viewers whose visible area is compared. */
+    private static final int VIEWERS = 10;
+    /** The number of threads editing the scene at once. */
+    private static final int EDITORS = 4;
+    /** The number of threads taking snapshots while the scene is edited. */
+    private static final int READERS = 3;
+    /** The number of edits each editor makes. */
+    private static final int EDITS = 60;
+    /** How long to wait for the threads to finish, in milliseconds. */
+    private static final long TIMEOUT = 60000;
+
+    /**
+     * A snapshot taken before edits keeps its polygons, disabled lines, version and visible areas, and can't be
+     * changed itself.
+     */
+    @Test
+    public void snapshotsDontChangeWhenTheSceneIsEdited() {
+        final Random random = new Random(1);
+        final VisionBlockingPolygonList initial = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final List<Point2D> viewers = TestScenes.createViewers(CELLS_PER_SIDE, VIEWERS, random);
+        final SharedScene shared = new SharedScene(initial);
+
+        final VisionBlockingPolygonList first = shared.getSnapshot();
+        assertTrue(first.isFrozen());
+        assertNotSame(initial, first);
+        final long firstVersion = first.getVersion();
+        final int firstPolygons = first.getPolygonList().size();
+        final List<double[]> firstAreas = areas(first, viewers);
+
+        // Later changes to the list the scene started with are not seen.
+        final LineSegment wall = first.getPolygonList().get(1).getLineSegments().iterator().next();
+        assertTrue(initial.setLineSegmentEnabled(wall, false));
+        assertSame(first, shared.getSnapshot());
+        assertTrue(first.isLineSegmentEnabled(wall));
+
+        final VisionBlockingPolygonList second = shared.update(list -> TestScenes.disableSegments(list, 0.3, random));
+        assertNotSame(first, second);
+        assertTrue(second.isFrozen());
+        assertTrue(second.getVersion() > firstVersion);
+        assertFalse(second.getDisabledLineSegments().isEmpty());
+        final List<double[]> secondAreas = areas(second, viewers);
+
+        // A wall across the middle of the room.
+        final double size = CELLS_PER_SIDE * TestScenes.CELL_SIZE;
+        final VisionBlockingPolygon added = new VisionBlockingPolygon(new Point2D[] {
+                new Point2D(TestScenes.MARGIN, size / 2 + TestScenes.MARGIN / 4),
+                new Point2D(size - TestScenes.MARGIN, size / 2 + TestScenes.MARGIN / 4)
+        });
+        final VisionBlockingPolygonList third = shared.addVisionBlockingPolygon(added);
+        assertSame(third, shared.getSnapshot());
+        assertEquals(third.getVersion(), shared.getVersion());
+        assertTrue(third.getVersion() > second.getVersion());
+        assertEquals(firstPolygons + 1, third.getPolygonList().size());
+
+        assertEquals(firstVersion, first.getVersion());
+        assertEquals(firstPolygons, first.getPolygonList().size());
+        assertTrue(first.getDisabledLineSegments().isEmpty());
+        assertEquals(0, first.getSegmentStore().getNumberDisabled());
+        assertAreasEqual(firstAreas, areas(first, viewers));
+        assertEquals(firstPolygons, second.getPolygonList().size());
+        assertAreasEqual(secondAreas, areas(second, viewers));
+
+        // Snapshots can't be edited directly.
+        try {
+            first.setLineSegmentEnabled(wall, false);
+            fail("Edited a snapshot");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        assertTrue(first.isLineSegmentEnabled(wall));
+
+        // An edit that changes nothing doesn't publish a new snapshot.
+        assertSame(third, shared.update(list -> list.setLineSegmentEnabled(wall, true)));
+        assertSame(third, shared.getSnapshot());
+    }
+
+    /**
+     * A frozen list is shared as it is rather than copied, and an empty scene starts out frozen.
+     */
+    @Test
+    public void frozenInitialListIsShared() {
+        final VisionBlockingPolygonList frozen = TestScenes.createScene(CELLS_PER_SIDE, new Random(2)).freeze();
+        assertSame(frozen, new SharedScene(frozen).getSnapshot());
+
+        final SharedScene empty = new SharedScene();
+        assertTrue(empty.getSnapshot().isFrozen());
+        assertTrue(empty.getSnapshot().getPolygonList().isEmpty());
+    }
+
+    /**
+     * Edits to a large scene copy its line segments and what is derived from them but share its polygons, and give
+     * the same snapshots whether many changes are made in one edit or in an edit each.
+     */
+    @Test
+    public void editsLargeScene() {
+        final Random random = new Random(4);
+        final SharedScene shared = new SharedScene(TestScenes.createScene(LARGE_CELLS_PER_SIDE, random));
+        final List<Point2D> viewers = TestScenes.createViewers(LARGE_CELLS_PER_SIDE, 3, random);
+        final VisionBlockingPolygonList first = shared.getSnapshot();
+        final List<VisionBlockingPolygon> polygons = first.getPolygonList();
+        final List<LineSegment> doors = new ArrayList<>();
+        for (int i = 0; i < DOORS; i++) {
+            doors.add(polygons.get(1 + random.nextInt(polygons.size() - 1)).getLineSegments().iterator().next());
+        }
+
+        // All of the doors opened with one edit.
+        final VisionBlockingPolygonList second = shared.update(list -> {
+            for (LineSegment door : doors) {
+                list.setLineSegmentEnabled(door, false);
+            }
+        });
+        assertSame(second, shared.getSnapshot());
+        assertTrue(second.getVersion() > first.getVersion());
+        assertEquals(polygons.size(), second.getPolygonList().size());
+        for (int i = 0; i < polygons.size(); i++) {
+            assertSame(polygons.get(i), second.getPolygonList().get(i));
+        }
+        assertNotSame(first.getSegmentStore(), second.getSegmentStore());
+        assertNotSame(first.getSegmentGrid(), second.getSegmentGrid());
+        assertTrue(first.getDisabledLineSegments().isEmpty());
+        assertEquals(0, first.getSegmentStore().getNumberDisabled());
+        final int opened = second.getDisabledLineSegments().size();
+        assertTrue(opened > DOORS / 2);
+        assertSnapshotComplete(second, viewers);
+
+        // Some of them closed again with an edit each.
+        final VisionBlockingPolygonList direct = new VisionBlockingPolygonList(second);
+        for (LineSegment door : doors.subList(0, CLOSED_DOORS)) {
+            shared.update(list -> list.setLineSegmentEnabled(door, true));
+            direct.setLineSegmentEnabled(door, true);
+        }
+        final VisionBlockingPolygonList last = shared.getSnapshot();
+        assertTrue(last.getVersion() > second.getVersion());
+        assertEquals(direct.getDisabledLineSegments(), last.getDisabledLineSegments());
+        assertEquals(opened, second.getDisabledLineSegments().size());
+        assertSnapshotComplete(last, viewers);
+    }
+
+    /**
+     * Several editors enabling and disabling their own lines and adding walls at the same time don't lose each
+     * other's edits, and readers taking snapshots meanwhile only see complete snapshots that don't change while they
+     * use them.
+     */
+    @Test
+    public void concurrentEditsAreAllKept() throws InterruptedException {
+        final Random random = new Random(3);
+        final VisionBlockingPolygonList initial = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final int initialPolygons = initial.getPolygonList().size();
+        final SharedScene shared = new SharedScene(initial);
+        final List<Point2D> viewers = TestScenes.createViewers(CELLS_PER_SIDE, 3, random);
+
+        // Each editor owns the lines of every EDITORS'th polygon, so no two editors change the same line.
+        final List<List<LineSegment>> owned = new ArrayList<>();
+        for (int e = 0; e < EDITORS; e++) {
+            owned.add(new ArrayList<>());
+        }
+        for (int i = 1; i < initialPolygons; i++) {
+            owned.get(i % EDITORS).addAll(initial.getPolygonList().get(i).getLineSegments());
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean editing = new AtomicBoolean(true);
+        final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        final List<Map<LineSegment, Boolean>> expected = new ArrayList<>();
+        final int[] wallsAdded = new int[EDITORS];
+        final List<Thread> editors = new ArrayList<>();
+        for (int e = 0; e < EDITORS; e++) {
+            final int editor = e;
+            final Map<LineSegment, Boolean> enabled = new HashMap<>();
+            expected.add(enabled);
+            final Random editorRandom = new Random(100 + e);
+            editors.add(new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < EDITS; i++) {
+                        if (editorRandom.nextInt(5) == 0) {
+                            shared.addVisionBlockingPolygon(createWall(editorRandom));
+                            wallsAdded[editor]++;
+                        } else {
+                            final List<LineSegment> lines = owned.get(editor);
+                            final LineSegment line = lines.get(editorRandom.nextInt(lines.size()));
+                            final boolean enable = !enabled.getOrDefault(line, true);
+                            enabled.put(line, enable);
+                            shared.update(list -> list.setLineSegmentEnabled(line, enable));
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }));
+        }
+
+        final List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            readers.add(new Thread(() -> {
+                try {
+                    start.await();
+                    long lastVersion = Long.MIN_VALUE;
+                    do {
+                        final VisionBlockingPolygonList snapshot = shared.getSnapshot();
+                        assertTrue(snapshot.isFrozen());
+                        final long version = snapshot.getVersion();
+                        assertTrue("Version went backwards", version >= lastVersion);
+                        lastVersion = version;
+                        assertSnapshotComplete(snapshot, viewers);
+                        assertEquals(version, snapshot.getVersion());
+                    } while (editing.get());
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }));
+        }
+
+        for (Thread thread : editors) {
+            thread.start();
+        }
+        for (Thread thread : readers) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : editors) {
+            thread.join(TIMEOUT);
+        }
+        editing.set(false);
+        for (Thread thread : readers) {
+            thread.join(TIMEOUT);
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.peek());
+        }
+
+        final VisionBlockingPolygonList last = shared.getSnapshot();
+        int totalWalls = 0;
+        for (int walls : wallsAdded) {
+            totalWalls += walls;
+        }
+        assertTrue("No walls added", totalWalls > 0);
+        assertEquals(initialPolygons + totalWalls, last.getPolygonList().size());
+        int disabled = 0;
+        for (Map<LineSegment, Boolean> enabled : expected) {
+            for (Map.Entry<LineSegment, Boolean> entry : enabled.entrySet()) {
+                assertEquals("Line " + entry.getKey() + " enabled", entry.getValue(),
+                        last.isLineSegmentEnabled(entry.getKey()));
+                if (!entry.getValue()) {
+                    disabled++;
+                }
+            }
+        }
+        assertEquals(disabled, last.getDisabledLineSegments().size());
+        assertSnapshotComplete(last, viewers);
+    }
+
+    /**
+     * Checks that the derived data of a snapshot agrees with its polygons and disabled lines, by comparing the area
+     * visible from each viewer with that in a list built from scratch from them.
+     * @param snapshot The snapshot.
+     * @param viewers The viewers.
+     */
+    private static void assertSnapshotComplete(VisionBlockingPolygonList snapshot, List<Point2D> viewers) {
+        assertEquals(snapshot.getDisabledLineSegments().size(), snapshot.getSegmentStore().getNumberDisabled());
+        final VisionBlockingPolygonList rebuilt = new VisionBlockingPolygonList();
+        for (VisionBlockingPolygon poly : snapshot.getPolygonList()) {
+            rebuilt.addVisionBlockingPolygon(poly);
+        }
+        for (LineSegment line : snapshot.getDisabledLineSegments()) {
+            assertTrue(rebuilt.setLineSegmentEnabled(line, false));
+        }
+        assertAreasEqual(areas(rebuilt, viewers), areas(snapshot, viewers));
+    }
+
+    /**
+     * Works out the area visible from each viewer with each ray caster.
+     * @param polygons The polygons that block vision/light.
+     * @param viewers The viewers.
+     * @return the areas from the exhaustive and the culling ray caster for each viewer.
+     */
+    private static List<double[]> areas(VisionBlockingPolygonList polygons, List<Point2D> viewers) {
+        final VisibilityCalculator exhaustive = new RayCastVisibility(false);
+        final VisibilityCalculator culled = new RayCastVisibility(true);
+        final List<double[]> areas = new ArrayList<>(viewers.size());
+        for (Point2D viewer : viewers) {
+            areas.add(new double[] {
+                    TestScenes.area(exhaustive.calculateVisibility(polygons, viewer)),
+                    TestScenes.area(culled.calculateVisibility(polygons, viewer))
+            });
+        }
+        return areas;
+    }
+
+    /**
+     * Checks that the visible areas are exactly the same.
+     * @param expected The expected areas.
+     * @param actual The actual areas.
+     */
+    private static void assertAreasEqual(List<double[]> expected, List<double[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("Exhaustive area " + i, expected.get(i)[0], actual.get(i)[0], 0);
+            assertEquals("Culled area " + i, expected.get(i)[1], actual.get(i)[1], 0);
+        }
+    }
+
+    /**
+     * Creates a short wall somewhere in the room, which may cross other polygons.
+     * @param random The random number generator.
+     * @return the wall.
+     */
+    private static VisionBlockingPolygon createWall(Random random) {
+        final double size = CELLS_PER_SIDE * TestScenes.CELL_SIZE;
+        final double x = TestScenes.MARGIN + random.nextDouble() * (size - 2 * TestScenes.MARGIN);
+        final double y = TestScenes.MARGIN + random.nextDouble() * (size - 2 * TestScenes.MARGIN);
+        final double angle = random.nextDouble() * 2 * Math.PI;
+        final double length = 5 + random.nextDouble() * 15;
+        return new VisionBlockingPolygon(new Point2D[] {
+                new Point2D(x, y),
+                new Point2D(Math.max(1, Math.min(size - 1, x + Math.cos(angle) * length)),
+                        Math.max(1, Math.min(size - 1, y + Math.sin(angle) * length)))
+        });
+    }
+}
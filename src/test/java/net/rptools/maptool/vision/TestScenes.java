@@ -0,0 +1,301 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Generates scenes and viewer positions for the tests (and the benchmarks), and works out the area of visible regions
+ * so the output of the calculators can be compared.
+ *
+ * The scene is a square room split into a grid of cells with a randomly shaped four sided polygon inside each cell,
+ * so the line segments never cross each other and viewers on the lines between the cells are never inside a polygon.
+ */
+final class TestScenes {
+    /** The width and height of each cell in the scene. */
+    static final double CELL_SIZE = 40;
+    /** The gap between the polygons and the edges of their cell. */
+    static final double MARGIN = 4;
+    /** The width of the demo scene. */
+    static final int DEMO_WIDTH = 800;
+    /** The height of the demo scene. */
+    static final int DEMO_HEIGHT = 600;
+    /**
+     * The furthest that the straight lines used to draw an arc can be inside the circle, as in
+     * {@link RangeLimitedVisibility}.
+     */
+    static final double MAX_ARC_ERROR = 0.5;
+    /** How far a point can be from the edge of a visible area and still count as on it. */
+    private static final double POINT_TOLERANCE = 1e-6;
+
+    /**
+     * There are no instances, everything is static.
+     */
+    private TestScenes() {
+    }
+
+    /**
+     * Creates the demo scene.
+     * @return the scene.
+     */
+    static VisionBlockingPolygonList createDemoScene() {
+        final VisionBlockingPolygonList scene = new VisionBlockingPolygonList();
+        scene.addDemoPoly(DEMO_WIDTH, DEMO_HEIGHT);
+        return scene;
+    }
+
+    /**
+     * Creates a random scene.
+     * @param cellsPerSide The number of cells along each side of the room.
+     * @param random The random number generator for the shapes of the polygons.
+     * @return the scene.
+     */
+    static VisionBlockingPolygonList createScene(int cellsPerSide, Random random) {
+        return createScene(cellsPerSide, cellsPerSide * cellsPerSide, random);
+    }
+
+    /**
+     * Creates a random scene with only some of the cells filled, from the first row onwards.
+     * @param cellsPerSide The number of cells along each side of the room.
+     * @param numPolygons The number of cells with a polygon in them.
+     * @param random The random number generator for the shapes of the polygons.
+     * @return the scene.
+     */
+    static VisionBlockingPolygonList createScene(int cellsPerSide, int numPolygons, Random random) {
+        final double size = cellsPerSide * CELL_SIZE;
+        final VisionBlockingPolygonList scene = new VisionBlockingPolygonList();
+        scene.addVisionBlockingPolygon(new VisionBlockingPolygon(new Point2D[] {
+                new Point2D(0, 0),
+                new Point2D(size, 0),
+                new Point2D(size, size),
+                new Point2D(0, size)
+        }));
+
+        final double mid = CELL_SIZE / 2;
+        for (int i = 0; i < numPolygons; i++) {
+            final double x = (i % cellsPerSide) * CELL_SIZE;
+            final double y = (i / cellsPerSide) * CELL_SIZE;
+            // One vertex in each quarter of the cell keeps the polygon simple (no edges crossing).
+            scene.addVisionBlockingPolygon(new VisionBlockingPolygon(new Point2D[] {
+                    new Point2D(x + randomIn(random, MARGIN, mid), y + randomIn(random, MARGIN, mid)),
+                    new Point2D(x + randomIn(random, mid, CELL_SIZE - MARGIN), y + randomIn(random, MARGIN, mid)),
+                    new Point2D(x + randomIn(random, mid, CELL_SIZE - MARGIN),
+                            y + randomIn(random, mid, CELL_SIZE - MARGIN)),
+                    new Point2D(x + randomIn(random, MARGIN, mid), y + randomIn(random, mid, CELL_SIZE - MARGIN))
+            }));
+        }
+
+        return scene;
+    }
+
+    /**
+     * Returns random viewer positions on the lines between the cells of a scene from
+     * {@link #createScene(int, Random)}.
+     * @param cellsPerSide The number of cells along each side of the room.
+     * @param count The number of viewer positions.
+     * @param random The random number generator.
+     * @return the viewer positions.
+     */
+    static List<Point2D> createViewers(int cellsPerSide, int count, Random random) {
+        final double size = cellsPerSide * CELL_SIZE;
+        final List<Point2D> viewers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final double along = randomIn(random, MARGIN / 2, size - MARGIN / 2);
+            final double line = random.nextInt(cellsPerSide) * CELL_SIZE + MARGIN / 2;
+            viewers.add(random.nextBoolean() ? new Point2D(along, line) : new Point2D(line, along));
+        }
+        return viewers;
+    }
+
+    /**
+     * Returns random viewer positions in the demo scene, outside of all of its polygons.
+     * @param scene The demo scene.
+     * @param count The number of viewer positions.
+     * @param random The random number generator.
+     * @return the viewer positions.
+     */
+    static List<Point2D> createDemoViewers(VisionBlockingPolygonList scene, int count, Random random) {
+        final List<VisionBlockingPolygon> polygons = scene.getPolygonList();
+        final List<Point2D> viewers = new ArrayList<>(count);
+        while (viewers.size() < count) {
+            final double x = randomIn(random, 1, DEMO_WIDTH - 1);
+            final double y = randomIn(random, 1, DEMO_HEIGHT - 1);
+            boolean inside = false;
+            // The first polygon is the room around everything else.
+            for (int i = 1; i < polygons.size() && !inside; i++) {
+                inside = contains(polygons.get(i), x, y);
+            }
+            if (!inside) {
+                viewers.add(new Point2D(x, y));
+            }
+        }
+        return viewers;
+    }
+
+    /**
+     * Disables some of the line segments of the polygons in a scene, other than those of the room around them.
+     * @param scene The scene.
+     * @param fraction The fraction of the line segments to disable.
+     * @param random The random number generator.
+     * @return the number of line segments disabled.
+     */
+    static int disableSegments(VisionBlockingPolygonList scene, double fraction, Random random) {
+        final List<VisionBlockingPolygon> polygons = scene.getPolygonList();
+        int disabled = 0;
+        for (int i = 1; i < polygons.size(); i++) {
+            for (LineSegment lineSegment : polygons.get(i).getLineSegments()) {
+                if (random.nextDouble() < fraction && scene.setLineSegmentEnabled(lineSegment, false)) {
+                    disabled++;
+                }
+            }
+        }
+        return disabled;
+    }
+
+    /**
+     * Checks that a calculator finds the same area visible from each of the viewers as exhaustive ray casting.
+     * @param actual The calculator being checked.
+     * @param scene The polygons that block vision/light.
+     * @param viewers The viewer positions.
+     * @param tolerance The largest difference allowed between the areas, relative to the area.
+     * @param slivers The number of slivers (see {@link #sliverArea(VisionBlockingPolygonList)}) that the areas may
+     *                also differ by.
+     */
+    static void assertMatchesRayCast(VisibilityCalculator actual, VisionBlockingPolygonList scene,
+                                     List<Point2D> viewers, double tolerance, double slivers) {
+        final VisibilityCalculator expected = new RayCastVisibility(false);
+        final double sliverArea = sliverArea(scene) * slivers;
+        for (Point2D viewer : viewers) {
+            final double expectedArea = area(expected.calculateVisibility(scene, viewer));
+            final double actualArea = area(actual.calculateVisibility(scene, viewer));
+            assertEquals("Visible area from " + viewer, expectedArea, actualArea,
+                    expectedArea * tolerance + sliverArea);
+        }
+    }
+
+    /**
+     * Checks that two visible areas of a viewer with a limited vision radius are the same. Where the area reaches the
+     * circle it is drawn with straight lines between points that depend on which rays were cast, so the areas can
+     * only differ by as much as those lines can cut off the circle, but every point of either that is inside the
+     * circle has to be on the edge of the other.
+     * @param message The message to report a difference with.
+     * @param expected The intersections that make up the expected visible area, sorted by angle.
+     * @param actual The intersections that make up the visible area being checked, sorted by angle.
+     * @param viewer The viewer (or light source).
+     * @param radius How far the viewer can see.
+     */
+    static void assertSameWithinRadius(String message, List<LineIntersection> expected,
+                                       List<LineIntersection> actual, Point2D viewer, double radius) {
+        assertEquals(message + " area", area(expected), area(actual), MAX_ARC_ERROR * 2 * Math.PI * radius);
+        assertOnEdgeWithin(message + " expected", expected, actual, viewer, radius);
+        assertOnEdgeWithin(message + " actual", actual, expected, viewer, radius);
+    }
+
+    /**
+     * Checks that the points of a visible area which are closer to the viewer than a distance are on the edge of
+     * another. A point can be off the edge by as much as a ray moves over a sliver (see
+     * {@link #sliverArea(VisionBlockingPolygonList)}) either side of it, as the areas can have been found with rays
+     * cast either side of a vertex or straight at it.
+     * @param message The message to report a point that isn't with.
+     * @param points The intersections whose points are checked.
+     * @param edges The intersections that make up the other visible area, sorted by angle.
+     * @param viewer The viewer (or light source).
+     * @param distance How close to the viewer the points that are checked are.
+     */
+    static void assertOnEdgeWithin(String message, List<LineIntersection> points, List<LineIntersection> edges,
+                                   Point2D viewer, double distance) {
+        for (LineIntersection lineIntersection : points) {
+            final Point2D p = lineIntersection.getPoint();
+            final double fromViewer = p.distance(viewer);
+            if (fromViewer > distance - POINT_TOLERANCE) {
+                continue;
+            }
+            double nearest = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < edges.size(); i++) {
+                nearest = Math.min(nearest, distanceToEdge(p, edges.get(i).getPoint(),
+                        edges.get((i + 1) % edges.size()).getPoint()));
+            }
+            assertEquals(message + " point " + p + " distance from edge", 0, nearest,
+                    POINT_TOLERANCE + fromViewer * 2 * VisibilityCalculator.VERY_SMALL_ANGLE);
+        }
+    }
+
+    /**
+     * Returns the distance from a point to a line segment.
+     * @param p The point.
+     * @param a One end of the line segment.
+     * @param b The other end of the line segment.
+     * @return the distance.
+     */
+    private static double distanceToEdge(Point2D p, Point2D a, Point2D b) {
+        final double dx = b.getX() - a.getX();
+        final double dy = b.getY() - a.getY();
+        final double lengthSquared = dx * dx + dy * dy;
+        final double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1,
+                ((p.getX() - a.getX()) * dx + (p.getY() - a.getY()) * dy) / lengthSquared));
+        return p.distance(a.getX() + t * dx, a.getY() + t * dy);
+    }
+
+    /**
+     * Works out the area of a visible region.
+     * @param lineIntersections The intersections that make up the visible area, sorted by angle.
+     * @return the area.
+     */
+    static double area(List<LineIntersection> lineIntersections) {
+        double area = 0;
+        final int size = lineIntersections.size();
+        for (int i = 0; i < size; i++) {
+            final Point2D p = lineIntersections.get(i).getPoint();
+            final Point2D q = lineIntersections.get((i + 1) % size).getPoint();
+            area += p.getX() * q.getY() - q.getX() * p.getY();
+        }
+        return Math.abs(area) / 2;
+    }
+
+    /**
+     * Works out the area of a sliver {@link VisibilityCalculator#VERY_SMALL_ANGLE} wide that reaches across a scene,
+     * which is how much the area seen can change when a ray just passing a vertex ends on a different line segment.
+     * @param scene The scene, the first polygon of which is the room around everything else.
+     * @return the area.
+     */
+    static double sliverArea(VisionBlockingPolygonList scene) {
+        final VisionBlockingPolygon room = scene.getPolygonList().get(0);
+        final double width = room.getMaxX() - room.getMinX();
+        final double height = room.getMaxY() - room.getMinY();
+        return (width * width + height * height) * VisibilityCalculator.VERY_SMALL_ANGLE / 2;
+    }
+
+    /**
+     * Returns if a point is inside a polygon.
+     * @param polygon The polygon.
+     * @param x The X co-ordinate of the point.
+     * @param y The Y co-ordinate of the point.
+     * @return <code>true</code> if the point is inside the polygon.
+     */
+    private static boolean contains(VisionBlockingPolygon polygon, double x, double y) {
+        final double[] xs = polygon.getVerticesX();
+        final double[] ys = polygon.getVerticesY();
+        boolean inside = false;
+        for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+            if ((ys[i] > y) != (ys[j] > y) && x < xs[j] + (xs[i] - xs[j]) * (y - ys[j]) / (ys[i] - ys[j])) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Returns a random number in a range.
+     * @param random The random number generator.
+     * @param min The start of the range.
+     * @param max The end of the range.
+     * @return the random number.
+     */
+    private static double randomIn(Random random, double min, double max) {
+        return min + random.nextDouble() * (max - min);
+    }
+}
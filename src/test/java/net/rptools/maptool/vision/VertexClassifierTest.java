@@ -0,0 +1,209 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the area {@link RayCastVisibility} finds visible when the {@link VertexClassifier} culls the rays cast with
+ * the area it finds visible casting three rays at every vertex.
+ */
+public class VertexClassifierTest {
+    /** The largest difference allowed between the areas, relative to the area. */
+    private static final double TOLERANCE = 1e-4;
+    /**
+     * The number of slivers {@link VisibilityCalculator#VERY_SMALL_ANGLE} wide, reaching across the scene, that the
+     * areas may also differ by. Grazing rays either side of a vertex can end on different line segments.
+     */
+    private static final double SLIVERS = 2;
+    /** The number of viewer positions tried in each scene. */
+    private static final int VIEWERS = 300;
+    /** The number of cells along each side of the random scenes. */
+    private static final int CELLS_PER_SIDE = 5;
+
+    /**
+     * The calculators agree in the demo scene.
+     */
+    @Test
+    public void matchesExhaustiveInDemoScene() {
+        final Random random = new Random(1);
+        final VisionBlockingPolygonList scene = TestScenes.createDemoScene();
+        assertMatchesExhaustive(scene, TestScenes.createDemoViewers(scene, VIEWERS, random));
+    }
+
+    /**
+     * The calculators agree in random scenes, from viewers outside the polygons.
+     */
+    @Test
+    public void matchesExhaustiveInRandomScenes() {
+        final Random random = new Random(2);
+        for (int cellsPerSide = 1; cellsPerSide <= 8; cellsPerSide++) {
+            final VisionBlockingPolygonList scene = TestScenes.createScene(cellsPerSide, random);
+            assertMatchesExhaustive(scene, TestScenes.createViewers(cellsPerSide, VIEWERS, random));
+        }
+    }
+
+    /**
+     * The calculators agree when line segments were disabled before the classifier was created.
+     */
+    @Test
+    public void matchesExhaustiveWithSegmentsDisabledFirst() {
+        final Random random = new Random(3);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        assertTrue(TestScenes.disableSegments(scene, 0.3, random) > 0);
+        assertMatchesExhaustive(scene, createViewersAnywhere(scene, VIEWERS, random));
+    }
+
+    /**
+     * The calculators agree when line segments are disabled and enabled again after the classifier was created, which
+     * only updates the vertices at their ends.
+     */
+    @Test
+    public void matchesExhaustiveWithSegmentsDisabledLater() {
+        final Random random = new Random(4);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        scene.getVertexClassifier();
+        assertTrue(TestScenes.disableSegments(scene, 0.3, random) > 0);
+        assertMatchesExhaustive(scene, createViewersAnywhere(scene, VIEWERS, random));
+
+        // Enable some again, and disable others, so polygons go back to having no open line segments.
+        final List<VisionBlockingPolygon> polygons = scene.getPolygonList();
+        for (int i = 1; i < polygons.size(); i++) {
+            for (LineSegment lineSegment : polygons.get(i).getLineSegments()) {
+                if (random.nextDouble() < 0.7) {
+                    assertTrue(scene.setLineSegmentEnabled(lineSegment, random.nextDouble() < 0.2));
+                }
+            }
+        }
+        assertMatchesExhaustive(scene, createViewersAnywhere(scene, VIEWERS, random));
+    }
+
+    /**
+     * The calculators agree from viewers anywhere in the room, including inside the polygons where the classifier has
+     * to turn round which way their line segments face.
+     */
+    @Test
+    public void matchesExhaustiveFromInsidePolygons() {
+        final Random random = new Random(5);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        assertMatchesExhaustive(scene, createViewersAnywhere(scene, VIEWERS, random));
+    }
+
+    /**
+     * The calculators agree from viewers on the line segments and at the vertices of the polygons, where whether the
+     * viewer is inside is decided by rounding.
+     */
+    @Test
+    public void matchesExhaustiveFromPolygonEdges() {
+        final Random random = new Random(6);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        assertMatchesExhaustive(scene, createViewersOnEdges(scene, VIEWERS, random));
+
+        TestScenes.disableSegments(scene, 0.3, random);
+        assertMatchesExhaustive(scene, createViewersOnEdges(scene, VIEWERS, random));
+    }
+
+    /**
+     * The calculators agree when polygons share vertices and line segments, so a vertex has more than one pair of line
+     * segments either side of it.
+     */
+    @Test
+    public void matchesExhaustiveWithSharedVertices() {
+        final Random random = new Random(7);
+        final double size = CELLS_PER_SIDE * TestScenes.CELL_SIZE;
+        final VisionBlockingPolygonList scene = new VisionBlockingPolygonList();
+        scene.addVisionBlockingPolygon(new VisionBlockingPolygon(new Point2D[] {
+                new Point2D(0, 0),
+                new Point2D(size, 0),
+                new Point2D(size, size),
+                new Point2D(0, size)
+        }));
+        // A chequerboard of squares, each touching its diagonal neighbours at a corner, and a row of squares sharing
+        // their sides.
+        final double cell = TestScenes.CELL_SIZE;
+        for (int row = 0; row < CELLS_PER_SIDE - 1; row++) {
+            for (int column = row % 2; column < CELLS_PER_SIDE; column += 2) {
+                scene.addVisionBlockingPolygon(square(column * cell, row * cell, cell));
+            }
+        }
+        for (int column = 0; column < CELLS_PER_SIDE; column++) {
+            scene.addVisionBlockingPolygon(square(column * cell + cell / 4, size - cell * 3 / 4, cell / 4));
+        }
+
+        assertMatchesExhaustive(scene, createViewersAnywhere(scene, VIEWERS, random));
+        TestScenes.disableSegments(scene, 0.3, random);
+        assertMatchesExhaustive(scene, createViewersAnywhere(scene, VIEWERS, random));
+    }
+
+    /**
+     * Creates a square.
+     * @param x The X co-ordinate of the top left corner.
+     * @param y The Y co-ordinate of the top left corner.
+     * @param size The length of the sides.
+     * @return the square.
+     */
+    private static VisionBlockingPolygon square(double x, double y, double size) {
+        return new VisionBlockingPolygon(new Point2D[] {
+                new Point2D(x, y),
+                new Point2D(x + size, y),
+                new Point2D(x + size, y + size),
+                new Point2D(x, y + size)
+        });
+    }
+
+    /**
+     * Returns random viewer positions anywhere inside the room around a scene, whether or not they are inside the
+     * other polygons.
+     * @param scene The scene, the first polygon of which is the room around everything else.
+     * @param count The number of viewer positions.
+     * @param random The random number generator.
+     * @return the viewer positions.
+     */
+    private static List<Point2D> createViewersAnywhere(VisionBlockingPolygonList scene, int count, Random random) {
+        final VisionBlockingPolygon room = scene.getPolygonList().get(0);
+        final List<Point2D> viewers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            viewers.add(new Point2D(room.getMinX() + random.nextDouble() * (room.getMaxX() - room.getMinX()),
+                    room.getMinY() + random.nextDouble() * (room.getMaxY() - room.getMinY())));
+        }
+        return viewers;
+    }
+
+    /**
+     * Returns random viewer positions on the line segments of the polygons in a scene, other than the room around
+     * them, a quarter of which are at their vertices.
+     * @param scene The scene, the first polygon of which is the room around everything else.
+     * @param count The number of viewer positions.
+     * @param random The random number generator.
+     * @return the viewer positions.
+     */
+    private static List<Point2D> createViewersOnEdges(VisionBlockingPolygonList scene, int count, Random random) {
+        final List<VisionBlockingPolygon> polygons = scene.getPolygonList();
+        final List<Point2D> viewers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final List<LineSegment> lineSegments =
+                    new ArrayList<>(polygons.get(1 + random.nextInt(polygons.size() - 1)).getLineSegments());
+            final LineSegment lineSegment = lineSegments.get(random.nextInt(lineSegments.size()));
+            final Point2D p1 = lineSegment.getPoint1();
+            final Point2D p2 = lineSegment.getPoint2();
+            final double along = random.nextInt(4) == 0 ? 0 : random.nextDouble();
+            viewers.add(new Point2D(p1.getX() + (p2.getX() - p1.getX()) * along,
+                    p1.getY() + (p2.getY() - p1.getY()) * along));
+        }
+        return viewers;
+    }
+
+    /**
+     * Checks that the calculators find the same area visible from each of the viewers.
+     * @param scene The polygons that block vision/light.
+     * @param viewers The viewer positions.
+     */
+    private static void assertMatchesExhaustive(VisionBlockingPolygonList scene, List<Point2D> viewers) {
+        TestScenes.assertMatchesRayCast(new RayCastVisibility(true), scene, viewers, TOLERANCE, SLIVERS);
+    }
+}
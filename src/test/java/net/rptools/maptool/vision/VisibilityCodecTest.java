@@ -0,0 +1,410 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the frames written by a {@link VisibilityCodec.Encoder} are decoded by a {@link VisibilityCodec.Decoder}
+ * back to the visible areas with their co-ordinates rounded, and that frames that are corrupt, cut short or out of
+ * order are rejected with an {@link IOException}.
+ */
+public class VisibilityCodecTest {
+    /** The number of steps a viewer walks around the demo scene, standing still for every other one. */
+    private static final int STEPS = 100;
+    /** The furthest a viewer moves along each axis in each step. */
+    private static final double STEP_SIZE = 3;
+    /** How far the vertices changed between frames move. */
+    private static final double CHANGE = 1.3;
+    /** The number of frames corrupted at random. */
+    private static final int CORRUPT_FRAMES = 2000;
+
+    /**
+     * A viewer walking around the demo scene is decoded exactly, and while it stands still the frames are deltas.
+     */
+    @Test
+    public void roundTripsWalk() throws IOException {
+        final VisibilityCodec.Encoder encoder = new VisibilityCodec.Encoder();
+        final VisibilityCodec.Decoder decoder = new VisibilityCodec.Decoder();
+        Frame previous = null;
+        for (Frame frame : walk(new Random(1))) {
+            final boolean keyFrame = assertRoundTrip(encoder, decoder, frame, VisibilityCodec.DEFAULT_FRACTION_BITS);
+            if (previous != null && frame.viewer.equals(previous.viewer)) {
+                assertFalse("Key frame while standing still at " + frame.viewer, keyFrame);
+            }
+            previous = frame;
+        }
+    }
+
+    /**
+     * A frame with a few vertices added, removed and moved is sent as a delta frame and decoded exactly.
+     */
+    @Test
+    public void roundTripsChangedFrames() throws IOException {
+        final Random random = new Random(9);
+        final VisibilityCodec.Encoder encoder = new VisibilityCodec.Encoder();
+        final VisibilityCodec.Decoder decoder = new VisibilityCodec.Decoder();
+        Frame frame = walk(random).get(0);
+        assertTrue(assertRoundTrip(encoder, decoder, frame, VisibilityCodec.DEFAULT_FRACTION_BITS));
+        for (int i = 0; i < 20; i++) {
+            frame = change(frame, random);
+            assertFalse("Key frame after change " + i,
+                    assertRoundTrip(encoder, decoder, frame, VisibilityCodec.DEFAULT_FRACTION_BITS));
+        }
+    }
+
+    /**
+     * Every number of fractional bits rounds the co-ordinates the same way in key and delta frames.
+     */
+    @Test
+    public void roundTripsEveryFractionBits() throws IOException {
+        final List<Frame> frames = walk(new Random(2));
+        for (int bits = 0; bits <= VisibilityCodec.MAX_FRACTION_BITS; bits++) {
+            final VisibilityCodec.Encoder encoder = new VisibilityCodec.Encoder(bits);
+            final VisibilityCodec.Decoder decoder = new VisibilityCodec.Decoder();
+            int deltaFrames = 0;
+            for (Frame frame : frames) {
+                if (!assertRoundTrip(encoder, decoder, frame, bits)) {
+                    deltaFrames++;
+                }
+            }
+            assertTrue("No delta frames with " + bits + " fraction bits", deltaFrames > 0);
+        }
+    }
+
+    /**
+     * Fractional bits outside of the range supported are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyFractionBits() {
+        new VisibilityCodec.Encoder(VisibilityCodec.MAX_FRACTION_BITS + 1);
+    }
+
+    /**
+     * A frame with the same vertices starting from a different one, as when the vertex at the start of the sweep
+     * moves round to the other end, is still sent as a delta frame and decoded in its new order.
+     */
+    @Test
+    public void roundTripsRotatedFrames() throws IOException {
+        final VisibilityCodec.Encoder encoder = new VisibilityCodec.Encoder();
+        final VisibilityCodec.Decoder decoder = new VisibilityCodec.Decoder();
+        final Frame frame = walk(new Random(3)).get(0);
+        assertTrue(assertRoundTrip(encoder, decoder, frame, VisibilityCodec.DEFAULT_FRACTION_BITS));
+        for (int distance : new int[] {1, -1, frame.lineIntersections.size() / 2}) {
+            final List<LineIntersection> rotated = new ArrayList<>(frame.lineIntersections);
+            Collections.rotate(rotated, distance);
+            assertFalse("Key frame after rotating by " + distance, assertRoundTrip(encoder, decoder,
+                    new Frame(frame.viewer, rotated), VisibilityCodec.DEFAULT_FRACTION_BITS));
+        }
+    }
+
+    /**
+     * Empty visible areas can be sent.
+     */
+    @Test
+    public void roundTripsEmptyFrames() throws IOException {
+        final VisibilityCodec.Encoder encoder = new VisibilityCodec.Encoder();
+        final VisibilityCodec.Decoder decoder = new VisibilityCodec.Decoder();
+        final Frame frame = walk(new Random(4)).get(0);
+        final Frame empty = new Frame(frame.viewer, Collections.emptyList());
+        assertRoundTrip(encoder, decoder, empty, VisibilityCodec.DEFAULT_FRACTION_BITS);
+        assertRoundTrip(encoder, decoder, frame, VisibilityCodec.DEFAULT_FRACTION_BITS);
+        assertRoundTrip(encoder, decoder, empty, VisibilityCodec.DEFAULT_FRACTION_BITS);
+    }
+
+    /**
+     * A decoder that missed a frame rejects the delta frames after it, until the encoder is reset and writes a key
+     * frame. A new decoder (such as that of a client that has just joined) can start from the key frame too.
+     */
+    @Test
+    public void resetWritesKeyFrame() throws IOException {
+        final List<Frame> frames = changes(new Random(5), 6);
+        final VisibilityCodec.Encoder encoder = new VisibilityCodec.Encoder();
+        final VisibilityCodec.Decoder decoder = new VisibilityCodec.Decoder();
+        assertTrue(assertRoundTrip(encoder, decoder, frames.get(0), VisibilityCodec.DEFAULT_FRACTION_BITS));
+
+        // The next frame is lost.
+        encode(encoder, frames.get(1), false);
+        assertCorrupt(decoder, encode(encoder, frames.get(2), false));
+        assertCorrupt(decoder, encode(encoder, frames.get(3), false));
+
+        encoder.reset();
+        final int frameNumber = encoder.getFrameNumber();
+        final byte[] keyFrame = encode(encoder, frames.get(4), true);
+        decoder.decode(ByteBuffer.wrap(keyFrame));
+        assertFrame(decoder, frames.get(4), VisibilityCodec.DEFAULT_FRACTION_BITS);
+        assertEquals(frameNumber, decoder.getFrameNumber());
+        assertFalse(assertRoundTrip(encoder, decoder, frames.get(5), VisibilityCodec.DEFAULT_FRACTION_BITS));
+
+        final VisibilityCodec.Decoder joined = new VisibilityCodec.Decoder();
+        joined.decode(ByteBuffer.wrap(keyFrame));
+        assertFrame(joined, frames.get(4), VisibilityCodec.DEFAULT_FRACTION_BITS);
+    }
+
+    /**
+     * Every key and delta frame cut short is rejected, the last frame decoded is kept and the decoder then needs a
+     * key frame.
+     */
+    @Test
+    public void rejectsTruncatedFrames() throws IOException {
+        final List<Frame> frames = changes(new Random(6), 2);
+        final VisibilityCodec.Encoder encoder = new VisibilityCodec.Encoder();
+        final byte[] keyFrame = encode(encoder, frames.get(0), true);
+        final byte[] deltaFrame = encode(encoder, frames.get(1), false);
+
+        for (int length = 0; length < keyFrame.length; length++) {
+            assertCorrupt(new VisibilityCodec.Decoder(), ByteBuffer.wrap(keyFrame, 0, length));
+        }
+        for (int length = 0; length < deltaFrame.length; length++) {
+            final VisibilityCodec.Decoder decoder = new VisibilityCodec.Decoder();
+            decoder.decode(ByteBuffer.wrap(keyFrame));
+            assertCorrupt(decoder, ByteBuffer.wrap(deltaFrame, 0, length));
+            assertFrame(decoder, frames.get(0), VisibilityCodec.DEFAULT_FRACTION_BITS);
+            assertCorrupt(decoder, deltaFrame);
+        }
+    }
+
+    /**
+     * Frames with a header that can't be right are rejected.
+     */
+    @Test
+    public void rejectsCorruptHeaders() throws IOException {
+        final byte[] keyFrame = encode(new VisibilityCodec.Encoder(), walk(new Random(7)).get(0), true);
+
+        // Another version of the encoding.
+        final byte[] version = keyFrame.clone();
+        version[0] = (byte) ((VisibilityCodec.FORMAT_VERSION + 1) << 4);
+        assertCorrupt(new VisibilityCodec.Decoder(), version);
+
+        // A frame type that doesn't exist.
+        final byte[] type = keyFrame.clone();
+        type[0] = (byte) (VisibilityCodec.FORMAT_VERSION << 4 | 7);
+        assertCorrupt(new VisibilityCodec.Decoder(), type);
+
+        // More fraction bits than are supported, they follow the frame number which is 0 so takes a byte.
+        final byte[] fractionBits = keyFrame.clone();
+        fractionBits[2] = (byte) (VisibilityCodec.MAX_FRACTION_BITS + 1);
+        assertCorrupt(new VisibilityCodec.Decoder(), fractionBits);
+
+        // A frame number that doesn't end.
+        final byte[] varint = {(byte) (VisibilityCodec.FORMAT_VERSION << 4), -1, -1, -1, -1, -1, -1};
+        assertCorrupt(new VisibilityCodec.Decoder(), varint);
+
+        // A delta frame with no frame before it.
+        final byte[] delta = keyFrame.clone();
+        delta[0] = (byte) (VisibilityCodec.FORMAT_VERSION << 4 | 1);
+        assertCorrupt(new VisibilityCodec.Decoder(), delta);
+    }
+
+    /**
+     * Key and delta frames with random bytes changed are either decoded or rejected with an {@link IOException},
+     * never anything else, and the last frame decoded is kept when they are rejected.
+     */
+    @Test
+    public void corruptFramesOnlyThrowIOException() throws IOException {
+        final Random random = new Random(8);
+        final List<Frame> frames = changes(random, 2);
+        final VisibilityCodec.Encoder encoder = new VisibilityCodec.Encoder();
+        final byte[] keyFrame = encode(encoder, frames.get(0), true);
+        final byte[] deltaFrame = encode(encoder, frames.get(1), false);
+
+        int rejected = 0;
+        for (int trial = 0; trial < CORRUPT_FRAMES; trial++) {
+            final VisibilityCodec.Decoder decoder = new VisibilityCodec.Decoder();
+            decoder.decode(ByteBuffer.wrap(keyFrame));
+            final byte[] corrupt = (trial % 2 == 0 ? keyFrame : deltaFrame).clone();
+            final int changes = 1 + random.nextInt(3);
+            for (int i = 0; i < changes; i++) {
+                corrupt[random.nextInt(corrupt.length)] = (byte) random.nextInt(256);
+            }
+            try {
+                decoder.decode(ByteBuffer.wrap(corrupt));
+            } catch (IOException e) {
+                rejected++;
+                assertFrame(decoder, frames.get(0), VisibilityCodec.DEFAULT_FRACTION_BITS);
+            }
+        }
+        assertTrue("Nothing was rejected", rejected > 0);
+    }
+
+    /**
+     * Encodes a visible area and decodes it, checking that the decoder has the same vertices after rounding.
+     * @param encoder The encoder.
+     * @param decoder The decoder.
+     * @param frame The visible area.
+     * @param fractionBits The fractional bits the encoder keeps.
+     * @return <code>true</code> if a key frame was written.
+     * @throws IOException if the frame couldn't be decoded.
+     */
+    private static boolean assertRoundTrip(VisibilityCodec.Encoder encoder, VisibilityCodec.Decoder decoder,
+                                           Frame frame, int fractionBits) throws IOException {
+        final int frameNumber = encoder.getFrameNumber();
+        final ByteBuffer buffer = ByteBuffer.allocate(
+                VisibilityCodec.getMaxEncodedSize(frame.lineIntersections.size()));
+        final boolean keyFrame = encoder.encode(frame.viewer, frame.lineIntersections, buffer);
+        buffer.flip();
+        decoder.decode(buffer);
+        assertEquals("Bytes left over", 0, buffer.remaining());
+        assertEquals("Frame number", frameNumber, decoder.getFrameNumber());
+        assertFrame(decoder, frame, fractionBits);
+        return keyFrame;
+    }
+
+    /**
+     * Checks that the last frame a decoder decoded has the same vertices as a visible area after rounding.
+     * @param decoder The decoder.
+     * @param frame The visible area.
+     * @param fractionBits The fractional bits the encoder keeps.
+     */
+    private static void assertFrame(VisibilityCodec.Decoder decoder, Frame frame, int fractionBits) {
+        final double scale = 1 << fractionBits;
+        assertEquals("Viewer X", Math.round(frame.viewer.getX() * scale) / scale, decoder.getViewerX(), 0);
+        assertEquals("Viewer Y", Math.round(frame.viewer.getY() * scale) / scale, decoder.getViewerY(), 0);
+        assertEquals("Number of vertices", frame.lineIntersections.size(), decoder.getNumberVertices());
+        for (int i = 0; i < frame.lineIntersections.size(); i++) {
+            final Point2D point = frame.lineIntersections.get(i).getPoint();
+            assertEquals("X of vertex " + i, Math.round(point.getX() * scale) / scale, decoder.getX(i), 0);
+            assertEquals("Y of vertex " + i, Math.round(point.getY() * scale) / scale, decoder.getY(i), 0);
+        }
+    }
+
+    /**
+     * Encodes a visible area.
+     * @param encoder The encoder.
+     * @param frame The visible area.
+     * @param keyFrame <code>true</code> if a key frame should be written, <code>false</code> for a delta frame.
+     * @return the frame written.
+     */
+    private static byte[] encode(VisibilityCodec.Encoder encoder, Frame frame, boolean keyFrame) {
+        final ByteBuffer buffer = ByteBuffer.allocate(
+                VisibilityCodec.getMaxEncodedSize(frame.lineIntersections.size()));
+        assertEquals("Key frame", keyFrame, encoder.encode(frame.viewer, frame.lineIntersections, buffer));
+        final byte[] bytes = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Checks that a decoder rejects a frame.
+     * @param decoder The decoder.
+     * @param frame The frame.
+     */
+    private static void assertCorrupt(VisibilityCodec.Decoder decoder, byte[] frame) {
+        assertCorrupt(decoder, ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * Checks that a decoder rejects a frame.
+     * @param decoder The decoder.
+     * @param in The frame.
+     */
+    private static void assertCorrupt(VisibilityCodec.Decoder decoder, ByteBuffer in) {
+        try {
+            decoder.decode(in);
+            fail("Decoded a corrupt frame");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Returns a visible area from the demo scene followed by the same area with a few vertices changed each time.
+     * @param random The random number generator.
+     * @param count The number of visible areas.
+     * @return the visible areas.
+     */
+    private static List<Frame> changes(Random random, int count) {
+        final List<Frame> frames = new ArrayList<>(count);
+        frames.add(walk(random).get(0));
+        while (frames.size() < count) {
+            frames.add(change(frames.get(frames.size() - 1), random));
+        }
+        return frames;
+    }
+
+    /**
+     * Returns a visible area with a vertex removed, one added and a couple moved, as when a door opens.
+     * @param frame The visible area.
+     * @param random The random number generator.
+     * @return the changed visible area.
+     */
+    private static Frame change(Frame frame, Random random) {
+        final List<LineIntersection> lineIntersections = new ArrayList<>(frame.lineIntersections);
+        lineIntersections.remove(random.nextInt(lineIntersections.size()));
+        final int moved = random.nextInt(lineIntersections.size() - 1);
+        for (int i = moved; i < moved + 2; i++) {
+            lineIntersections.set(i, moveBy(lineIntersections.get(i), CHANGE, -CHANGE));
+        }
+        final int added = random.nextInt(lineIntersections.size());
+        lineIntersections.add(added, moveBy(lineIntersections.get(added), -CHANGE, CHANGE));
+        return new Frame(frame.viewer, lineIntersections);
+    }
+
+    /**
+     * Returns an intersection moved to a different point, the distance and angle are left as they were.
+     * @param lineIntersection The intersection.
+     * @param dx How far to move it along the X axis.
+     * @param dy How far to move it along the Y axis.
+     * @return the moved intersection.
+     */
+    private static LineIntersection moveBy(LineIntersection lineIntersection, double dx, double dy) {
+        return new LineIntersection(lineIntersection.getPoint().add(dx, dy), lineIntersection.getDistance(),
+                lineIntersection.getAngle());
+    }
+
+    /**
+     * Returns the visible areas of a viewer walking around the demo scene, standing still every other step.
+     * @param random The random number generator for the walk.
+     * @return the visible areas, one for each step.
+     */
+    private static List<Frame> walk(Random random) {
+        final VisionBlockingPolygonList scene = TestScenes.createDemoScene();
+        final VisibilityCalculator calculator = new RayCastVisibility(false);
+        Point2D viewer = TestScenes.createDemoViewers(scene, 1, random).get(0);
+        final List<Frame> frames = new ArrayList<>(STEPS);
+        for (int step = 0; step < STEPS; step++) {
+            frames.add(new Frame(viewer, calculator.calculateVisibility(scene, viewer)));
+            if (step % 2 == 0) {
+                continue;
+            }
+            final double x = viewer.getX() + (random.nextDouble() * 2 - 1) * STEP_SIZE;
+            final double y = viewer.getY() + (random.nextDouble() * 2 - 1) * STEP_SIZE;
+            viewer = new Point2D(Math.max(1, Math.min(TestScenes.DEMO_WIDTH - 1, x)),
+                    Math.max(1, Math.min(TestScenes.DEMO_HEIGHT - 1, y)));
+        }
+        return frames;
+    }
+
+
+    /**
+     * A visible area along with the viewer it was seen from.
+     */
+    private static class Frame {
+        /** The viewer (or light source). */
+        private final Point2D viewer;
+        /** The intersections that make up the visible area sorted by angle. */
+        private final List<LineIntersection> lineIntersections;
+
+        /**
+         * Creates a new <code>Frame</code>.
+         * @param iViewer The viewer (or light source).
+         * @param iLineIntersections The intersections that make up the visible area sorted by angle.
+         */
+        private Frame(Point2D iViewer, List<LineIntersection> iLineIntersections) {
+            viewer = iViewer;
+            lineIntersections = iLineIntersections;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link VisibilityMetrics} records nothing while disabled, and that while enabled each calculation made
+ * through {@link InstrumentedVisibility} is credited with the work its calculator counted on its thread and nothing
+ * counted outside of it.
+ */
+public class VisibilityMetricsTest {
+    /** The number of cells along each side of the scene. */
+    private static final int CELLS_PER_SIDE = 6;
+    /** The number of calculations made. */
+    private static final int CALCULATIONS = 5;
+    /** The rays the counting calculator says it cast. */
+    private static final long RAYS = 3;
+    /** The intersection tests the counting calculator says it made. */
+    private static final long TESTS = 7;
+
+    /** The scene the calculations are made for. */
+    private VisionBlockingPolygonList scene;
+    /** The viewer. */
+    private Point2D viewer;
+
+    /**
+     * Clears the metrics and creates the scene.
+     */
+    @Before
+    public void setUp() {
+        VisibilityMetrics.setEnabled(false);
+        VisibilityMetrics.reset();
+        VisibilityMetrics.clearWork();
+        final Random random = new Random(1);
+        scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        viewer = TestScenes.createViewers(CELLS_PER_SIDE, 1, random).get(0);
+    }
+
+    /**
+     * Disables and clears the metrics, so they don't affect the other tests.
+     */
+    @After
+    public void tearDown() {
+        VisibilityMetrics.setEnabled(false);
+        VisibilityMetrics.reset();
+        VisibilityMetrics.clearWork();
+    }
+
+    /**
+     * While disabled the calculations are passed straight through and all of the counters stay at zero.
+     */
+    @Test
+    public void recordsNothingWhileDisabled() {
+        assertFalse(VisibilityMetrics.isEnabled());
+        final VisibilityCalculator counting = countingCalculator(new RayCastVisibility(true));
+        final InstrumentedVisibility instrumented = new InstrumentedVisibility(counting);
+        for (int i = 0; i < CALCULATIONS; i++) {
+            final List<LineIntersection> expected = counting.calculateVisibility(scene, viewer);
+            assertEquals(expected.size(), instrumented.calculateVisibility(scene, viewer).size());
+        }
+        new InstrumentedVisibility(new RayCastVisibility(true)).calculateVisibility(scene, viewer);
+        assertCounts(0, 0, 0, 0);
+        assertEquals(0, VisibilityMetrics.getTotalNanos());
+        assertEquals(0, VisibilityMetrics.getLatency().getTotalCount());
+    }
+
+    /**
+     * While enabled each calculation is counted along with its visible area and time, and is credited with the rays
+     * and tests its calculator counted.
+     */
+    @Test
+    public void creditsWorkToCalculation() {
+        VisibilityMetrics.setEnabled(true);
+        final List<LineIntersection> visible = new RayCastVisibility(true).calculateVisibility(scene, viewer);
+        VisibilityMetrics.reset();
+        final InstrumentedVisibility instrumented =
+                new InstrumentedVisibility(countingCalculator((polygons, v) -> visible));
+        for (int i = 0; i < CALCULATIONS; i++) {
+            assertSame(visible, instrumented.calculateVisibility(scene, viewer));
+        }
+        assertCounts(CALCULATIONS, CALCULATIONS * RAYS, CALCULATIONS * TESTS, CALCULATIONS * (long) visible.size());
+        assertEquals(CALCULATIONS, VisibilityMetrics.getLatency().getTotalCount());
+        assertTrue(VisibilityMetrics.getTotalNanos() >= 0);
+
+        // Resetting clears the totals but doesn't disable the metrics.
+        VisibilityMetrics.reset();
+        assertCounts(0, 0, 0, 0);
+        assertEquals(0, VisibilityMetrics.getLatency().getTotalCount());
+        assertTrue(VisibilityMetrics.isEnabled());
+    }
+
+    /**
+     * A ray cast through the metrics is credited with the rays it cast and the line segments it tested them against.
+     */
+    @Test
+    public void creditsRayCastWork() {
+        VisibilityMetrics.setEnabled(true);
+        final List<LineIntersection> lineIntersections =
+                new InstrumentedVisibility(new RayCastVisibility(false)).calculateVisibility(scene, viewer);
+        assertEquals(1, VisibilityMetrics.getCalculations());
+        assertTrue(VisibilityMetrics.getRaysCast() > 0);
+        assertTrue(VisibilityMetrics.getIntersectionTests() >= VisibilityMetrics.getRaysCast());
+        assertEquals(lineIntersections.size(), VisibilityMetrics.getHits());
+    }
+
+    /**
+     * Work counted on the thread outside of a calculation isn't credited to the next one, and the work of a
+     * calculation is cleared once it is recorded so that it isn't credited to the next one either.
+     */
+    @Test
+    public void clearsWorkOutsideCalculations() {
+        VisibilityMetrics.setEnabled(true);
+        // A calculator used directly rather than through the metrics counts its work too.
+        final List<LineIntersection> visible = new RayCastVisibility(true).calculateVisibility(scene, viewer);
+        VisibilityMetrics.countWork(1000, 1000);
+        new InstrumentedVisibility(countingCalculator((polygons, v) -> visible)).calculateVisibility(scene, viewer);
+        assertCounts(1, RAYS, TESTS, visible.size());
+
+        new InstrumentedVisibility((polygons, v) -> visible).calculateVisibility(scene, viewer);
+        assertCounts(2, RAYS, TESTS, 2L * visible.size());
+        VisibilityMetrics.countWork(RAYS, TESTS);
+        VisibilityMetrics.record(null, "test", 0, 0, 0, 0, 0);
+        VisibilityMetrics.record(null, "test", 0, 0, 0, 0, 0);
+        assertCounts(4, 2 * RAYS, 2 * TESTS, 2L * visible.size());
+    }
+
+    /**
+     * Work counted on another thread while a calculation is in progress is not credited to it.
+     */
+    @Test
+    public void creditsOnlyWorkOnSameThread() {
+        VisibilityMetrics.setEnabled(true);
+        final List<LineIntersection> visible = new RayCastVisibility(true).calculateVisibility(scene, viewer);
+        VisibilityMetrics.reset();
+        final Thread other = new Thread(() -> VisibilityMetrics.countWork(1000, 1000));
+        new InstrumentedVisibility(countingCalculator((polygons, v) -> {
+            other.start();
+            try {
+                other.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return visible;
+        })).calculateVisibility(scene, viewer);
+        assertFalse(Thread.interrupted());
+        assertCounts(1, RAYS, TESTS, visible.size());
+    }
+
+    /**
+     * Returns a calculator that counts {@link #RAYS} rays and {@link #TESTS} tests and then calls another.
+     * @param calculator The calculator that is called.
+     * @return the counting calculator.
+     */
+    private static VisibilityCalculator countingCalculator(VisibilityCalculator calculator) {
+        return (polygons, v) -> {
+            if (VisibilityMetrics.isEnabled()) {
+                VisibilityMetrics.countWork(RAYS, TESTS);
+            }
+            return calculator.calculateVisibility(polygons, v);
+        };
+    }
+
+    /**
+     * Checks the totals recorded.
+     * @param calculations The number of calculations.
+     * @param rays The number of rays cast.
+     * @param tests The number of intersection tests.
+     * @param hits The number of intersections in the visible areas.
+     */
+    private static void assertCounts(long calculations, long rays, long tests, long hits) {
+        assertEquals("Calculations", calculations, VisibilityMetrics.getCalculations());
+        assertEquals("Rays cast", rays, VisibilityMetrics.getRaysCast());
+        assertEquals("Intersection tests", tests, VisibilityMetrics.getIntersectionTests());
+        assertEquals("Hits", hits, VisibilityMetrics.getHits());
+    }
+}
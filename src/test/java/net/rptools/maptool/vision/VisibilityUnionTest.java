@@ -0,0 +1,355 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the outline and area {@link VisibilityUnion} finds with sample points tested against the area visible from
+ * each viewer, and checks that only the viewers that moved have their areas calculated again.
+ */
+public class VisibilityUnionTest {
+    /** The number of cells along each side of the random scenes. */
+    private static final int CELLS_PER_SIDE = 5;
+    /** The number of sample points along each side of the room, the points are jittered within their cells. */
+    private static final int SAMPLES_PER_SIDE = 60;
+    /** How close to an edge of a visible area a sample point can be before it is skipped, as rounding decides it. */
+    private static final double EDGE_DISTANCE = 1e-6;
+    /** The number of scenes the unions are checked in. */
+    private static final int SCENES = 10;
+    /** The most viewers in a union. */
+    private static final int MAX_VIEWERS = 5;
+
+    /**
+     * The union of a single area is that area.
+     */
+    @Test
+    public void unionOfOneAreaIsTheArea() {
+        final Random random = new Random(1);
+        final VisibilityCalculator calculator = new RayCastVisibility();
+        for (int i = 0; i < SCENES; i++) {
+            final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+            final List<Point2D> viewers = TestScenes.createViewers(CELLS_PER_SIDE, 1, random);
+            final List<LineIntersection> area = calculator.calculateVisibility(scene, viewers.get(0));
+            final VisibilityUnion.Result result =
+                    VisibilityUnion.union(viewers, Collections.singletonList(area));
+            final double expected = TestScenes.area(area);
+            assertEquals("Area from " + viewers.get(0), expected, result.getArea(), expected * 1e-9);
+            assertMatchesSamples(scene, viewers, Collections.singletonList(area), result, random);
+        }
+    }
+
+    /**
+     * The union of an area with itself is that area, the edges along the same lines are only kept once.
+     */
+    @Test
+    public void unionOfSameAreasIsTheArea() {
+        final Random random = new Random(2);
+        final VisibilityCalculator calculator = new RayCastVisibility();
+        for (int i = 0; i < SCENES; i++) {
+            final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+            final Point2D viewer = TestScenes.createViewers(CELLS_PER_SIDE, 1, random).get(0);
+            final List<Point2D> viewers = Arrays.asList(viewer, viewer, viewer);
+            final List<LineIntersection> area = calculator.calculateVisibility(scene, viewer);
+            final List<List<LineIntersection>> areas = Arrays.asList(area, area, area);
+            final VisibilityUnion.Result result = VisibilityUnion.union(viewers, areas);
+            final double expected = TestScenes.area(area);
+            assertEquals("Area from " + viewer, expected, result.getArea(), expected * 1e-9);
+            assertMatchesSamples(scene, viewers, areas, result, random);
+        }
+    }
+
+    /**
+     * The union of the areas of several viewers covers the sample points that are in any of their areas and no
+     * others.
+     */
+    @Test
+    public void matchesSamplesInRandomScenes() {
+        final Random random = new Random(3);
+        final VisibilityCalculator calculator = new AngularSweepVisibility();
+        for (int i = 0; i < SCENES; i++) {
+            final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+            if (random.nextBoolean()) {
+                TestScenes.disableSegments(scene, 0.3, random);
+            }
+            final List<Point2D> viewers = TestScenes.createViewers(CELLS_PER_SIDE, 2 + random.nextInt(MAX_VIEWERS - 1),
+                    random);
+            final List<List<LineIntersection>> areas = new ArrayList<>();
+            for (Point2D viewer : viewers) {
+                areas.add(calculator.calculateVisibility(scene, viewer));
+            }
+            assertMatchesSamples(scene, viewers, areas, VisibilityUnion.union(viewers, areas), random);
+        }
+    }
+
+    /**
+     * Viewers in a row across an open room, whose areas share edges along the walls of the room.
+     */
+    @Test
+    public void matchesSamplesAlongSharedWalls() {
+        final Random random = new Random(4);
+        final VisibilityCalculator calculator = new AngularSweepVisibility();
+        // Only the first row of cells has polygons in it, so the viewers in the last row all see most of the walls.
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, CELLS_PER_SIDE, random);
+        final List<Point2D> viewers = new ArrayList<>();
+        for (int i = 0; i < MAX_VIEWERS; i++) {
+            viewers.add(new Point2D(TestScenes.MARGIN / 2 + i * TestScenes.CELL_SIZE,
+                    TestScenes.CELL_SIZE * (CELLS_PER_SIDE - 1)));
+        }
+        final List<List<LineIntersection>> areas = new ArrayList<>();
+        for (Point2D viewer : viewers) {
+            areas.add(calculator.calculateVisibility(scene, viewer));
+        }
+        assertMatchesSamples(scene, viewers, areas, VisibilityUnion.union(viewers, areas), random);
+    }
+
+    /**
+     * Only the viewers that moved have their areas calculated again, unless the polygons changed.
+     */
+    @Test
+    public void onlyCalculatesMovedViewers() {
+        final Random random = new Random(5);
+        final VisibilityCalculator calculator = new AngularSweepVisibility();
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final VisibilityUnion union = new VisibilityUnion(calculator);
+        final List<Point2D> viewers = TestScenes.createViewers(CELLS_PER_SIDE, MAX_VIEWERS, random);
+
+        VisibilityUnion.Result result = union.calculate(scene, viewers);
+        assertEquals(MAX_VIEWERS, union.getLastCalculated());
+        assertUnion(scene, calculator, union, viewers, result);
+
+        // Nothing changed, so the same result is returned.
+        final VisibilityUnion.Result unchanged = union.calculate(scene, new ArrayList<>(viewers));
+        assertEquals(0, union.getLastCalculated());
+        assertSame(result, unchanged);
+
+        // One viewer moves.
+        viewers.set(2, TestScenes.createViewers(CELLS_PER_SIDE, 1, random).get(0));
+        result = union.calculate(scene, viewers);
+        assertEquals(1, union.getLastCalculated());
+        assertNotSame(unchanged, result);
+        assertUnion(scene, calculator, union, viewers, result);
+
+        // A viewer is added, and then it and another one are removed.
+        viewers.add(TestScenes.createViewers(CELLS_PER_SIDE, 1, random).get(0));
+        result = union.calculate(scene, viewers);
+        assertEquals(1, union.getLastCalculated());
+        assertUnion(scene, calculator, union, viewers, result);
+        viewers.remove(viewers.size() - 1);
+        viewers.remove(viewers.size() - 1);
+        result = union.calculate(scene, viewers);
+        assertEquals(0, union.getLastCalculated());
+        assertUnion(scene, calculator, union, viewers, result);
+
+        // The polygons change, so every viewer is calculated again.
+        assertTrue(TestScenes.disableSegments(scene, 0.3, random) > 0);
+        result = union.calculate(scene, viewers);
+        assertEquals(viewers.size(), union.getLastCalculated());
+        assertUnion(scene, calculator, union, viewers, result);
+
+        // So are they for other polygons.
+        final VisionBlockingPolygonList other = TestScenes.createScene(CELLS_PER_SIDE, random);
+        result = union.calculate(other, viewers);
+        assertEquals(viewers.size(), union.getLastCalculated());
+        assertUnion(other, calculator, union, viewers, result);
+
+        // And no viewers leaves nothing.
+        result = union.calculate(other, Collections.emptyList());
+        assertEquals(0, union.getLastCalculated());
+        assertEquals(0, result.getArea(), 0);
+        assertTrue(result.getOutline().isEmpty());
+    }
+
+    /**
+     * A union with a different number of areas to viewers is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingAreas() {
+        VisibilityUnion.union(Collections.singletonList(new Point2D(0, 0)), Collections.emptyList());
+    }
+
+    /**
+     * Checks that the cached areas of a union are those of the viewers, and that its result is the union of them.
+     * @param scene The polygons that block vision/light.
+     * @param calculator The calculator the union uses.
+     * @param union The union.
+     * @param viewers The viewers of the last calculation.
+     * @param result The result of the last calculation.
+     */
+    private static void assertUnion(VisionBlockingPolygonList scene, VisibilityCalculator calculator,
+                                    VisibilityUnion union, List<Point2D> viewers, VisibilityUnion.Result result) {
+        final List<List<LineIntersection>> areas = new ArrayList<>();
+        for (int i = 0; i < viewers.size(); i++) {
+            final List<LineIntersection> expected = calculator.calculateVisibility(scene, viewers.get(i));
+            final List<LineIntersection> actual = union.getVisibility(i);
+            assertEquals("Number of intersections from " + viewers.get(i), expected.size(), actual.size());
+            for (int j = 0; j < expected.size(); j++) {
+                assertEquals("Intersection " + j + " from " + viewers.get(i), expected.get(j).getPoint(),
+                        actual.get(j).getPoint());
+            }
+            areas.add(expected);
+        }
+        final VisibilityUnion.Result expected = VisibilityUnion.union(viewers, areas);
+        assertEquals("Area", expected.getArea(), result.getArea(), 0);
+        assertEquals("Outline", expected.getOutline(), result.getOutline());
+    }
+
+    /**
+     * Checks that the outline of a union contains the sample points that are in any of the areas and no others, that
+     * its area is the area inside the outline, and that it agrees with the area estimated from the sample points.
+     * @param scene The scene, the first polygon of which is the room around everything else.
+     * @param viewers The viewers.
+     * @param areas The area visible from each viewer.
+     * @param result The union of the areas.
+     * @param random The random number generator for the sample points.
+     */
+    private static void assertMatchesSamples(VisionBlockingPolygonList scene, List<Point2D> viewers,
+                                             List<List<LineIntersection>> areas, VisibilityUnion.Result result,
+                                             Random random) {
+        final List<List<Point2D>> polygons = new ArrayList<>();
+        for (List<LineIntersection> area : areas) {
+            final List<Point2D> polygon = new ArrayList<>(area.size());
+            for (LineIntersection lineIntersection : area) {
+                polygon.add(lineIntersection.getPoint());
+            }
+            polygons.add(polygon);
+        }
+
+        // The area is what is inside the outline, the holes going the other way round to the outer edges.
+        double outlineArea = 0;
+        for (List<Point2D> ring : result.getOutline()) {
+            outlineArea += signedArea(ring);
+        }
+        assertEquals("Area inside the outline from " + viewers, result.getArea(), outlineArea,
+                result.getArea() * 1e-9);
+
+        final VisionBlockingPolygon room = scene.getPolygonList().get(0);
+        final double cellWidth = (room.getMaxX() - room.getMinX()) / SAMPLES_PER_SIDE;
+        final double cellHeight = (room.getMaxY() - room.getMinY()) / SAMPLES_PER_SIDE;
+        int inside = 0;
+        int skipped = 0;
+        for (int row = 0; row < SAMPLES_PER_SIDE; row++) {
+            for (int column = 0; column < SAMPLES_PER_SIDE; column++) {
+                final Point2D sample = new Point2D(room.getMinX() + (column + random.nextDouble()) * cellWidth,
+                        room.getMinY() + (row + random.nextDouble()) * cellHeight);
+                if (isNearEdge(polygons, sample)) {
+                    skipped++;
+                    continue;
+                }
+                boolean expected = false;
+                for (List<Point2D> polygon : polygons) {
+                    expected |= contains(polygon, sample);
+                }
+                assertEquals("Outline of the union from " + viewers + " contains " + sample, expected,
+                        contains(result.getOutline(), sample));
+                if (expected) {
+                    inside++;
+                }
+            }
+        }
+
+        assertTrue("No sample points inside the union from " + viewers, inside > 0);
+
+        // Each sample point stands for its cell, which only lies partly inside the union where an edge crosses it.
+        final double sampledArea = inside * cellWidth * cellHeight;
+        double perimeter = 0;
+        for (List<Point2D> ring : result.getOutline()) {
+            perimeter += perimeter(ring);
+        }
+        assertEquals("Sampled area from " + viewers, sampledArea, result.getArea(),
+                (perimeter + skipped * Math.max(cellWidth, cellHeight)) * Math.max(cellWidth, cellHeight));
+    }
+
+    /**
+     * Returns if a point is within {@link #EDGE_DISTANCE} of an edge of any of the polygons.
+     * @param polygons The polygons.
+     * @param point The point.
+     * @return <code>true</code> if the point is near an edge.
+     */
+    private static boolean isNearEdge(List<List<Point2D>> polygons, Point2D point) {
+        for (List<Point2D> polygon : polygons) {
+            for (int i = 0, j = polygon.size() - 1; i < polygon.size(); j = i++) {
+                final Point2D p = polygon.get(j);
+                final Point2D q = polygon.get(i);
+                final double ex = q.getX() - p.getX();
+                final double ey = q.getY() - p.getY();
+                final double lengthSquared = ex * ex + ey * ey;
+                final double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1,
+                        ((point.getX() - p.getX()) * ex + (point.getY() - p.getY()) * ey) / lengthSquared));
+                if (point.distance(p.getX() + ex * t, p.getY() + ey * t) <= EDGE_DISTANCE) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns if a point is inside a polygon, using the even-odd rule.
+     * @param polygon The vertices of the polygon.
+     * @param point The point.
+     * @return <code>true</code> if the point is inside the polygon.
+     */
+    private static boolean contains(List<Point2D> polygon, Point2D point) {
+        return contains(Collections.singletonList(polygon), point);
+    }
+
+    /**
+     * Returns if a point is inside an area made up of several rings, using the even-odd rule.
+     * @param rings The rings, each of which is a list of vertices.
+     * @param point The point.
+     * @return <code>true</code> if the point is inside the area.
+     */
+    private static boolean contains(Iterable<List<Point2D>> rings, Point2D point) {
+        final double x = point.getX();
+        final double y = point.getY();
+        boolean inside = false;
+        for (List<Point2D> ring : rings) {
+            for (int i = 0, j = ring.size() - 1; i < ring.size(); j = i++) {
+                final Point2D p = ring.get(j);
+                final Point2D q = ring.get(i);
+                if ((q.getY() > y) != (p.getY() > y)
+                        && x < p.getX() + (q.getX() - p.getX()) * (y - p.getY()) / (q.getY() - p.getY())) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Works out the signed area of a ring, which is positive if the angle around it increases.
+     * @param ring The vertices of the ring.
+     * @return the signed area.
+     */
+    private static double signedArea(List<Point2D> ring) {
+        double area = 0;
+        for (int i = 0, j = ring.size() - 1; i < ring.size(); j = i++) {
+            area += ring.get(j).getX() * ring.get(i).getY() - ring.get(i).getX() * ring.get(j).getY();
+        }
+        return area / 2;
+    }
+
+    /**
+     * Works out the length of the edges of a ring.
+     * @param ring The vertices of the ring.
+     * @return the length.
+     */
+    private static double perimeter(List<Point2D> ring) {
+        double length = 0;
+        for (int i = 0, j = ring.size() - 1; i < ring.size(); j = i++) {
+            length += ring.get(j).distance(ring.get(i));
+        }
+        return length;
+    }
+}
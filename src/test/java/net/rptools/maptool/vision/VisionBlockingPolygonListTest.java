@@ -0,0 +1,237 @@
+package net.rptools.maptool.vision;
+
+import javafx.geometry.Point2D;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that removing and disabling polygons in place, including when enough line segments are left unused that the
+ * store is compacted, leaves a {@link VisionBlockingPolygonList} that blocks exactly what one built from scratch from
+ * the polygons that are left does.
+ */
+public class VisionBlockingPolygonListTest {
+    /** The number of cells along each side of the scenes, enough polygons that removing half of them compacts. */
+    private static final int CELLS_PER_SIDE = 10;
+    /** The number of viewers whose visible areas are compared. */
+    private static final int VIEWERS = 30;
+    /**
+     * The number of line segments no longer in any polygon that can be left in the store without it being compacted,
+     * as long as they are no more than half of it.
+     */
+    private static final int MIN_UNREFERENCED_TO_COMPACT = 64;
+    /** The largest difference allowed between the visible areas, relative to the area. */
+    private static final double TOLERANCE = 1e-9;
+
+    /**
+     * Removing over half of the polygons compacts the store, renumbering the line segments, and what is left blocks
+     * the same as a list built from the polygons that are left, with the open doors still open.
+     */
+    @Test
+    public void removingPolygonsCompacts() {
+        final Random random = new Random(1);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        assertTrue(TestScenes.disableSegments(scene, 0.2, random) > 0);
+        final int storeSize = scene.getSegmentStore().size();
+        // Build the grid and classifier so that compacting has to throw them away.
+        scene.getSegmentGrid();
+        scene.getVertexClassifier();
+
+        final List<VisionBlockingPolygon> polygons = new ArrayList<>(scene.getPolygonList());
+        for (int i = 1; i < polygons.size(); i += 3) {
+            final long version = scene.getVersion();
+            assertTrue(scene.removeVisionBlockingPolygon(polygons.get(i)));
+            assertTrue(scene.getVersion() > version);
+            if (i % 8 == 1) {
+                assertSameAsRebuilt(scene, random);
+            }
+        }
+        for (int i = 2; i < polygons.size(); i += 3) {
+            assertTrue(scene.removeVisionBlockingPolygon(polygons.get(i)));
+        }
+        assertFalse("Removed twice", scene.removeVisionBlockingPolygon(polygons.get(1)));
+
+        assertCompacted(scene, storeSize);
+        assertFalse(scene.getDisabledLineSegments().isEmpty());
+        assertSameAsRebuilt(scene, random);
+    }
+
+    /**
+     * Disabling over half of the polygons compacts the store too, and enabling them again afterwards brings their line
+     * segments back so everything is blocked as it was to start with.
+     */
+    @Test
+    public void enablingAfterCompactingRestoresPolygons() {
+        final Random random = new Random(2);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final VisionBlockingPolygonList original = TestScenes.createScene(CELLS_PER_SIDE, new Random(2));
+        final int storeSize = scene.getSegmentStore().size();
+        scene.getSegmentGrid();
+
+        final List<VisionBlockingPolygon> disabled = new ArrayList<>();
+        for (int i = 1; i < scene.getPolygonList().size(); i++) {
+            if (i % 4 != 0) {
+                disabled.add(scene.getPolygonList().get(i));
+            }
+        }
+        for (VisionBlockingPolygon vbp : disabled) {
+            assertTrue(scene.setPolygonEnabled(vbp, false));
+        }
+        assertFalse("Disabled twice", scene.setPolygonEnabled(disabled.get(0), false));
+        assertEquals(disabled, scene.getDisabledPolygons());
+        assertCompacted(scene, storeSize);
+        assertSameAsRebuilt(scene, random);
+
+        for (VisionBlockingPolygon vbp : disabled) {
+            assertTrue(scene.setPolygonEnabled(vbp, true));
+            for (LineSegment lineSegment : vbp.getLineSegments()) {
+                assertTrue(lineSegment + " enabled", scene.isLineSegmentEnabled(lineSegment));
+            }
+        }
+        assertTrue(scene.getDisabledPolygons().isEmpty());
+        assertSameLines(original, scene);
+        assertEquals(original.getNumberVertices(), scene.getNumberVertices());
+        assertEquals(storeSize, scene.getSegmentStore().size());
+        assertSameAreas(original, scene, TestScenes.createViewers(CELLS_PER_SIDE, VIEWERS, random));
+    }
+
+    /**
+     * A door in a wall shared by two polygons stays open when one of them is removed, even when that compacts the
+     * store, and is forgotten (closed) once neither polygon is left.
+     */
+    @Test
+    public void doorOnSharedWallSurvivesRemovingOneSide() {
+        final Random random = new Random(3);
+        final VisionBlockingPolygonList scene = TestScenes.createScene(CELLS_PER_SIDE, random);
+        final int storeSize = scene.getSegmentStore().size();
+        // Two rooms outside the scene sharing a wall, in opposite directions.
+        final double size = CELLS_PER_SIDE * TestScenes.CELL_SIZE;
+        final VisionBlockingPolygon left = polygon(size + 10, 10, size + 30, 10, size + 30, 30, size + 10, 30);
+        final VisionBlockingPolygon right = polygon(size + 30, 10, size + 50, 10, size + 50, 30, size + 30, 30);
+        scene.addVisionBlockingPolygon(left);
+        scene.addVisionBlockingPolygon(right);
+        final LineSegment door = new LineSegment(new Point2D(size + 30, 10), new Point2D(size + 30, 30));
+        assertTrue(scene.setLineSegmentEnabled(door, false));
+
+        // Removing the left room along with most of the scene compacts the store.
+        assertTrue(scene.removeVisionBlockingPolygon(left));
+        final List<VisionBlockingPolygon> polygons = new ArrayList<>(scene.getPolygonList());
+        for (int i = 1; i < polygons.size(); i++) {
+            if (polygons.get(i) != right && i % 3 != 0) {
+                assertTrue(scene.removeVisionBlockingPolygon(polygons.get(i)));
+            }
+        }
+        assertCompacted(scene, storeSize);
+        assertFalse(scene.isLineSegmentEnabled(door));
+        assertEquals(new HashSet<>(List.of(door)), scene.getDisabledLineSegments());
+        assertSameAsRebuilt(scene, random);
+        final Point2D inRight = new Point2D(size + 40, 20);
+        assertTrue(LineOfSight.canSee(scene, inRight, new Point2D(size + 20, 20)));
+
+        // Adding the left room back leaves the door open.
+        scene.addVisionBlockingPolygon(left);
+        assertFalse(scene.isLineSegmentEnabled(door));
+        assertTrue(LineOfSight.canSee(scene, inRight, new Point2D(size + 20, 20)));
+
+        // Once both rooms have gone the door is forgotten, and the wall is closed when they come back.
+        assertTrue(scene.removeVisionBlockingPolygon(left));
+        assertTrue(scene.setPolygonEnabled(right, false));
+        assertTrue(scene.getDisabledLineSegments().isEmpty());
+        assertTrue(scene.setPolygonEnabled(right, true));
+        scene.addVisionBlockingPolygon(left);
+        assertTrue(scene.isLineSegmentEnabled(door));
+        assertFalse(LineOfSight.canSee(scene, inRight, new Point2D(size + 20, 20)));
+        assertSameAsRebuilt(scene, random);
+    }
+
+    /**
+     * Checks that the store has been compacted, so it is smaller than it started and the line segments no longer in
+     * any enabled polygon are too few to compact it again.
+     * @param scene The scene.
+     * @param storeSize The number of line segments in the store before any were removed.
+     */
+    private static void assertCompacted(VisionBlockingPolygonList scene, int storeSize) {
+        final int size = scene.getSegmentStore().size();
+        final int unreferenced = size - scene.getLineSegments().size() - scene.getDisabledLineSegments().size();
+        assertTrue("Not compacted", size < storeSize);
+        assertTrue(unreferenced + " of " + size + " unused",
+                unreferenced < MIN_UNREFERENCED_TO_COMPACT || unreferenced * 2 <= size);
+        // Both the open doors and the unused line segments are switched off in the store.
+        assertEquals(scene.getDisabledLineSegments().size() + unreferenced,
+                scene.getSegmentStore().getNumberDisabled());
+    }
+
+    /**
+     * Checks that a scene has the same line segments and vertices, and blocks the same areas, as a list built from
+     * scratch from its enabled polygons with the same line segments disabled.
+     * @param scene The scene.
+     * @param random The random number generator for the viewers.
+     */
+    private static void assertSameAsRebuilt(VisionBlockingPolygonList scene, Random random) {
+        final VisionBlockingPolygonList rebuilt = new VisionBlockingPolygonList();
+        for (VisionBlockingPolygon vbp : scene.getPolygonList()) {
+            rebuilt.addVisionBlockingPolygon(vbp);
+        }
+        for (LineSegment lineSegment : scene.getDisabledLineSegments()) {
+            assertTrue(rebuilt.setLineSegmentEnabled(lineSegment, false));
+        }
+        assertSameLines(rebuilt, scene);
+        assertEquals(rebuilt.getVertices(), scene.getVertices());
+        assertEquals(rebuilt.getEnabledSegmentStore().size(), scene.getEnabledSegmentStore().size());
+        assertSameAreas(rebuilt, scene, TestScenes.createViewers(CELLS_PER_SIDE, VIEWERS, random));
+    }
+
+    /**
+     * Checks that two scenes have the same enabled line segments. Each line segment is stored in the direction of the
+     * first polygon it was added with, so the direction can depend on the order the polygons were added in.
+     * @param expected The scene built from scratch.
+     * @param actual The scene that was changed in place.
+     */
+    private static void assertSameLines(VisionBlockingPolygonList expected, VisionBlockingPolygonList actual) {
+        assertEquals(expected.getLineSegments().size(), actual.getLineSegments().size());
+        for (LineSegment lineSegment : actual.getLineSegments()) {
+            assertTrue(lineSegment + " enabled", expected.isLineSegmentEnabled(lineSegment));
+        }
+    }
+
+    /**
+     * Checks that the same areas are visible in two scenes, with both exhaustive and culled ray casting and with the
+     * angular sweep.
+     * @param expected The scene built from scratch.
+     * @param actual The scene that was changed in place.
+     * @param viewers The viewers.
+     */
+    private static void assertSameAreas(VisionBlockingPolygonList expected, VisionBlockingPolygonList actual,
+                                        List<Point2D> viewers) {
+        final VisibilityCalculator[] calculators = {
+                new RayCastVisibility(false), new RayCastVisibility(true), new AngularSweepVisibility()
+        };
+        for (VisibilityCalculator calculator : calculators) {
+            for (Point2D viewer : viewers) {
+                final double area = TestScenes.area(calculator.calculateVisibility(expected, viewer));
+                assertEquals(calculator.getClass().getSimpleName() + " area from " + viewer, area,
+                        TestScenes.area(calculator.calculateVisibility(actual, viewer)), area * TOLERANCE);
+            }
+        }
+    }
+
+    /**
+     * Creates a polygon.
+     * @param coordinates The X and Y co-ordinates of each vertex in turn.
+     * @return the polygon.
+     */
+    private static VisionBlockingPolygon polygon(double... coordinates) {
+        final Point2D[] points = new Point2D[coordinates.length / 2];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point2D(coordinates[i * 2], coordinates[i * 2 + 1]);
+        }
+        return new VisionBlockingPolygon(points);
+    }
+}
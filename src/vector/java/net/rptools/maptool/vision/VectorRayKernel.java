@@ -0,0 +1,68 @@
+package net.rptools.maptool.vision;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link RayKernel} that uses the Vector API to test a ray against as many line segments at once as the CPU has SIMD
+ * lanes for (4 with AVX2, 8 with AVX-512).
+ *
+ * Most line segments are missed by any given ray, so the lanes only test if the ray could hit each line segment using
+ * multiplications and comparisons (the test in {@link SegmentStore#intersectRay(int, double, double, double, double,
+ * RayHit)} with both sides multiplied by the denominator so there is no division). Only when one of the lanes could be
+ * a hit are they tested again one at a time with {@link SegmentStore#intersectRay(int, double, double, double, double,
+ * RayHit)}, so the result is exactly the same as {@link SegmentStore#castRay(double, double, double, double, RayHit)}.
+ * Disabled line segments are only skipped then, as most of them are filtered out by the lanes anyway.
+ *
+ * This is loaded by {@link SegmentStore} if it is available, it needs <code>--add-modules jdk.incubator.vector</code>.
+ */
+class VectorRayKernel implements RayKernel {
+    /** The widest vectors the CPU supports. */
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    /** Relative slack allowed for rounding so the lanes never miss a line segment that would be hit. */
+    private static final double ROUNDING_SLACK = 1e-9;
+
+    @Override
+    public boolean castRay(SegmentStore segmentStore, double ox, double oy, double dx, double dy, RayHit hit) {
+        final double[] x1 = segmentStore.getX1Array();
+        final double[] y1 = segmentStore.getY1Array();
+        final double[] x2 = segmentStore.getX2Array();
+        final double[] y2 = segmentStore.getY2Array();
+        final int size = segmentStore.size();
+        final int lanes = SPECIES.length();
+        final int bound = SPECIES.loopBound(size);
+
+        int seg = 0;
+        for (; seg < bound; seg += lanes) {
+            final DoubleVector vx1 = DoubleVector.fromArray(SPECIES, x1, seg);
+            final DoubleVector vy1 = DoubleVector.fromArray(SPECIES, y1, seg);
+            final DoubleVector lineDx = DoubleVector.fromArray(SPECIES, x2, seg).sub(vx1);
+            final DoubleVector lineDy = DoubleVector.fromArray(SPECIES, y2, seg).sub(vy1);
+            final DoubleVector denom = lineDy.mul(dx).sub(lineDx.mul(dy));
+            final DoubleVector wx = vx1.sub(ox);
+            final DoubleVector wy = vy1.sub(oy);
+            final DoubleVector rayNum = wx.mul(lineDy).sub(wy.mul(lineDx));
+            final DoubleVector lineNum = wx.mul(dy).sub(wy.mul(dx));
+
+            // ray_t >= 0, line_t >= 0 and line_t <= 1 when multiplied out.
+            final VectorMask<Double> maybeHit = rayNum.mul(denom).compare(VectorOperators.GE, 0)
+                    .and(lineNum.mul(denom).compare(VectorOperators.GE, 0))
+                    .and(lineNum.abs().compare(VectorOperators.LE, denom.abs().mul(1 + ROUNDING_SLACK)));
+            if (maybeHit.anyTrue()) {
+                for (int i = seg; i < seg + lanes; i++) {
+                    if (segmentStore.isEnabled(i)) {
+                        segmentStore.intersectRay(i, ox, oy, dx, dy, hit);
+                    }
+                }
+            }
+        }
+        for (; seg < size; seg++) {
+            if (segmentStore.isEnabled(seg)) {
+                segmentStore.intersectRay(seg, ox, oy, dx, dy, hit);
+            }
+        }
+        return hit.isHit();
+    }
+}